@@ -0,0 +1,372 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.benchmark;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.json.GenericJson;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventAttendee;
+import com.google.api.services.driveactivity.v2.model.Actor;
+import com.google.api.services.driveactivity.v2.model.KnownUser;
+import com.google.api.services.driveactivity.v2.model.User;
+import com.google.cloud.bigquery.FieldValueList;
+import com.notelysia.gcp.controller.CalendarAction;
+import com.notelysia.gcp.controller.DriveActivityAction;
+import com.notelysia.gcp.dao.BigQueryClient;
+import com.notelysia.gcp.dao.InMemoryTableStore;
+import com.notelysia.gcp.dao.IngestionBuffer;
+import com.notelysia.gcp.dao.ListRecords;
+import com.notelysia.gcp.dao.RecordFilter;
+import com.notelysia.gcp.logic.CrawlCheckpointStore;
+import com.notelysia.gcp.logic.RequestGovernor;
+import com.notelysia.gcp.logic.ServiceCredential;
+import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.model.DriveActivity;
+import com.notelysia.gcp.trace.FileSpanExporter;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.CsvWriter;
+import com.notelysia.gcp.util.FixtureHttpTransport;
+import com.notelysia.gcp.util.Instance;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Throughput harness of the collection on the in-memory table store.
+ * Each round re-uploads half of the previous records of every user, so the de-duplication path is exercised.
+ * <ul>
+ *     <li>--mode=storage (default): every simulated user runs what the collection actions do after the
+ *     Google APIs are read: write the CSV file, load it with de-duplication, then select the user's records.</li>
+ *     <li>--mode=actions: every simulated user runs {@link CalendarAction} and {@link DriveActivityAction},
+ *     the Calendar, Drive Activity and People APIs are answered by a {@link FixtureHttpTransport}.</li>
+ * </ul>
+ * Arguments (all optional): --users=200 --rounds=3 --threads=64 --records=50
+ * --job-latency=50 --metadata-latency=10 --api-latency=20 --api-jitter=0 (milliseconds)
+ * --error-rate=0 --quota-rate=0 (0.0 to 1.0) --api-rate=0 --user-rate=0 (requests per second, 0 for no limit)
+ * --max-attempts=5 --trace-file=traces.jsonl --verbose
+ * --batch-rows=5000 --batch-delay=200 (milliseconds) --backlog-rows=50000 (shared load jobs of the actions mode)
+ */
+public class LoadHarness {
+    private static final String DATASET = "demo_data_set1";
+    private static final String DRIVE_ACTIVITY_TABLE = "drive_activity";
+    private static final String CALENDAR_TABLE = "calendar_collection";
+
+    private final InMemoryTableStore tableStore;
+    private final Path directory;
+    private final int records;
+    private final List<Long> driveActivityNanos = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> calendarNanos = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong failures = new AtomicLong();
+    private ServiceCredential serviceCredential;
+    private FixtureHttpTransport transport;
+    private volatile int currentRound;
+
+    LoadHarness(InMemoryTableStore tableStore, Path directory, int records) {
+        this.tableStore = tableStore;
+        this.directory = directory;
+        this.records = records;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int users = Integer.parseInt(options.getOrDefault("users", "200"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "3"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+        int records = Integer.parseInt(options.getOrDefault("records", "50"));
+        long jobLatency = Long.parseLong(options.getOrDefault("job-latency", "50"));
+        long metadataLatency = Long.parseLong(options.getOrDefault("metadata-latency", "10"));
+        boolean actionsMode = "actions".equals(options.getOrDefault("mode", "storage"));
+        if (!options.containsKey("verbose")) {
+            Logger.getLogger("com.notelysia.gcp").setLevel(Level.SEVERE);
+        }
+
+        InMemoryTableStore tableStore = new InMemoryTableStore(jobLatency, metadataLatency);
+        Path directory = Files.createTempDirectory("load-harness");
+        LoadHarness harness = new LoadHarness(tableStore, directory, records);
+        BigQueryClient bigQueryClient = new BigQueryClient();
+        bigQueryClient.setTableStore(tableStore);
+        bigQueryClient.createDataSet(DATASET);
+        if (options.containsKey("trace-file")) {
+            // One trace per action run, to find the API page or BigQuery job behind the slowest runs
+            Tracing.setExporter(new FileSpanExporter(Paths.get(options.get("trace-file"))));
+        }
+        if (actionsMode) {
+            harness.useFixtureTransport(
+                    Long.parseLong(options.getOrDefault("api-latency", "20")),
+                    Long.parseLong(options.getOrDefault("api-jitter", "0")),
+                    Double.parseDouble(options.getOrDefault("error-rate", "0")),
+                    Double.parseDouble(options.getOrDefault("quota-rate", "0")));
+            // Short backoffs keep the rounds fast, the fixture answers retried pages at once
+            harness.serviceCredential.setRequestGovernor(new RequestGovernor(
+                    Double.parseDouble(options.getOrDefault("api-rate", "0")),
+                    Double.parseDouble(options.getOrDefault("user-rate", "0")),
+                    Integer.parseInt(options.getOrDefault("max-attempts", "5")),
+                    50, 2_000));
+            // Checkpoint files go to the run directory and are removed with it
+            harness.serviceCredential.setCrawlCheckpointStore(new CrawlCheckpointStore(directory, Duration.ofHours(1)));
+            harness.serviceCredential.setIngestionBuffer(new IngestionBuffer(
+                    Integer.parseInt(options.getOrDefault("batch-rows", "5000")),
+                    Long.parseLong(options.getOrDefault("batch-delay", "200")),
+                    Integer.parseInt(options.getOrDefault("backlog-rows", "50000"))));
+        }
+
+        System.out.printf("mode=%s users=%d rounds=%d threads=%d records=%d job-latency=%dms metadata-latency=%dms%n",
+                actionsMode ? "actions" : "storage", users, rounds, threads, records, jobLatency, metadataLatency);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            for (int round = 0; round < rounds; round++) {
+                harness.currentRound = round;
+                List<Callable<Void>> tasks = new ArrayList<>(users);
+                for (int user = 0; user < users; user++) {
+                    int simulatedUser = user;
+                    int simulatedRound = round;
+                    tasks.add(() -> {
+                        if (actionsMode) {
+                            harness.runActions(simulatedUser);
+                        } else {
+                            harness.runUser(simulatedUser, simulatedRound);
+                        }
+                        return null;
+                    });
+                }
+                executor.invokeAll(tasks);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Tracing.shutdown();
+        long elapsedNanos = System.nanoTime() - start;
+        harness.report(elapsedNanos);
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Run the Drive Activity and the Calendar ingestion of one user.
+     */
+    void runUser(int user, int round) {
+        String email = email(user);
+        String userId = "id" + user;
+        int from = user * 1_000_000 + round * (this.records / 2);
+        try {
+            long start = System.nanoTime();
+            List<DriveActivity> activities = SyntheticData.driveActivityRecords(from, this.records, user);
+            for (DriveActivity activity : activities) {
+                activity.setUserAction("[" + email + "]");
+            }
+            Path driveActivityFile = this.directory.resolve(round + "_activities_" + userId + ".csv");
+            try (CsvWriter csvWriter = new CsvWriter(driveActivityFile.toString(), CsvWriter.DRIVE_ACTIVITY_HEADER)) {
+                for (DriveActivity activity : activities) {
+                    csvWriter.writeRow(activity);
+                }
+            }
+            this.ingest(DRIVE_ACTIVITY_TABLE, driveActivityFile, DriveActivity.class);
+            Iterable<FieldValueList> driveActivityRows = this.tableStore.select(DATASET, DRIVE_ACTIVITY_TABLE,
+                    List.of("timeActivity", "activityId"),
+                    RecordFilter.containsAnyIgnoreCase("userAction", email, userId));
+            new ListRecords().collectDriveActivityRecord(driveActivityRows);
+            this.driveActivityNanos.add(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<CalendarEvent> events = SyntheticData.calendarEventRecords(from, this.records, user);
+            for (CalendarEvent event : events) {
+                event.setAttendees(String.format("[{\"Email\": \"%s\", \"Response Status\": \"accepted\"}]", email));
+                event.setOwnerAccountId(userId);
+                event.setAttendee(String.format("[{\"email\":\"%s\",\"responseStatus\":\"accepted\"}]", email));
+            }
+            Path calendarFile = this.directory.resolve(round + "_calendar_event_" + userId + ".csv");
+            try (CsvWriter csvWriter = new CsvWriter(calendarFile.toString(), CsvWriter.CALENDAR_EVENT_HEADER)) {
+                for (CalendarEvent event : events) {
+                    csvWriter.writeRow(event);
+                }
+            }
+            this.ingest(CALENDAR_TABLE, calendarFile, CalendarEvent.class);
+            Iterable<FieldValueList> calendarRows = this.tableStore.select(DATASET, CALENDAR_TABLE,
+                    List.of("createdTime"),
+                    CalendarAction.userFilter(userId, email));
+            new ListRecords().collectCalendarEventRecord(calendarRows);
+            this.calendarNanos.add(System.nanoTime() - start);
+        } catch (Exception e) {
+            this.failures.incrementAndGet();
+            System.err.printf("user %d round %d failed: %s%n", user, round, e);
+        }
+    }
+
+    /**
+     * Run both collection actions of one user, the Google APIs are answered by the fixture transport.
+     */
+    void runActions(int user) {
+        String email = email(user);
+        String userId = "id" + user;
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setAccessToken("harness-" + user);
+        try {
+            long start = System.nanoTime();
+            DriveActivityAction driveActivityAction = new DriveActivityAction();
+            driveActivityAction.setServiceCredential(this.serviceCredential);
+            driveActivityAction.setCredential(credential);
+            driveActivityAction.setTableStore(this.tableStore);
+            try (Span span = Tracing.startSpan("harness.drive_activity")) {
+                span.setAttribute("harness.user", user);
+                driveActivityAction.execute(userId, email);
+            }
+            this.driveActivityNanos.add(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            CalendarAction calendarAction = new CalendarAction();
+            calendarAction.setServiceCredential(this.serviceCredential);
+            calendarAction.setCredential(credential);
+            calendarAction.setTableStore(this.tableStore);
+            try (Span span = Tracing.startSpan("harness.calendar")) {
+                span.setAttribute("harness.user", user);
+                calendarAction.execute(userId, email);
+            }
+            this.calendarNanos.add(System.nanoTime() - start);
+        } catch (Exception e) {
+            this.failures.incrementAndGet();
+            System.err.printf("user %d failed: %s%n", user, e);
+        }
+    }
+
+    /**
+     * Answer the Calendar, Drive Activity and People APIs from generated fixtures.
+     * The user is read from the access token, so every user gets its own records.
+     */
+    private void useFixtureTransport(long latencyMillis, long jitterMillis, double errorRate, double quotaErrorRate) {
+        this.transport = new FixtureHttpTransport();
+        this.transport.setLatencyMillis(latencyMillis);
+        this.transport.setLatencyJitterMillis(jitterMillis);
+        this.transport.setErrorRate(errorRate);
+        this.transport.setQuotaErrorRate(quotaErrorRate);
+        this.transport.addJson("GET", "/calendar/v3/users/me/calendarList", "{\"items\": [{\"id\": \"primary\"}]}");
+        this.transport.addRoute("GET", "/calendar/v3/calendars/[^/]+/events", request -> {
+            int user = userOf(request);
+            List<Event> events = SyntheticData.apiEvents(this.firstIndex(user), this.records, user);
+            for (Event event : events) {
+                List<EventAttendee> attendees = new ArrayList<>(event.getAttendees());
+                attendees.add(new EventAttendee().setEmail(email(user)).setResponseStatus("accepted"));
+                event.setAttendees(attendees);
+            }
+            return FixtureHttpTransport.page("items", events, 10, request.getPageToken());
+        });
+        this.transport.addRoute("POST", "/v2/activity:query", request -> {
+            int user = userOf(request);
+            List<com.google.api.services.driveactivity.v2.model.DriveActivity> activities =
+                    SyntheticData.apiActivities(this.firstIndex(user), this.records, user);
+            for (com.google.api.services.driveactivity.v2.model.DriveActivity activity : activities) {
+                activity.setActors(List.of(new Actor().setUser(new User()
+                        .setKnownUser(new KnownUser().setPersonName("people/harness" + user)))));
+            }
+            return FixtureHttpTransport.page("activities", activities, 10, request.getPageToken());
+        });
+        this.transport.addRoute("GET", "/v1/people/[^/]+", request -> {
+            String resourceName = request.getPath().substring("/v1/".length());
+            String person = resourceName.substring("people/".length());
+            String email = person.startsWith("harness")
+                    ? email(Integer.parseInt(person.substring("harness".length())))
+                    : "user" + person + "@example.com";
+            GenericJson emailAddress = new GenericJson();
+            emailAddress.set("value", email);
+            GenericJson profile = new GenericJson();
+            profile.set("resourceName", resourceName);
+            profile.set("emailAddresses", List.of(emailAddress));
+            return Instance.jsonFactory.toString(profile);
+        });
+        this.serviceCredential = new ServiceCredential();
+        this.serviceCredential.setHttpTransport(this.transport);
+    }
+
+    private int firstIndex(int user) {
+        return user * 1_000_000 + this.currentRound * (this.records / 2);
+    }
+
+    private static int userOf(FixtureHttpTransport.FixtureRequest request) {
+        String authorization = request.getHeader("Authorization");
+        return Integer.parseInt(authorization.substring(authorization.indexOf("harness-") + "harness-".length()));
+    }
+
+    private static String email(int user) {
+        return "harness" + user + "@example.com";
+    }
+
+    private <T> void ingest(String tableName, Path csvFile, Class<T> clazz) throws IOException, InterruptedException {
+        BigQueryClient bigQueryClient = new BigQueryClient();
+        bigQueryClient.setTableStore(this.tableStore);
+        bigQueryClient.loadLocalData2BigQuery(DATASET, tableName, csvFile.toString(), clazz);
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        int requests = this.driveActivityNanos.size() + this.calendarNanos.size();
+        System.out.printf("elapsed=%.2fs requests=%d throughput=%.1f req/s jobs=%d failures=%d%n",
+                seconds, requests, requests / seconds, this.tableStore.getJobCount(), this.failures.get());
+        printLatency("drive-activity", this.driveActivityNanos);
+        printLatency("calendar", this.calendarNanos);
+        if (this.transport != null) {
+            System.out.printf("api-requests=%d api-faults=%d%n",
+                    this.transport.getRequestCount(), this.transport.getFaultCount());
+        }
+    }
+
+    private static void printLatency(String name, List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return;
+        }
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%-15s count=%d p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms%n",
+                name, sorted.length,
+                percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99),
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.benchmark;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventAttendee;
+import com.google.api.services.calendar.model.EventDateTime;
+import com.google.api.services.driveactivity.v2.model.*;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.notelysia.gcp.cache.InMemoryCacheTier;
+import com.notelysia.gcp.cache.TwoTierCache;
+import com.notelysia.gcp.model.CalendarEvent;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic data generators for the benchmarks.
+ * Every generator takes a seed, so the same parameters always produce the same data.
+ * Timestamps start at 2024-05-01T00:00:00Z and the values look like what the Google APIs return.
+ */
+public final class SyntheticData {
+    public static final int PEOPLE = 50;
+    private static final long BASE_EPOCH_SECOND = 1714521600L;
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX").withZone(ZoneOffset.UTC);
+    private static final String[] RESPONSE_STATUS = {"accepted", "declined", "tentative", "needsAction"};
+    private static final FieldList DRIVE_ACTIVITY_SCHEMA = FieldList.of(
+            Field.of("activityId", StandardSQLTypeName.STRING),
+            Field.of("timeActivity", StandardSQLTypeName.TIMESTAMP),
+            Field.of("userAction", StandardSQLTypeName.STRING),
+            Field.of("primaryAction", StandardSQLTypeName.STRING),
+            Field.of("subAction", StandardSQLTypeName.STRING),
+            Field.of("subActionType", StandardSQLTypeName.STRING),
+            Field.of("subActionResult", StandardSQLTypeName.STRING),
+            Field.of("item", StandardSQLTypeName.STRING));
+    private static final FieldList CALENDAR_EVENT_SCHEMA = FieldList.of(
+            Field.of("eventId", StandardSQLTypeName.STRING),
+            Field.of("eventTitle", StandardSQLTypeName.STRING),
+            Field.of("eventType", StandardSQLTypeName.STRING),
+            Field.of("status", StandardSQLTypeName.STRING),
+            Field.of("createdTime", StandardSQLTypeName.TIMESTAMP),
+            Field.of("updatedTime", StandardSQLTypeName.TIMESTAMP),
+            Field.of("creator", StandardSQLTypeName.STRING),
+            Field.of("organizer", StandardSQLTypeName.STRING),
+            Field.of("eventLink", StandardSQLTypeName.STRING),
+            Field.of("attendees", StandardSQLTypeName.STRING),
+            Field.of("startTime", StandardSQLTypeName.TIMESTAMP),
+            Field.of("endTime", StandardSQLTypeName.TIMESTAMP),
+            Field.of("totalTime", StandardSQLTypeName.STRING));
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Drive Activity records as they are read from the CSV file, record i is at second i * 37.
+     * Record i is the same whatever the first index is, so two ranges can overlap.
+     *
+     * @param from  Index of the first record
+     * @param count Number of records
+     * @param seed  Random seed
+     */
+    public static List<com.notelysia.gcp.model.DriveActivity> driveActivityRecords(int from, int count, long seed) {
+        List<com.notelysia.gcp.model.DriveActivity> records = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            Random random = recordRandom(seed, i);
+            com.notelysia.gcp.model.DriveActivity record = new com.notelysia.gcp.model.DriveActivity();
+            record.setActivityId(String.format("activity-%08d", i));
+            record.setTimeActivity(formatTimestamp(epochMillis(i)));
+            record.setUserAction("[" + email(random.nextInt(PEOPLE)) + "]");
+            record.setPrimaryAction(i % 3 == 0 ? "rename" : "edit");
+            record.setSubAction(i % 3 == 0 ? "rename" : "edit");
+            record.setSubActionType(i % 3 == 0 ? "rename" : "edit");
+            record.setSubActionResult(i % 3 == 0 ? "[oldTitle:'file " + i + "', newTitle:'file " + i + " v2']" : "");
+            record.setItem("[driveItem:'file " + i + "']");
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Calendar Event records as they are read from the CSV file, event i starts at second i * 37.
+     *
+     * @param from  Index of the first record
+     * @param count Number of records
+     * @param seed  Random seed
+     */
+    public static List<CalendarEvent> calendarEventRecords(int from, int count, long seed) {
+        List<CalendarEvent> records = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            Random random = recordRandom(seed, i);
+            long start = epochMillis(i);
+            CalendarEvent record = new CalendarEvent();
+            record.setEventId(String.format("event%08d", i));
+            record.setEventTitle("Meeting " + i);
+            record.setEventType("default");
+            record.setStatus("confirmed");
+            record.setCreatedTime(formatTimestamp(start - 86_400_000L));
+            record.setUpdatedTime(formatTimestamp(start - 3_600_000L));
+            record.setCreator(email(random.nextInt(PEOPLE)));
+            record.setOrganizer(email(random.nextInt(PEOPLE)));
+            record.setEventLink("https://www.google.com/calendar/event?eid=event" + i);
+            record.setAttendees(attendeeJson(random, 1 + random.nextInt(8)));
+            record.setStartTime(formatTimestamp(start));
+            record.setEndTime(formatTimestamp(start + 1_800_000L));
+            record.setTotalTime("30.0 minutes");
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Rows of the Drive Activity table as returned by the SELECT query.
+     */
+    public static List<FieldValueList> driveActivityRows(List<com.notelysia.gcp.model.DriveActivity> records) {
+        List<FieldValueList> rows = new ArrayList<>(records.size());
+        for (com.notelysia.gcp.model.DriveActivity record : records) {
+            rows.add(row(DRIVE_ACTIVITY_SCHEMA,
+                    record.getActivityId(),
+                    timestampValue(record.getTimeActivity()),
+                    record.getUserAction(),
+                    record.getPrimaryAction(),
+                    record.getSubAction(),
+                    record.getSubActionType(),
+                    record.getSubActionResult(),
+                    record.getItem()));
+        }
+        return rows;
+    }
+
+    /**
+     * Rows of the Calendar Event table as returned by the SELECT query.
+     */
+    public static List<FieldValueList> calendarEventRows(List<CalendarEvent> records) {
+        List<FieldValueList> rows = new ArrayList<>(records.size());
+        for (CalendarEvent record : records) {
+            rows.add(row(CALENDAR_EVENT_SCHEMA,
+                    record.getEventId(),
+                    record.getEventTitle(),
+                    record.getEventType(),
+                    record.getStatus(),
+                    timestampValue(record.getCreatedTime()),
+                    timestampValue(record.getUpdatedTime()),
+                    record.getCreator(),
+                    record.getOrganizer(),
+                    record.getEventLink(),
+                    record.getAttendees(),
+                    timestampValue(record.getStartTime()),
+                    timestampValue(record.getEndTime()),
+                    record.getTotalTime()));
+        }
+        return rows;
+    }
+
+    /**
+     * Drive Activity API activities with a mix of edit, rename, comment, move and permission change actions.
+     * Actors are "people/N" names, use {@link #peopleEmails()} to resolve them without the People API.
+     *
+     * @param from  Index of the first activity
+     * @param count Number of activities
+     * @param seed  Random seed
+     */
+    public static List<DriveActivity> apiActivities(int from, int count, long seed) {
+        Random random = new Random(seed);
+        List<DriveActivity> activities = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            ActionDetail detail = actionDetail(i, random);
+            List<Action> actions = new ArrayList<>();
+            actions.add(new Action().setDetail(detail));
+            if (i % 4 == 0) {
+                actions.add(new Action().setDetail(new ActionDetail().setEdit(new Edit())));
+            }
+            DriveActivity activity = new DriveActivity()
+                    .setTimestamp(formatTimestamp(epochMillis(i)))
+                    .setPrimaryActionDetail(detail)
+                    .setActors(List.of(new Actor().setUser(knownUser(random.nextInt(PEOPLE)))))
+                    .setTargets(List.of(new Target().setDriveItem(new DriveItem()
+                            .setName("items/" + i)
+                            .setTitle("file " + i))))
+                    .setActions(actions);
+            activities.add(activity);
+        }
+        return activities;
+    }
+
+    /**
+     * Calendar API events, one in ten is an all day event.
+     *
+     * @param from  Index of the first event
+     * @param count Number of events
+     * @param seed  Random seed
+     */
+    public static List<Event> apiEvents(int from, int count, long seed) {
+        Random random = new Random(seed);
+        List<Event> events = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            long start = epochMillis(i);
+            List<EventAttendee> attendees = new ArrayList<>();
+            int attendeeCount = 1 + random.nextInt(8);
+            for (int j = 0; j < attendeeCount; j++) {
+                attendees.add(new EventAttendee()
+                        .setEmail(email(random.nextInt(PEOPLE)))
+                        .setResponseStatus(RESPONSE_STATUS[random.nextInt(RESPONSE_STATUS.length)]));
+            }
+            EventDateTime startTime = new EventDateTime();
+            EventDateTime endTime = new EventDateTime();
+            if (i % 10 == 0) {
+                startTime.setDate(new DateTime(true, start, 0));
+                endTime.setDate(new DateTime(true, start + 86_400_000L, 0));
+            } else {
+                startTime.setDateTime(new DateTime(start));
+                endTime.setDateTime(new DateTime(start + 1_800_000L));
+            }
+            events.add(new Event()
+                    .setId(String.format("event%08d", i))
+                    .setSummary("Meeting " + i)
+                    .setEventType("default")
+                    .setStatus("confirmed")
+                    .setCreated(new DateTime(start - 86_400_000L))
+                    .setUpdated(new DateTime(start - 3_600_000L))
+                    .setCreator(new Event.Creator().setEmail(email(random.nextInt(PEOPLE))))
+                    .setOrganizer(new Event.Organizer().setEmail(email(random.nextInt(PEOPLE))))
+                    .setHtmlLink("https://www.google.com/calendar/event?eid=event" + i)
+                    .setAttendees(attendees)
+                    .setStart(startTime)
+                    .setEnd(endTime));
+        }
+        return events;
+    }
+
+    /**
+     * Email address of every "people/N" actor, the same map the People API lookups would fill.
+     */
+    public static Map<String, String> peopleEmails() {
+        Map<String, String> emails = new HashMap<>();
+        for (int i = 0; i < PEOPLE; i++) {
+            emails.put("people/" + i, email(i));
+        }
+        return emails;
+    }
+
+    /**
+     * Cache of the {@link #peopleEmails()} on the in-memory stand-in of the shared tier,
+     * kept in the near tier for the whole benchmark.
+     */
+    public static TwoTierCache peopleEmailCache() {
+        long ttlMillis = Duration.ofDays(1).toMillis();
+        TwoTierCache cache = new TwoTierCache("person-email", new InMemoryCacheTier(),
+                ttlMillis, ttlMillis, PEOPLE, Clock.systemUTC());
+        peopleEmails().forEach(cache::put);
+        return cache;
+    }
+
+    /**
+     * Timestamp values in the shapes the Google APIs return: plain date, RFC 3339 and ISO 8601 with offset.
+     */
+    public static String[] timestamps(int count, long seed) {
+        Random random = new Random(seed);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            String iso = formatTimestamp(epochMillis(random.nextInt(100_000)));
+            switch (i % 3) {
+                case 0:
+                    values[i] = iso.substring(0, 10);
+                    break;
+                case 1:
+                    values[i] = iso.substring(0, 19) + "Z";
+                    break;
+                default:
+                    values[i] = iso.substring(0, 23) + "+07:00";
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Attendee values as written by the Calendar collector, lists longer than five are truncated
+     * and are not valid JSON.
+     */
+    public static String[] attendeeValues(int count, long seed) {
+        Random random = new Random(seed);
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = attendeeJson(random, 1 + random.nextInt(8));
+        }
+        return values;
+    }
+
+    private static ActionDetail actionDetail(int i, Random random) {
+        switch (i % 5) {
+            case 0:
+                return new ActionDetail().setRename(new Rename()
+                        .setOldTitle("file " + i)
+                        .setNewTitle("file " + i + " v2"));
+            case 1:
+                return new ActionDetail().setComment(new Comment()
+                        .setMentionedUsers(List.of(knownUser(random.nextInt(PEOPLE))))
+                        .setPost(new Post().setSubtype("ADDED")));
+            case 2:
+                return new ActionDetail().setMove(new Move()
+                        .setAddedParents(List.of(new TargetReference()
+                                .setDriveItem(new DriveItemReference().setTitle("folder " + i % 7)))));
+            case 3:
+                return new ActionDetail().setPermissionChange(new PermissionChange()
+                        .setAddedPermissions(List.of(new Permission()
+                                .setRole("writer")
+                                .setUser(knownUser(random.nextInt(PEOPLE))))));
+            default:
+                return new ActionDetail().setEdit(new Edit());
+        }
+    }
+
+    private static Random recordRandom(long seed, int index) {
+        return new Random(seed * 1_000_003L + index);
+    }
+
+    private static User knownUser(int person) {
+        return new User().setKnownUser(new KnownUser().setPersonName("people/" + person));
+    }
+
+    private static String attendeeJson(Random random, int attendeeCount) {
+        List<String> attendees = new ArrayList<>(attendeeCount);
+        for (int j = 0; j < attendeeCount; j++) {
+            attendees.add(String.format("{\"Email\": \"%s\", \"Response Status\": \"%s\"}",
+                    email(random.nextInt(PEOPLE)), RESPONSE_STATUS[random.nextInt(RESPONSE_STATUS.length)]));
+        }
+        String more = attendeeCount > 5 ? ", ..." : "";
+        return "[" + String.join(", ", attendees.subList(0, Math.min(5, attendeeCount))) + more + "]";
+    }
+
+    private static FieldValueList row(FieldList schema, String... values) {
+        List<FieldValue> fieldValues = new ArrayList<>(values.length);
+        for (String value : values) {
+            fieldValues.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, value));
+        }
+        return FieldValueList.of(fieldValues, schema);
+    }
+
+    /**
+     * BigQuery returns TIMESTAMP values as seconds since epoch with a fraction.
+     */
+    private static String timestampValue(String timestamp) {
+        Instant instant = Instant.from(TIMESTAMP_FORMATTER.parse(timestamp));
+        return String.format("%d.%06d", instant.getEpochSecond(), instant.getNano() / 1_000);
+    }
+
+    private static long epochMillis(int index) {
+        return (BASE_EPOCH_SECOND + index * 37L) * 1_000L + index % 1_000;
+    }
+
+    private static String formatTimestamp(long epochMillis) {
+        return TIMESTAMP_FORMATTER.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    private static String email(int person) {
+        return "user" + person + "@example.com";
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.FieldValueList;
+import com.notelysia.gcp.benchmark.SyntheticData;
+import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.model.DriveActivity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the mapping from SELECT query rows to the model records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ListRecordsBenchmark {
+    @Param({"1000", "10000"})
+    public int rows;
+
+    private final ListRecords listRecords = new ListRecords();
+    private List<FieldValueList> driveActivityRows;
+    private List<FieldValueList> calendarEventRows;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.driveActivityRows = SyntheticData.driveActivityRows(
+                SyntheticData.driveActivityRecords(0, this.rows, 1L));
+        this.calendarEventRows = SyntheticData.calendarEventRows(
+                SyntheticData.calendarEventRecords(0, this.rows, 2L));
+    }
+
+    @Benchmark
+    public List<DriveActivity> driveActivity() {
+        return this.listRecords.collectDriveActivityRecord(this.driveActivityRows);
+    }
+
+    @Benchmark
+    public List<CalendarEvent> calendarEvent() {
+        return this.listRecords.collectCalendarEventRecord(this.calendarEventRows);
+    }
+}
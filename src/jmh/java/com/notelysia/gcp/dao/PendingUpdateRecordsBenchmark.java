@@ -0,0 +1,96 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.FieldValueList;
+import com.notelysia.gcp.benchmark.SyntheticData;
+import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.model.DriveActivity;
+import com.notelysia.gcp.util.CsvWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the de-duplication done before new records are uploaded to an existing table.
+ * Half of the batch is already in the table, the other half is new and written to the pending file.
+ * Calendar records keep the same updated time, so no UPDATE statement is sent to BigQuery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PendingUpdateRecordsBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int tableRows;
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private final BigQueryClient bigQueryClient = new BigQueryClient();
+    private Path directory;
+    private String pendingFile;
+    private List<FieldValueList> driveActivityRows;
+    private List<DriveActivity> driveActivityBatch;
+    private List<FieldValueList> calendarEventRows;
+    private List<CalendarEvent> calendarEventBatch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("pending-benchmark");
+        this.pendingFile = this.directory.resolve("pending.csv").toString();
+        int overlap = Math.min(this.batchSize / 2, this.tableRows);
+
+        List<DriveActivity> driveActivityTable = SyntheticData.driveActivityRecords(0, this.tableRows, 1L);
+        this.driveActivityRows = SyntheticData.driveActivityRows(driveActivityTable);
+        this.driveActivityBatch = new ArrayList<>(
+                SyntheticData.driveActivityRecords(this.tableRows - overlap, this.batchSize, 1L));
+
+        List<CalendarEvent> calendarEventTable = SyntheticData.calendarEventRecords(0, this.tableRows, 2L);
+        this.calendarEventRows = SyntheticData.calendarEventRows(calendarEventTable);
+        this.calendarEventBatch = new ArrayList<>(
+                SyntheticData.calendarEventRecords(this.tableRows - overlap, this.batchSize, 2L));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(this.pendingFile));
+        Files.deleteIfExists(this.directory);
+    }
+
+    @Benchmark
+    public boolean driveActivity() throws IOException, InterruptedException {
+        return this.bigQueryClient.pendingUpdateRecords("benchmark", "drive_activity",
+                Arrays.asList(CsvWriter.DRIVE_ACTIVITY_HEADER),
+                this.driveActivityBatch, this.driveActivityRows, this.pendingFile);
+    }
+
+    @Benchmark
+    public boolean calendarEvent() throws IOException, InterruptedException {
+        return this.bigQueryClient.pendingUpdateRecords("benchmark", "calendar_event",
+                Arrays.asList(CsvWriter.CALENDAR_EVENT_HEADER),
+                this.calendarEventBatch, this.calendarEventRows, this.pendingFile);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.logic;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.notelysia.gcp.benchmark.SyntheticData;
+import com.notelysia.gcp.util.FixtureHttpTransport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the collectors with the Google APIs answered by a fixture transport:
+ * request building, JSON parsing of every page, pagination and CSV writing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CollectorBenchmark {
+    @Param({"100", "1000"})
+    public int records;
+
+    @Param({"10", "100"})
+    public int pageSize;
+
+    private final CalendarLogic calendarLogic = new CalendarLogic();
+    private final DriveActivityLogic driveActivityLogic = new DriveActivityLogic();
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        FixtureHttpTransport transport = new FixtureHttpTransport()
+                .addJson("GET", "/calendar/v3/users/me/calendarList", "{\"items\": [{\"id\": \"primary\"}]}")
+                .addPagedItems("GET", "/calendar/v3/calendars/[^/]+/events", "items",
+                        SyntheticData.apiEvents(0, this.records, 6L), this.pageSize)
+                .addPagedItems("POST", "/v2/activity:query", "activities",
+                        SyntheticData.apiActivities(0, this.records, 5L), this.pageSize);
+        ServiceCredential serviceCredential = new ServiceCredential();
+        serviceCredential.setHttpTransport(transport);
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setAccessToken("benchmark");
+        this.calendarLogic.setCalendarService(serviceCredential.createCalendarService(credential));
+        this.driveActivityLogic.setDriveActivityService(serviceCredential.createDriveActivityService(credential));
+        this.driveActivityLogic.setPersonEmailCache(SyntheticData.peopleEmailCache());
+        this.directory = Files.createTempDirectory("collector-benchmark");
+        // Every run completes, so its checkpoint files are removed before the next one
+        CrawlCheckpointStore checkpointStore = new CrawlCheckpointStore(this.directory, Duration.ofHours(1));
+        this.calendarLogic.setCheckpointStore(checkpointStore);
+        this.driveActivityLogic.setCheckpointStore(checkpointStore);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.directory.resolve("calendar_event.csv"));
+        Files.deleteIfExists(this.directory.resolve("drive_activity.csv"));
+        Files.deleteIfExists(this.directory);
+    }
+
+    @Benchmark
+    public void downloadCalendarList() throws IOException {
+        this.calendarLogic.downloadCalendarList(this.directory.resolve("calendar_event.csv").toString());
+    }
+
+    @Benchmark
+    public void downloadActivity() throws IOException {
+        this.driveActivityLogic.DownloadActivity(null, null,
+                this.directory.resolve("drive_activity.csv").toString());
+    }
+}
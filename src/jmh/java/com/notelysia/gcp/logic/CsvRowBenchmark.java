@@ -0,0 +1,104 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.logic;
+
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.driveactivity.v2.model.DriveActivity;
+import com.notelysia.gcp.benchmark.SyntheticData;
+import com.notelysia.gcp.util.CsvWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the conversion from the API responses to the CSV rows.
+ * The People API lookups are answered from a pre-filled email cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CsvRowBenchmark {
+    @Param({"100", "1000"})
+    public int records;
+
+    private final DriveActivityLogic driveActivityLogic = new DriveActivityLogic();
+    private final CalendarLogic calendarLogic = new CalendarLogic();
+    private List<DriveActivity> activities;
+    private List<Event> events;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.driveActivityLogic.setPersonEmailCache(SyntheticData.peopleEmailCache());
+        this.activities = SyntheticData.apiActivities(0, this.records, 5L);
+        this.events = SyntheticData.apiEvents(0, this.records, 6L);
+        this.directory = Files.createTempDirectory("csv-benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.directory.resolve("drive_activity.csv"));
+        Files.deleteIfExists(this.directory.resolve("calendar_event.csv"));
+        Files.deleteIfExists(this.directory);
+    }
+
+    @Benchmark
+    public void driveActivityRecords(Blackhole blackhole) throws IOException {
+        for (DriveActivity activity : this.activities) {
+            blackhole.consume(this.driveActivityLogic.toDriveActivityRecords(activity));
+        }
+    }
+
+    @Benchmark
+    public void calendarEventRecords(Blackhole blackhole) {
+        for (Event event : this.events) {
+            blackhole.consume(this.calendarLogic.toCalendarEvent(event));
+        }
+    }
+
+    @Benchmark
+    public long driveActivityCsv() throws IOException {
+        String csvFile = this.directory.resolve("drive_activity.csv").toString();
+        try (CsvWriter csvWriter = new CsvWriter(csvFile, CsvWriter.DRIVE_ACTIVITY_HEADER)) {
+            for (DriveActivity activity : this.activities) {
+                for (com.notelysia.gcp.model.DriveActivity record : this.driveActivityLogic.toDriveActivityRecords(activity)) {
+                    csvWriter.writeRow(record);
+                }
+            }
+            return csvWriter.getRowCount();
+        }
+    }
+
+    @Benchmark
+    public long calendarEventCsv() throws IOException {
+        String csvFile = this.directory.resolve("calendar_event.csv").toString();
+        try (CsvWriter csvWriter = new CsvWriter(csvFile, CsvWriter.CALENDAR_EVENT_HEADER)) {
+            for (Event event : this.events) {
+                csvWriter.writeRow(this.calendarLogic.toCalendarEvent(event));
+            }
+            return csvWriter.getRowCount();
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.util;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP transport that answers the Google API clients from fixtures instead of the network.
+ * Routes match the HTTP method and the URL path (regular expression) and serve recorded or generated
+ * JSON bodies. Paginated routes follow the page token of the query string or of the JSON request body.
+ * <p>
+ * Latency, server errors and quota errors (429) can be added to every request. Faults are drawn from a
+ * seeded random, or scripted with {@link #failNext(int, int)} for a deterministic sequence.
+ */
+public class FixtureHttpTransport extends HttpTransport {
+    private static final Logger logger = Logger.getLogger(FixtureHttpTransport.class.getName());
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+    private final Queue<Integer> scriptedFailures = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong faultCount = new AtomicLong();
+    private Random random = new Random(0L);
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorRate;
+    private volatile double quotaErrorRate;
+
+    /**
+     * Build the response body of a route.
+     */
+    public interface Responder {
+        String respond(FixtureRequest request) throws IOException;
+    }
+
+    /**
+     * Serve the body on every request.
+     *
+     * @param method    HTTP method
+     * @param pathRegex Regular expression of the URL path, for example "/calendar/v3/users/me/calendarList"
+     * @param responder Builds the JSON body
+     */
+    public FixtureHttpTransport addRoute(String method, String pathRegex, Responder responder) {
+        this.routes.add(new Route(method, Pattern.compile(pathRegex), responder));
+        return this;
+    }
+
+    /**
+     * Serve the same JSON body on every request.
+     */
+    public FixtureHttpTransport addJson(String method, String pathRegex, String body) {
+        return this.addRoute(method, pathRegex, request -> body);
+    }
+
+    /**
+     * Serve recorded pages. The first page is served without a page token,
+     * the next one when the request has the "nextPageToken" of the previous page.
+     *
+     * @param pages JSON bodies of the pages in order
+     */
+    public FixtureHttpTransport addPages(String method, String pathRegex, List<String> pages) throws IOException {
+        Map<String, String> pageByToken = new HashMap<>();
+        String token = "";
+        for (String page : pages) {
+            pageByToken.put(token, page);
+            Object nextPageToken = Instance.jsonFactory.fromString(page, GenericJson.class).get("nextPageToken");
+            token = nextPageToken != null ? nextPageToken.toString() : null;
+            if (token == null) {
+                break;
+            }
+        }
+        return this.addRoute(method, pathRegex, request -> {
+            String pageToken = request.getPageToken();
+            String page = pageByToken.get(pageToken != null ? pageToken : "");
+            if (page == null) {
+                throw new FixtureException(400, "INVALID_ARGUMENT", "badRequest", "Invalid page token: " + pageToken);
+            }
+            return page;
+        });
+    }
+
+    /**
+     * Serve recorded pages from files, see {@link #addPages(String, String, List)}.
+     */
+    public FixtureHttpTransport addRecordedPages(String method, String pathRegex, List<Path> files) throws IOException {
+        List<String> pages = new ArrayList<>(files.size());
+        for (Path file : files) {
+            pages.add(Files.readString(file, StandardCharsets.UTF_8));
+        }
+        return this.addPages(method, pathRegex, pages);
+    }
+
+    /**
+     * Serve generated pages of the items.
+     *
+     * @param itemsField Name of the list field, "items" for Calendar, "activities" for Drive Activity
+     * @param items      API model objects of all pages
+     * @param pageSize   Number of items in one page
+     */
+    public FixtureHttpTransport addPagedItems(String method,
+                                              String pathRegex,
+                                              String itemsField,
+                                              List<?> items,
+                                              int pageSize) {
+        return this.addRoute(method, pathRegex, request -> page(itemsField, items, pageSize, request.getPageToken()));
+    }
+
+    /**
+     * Build one page of the items. Page tokens are "page-N".
+     *
+     * @param itemsField Name of the list field
+     * @param items      Items of all pages
+     * @param pageSize   Number of items in one page
+     * @param pageToken  Page token of the request, null for the first page
+     * @return JSON body of the page
+     */
+    public static String page(String itemsField, List<?> items, int pageSize, String pageToken) throws IOException {
+        int pageNumber = 0;
+        if (pageToken != null) {
+            if (!pageToken.startsWith("page-")) {
+                throw new FixtureException(400, "INVALID_ARGUMENT", "badRequest", "Invalid page token: " + pageToken);
+            }
+            pageNumber = Integer.parseInt(pageToken.substring("page-".length()));
+        }
+        int from = Math.min(pageNumber * pageSize, items.size());
+        int to = Math.min(from + pageSize, items.size());
+        GenericJson page = new GenericJson();
+        page.set(itemsField, new ArrayList<>(items.subList(from, to)));
+        if (to < items.size()) {
+            page.set("nextPageToken", "page-" + (pageNumber + 1));
+        }
+        return Instance.jsonFactory.toString(page);
+    }
+
+    /**
+     * @param latencyMillis Time added to every request
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param latencyJitterMillis Random time between 0 and this value added to every request
+     */
+    public void setLatencyJitterMillis(long latencyJitterMillis) {
+        this.latencyJitterMillis = latencyJitterMillis;
+    }
+
+    /**
+     * @param errorRate Share of requests answered with 500 (0.0 to 1.0)
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param quotaErrorRate Share of requests answered with 429 (0.0 to 1.0)
+     */
+    public void setQuotaErrorRate(double quotaErrorRate) {
+        this.quotaErrorRate = quotaErrorRate;
+    }
+
+    /**
+     * @param seed Seed of the random used for jitter and faults
+     */
+    public synchronized void setSeed(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Answer the next requests with the status code, before any route is matched.
+     *
+     * @param statusCode HTTP status code, for example 429 or 503
+     * @param times      Number of requests to fail
+     */
+    public void failNext(int statusCode, int times) {
+        for (int i = 0; i < times; i++) {
+            this.scriptedFailures.add(statusCode);
+        }
+    }
+
+    /**
+     * @return number of requests received
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * @return number of requests answered with an injected fault
+     */
+    public long getFaultCount() {
+        return this.faultCount.get();
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                return FixtureHttpTransport.this.execute(method, this);
+            }
+        };
+    }
+
+    private LowLevelHttpResponse execute(String method, MockLowLevelHttpRequest lowLevelRequest) throws IOException {
+        this.requestCount.incrementAndGet();
+        this.pause();
+        Integer scriptedFailure = this.scriptedFailures.poll();
+        if (scriptedFailure != null) {
+            this.faultCount.incrementAndGet();
+            return errorResponse(FixtureException.of(scriptedFailure));
+        }
+        double draw = this.nextDouble();
+        if (draw < this.quotaErrorRate) {
+            this.faultCount.incrementAndGet();
+            return errorResponse(FixtureException.of(429));
+        }
+        if (draw < this.quotaErrorRate + this.errorRate) {
+            this.faultCount.incrementAndGet();
+            return errorResponse(FixtureException.of(500));
+        }
+        FixtureRequest request = new FixtureRequest(method, lowLevelRequest.getUrl(),
+                lowLevelRequest.getHeaders(), lowLevelRequest.getContentAsString());
+        for (Route route : this.routes) {
+            if (route.method.equalsIgnoreCase(method) && route.pathPattern.matcher(request.getPath()).matches()) {
+                try {
+                    return new MockLowLevelHttpResponse()
+                            .setStatusCode(200)
+                            .setContentType(Json.MEDIA_TYPE)
+                            .setContent(route.responder.respond(request));
+                } catch (FixtureException e) {
+                    return errorResponse(e);
+                }
+            }
+        }
+        logger.warning(String.format("No fixture for %s %s", method, request.getPath()));
+        return errorResponse(FixtureException.of(404));
+    }
+
+    private void pause() throws InterruptedIOException {
+        long millis = this.latencyMillis;
+        if (this.latencyJitterMillis > 0) {
+            synchronized (this) {
+                millis += (long) (this.random.nextDouble() * this.latencyJitterMillis);
+            }
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Fixture request interrupted");
+            }
+        }
+    }
+
+    private double nextDouble() {
+        if (this.errorRate <= 0 && this.quotaErrorRate <= 0) {
+            return 1.0;
+        }
+        synchronized (this) {
+            return this.random.nextDouble();
+        }
+    }
+
+    private static LowLevelHttpResponse errorResponse(FixtureException e) throws IOException {
+        GenericJson detail = new GenericJson();
+        detail.set("message", e.getMessage());
+        detail.set("domain", "global");
+        detail.set("reason", e.reason);
+        GenericJson error = new GenericJson();
+        error.set("code", e.statusCode);
+        error.set("message", e.getMessage());
+        error.set("errors", List.of(detail));
+        error.set("status", e.status);
+        GenericJson body = new GenericJson();
+        body.set("error", error);
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(e.statusCode)
+                .setReasonPhrase(e.status)
+                .setContentType(Json.MEDIA_TYPE)
+                .setContent(Instance.jsonFactory.toString(body));
+    }
+
+    private static class Route {
+        private final String method;
+        private final Pattern pathPattern;
+        private final Responder responder;
+
+        Route(String method, Pattern pathPattern, Responder responder) {
+            this.method = method;
+            this.pathPattern = pathPattern;
+            this.responder = responder;
+        }
+    }
+
+    /**
+     * Request received by a route.
+     */
+    public static class FixtureRequest {
+        private final String method;
+        private final String url;
+        private final Map<String, List<String>> headers;
+        private final String content;
+
+        FixtureRequest(String method, String url, Map<String, List<String>> headers, String content) {
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.content = content;
+        }
+
+        public String getMethod() {
+            return this.method;
+        }
+
+        public String getUrl() {
+            return this.url;
+        }
+
+        public String getPath() {
+            return URI.create(this.url).getRawPath();
+        }
+
+        /**
+         * @return first value of the header, null if the header is not set
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, List<String>> header : this.headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                    return header.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return value of the query parameter, null if the parameter is not set
+         */
+        public String getQueryParameter(String name) {
+            String query = URI.create(this.url).getRawQuery();
+            if (query == null) {
+                return null;
+            }
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                String key = separator < 0 ? parameter : parameter.substring(0, separator);
+                if (URLDecoder.decode(key, StandardCharsets.UTF_8).equals(name)) {
+                    return separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return request body, empty for a request without body
+         */
+        public String getContent() {
+            return this.content;
+        }
+
+        /**
+         * @return page token of the query string (GET) or of the JSON body (POST), null for the first page
+         */
+        public String getPageToken() throws IOException {
+            String pageToken = this.getQueryParameter("pageToken");
+            if (pageToken == null && this.content != null && !this.content.isEmpty()) {
+                Object bodyToken = Instance.jsonFactory.fromString(this.content, GenericJson.class).get("pageToken");
+                pageToken = bodyToken != null ? bodyToken.toString() : null;
+            }
+            return pageToken;
+        }
+    }
+
+    /**
+     * Error answered with the Google JSON error body. A responder can throw it to fail a request.
+     */
+    public static class FixtureException extends IOException {
+        private final int statusCode;
+        private final String status;
+        private final String reason;
+
+        public FixtureException(int statusCode, String status, String reason, String message) {
+            super(message);
+            this.statusCode = statusCode;
+            this.status = status;
+            this.reason = reason;
+        }
+
+        static FixtureException of(int statusCode) {
+            switch (statusCode) {
+                case 400:
+                    return new FixtureException(400, "INVALID_ARGUMENT", "badRequest", "Bad request");
+                case 403:
+                    return new FixtureException(403, "PERMISSION_DENIED", "forbidden", "The caller does not have permission");
+                case 404:
+                    return new FixtureException(404, "NOT_FOUND", "notFound", "Requested entity was not found");
+                case 429:
+                    return new FixtureException(429, "RESOURCE_EXHAUSTED", "rateLimitExceeded", "Quota exceeded");
+                case 503:
+                    return new FixtureException(503, "UNAVAILABLE", "backendError", "The service is currently unavailable");
+                default:
+                    return new FixtureException(statusCode, "INTERNAL", "backendError", "Internal error encountered");
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.util;
+
+import com.notelysia.gcp.benchmark.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the helpers called for every collected record.
+ * Each invocation goes over the whole input array, so the score is the time per value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UtilsFunctionBenchmark {
+    private static final int VALUES = 1024;
+
+    private String[] timestamps;
+    private String[] attendees;
+    private List<List<String>> lists;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.timestamps = SyntheticData.timestamps(VALUES, 3L);
+        this.attendees = SyntheticData.attendeeValues(VALUES, 4L);
+        this.lists = new ArrayList<>(VALUES);
+        for (int i = 0; i < VALUES; i++) {
+            List<String> list = new ArrayList<>();
+            for (int j = 0; j < i % 8; j++) {
+                list.add("driveItem:'file " + i + "-" + j + "'");
+            }
+            this.lists.add(list);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void formatTimeStamp(Blackhole blackhole) {
+        for (String timestamp : this.timestamps) {
+            blackhole.consume(UtilsFunction.formatTimeStamp(timestamp));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void isValidJson(Blackhole blackhole) {
+        for (String attendee : this.attendees) {
+            blackhole.consume(UtilsFunction.isValidJson(attendee));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void truncated(Blackhole blackhole) {
+        for (List<String> list : this.lists) {
+            blackhole.consume(UtilsFunction.truncated(list, 2));
+        }
+    }
+}
@@ -16,13 +16,19 @@
 
 package com.notelysia.gcp;
 
+import com.notelysia.gcp.controller.CollectionTaskRunner;
+import com.notelysia.gcp.dao.QueryCostLedger;
+import com.notelysia.gcp.logic.IngestionDispatcher;
 import com.notelysia.gcp.logic.ServiceCredential;
+import com.notelysia.gcp.logic.StartupOrchestrator;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.AsyncDispatcher;
+import com.notelysia.gcp.util.Instance;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
-import java.io.IOException;
-import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
 
 @WebListener
 public class AppContextListener implements ServletContextListener {
@@ -32,13 +38,47 @@ public class AppContextListener implements ServletContextListener {
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
-        try {
+        ServiceCredential serviceCredential = new ServiceCredential();
+        sce.getServletContext().setAttribute("googleService", serviceCredential);
+        sce.getServletContext().setAttribute("collectionExecutor", AsyncDispatcher.newCollectionExecutor());
+        CollectionTaskRunner collectionTaskRunner = new CollectionTaskRunner(serviceCredential);
+        IngestionDispatcher ingestionDispatcher =
+                IngestionDispatcher.create(Instance.ingestionDispatcher, collectionTaskRunner);
+        collectionTaskRunner.setDispatcher(ingestionDispatcher);
+        sce.getServletContext().setAttribute("collectionTaskRunner", collectionTaskRunner);
+        sce.getServletContext().setAttribute("ingestionDispatcher", ingestionDispatcher);
+        QueryCostLedger.global().setUserBytesBudget(Instance.bigqueryUserBytesBudget);
+        Tracing.setExporter(Tracing.createExporter(Instance.traceExporter, Instance.traceFilePath,
+                Instance.traceOtlpEndpoint, Instance.applicationName));
+        // Tables and clients are prepared in the background, /_ah/warmup waits for them
+        StartupOrchestrator startupOrchestrator = new StartupOrchestrator(serviceCredential);
+        startupOrchestrator.start(this.datasetName, this.driveActivityTableName, this.calendarTableName);
+        sce.getServletContext().setAttribute("startupOrchestrator", startupOrchestrator);
+    }
 
-            ServiceCredential serviceCredential = new ServiceCredential();
-            serviceCredential.preparedBigQueryTable(this.datasetName, this.driveActivityTableName, this.calendarTableName);
-            sce.getServletContext().setAttribute("googleService", serviceCredential);
-        } catch (IOException | GeneralSecurityException e) {
-            throw new RuntimeException(e);
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        StartupOrchestrator startupOrchestrator =
+                (StartupOrchestrator) sce.getServletContext().getAttribute("startupOrchestrator");
+        if (startupOrchestrator != null) {
+            startupOrchestrator.shutdown();
+        }
+        IngestionDispatcher ingestionDispatcher =
+                (IngestionDispatcher) sce.getServletContext().getAttribute("ingestionDispatcher");
+        if (ingestionDispatcher != null) {
+            ingestionDispatcher.close();
+        }
+        ExecutorService executor = (ExecutorService) sce.getServletContext().getAttribute("collectionExecutor");
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        ServiceCredential serviceCredential =
+                (ServiceCredential) sce.getServletContext().getAttribute("googleService");
+        if (serviceCredential != null) {
+            // Rows still waiting for their batch are loaded before the instance stops
+            serviceCredential.getIngestionBuffer().close();
+            serviceCredential.closeDatasetExplorer();
         }
+        Tracing.shutdown();
     }
 }
@@ -18,8 +18,17 @@ package com.notelysia.gcp;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.notelysia.gcp.controller.CalendarAction;
+import com.notelysia.gcp.dao.QueryCostLedger;
+import com.notelysia.gcp.logic.CollectionTask;
+import com.notelysia.gcp.logic.IngestionDispatcher;
 import com.notelysia.gcp.logic.ServiceCredential;
 import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.AsyncDispatcher;
+import com.notelysia.gcp.util.HttpCache;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -27,37 +36,36 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
-@WebServlet(name = "CalendarAppEngine", urlPatterns = "/calendar-collection")
+@WebServlet(name = "CalendarAppEngine", urlPatterns = "/calendar-collection", asyncSupported = true)
 public class CalendarAppEngine extends HttpServlet {
+    private static final String WATERMARK_ATTRIBUTE = "calendarWatermark";
 
     private ServiceCredential serviceCredential;
+    private ExecutorService collectionExecutor;
+    // Dispatcher of the background collections, null collects in the request
+    private IngestionDispatcher ingestionDispatcher;
 
     @Override
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
         this.serviceCredential = (ServiceCredential) this.getServletContext().getAttribute("googleService");
+        this.collectionExecutor = (ExecutorService) this.getServletContext().getAttribute("collectionExecutor");
+        this.ingestionDispatcher = Instance.ingestionBackground
+                ? (IngestionDispatcher) this.getServletContext().getAttribute("ingestionDispatcher") : null;
     }
 
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        response.setContentType("text/html");
-        StringBuilder htmlResponse = new StringBuilder();
-        htmlResponse.append("<html><head><style>")
-                .append("table { width: 100%; border-collapse: collapse; }")
-                .append("th, td { border: 1px solid black; padding: 8px; text-align: left; }")
-                .append("th { background-color: #f2f2f2; }")
-                .append("td { max-height: 100px; overflow-y: auto; }")
-                .append("</style>")
-                .append("<meta http-equiv=\"content-type\" content=\"application/xhtml+xml; charset=UTF-8\" />")
-                .append("</head><body>");
-
+        HttpSession session = request.getSession();
+        CalendarAction calendarAction = new CalendarAction();
+        String userId = (String) session.getAttribute("userId");
         try {
-            CalendarAction calendarAction = new CalendarAction();
-            String userId = (String) request.getSession().getAttribute("userId");
             Credential credential;
             if (userId == null) {
                 credential = null;
@@ -69,53 +77,121 @@ public class CalendarAppEngine extends HttpServlet {
             }
             calendarAction.setServiceCredential(this.serviceCredential);
             calendarAction.setCredential(credential);
-            String googleAccountEmail = (String) request.getSession().getAttribute("googleAccountEmail");
-            String googleAccountId = (String) request.getSession().getAttribute("googleAccountId");
-            List<CalendarEvent> calendarEvents = calendarAction.execute(googleAccountId, googleAccountEmail);
-            htmlResponse.append("<h2>Google Calendar Event Collection for ")
-                    .append(request.getSession().getAttribute("googleAccountEmail"))
-                    .append("</h2>");
-            htmlResponse.append("<table border='1'>");
-            htmlResponse.append("<tr>")
-                    .append("<th>Event ID</th>")
-                    .append("<th>Event Title</th>")
-                    .append("<th>Event Type</th>")
-                    .append("<th>Status</th>")
-                    .append("<th>Created Time</th>")
-                    .append("<th>Updated Time</th>")
-                    .append("<th>Creator</th>")
-                    .append("<th>Organizer</th>")
-                    .append("<th>Event Link</th>")
-                    .append("<th>Attendees</th>")
-                    .append("<th>Start Time</th>")
-                    .append("<th>End Time</th>")
-                    .append("<th>Total Time</th>")
-                    .append("</tr>");
+        } catch (Exception e) {
+            throw new ServletException("Failed to collect Google Calendar event", e);
+        }
+        String googleAccountEmail = (String) session.getAttribute("googleAccountEmail");
+        String googleAccountId = (String) session.getAttribute("googleAccountId");
+        // The task must not touch the request or the session, read what it needs here
+        Long watermark = HttpCache.freshWatermark(session, WATERMARK_ATTRIBUTE);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        response.setContentType("text/html");
+        // Crawling and querying take seconds, so release the container thread while they run
+        AsyncDispatcher.dispatch(request, this.collectionExecutor, Instance.collectionTimeoutMillis,
+                "Failed to collect Google Calendar event",
+                () -> {
+                    // One trace per request, stage timings of the request are logged as one breakdown line
+                    Metrics.startRequest();
+                    QueryCostLedger.setCurrentUser(googleAccountId);
+                    try (Span span = Tracing.startSpan("GET /calendar-collection");
+                         Metrics.Timer ignored = Metrics.time("calendar.request")) {
+                        try {
+                            return this.collect(watermark, ifNoneMatch, userId, calendarAction, googleAccountId, googleAccountEmail);
+                        } catch (Exception e) {
+                            span.recordError(e);
+                            throw e;
+                        }
+                    } finally {
+                        Metrics.finishRequest("/calendar-collection");
+                        QueryCostLedger.setCurrentUser(null);
+                    }
+                });
+    }
 
-            for (CalendarEvent event : calendarEvents) {
-                htmlResponse.append("<tr>")
-                        .append("<td>").append(event.getEventId()).append("</td>")
-                        .append("<td>").append(event.getEventTitle()).append("</td>")
-                        .append("<td>").append(event.getEventType()).append("</td>")
-                        .append("<td>").append(event.getStatus()).append("</td>")
-                        .append("<td>").append(event.getCreatedTime()).append("</td>")
-                        .append("<td>").append(event.getUpdatedTime()).append("</td>")
-                        .append("<td>").append(event.getCreator()).append("</td>")
-                        .append("<td>").append(event.getOrganizer()).append("</td>")
-                        .append("<td>").append(event.getEventLink()).append("</td>")
-                        .append("<td>").append(event.getAttendees()).append("</td>")
-                        .append("<td>").append(event.getStartTime()).append("</td>")
-                        .append("<td>").append(event.getEndTime()).append("</td>")
-                        .append("<td>").append(event.getTotalTime()).append("</td>")
-                        .append("</tr>");
+    /**
+     * Run the calendar pipeline and render the page.
+     *
+     * @param watermark   Fresh ingestion watermark of the session, null if missing or expired
+     * @param ifNoneMatch If-None-Match header of the request, can be null
+     * @param userId      User ID of the session
+     * @return page reply, or 304 reply if the client already has the current page
+     */
+    private AsyncDispatcher.Reply collect(Long watermark,
+                                          String ifNoneMatch,
+                                          String userId,
+                                          CalendarAction calendarAction,
+                                          String googleAccountId,
+                                          String googleAccountEmail) throws Exception {
+        // Skip the whole pipeline if the browser already has the page of the last ingestion
+        if (watermark != null) {
+            long lastModified = calendarAction.getLastModified();
+            String eTag = HttpCache.buildETag(googleAccountId, lastModified, watermark);
+            if (HttpCache.isNotModified(ifNoneMatch, eTag)) {
+                return AsyncDispatcher.Reply.notModified().withCacheHeaders(eTag, lastModified);
             }
+        }
+        List<CalendarEvent> calendarEvents;
+        if (this.ingestionDispatcher != null) {
+            // The collection runs as a background task, the page shows the rows loaded so far
+            this.ingestionDispatcher.dispatch(CollectionTask.calendarList(
+                    userId, googleAccountId));
+            calendarEvents = calendarAction.read(googleAccountId, googleAccountEmail);
+        } else {
+            calendarEvents = calendarAction.execute(googleAccountId, googleAccountEmail);
+        }
+        long newWatermark = System.currentTimeMillis();
+        long lastModified = calendarAction.getLastModified();
 
+        StringBuilder htmlResponse = new StringBuilder();
+        htmlResponse.append("<html><head><style>")
+                .append("table { width: 100%; border-collapse: collapse; }")
+                .append("th, td { border: 1px solid black; padding: 8px; text-align: left; }")
+                .append("th { background-color: #f2f2f2; }")
+                .append("td { max-height: 100px; overflow-y: auto; }")
+                .append("</style>")
+                .append("<meta http-equiv=\"content-type\" content=\"application/xhtml+xml; charset=UTF-8\" />")
+                .append("</head><body>");
+        htmlResponse.append("<h2>Google Calendar Event Collection for ")
+                .append(googleAccountEmail)
+                .append("</h2>");
+        htmlResponse.append("<table border='1'>");
+        htmlResponse.append("<tr>")
+                .append("<th>Event ID</th>")
+                .append("<th>Event Title</th>")
+                .append("<th>Event Type</th>")
+                .append("<th>Status</th>")
+                .append("<th>Created Time</th>")
+                .append("<th>Updated Time</th>")
+                .append("<th>Creator</th>")
+                .append("<th>Organizer</th>")
+                .append("<th>Event Link</th>")
+                .append("<th>Attendees</th>")
+                .append("<th>Start Time</th>")
+                .append("<th>End Time</th>")
+                .append("<th>Total Time</th>")
+                .append("</tr>");
 
-        } catch (Exception e) {
-            throw new ServletException("Failed to collect Google Calendar event", e);
+        for (CalendarEvent event : calendarEvents) {
+            htmlResponse.append("<tr>")
+                    .append("<td>").append(event.getEventId()).append("</td>")
+                    .append("<td>").append(event.getEventTitle()).append("</td>")
+                    .append("<td>").append(event.getEventType()).append("</td>")
+                    .append("<td>").append(event.getStatus()).append("</td>")
+                    .append("<td>").append(event.getCreatedTime()).append("</td>")
+                    .append("<td>").append(event.getUpdatedTime()).append("</td>")
+                    .append("<td>").append(event.getCreator()).append("</td>")
+                    .append("<td>").append(event.getOrganizer()).append("</td>")
+                    .append("<td>").append(event.getEventLink()).append("</td>")
+                    .append("<td>").append(event.getAttendees()).append("</td>")
+                    .append("<td>").append(event.getStartTime()).append("</td>")
+                    .append("<td>").append(event.getEndTime()).append("</td>")
+                    .append("<td>").append(event.getTotalTime()).append("</td>")
+                    .append("</tr>");
         }
         htmlResponse.append("</table>");
         htmlResponse.append("</body></html>");
-        response.getWriter().write(htmlResponse.toString());
+        return AsyncDispatcher.Reply.page(htmlResponse.toString())
+                .withCacheHeaders(HttpCache.buildETag(googleAccountId, lastModified, newWatermark), lastModified)
+                .withSessionAttribute(WATERMARK_ATTRIBUTE, newWatermark);
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp;
+
+import com.notelysia.gcp.controller.CollectionTaskRunner;
+import com.notelysia.gcp.logic.CollectionTask;
+import com.notelysia.gcp.logic.TaskQueueIngestionDispatcher;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Target of the push queue of the collection tasks, see {@link TaskQueueIngestionDispatcher}.
+ * Only App Engine admins and the task queue can call it (security constraint in web.xml), App Engine
+ * removes the X-AppEngine-QueueName header from outside requests. A status other than 2xx makes the queue retry.
+ */
+@WebServlet(name = "CollectionTaskServlet", urlPatterns = TaskQueueIngestionDispatcher.TASK_URL)
+public class CollectionTaskServlet extends HttpServlet {
+    private static final Logger logger = Logger.getLogger(CollectionTaskServlet.class.getName());
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (req.getHeader("X-AppEngine-QueueName") == null) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        CollectionTask task;
+        try {
+            task = CollectionTask.fromParams(req::getParameter);
+        } catch (IllegalArgumentException e) {
+            // A task that cannot be parsed never succeeds, do not retry it
+            logger.warning(String.format("Collection task dropped: %s", e.getMessage()));
+            resp.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
+        CollectionTaskRunner runner =
+                (CollectionTaskRunner) req.getServletContext().getAttribute("collectionTaskRunner");
+        try {
+            runner.run(task);
+            resp.setStatus(HttpServletResponse.SC_OK);
+        } catch (CollectionTaskRunner.CredentialUnavailableException e) {
+            // The retry may reach the instance the user signed in on
+            logger.info(String.format("%s, retry %s", e.getMessage(), req.getHeader("X-AppEngine-TaskRetryCount")));
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+        } catch (Exception e) {
+            logger.warning(String.format("Collection task %s failed. \n%s", task, e));
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Collection task failed");
+        }
+    }
+}
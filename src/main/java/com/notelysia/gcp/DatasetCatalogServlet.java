@@ -0,0 +1,132 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp;
+
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Field;
+import com.notelysia.gcp.dao.DatasetExplorer;
+import com.notelysia.gcp.logic.ServiceCredential;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Admin page of the datasets and tables of the project with their columns, "?format=json" returns the catalog
+ * as JSON and "?refresh=true" reads it again before its time to live.
+ * Only App Engine admins can open it, see the security constraint in web.xml.
+ */
+@WebServlet(name = "DatasetCatalogServlet", urlPatterns = "/admin/datasets")
+public class DatasetCatalogServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        ServiceCredential serviceCredential =
+                (ServiceCredential) req.getServletContext().getAttribute("googleService");
+        DatasetExplorer.Catalog catalog;
+        try {
+            catalog = serviceCredential.getDatasetExplorer()
+                    .getCatalog(Boolean.parseBoolean(req.getParameter("refresh")));
+        } catch (GeneralSecurityException | BigQueryException e) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Catalog not retrieved: " + e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+        if ("json".equals(req.getParameter("format"))) {
+            resp.setContentType("application/json");
+            resp.getWriter().write(catalog.toJson());
+            return;
+        }
+        StringBuilder htmlResponse = new StringBuilder();
+        htmlResponse.append("<html><head><style>")
+                .append("table { width: 100%; border-collapse: collapse; margin-bottom: 24px; }")
+                .append("th, td { border: 1px solid black; padding: 8px; text-align: left; }")
+                .append("th { background-color: #f2f2f2; }")
+                .append("</style>")
+                .append("<meta http-equiv=\"content-type\" content=\"application/xhtml+xml; charset=UTF-8\" />")
+                .append("</head><body>");
+        htmlResponse.append("<h2>BigQuery datasets</h2>");
+        htmlResponse.append("<p>Read at ").append(catalog.getReadAt()).append("</p>");
+        for (DatasetExplorer.DatasetEntry dataset : catalog.getDatasets()) {
+            htmlResponse.append("<h3>").append(escapeHtml(dataset.getName())).append("</h3>");
+            if (dataset.getError() != null) {
+                htmlResponse.append("<p>Error: ").append(escapeHtml(dataset.getError())).append("</p>");
+                continue;
+            }
+            htmlResponse.append("<p>")
+                    .append("Friendly Name: ").append(escapeHtml(dataset.getFriendlyName())).append("<br/>")
+                    .append("Description: ").append(escapeHtml(dataset.getDescription())).append("<br/>")
+                    .append("Location: ").append(escapeHtml(dataset.getLocation()))
+                    .append("</p>");
+            for (DatasetExplorer.TableEntry table : dataset.getTables()) {
+                this.appendTable(htmlResponse, table);
+            }
+        }
+        htmlResponse.append("</body></html>");
+
+        resp.setContentType("text/html");
+        resp.getWriter().write(htmlResponse.toString());
+    }
+
+    /**
+     * Append one table with a row per column.
+     */
+    private void appendTable(StringBuilder htmlResponse, DatasetExplorer.TableEntry table) {
+        htmlResponse.append("<table border='1'>");
+        htmlResponse.append("<tr><th colspan='4'>").append(escapeHtml(table.getName()));
+        if (table.getError() != null) {
+            htmlResponse.append(" - Error: ").append(escapeHtml(table.getError())).append("</th></tr></table>");
+            return;
+        }
+        htmlResponse.append(" - ").append(table.getNumRows() != null ? table.getNumRows() : "?").append(" rows");
+        if (table.getDescription() != null) {
+            htmlResponse.append(" - ").append(escapeHtml(table.getDescription()));
+        }
+        htmlResponse.append("</th></tr>");
+        htmlResponse.append("<tr>")
+                .append("<th>Column</th>")
+                .append("<th>Type</th>")
+                .append("<th>Mode</th>")
+                .append("<th>Description</th>")
+                .append("</tr>");
+        for (Field field : table.getFields()) {
+            htmlResponse.append("<tr>")
+                    .append("<td>").append(escapeHtml(field.getName())).append("</td>")
+                    .append("<td>").append(field.getType()).append("</td>")
+                    .append("<td>").append(field.getMode() != null ? field.getMode() : Field.Mode.NULLABLE).append("</td>")
+                    .append("<td>").append(escapeHtml(field.getDescription())).append("</td>")
+                    .append("</tr>");
+        }
+        htmlResponse.append("</table>");
+    }
+
+    private static String escapeHtml(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
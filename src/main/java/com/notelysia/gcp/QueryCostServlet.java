@@ -0,0 +1,103 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp;
+
+import com.notelysia.gcp.dao.QueryCostLedger;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Admin page of the BigQuery query costs per user, per table and per query template.
+ * Only App Engine admins can open it, see the security constraint in web.xml.
+ */
+@WebServlet(name = "QueryCostServlet", urlPatterns = "/admin/query-costs")
+public class QueryCostServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        QueryCostLedger ledger = QueryCostLedger.global();
+        StringBuilder htmlResponse = new StringBuilder();
+        htmlResponse.append("<html><head><style>")
+                .append("table { width: 100%; border-collapse: collapse; margin-bottom: 24px; }")
+                .append("th, td { border: 1px solid black; padding: 8px; text-align: left; }")
+                .append("th { background-color: #f2f2f2; }")
+                .append("</style>")
+                .append("<meta http-equiv=\"content-type\" content=\"application/xhtml+xml; charset=UTF-8\" />")
+                .append("</head><body>");
+        htmlResponse.append("<h2>BigQuery query costs</h2>");
+        long budget = ledger.getUserBytesBudget();
+        htmlResponse.append("<p>Daily bytes budget per user: ")
+                .append(budget > 0 ? String.valueOf(budget) : "none")
+                .append("</p>");
+        this.appendTotals(htmlResponse, "User", ledger.getUserTotals(), ledger);
+        this.appendTotals(htmlResponse, "Table", ledger.getTableTotals(), null);
+        this.appendTotals(htmlResponse, "Query template", ledger.getTemplateTotals(), null);
+        htmlResponse.append("</body></html>");
+
+        resp.setContentType("text/html");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+        resp.getWriter().write(htmlResponse.toString());
+    }
+
+    /**
+     * Append one table of totals.
+     *
+     * @param ledger Ledger to read the bytes billed today, null to skip the column
+     */
+    private void appendTotals(StringBuilder htmlResponse,
+                              String key,
+                              Map<String, QueryCostLedger.CostTotals> totals,
+                              QueryCostLedger ledger) {
+        htmlResponse.append("<table border='1'>");
+        htmlResponse.append("<tr>")
+                .append("<th>").append(key).append("</th>")
+                .append("<th>Jobs</th>")
+                .append("<th>Bytes Processed</th>")
+                .append("<th>Bytes Billed</th>")
+                .append("<th>Slot ms</th>")
+                .append("<th>Cache Hits</th>");
+        if (ledger != null) {
+            htmlResponse.append("<th>Bytes Billed Today</th>");
+        }
+        htmlResponse.append("</tr>");
+        for (Map.Entry<String, QueryCostLedger.CostTotals> entry : totals.entrySet()) {
+            QueryCostLedger.CostTotals total = entry.getValue();
+            htmlResponse.append("<tr>")
+                    .append("<td>").append(escapeHtml(entry.getKey())).append("</td>")
+                    .append("<td>").append(total.getJobs()).append("</td>")
+                    .append("<td>").append(total.getBytesProcessed()).append("</td>")
+                    .append("<td>").append(total.getBytesBilled()).append("</td>")
+                    .append("<td>").append(total.getSlotMillis()).append("</td>")
+                    .append("<td>").append(total.getCacheHits()).append("</td>");
+            if (ledger != null) {
+                htmlResponse.append("<td>").append(ledger.getBytesBilledToday(entry.getKey())).append("</td>");
+            }
+            htmlResponse.append("</tr>");
+        }
+        htmlResponse.append("</table>");
+    }
+
+    private static String escapeHtml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
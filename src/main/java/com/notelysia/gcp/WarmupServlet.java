@@ -0,0 +1,68 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp;
+
+import com.notelysia.gcp.logic.StartupOrchestrator;
+import com.notelysia.gcp.util.Instance;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * App Engine warmup request and readiness check.
+ * "/_ah/warmup" waits for the startup preparation, so the instance receives user requests
+ * with its clients and tables ready. "/readiness" answers at once: 200 when ready, otherwise 503.
+ * Both start a failed preparation again. The error is only logged, the body never shows it.
+ */
+@WebServlet(name = "WarmupServlet", urlPatterns = {"/_ah/warmup", "/readiness"})
+public class WarmupServlet extends HttpServlet {
+    private StartupOrchestrator startupOrchestrator;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        this.startupOrchestrator = (StartupOrchestrator) this.getServletContext().getAttribute("startupOrchestrator");
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        boolean ready;
+        if ("/_ah/warmup".equals(req.getServletPath())) {
+            try {
+                ready = this.startupOrchestrator.awaitReady(Instance.collectionTimeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ready = false;
+            }
+        } else {
+            ready = this.startupOrchestrator.isReady();
+        }
+        resp.setContentType("text/plain");
+        resp.setHeader("Cache-Control", "no-store");
+        if (ready) {
+            resp.getWriter().write("ready");
+            return;
+        }
+        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.getWriter().write(this.startupOrchestrator.getFailure() != null ? "failed" : "starting");
+    }
+}
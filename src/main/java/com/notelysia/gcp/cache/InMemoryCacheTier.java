@@ -0,0 +1,75 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.cache;
+
+import java.io.Serializable;
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in of Memcache for local runs and tests: the entries are kept in this process only.
+ */
+public class InMemoryCacheTier implements SharedCacheTier {
+    private final Clock clock;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public InMemoryCacheTier() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * @param clock Clock of the expiry time
+     */
+    public InMemoryCacheTier(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public Object get(String namespace, String key) {
+        String entryKey = namespace + ":" + key;
+        Entry entry = this.entries.get(entryKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= this.clock.millis()) {
+            this.entries.remove(entryKey, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public void put(String namespace, String key, Serializable value, long ttlMillis) {
+        this.entries.put(namespace + ":" + key, new Entry(value, this.clock.millis() + ttlMillis));
+    }
+
+    @Override
+    public void remove(String namespace, String key) {
+        this.entries.remove(namespace + ":" + key);
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expiresAt;
+
+        private Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
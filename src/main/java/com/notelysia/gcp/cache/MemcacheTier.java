@@ -0,0 +1,104 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.cache;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.notelysia.gcp.util.Metrics;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * App Engine Memcache (bundled services, enabled by app-engine-apis in appengine-web.xml).
+ * Values are stored with Java serialization, a value over the Memcache item size is not kept.
+ */
+public class MemcacheTier implements SharedCacheTier {
+    private static final Logger logger = Logger.getLogger(MemcacheTier.class.getName());
+    // Memcache keys are limited to 250 bytes, longer keys (e.g. queries) are replaced by their hash
+    private static final int MAX_KEY_LENGTH = 200;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, MemcacheService> services = new ConcurrentHashMap<>();
+
+    @Override
+    public Object get(String namespace, String key) {
+        try {
+            return this.service(namespace).get(memcacheKey(key));
+        } catch (RuntimeException e) {
+            this.failed("get", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String namespace, String key, Serializable value, long ttlMillis) {
+        try {
+            this.service(namespace).put(memcacheKey(key), value,
+                    Expiration.byDeltaMillis((int) Math.min(ttlMillis, Integer.MAX_VALUE)));
+        } catch (RuntimeException e) {
+            this.failed("put", e);
+        }
+    }
+
+    @Override
+    public void remove(String namespace, String key) {
+        try {
+            this.service(namespace).delete(memcacheKey(key));
+        } catch (RuntimeException e) {
+            this.failed("delete", e);
+        }
+    }
+
+    private MemcacheService service(String namespace) {
+        return this.services.computeIfAbsent(namespace, name -> {
+            MemcacheService service = MemcacheServiceFactory.getMemcacheService(name);
+            // An unavailable Memcache is a miss, not an error of the request
+            service.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.FINE));
+            return service;
+        });
+    }
+
+    private void failed(String operation, RuntimeException e) {
+        Metrics.increment("shared_cache_errors", 1);
+        logger.fine(String.format("Memcache %s failed: %s", operation, e));
+    }
+
+    private static String memcacheKey(String key) {
+        if (key.length() <= MAX_KEY_LENGTH) {
+            return key;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hashKey = new StringBuilder("sha256:");
+            for (byte b : hash) {
+                hashKey.append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+            }
+            return hashKey.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.cache;
+
+import java.io.Serializable;
+
+/**
+ * Cache shared by all instances of the application, the second tier of a {@link TwoTierCache}.
+ * A tier may drop entries at any time, a failed call is a miss and is never thrown to the caller.
+ */
+public interface SharedCacheTier {
+
+    /**
+     * @param namespace Namespace of the cache
+     * @param key       Key in the namespace
+     * @return the value, null if it is not kept
+     */
+    Object get(String namespace, String key);
+
+    /**
+     * @param ttlMillis Time the value is kept, at most
+     */
+    void put(String namespace, String key, Serializable value, long ttlMillis);
+
+    void remove(String namespace, String key);
+
+    /**
+     * @param type memcache, memory or auto (memcache on App Engine, memory elsewhere)
+     * @return the tier of the type
+     */
+    static SharedCacheTier create(String type) {
+        switch (type == null ? "auto" : type.trim().toLowerCase()) {
+            case "auto":
+            case "":
+                // GAE_ENV is set by the App Engine runtime only
+                return System.getenv("GAE_ENV") != null ? new MemcacheTier() : new InMemoryCacheTier();
+            case "memcache":
+                return new MemcacheTier();
+            case "memory":
+                return new InMemoryCacheTier();
+            default:
+                throw new IllegalArgumentException("Unknown shared cache tier: " + type);
+        }
+    }
+}
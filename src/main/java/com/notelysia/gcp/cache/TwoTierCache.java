@@ -0,0 +1,148 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.cache;
+
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
+
+import java.io.Serializable;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of one namespace in two tiers: a near tier in this process, in front of a {@link SharedCacheTier}
+ * kept by all instances (Memcache on App Engine). A value put by one instance is found by the others,
+ * so a user's next request is warm on whichever instance serves it.
+ * <p>
+ * The near tier keeps a value for the near time to live only, a value removed by another instance
+ * can be served from here until then. The least recently used near entries are dropped when it is full.
+ */
+public class TwoTierCache {
+    private static final SharedCacheTier SHARED = SharedCacheTier.create(Instance.cacheSharedTier);
+    private static final Map<String, TwoTierCache> NAMED = new ConcurrentHashMap<>();
+
+    private final String namespace;
+    private final SharedCacheTier shared;
+    private final long ttlMillis;
+    private final long nearTtlMillis;
+    private final Clock clock;
+    private final Map<String, Entry> near;
+
+    /**
+     * @param namespace      Namespace of the values in the shared tier
+     * @param shared         Shared tier
+     * @param ttlMillis      Time to live of a value, 0 disables the cache
+     * @param nearTtlMillis  Time a value is kept in the near tier, at most the time to live
+     * @param nearMaxEntries Values kept in the near tier
+     * @param clock          Clock of the expiry time
+     */
+    public TwoTierCache(String namespace,
+                        SharedCacheTier shared,
+                        long ttlMillis,
+                        long nearTtlMillis,
+                        int nearMaxEntries,
+                        Clock clock) {
+        this.namespace = namespace;
+        this.shared = shared;
+        this.ttlMillis = ttlMillis;
+        this.nearTtlMillis = Math.min(nearTtlMillis, ttlMillis);
+        this.clock = clock;
+        this.near = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > nearMaxEntries;
+            }
+        });
+    }
+
+    /**
+     * The cache of the namespace in this process, on the shared tier and with the near tier
+     * of application.properties. The time to live of the first call is kept.
+     *
+     * @param namespace Namespace of the values
+     * @param ttlMillis Time to live of a value, 0 disables the cache
+     */
+    public static TwoTierCache named(String namespace, long ttlMillis) {
+        return NAMED.computeIfAbsent(namespace, name -> new TwoTierCache(name, SHARED, ttlMillis,
+                Instance.cacheNearTtlSeconds * 1000L, Instance.cacheNearMaxEntries, Clock.systemUTC()));
+    }
+
+    /**
+     * @return the value, from the near tier or else the shared tier, null if neither keeps it
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> T get(String key) {
+        if (this.ttlMillis <= 0) {
+            return null;
+        }
+        Entry entry = this.near.get(key);
+        if (entry != null && entry.expiresAt > this.clock.millis()) {
+            Metrics.increment("cache_near_hits", 1);
+            return (T) entry.value;
+        }
+        if (entry != null) {
+            this.near.remove(key, entry);
+        }
+        Object value = this.shared.get(this.namespace, key);
+        if (value == null) {
+            Metrics.increment("cache_misses", 1);
+            return null;
+        }
+        Metrics.increment("cache_shared_hits", 1);
+        this.near.put(key, new Entry((Serializable) value, this.clock.millis() + this.nearTtlMillis));
+        return (T) value;
+    }
+
+    /**
+     * Keep the value in both tiers, null is ignored.
+     */
+    public void put(String key, Serializable value) {
+        if (value == null || this.ttlMillis <= 0) {
+            return;
+        }
+        this.near.put(key, new Entry(value, this.clock.millis() + this.nearTtlMillis));
+        this.shared.put(this.namespace, key, value, this.ttlMillis);
+    }
+
+    /**
+     * Forget the value in both tiers, other instances may still serve it from their near tier.
+     */
+    public void remove(String key) {
+        this.near.remove(key);
+        this.shared.remove(this.namespace, key);
+    }
+
+    /**
+     * Forget the values of the near tier, the shared tier keeps them.
+     */
+    public void clearNear() {
+        this.near.clear();
+    }
+
+    private static class Entry {
+        private final Serializable value;
+        private final long expiresAt;
+
+        private Entry(Serializable value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -18,18 +18,23 @@ package com.notelysia.gcp.controller;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.services.calendar.Calendar;
-import com.google.cloud.bigquery.BigQuery;
-import com.google.cloud.bigquery.TableResult;
+import com.google.cloud.bigquery.FieldValueList;
 import lombok.Getter;
 import lombok.Setter;
 import com.notelysia.gcp.dao.BigQueryClient;
-import com.notelysia.gcp.dao.SqlExecute;
+import com.notelysia.gcp.dao.BigQueryTableStore;
 import com.notelysia.gcp.dao.ListRecords;
+import com.notelysia.gcp.dao.RecordFilter;
+import com.notelysia.gcp.dao.TableStore;
 import com.notelysia.gcp.logic.CalendarLogic;
 import com.notelysia.gcp.logic.ServiceCredential;
 import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
 
 import javax.servlet.ServletException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -44,45 +49,149 @@ public class CalendarAction {
     private final String tableName = "calendar_collection";
     private ServiceCredential serviceCredential;
     private Credential credential;
+    private TableStore tableStore;
 
 
     public List<CalendarEvent> execute(String googleAccountId, String googleAccountEmail) throws Exception {
-        if (this.credential == null) {
-            throw new ServletException("User is not authenticated");
+        this.collect(googleAccountId);
+        return this.read(googleAccountId, googleAccountEmail);
+    }
+
+    /**
+     * Crawl the events of all calendars of the user and load them to the table.
+     *
+     * @param googleAccountId Google Account ID of the user
+     */
+    public void collect(String googleAccountId) throws Exception {
+        this.prepare(googleAccountId);
+        String calendarEventToday = this.csvFileName(googleAccountId, null);
+        try (Metrics.Timer ignored = Metrics.time("calendar.crawl")) {
+            this.calendarLogicLogic.downloadCalendarList(calendarEventToday);
         }
+        this.ingest(calendarEventToday);
+    }
 
-        BigQuery bigQuery = this.serviceCredential.initializeBigQuery();
-        Calendar calendarService = this.serviceCredential.createCalendarService(this.credential);
-        LocalDate todayDateTime = LocalDate.now();
-        String calendarEventToday =
-                todayDateTime.format(DateTimeFormatter.ofPattern("yyyy_MM_dd")) +
-                        "_calendar_event_" +
-                        googleAccountId +
-                        ".csv";
+    /**
+     * List the calendars of the user, each one is collected by its own background task.
+     *
+     * @param googleAccountId Google Account ID of the user
+     */
+    public List<String> listCalendarIds(String googleAccountId) throws Exception {
+        this.prepare(googleAccountId);
+        return this.calendarLogicLogic.listCalendarIds();
+    }
 
-        this.calendarLogicLogic.setCalendarService(calendarService);
-        this.bigQueryLogic.setBigquery(bigQuery);
-
-        this.calendarLogicLogic.downloadCalendarList(calendarEventToday);
-        this.bigQueryLogic.loadLocalData2BigQuery(
-                this.dataSetName,
-                this.tableName,
-                calendarEventToday,
-                CalendarEvent.class);
+    /**
+     * Crawl the events of one calendar of the user and load them to the table.
+     *
+     * @param googleAccountId Google Account ID of the user
+     * @param calendarId      Calendar of the user
+     */
+    public void collectCalendar(String googleAccountId, String calendarId) throws Exception {
+        this.prepare(googleAccountId);
+        String calendarEventToday = this.csvFileName(googleAccountId, calendarId);
+        try (Metrics.Timer ignored = Metrics.time("calendar.crawl")) {
+            this.calendarLogicLogic.downloadCalendar(calendarId, calendarEventToday);
+        }
+        this.ingest(calendarEventToday);
+    }
+
+    /**
+     * Read the events of the user from the table.
+     *
+     * @param googleAccountId    Google Account ID of the user
+     * @param googleAccountEmail Email of the user
+     */
+    public List<CalendarEvent> read(String googleAccountId, String googleAccountEmail) throws Exception {
+        TableStore tableStore = this.resolveTableStore();
         List<String> columnOrder = new ArrayList<>();
         columnOrder.add("createdTime");
-        String whereCondition = "lower(attendees) like lower('%" +
-                googleAccountEmail + "%') " +
-                "OR lower(attendees) like lower('%" +
-                googleAccountId + "%')";
-        SqlExecute bigQuerySqlLogic = new SqlExecute();
-        TableResult result = bigQuerySqlLogic.executeSelectQuery(
-                bigQuery,
-                this.dataSetName,
-                this.tableName,
-                columnOrder,
-                whereCondition);
+        Iterable<FieldValueList> rows;
+        try (Metrics.Timer ignored = Metrics.time("calendar.query")) {
+            rows = tableStore.select(
+                    this.dataSetName,
+                    this.tableName,
+                    columnOrder,
+                    userFilter(googleAccountId, googleAccountEmail));
+        }
         ListRecords listRecords = new ListRecords();
-        return listRecords.collectCalendarEventRecord(result);
+        return listRecords.collectCalendarEventRecord(rows);
+    }
+
+    private void prepare(String googleAccountId) throws Exception {
+        if (this.credential == null) {
+            throw new ServletException("User is not authenticated");
+        }
+        Calendar calendarService = this.serviceCredential.createCalendarService(this.credential);
+        this.calendarLogicLogic.setCalendarService(calendarService);
+        this.calendarLogicLogic.setRequestGovernor(this.serviceCredential.getRequestGovernor());
+        this.calendarLogicLogic.setCheckpointStore(this.serviceCredential.getCrawlCheckpointStore());
+        this.calendarLogicLogic.setUserId(googleAccountId);
+        this.bigQueryLogic.setTableStore(this.resolveTableStore());
+        this.bigQueryLogic.setIngestionBuffer(this.serviceCredential.getIngestionBuffer());
+    }
+
+    private void ingest(String csvFile) throws Exception {
+        try (Metrics.Timer ignored = Metrics.time("calendar.ingest")) {
+            // The attendee records need the typed schema, a table detected from the CSV file would not have it
+            this.bigQueryLogic.createDataSet(this.dataSetName);
+            this.bigQueryLogic.createTable(this.dataSetName, this.tableName,
+                    ServiceCredential.CALENDAR_SCHEMA, ServiceCredential.CALENDAR_LAYOUT);
+            this.bigQueryLogic.loadLocalData2BigQuery(
+                    this.dataSetName,
+                    this.tableName,
+                    csvFile,
+                    CalendarEvent.class);
+        }
+    }
+
+    /**
+     * @param calendarId Calendar of the file, null for all calendars of the user
+     */
+    private String csvFileName(String googleAccountId, String calendarId) {
+        String calendar = calendarId != null ? "_" + calendarId.replaceAll("[^A-Za-z0-9_.-]", "_") : "";
+        return LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy_MM_dd")) +
+                "_calendar_event_" +
+                googleAccountId +
+                calendar +
+                ".csv";
+    }
+
+    /**
+     * Events of the user: collected from the user's calendars or with the user as an attendee,
+     * in every partition of the table, as an event created long ago can still occur.
+     *
+     * @param googleAccountId    Google Account ID of the user
+     * @param googleAccountEmail Email of the user
+     * @return filter of the calendar table
+     */
+    public static RecordFilter userFilter(String googleAccountId, String googleAccountEmail) {
+        RecordFilter filter = RecordFilter.equalsAny("ownerAccountId", googleAccountId)
+                .or(RecordFilter.repeatedEqualsAnyIgnoreCase("attendee", "email", googleAccountEmail));
+        if (Instance.calendarLegacyAttendeeFilter) {
+            // Rows loaded before the typed columns existed only have the attendees text
+            filter = filter.or(RecordFilter.containsAnyIgnoreCase("attendees", googleAccountEmail, googleAccountId));
+        }
+        return ServiceCredential.CALENDAR_LAYOUT.withinReadWindow(filter);
+    }
+
+    /**
+     * Get the last modified time of the calendar table, used to validate cached pages.
+     *
+     * @return last modified time in milliseconds, 0 if table does not exist
+     */
+    public long getLastModified() throws IOException, GeneralSecurityException {
+        this.bigQueryLogic.setTableStore(this.resolveTableStore());
+        return this.bigQueryLogic.getTableLastModified(this.dataSetName, this.tableName);
+    }
+
+    /**
+     * @return the table store set for this action, or a BigQuery table store when none is set
+     */
+    private TableStore resolveTableStore() throws IOException, GeneralSecurityException {
+        if (this.tableStore != null) {
+            return this.tableStore;
+        }
+        return new BigQueryTableStore(this.serviceCredential.initializeBigQuery());
     }
 }
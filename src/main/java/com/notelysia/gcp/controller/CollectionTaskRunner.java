@@ -0,0 +1,100 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.controller;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.notelysia.gcp.dao.QueryCostLedger;
+import com.notelysia.gcp.logic.CollectionTask;
+import com.notelysia.gcp.logic.IngestionDispatcher;
+import com.notelysia.gcp.logic.ServiceCredential;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.Metrics;
+
+import java.util.logging.Logger;
+
+/**
+ * Runs a background collection task with the actions of the pages.
+ * A calendar list task dispatches one task per calendar, so the calendars of a user are crawled in parallel.
+ */
+public class CollectionTaskRunner implements IngestionDispatcher.Handler {
+    private static final Logger logger = Logger.getLogger(CollectionTaskRunner.class.getName());
+    private final ServiceCredential serviceCredential;
+    // Dispatcher of the per-calendar tasks
+    private IngestionDispatcher dispatcher;
+
+    public CollectionTaskRunner(ServiceCredential serviceCredential) {
+        this.serviceCredential = serviceCredential;
+    }
+
+    public void setDispatcher(IngestionDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @throws CredentialUnavailableException if the OAuth2 credential of the user is not stored on this instance
+     */
+    @Override
+    public void run(CollectionTask task) throws Exception {
+        Credential credential = this.serviceCredential.googleAccountAuthorize().loadCredential(task.getUserId());
+        if (credential == null) {
+            throw new CredentialUnavailableException(task);
+        }
+        QueryCostLedger.setCurrentUser(task.getGoogleAccountId());
+        try (Span span = Tracing.startSpan("task " + task.getType());
+             Metrics.Timer ignored = Metrics.time("collection_task." + task.getType().name().toLowerCase())) {
+            span.setAttribute("task.key", task.getKey());
+            switch (task.getType()) {
+                case DRIVE_ACTIVITY:
+                    DriveActivityAction driveActivityAction = new DriveActivityAction();
+                    driveActivityAction.setServiceCredential(this.serviceCredential);
+                    driveActivityAction.setCredential(credential);
+                    driveActivityAction.collect(task.getGoogleAccountId());
+                    break;
+                case CALENDAR_LIST:
+                    CalendarAction calendarListAction = new CalendarAction();
+                    calendarListAction.setServiceCredential(this.serviceCredential);
+                    calendarListAction.setCredential(credential);
+                    for (String calendarId : calendarListAction.listCalendarIds(task.getGoogleAccountId())) {
+                        this.dispatcher.dispatch(task.forCalendar(calendarId));
+                    }
+                    break;
+                case CALENDAR:
+                    CalendarAction calendarAction = new CalendarAction();
+                    calendarAction.setServiceCredential(this.serviceCredential);
+                    calendarAction.setCredential(credential);
+                    calendarAction.collectCalendar(task.getGoogleAccountId(), task.getCalendarId());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown collection task: " + task.getType());
+            }
+            logger.info(String.format("Collection task %s completed", task));
+        } finally {
+            QueryCostLedger.setCurrentUser(null);
+        }
+    }
+
+    /**
+     * The credentials are kept in the memory of the instance the user signed in on,
+     * another instance cannot run the user's tasks until the user signs in there too.
+     */
+    public static class CredentialUnavailableException extends Exception {
+        public CredentialUnavailableException(CollectionTask task) {
+            super(String.format("No credential of user %s on this instance for task %s", task.getUserId(), task));
+        }
+    }
+}
@@ -18,18 +18,23 @@ package com.notelysia.gcp.controller;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.services.people.v1.PeopleService;
-import com.google.cloud.bigquery.BigQuery;
-import com.google.cloud.bigquery.TableResult;
+import com.google.cloud.bigquery.FieldValueList;
 import lombok.Getter;
 import lombok.Setter;
 import com.notelysia.gcp.dao.BigQueryClient;
-import com.notelysia.gcp.dao.SqlExecute;
+import com.notelysia.gcp.dao.BigQueryTableStore;
 import com.notelysia.gcp.dao.ListRecords;
+import com.notelysia.gcp.dao.RecordFilter;
+import com.notelysia.gcp.dao.TableLayout;
+import com.notelysia.gcp.dao.TableStore;
 import com.notelysia.gcp.logic.DriveActivityLogic;
 import com.notelysia.gcp.logic.ServiceCredential;
 import com.notelysia.gcp.model.DriveActivity;
+import com.notelysia.gcp.util.Metrics;
 
 import javax.servlet.ServletException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
@@ -46,9 +51,21 @@ public class DriveActivityAction {
     private final String tableName = "drive_activity";
     private ServiceCredential serviceCredential;
     private Credential credential;
+    private TableStore tableStore;
 
 
     public List<DriveActivity> execute(String googleAccountId, String googleAccountEmail) throws Exception {
+        this.collect(googleAccountId);
+        return this.read(googleAccountId, googleAccountEmail);
+    }
+
+    /**
+     * Crawl the activities of yesterday and today and load them to the table,
+     * run in the request or as a background collection task.
+     *
+     * @param googleAccountId Google Account ID of the user
+     */
+    public void collect(String googleAccountId) throws Exception {
         if (this.credential == null) {
             throw new ServletException("User is not authenticated");
         }
@@ -56,11 +73,15 @@ public class DriveActivityAction {
         com.google.api.services.driveactivity.v2.DriveActivity driveActivityService =
                 this.serviceCredential.createDriveActivityService(this.credential);
         PeopleService peopleService = this.serviceCredential.createPeopleService(this.credential);
-        BigQuery bigQuery = this.serviceCredential.initializeBigQuery();
+        TableStore tableStore = this.resolveTableStore();
 
         this.driveActivity.setDriveActivityService(driveActivityService);
         this.driveActivity.setPeopleService(peopleService);
-        this.bigQueryClient.setBigquery(bigQuery);
+        this.driveActivity.setRequestGovernor(this.serviceCredential.getRequestGovernor());
+        this.driveActivity.setCheckpointStore(this.serviceCredential.getCrawlCheckpointStore());
+        this.driveActivity.setUserId(googleAccountId);
+        this.bigQueryClient.setTableStore(tableStore);
+        this.bigQueryClient.setIngestionBuffer(this.serviceCredential.getIngestionBuffer());
 
         LocalDate yesterdayDate = LocalDate.now().minusDays(1);
         long yesterdayTime = yesterdayDate.atStartOfDay(ZoneId.of("UTC"))
@@ -68,31 +89,63 @@ public class DriveActivityAction {
         String yesterday = yesterdayDate.format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
         String yesterdayCSVFile = yesterday + "_activities_" +
                 googleAccountId + ".csv";
-        this.driveActivity.DownloadActivity(
-                null,
-                "time > " + yesterdayTime + " AND time <= " + Instant.now().toEpochMilli(),
-                yesterdayCSVFile);
+        try (Metrics.Timer ignored = Metrics.time("drive_activity.crawl")) {
+            this.driveActivity.DownloadActivity(
+                    null,
+                    "time > " + yesterdayTime + " AND time <= " + Instant.now().toEpochMilli(),
+                    yesterdayCSVFile);
+        }
+
+        try (Metrics.Timer ignored = Metrics.time("drive_activity.ingest")) {
+            this.bigQueryClient.loadLocalData2BigQuery(
+                    this.dataSetName,
+                    this.tableName,
+                    yesterdayCSVFile,
+                    DriveActivity.class);
+        }
+    }
 
-        this.bigQueryClient.loadLocalData2BigQuery(
-                this.dataSetName,
-                this.tableName,
-                yesterdayCSVFile,
-                DriveActivity.class);
+    /**
+     * Read the activities of the user from the table.
+     *
+     * @param googleAccountId    Google Account ID of the user
+     * @param googleAccountEmail Email of the user
+     */
+    public List<DriveActivity> read(String googleAccountId, String googleAccountEmail) throws Exception {
+        TableStore tableStore = this.resolveTableStore();
         List<String> columnOrder = new ArrayList<>();
         columnOrder.add("timeActivity");
         columnOrder.add("activityId");
-        String whereCondition = "lower(userAction) like lower('%" +
-                googleAccountEmail + "%') " +
-                "OR lower(userAction) like lower('%" +
-                googleAccountId + "%')";
-        SqlExecute bigQuerySqlLogic = new SqlExecute();
-        TableResult result = bigQuerySqlLogic.executeSelectQuery(
-                bigQuery,
-                this.dataSetName,
-                this.tableName,
-                columnOrder,
-                whereCondition);
+        Iterable<FieldValueList> rows;
+        try (Metrics.Timer ignored = Metrics.time("drive_activity.query")) {
+            rows = tableStore.select(
+                    this.dataSetName,
+                    this.tableName,
+                    columnOrder,
+                    TableLayout.of(DriveActivity.class).withinReadWindow(
+                            RecordFilter.containsAnyIgnoreCase("userAction", googleAccountEmail, googleAccountId)));
+        }
         ListRecords listRecords = new ListRecords();
-        return listRecords.collectDriveActivityRecord(result);
+        return listRecords.collectDriveActivityRecord(rows);
+    }
+
+    /**
+     * Get the last modified time of the drive activity table, used to validate cached pages.
+     *
+     * @return last modified time in milliseconds, 0 if table does not exist
+     */
+    public long getLastModified() throws IOException, GeneralSecurityException {
+        this.bigQueryClient.setTableStore(this.resolveTableStore());
+        return this.bigQueryClient.getTableLastModified(this.dataSetName, this.tableName);
+    }
+
+    /**
+     * @return the table store set for this action, or a BigQuery table store when none is set
+     */
+    private TableStore resolveTableStore() throws IOException, GeneralSecurityException {
+        if (this.tableStore != null) {
+            return this.tableStore;
+        }
+        return new BigQueryTableStore(this.serviceCredential.initializeBigQuery());
     }
 }
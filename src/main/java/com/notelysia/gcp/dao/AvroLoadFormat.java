@@ -0,0 +1,384 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.AvroOptions;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.UtilsFunction;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Upload the rows as an Avro object container file with deflate compressed blocks.
+ * Values are written with their BigQuery type: TIMESTAMP as timestamp-micros, INT64, FLOAT64 and BOOL
+ * as long, double and boolean, RECORD as record and REPEATED as array. NULLABLE fields are ["null", type] unions.
+ * <p>
+ * The writer covers only the part of the Avro 1.x specification the loads need, like {@code CsvWriter}
+ * it avoids a dependency for one file format. A table with other types (DATE, NUMERIC, ...),
+ * e.g. created by CSV autodetect, is loaded as JSON lines instead.
+ */
+public class AvroLoadFormat implements LoadFormat {
+    private static final byte[] MAGIC = {'O', 'b', 'j', 1};
+    // Uncompressed size of the rows compressed together in one block
+    private static final int BLOCK_BYTES = 256 * 1024;
+
+    // Compress the JSON lines of the tables Avro cannot load
+    private final boolean gzip;
+
+    public AvroLoadFormat(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    @Override
+    public FormatOptions formatOptions() {
+        // Read timestamp-micros as TIMESTAMP, not as INTEGER
+        return AvroOptions.newBuilder().setUseAvroLogicalTypes(true).build();
+    }
+
+    @Override
+    public LoadFormat forSchema(Schema schema) {
+        return schema != null && !isSupported(schema.getFields()) ? new JsonLoadFormat(this.gzip) : this;
+    }
+
+    /**
+     * @return true if every field has a type the writer supports
+     */
+    static boolean isSupported(FieldList fields) {
+        for (Field field : fields) {
+            if (field.getType() == LegacySQLTypeName.RECORD) {
+                if (field.getSubFields() == null || !isSupported(field.getSubFields())) {
+                    return false;
+                }
+            } else {
+                switch (field.getType().getStandardType()) {
+                    case STRING:
+                    case INT64:
+                    case FLOAT64:
+                    case BOOL:
+                    case TIMESTAMP:
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Path prepare(Path csvFile, Schema schema) throws IOException {
+        Path avroFile = Files.createTempFile("load-", ".avro");
+        boolean written = false;
+        try (Reader reader = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8);
+             CSVReader csvReader = new CSVReaderBuilder(reader)
+                     .withCSVParser(new RFC4180ParserBuilder()
+                             .withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
+                             .build())
+                     .build();
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(avroFile), 64 * 1024)) {
+            FieldList fields = schema.getFields();
+            byte[] sync = syncMarker();
+            writeHeader(out, fields, sync);
+            String[] header = csvReader.readNext();
+            if (header != null) {
+                // CSV column of every field, -1 when the file does not have it
+                Map<String, Integer> headerIndex = new HashMap<>();
+                for (int i = 0; i < header.length; i++) {
+                    headerIndex.put(header[i], i);
+                }
+                int[] columns = new int[fields.size()];
+                for (int i = 0; i < fields.size(); i++) {
+                    columns[i] = headerIndex.getOrDefault(fields.get(i).getName(), -1);
+                }
+                ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 4096);
+                long blockRows = 0;
+                String[] row;
+                while ((row = csvReader.readNext()) != null) {
+                    for (int i = 0; i < fields.size(); i++) {
+                        String value = columns[i] >= 0 && columns[i] < row.length ? row[columns[i]] : null;
+                        writeField(block, fields.get(i), csvValue(fields.get(i), value));
+                    }
+                    blockRows++;
+                    if (block.size() >= BLOCK_BYTES) {
+                        writeBlock(out, block, blockRows, sync);
+                        blockRows = 0;
+                    }
+                }
+                if (blockRows > 0) {
+                    writeBlock(out, block, blockRows, sync);
+                }
+            }
+            written = true;
+        } catch (CsvValidationException e) {
+            throw new IOException("CSV file not readable: " + csvFile, e);
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(avroFile);
+            }
+        }
+        return avroFile;
+    }
+
+    /**
+     * RECORD and REPEATED values are JSON in the CSV file, other values are kept as text.
+     */
+    private static Object csvValue(Field field, String value) throws IOException {
+        boolean repeated = field.getMode() == Field.Mode.REPEATED;
+        if (!repeated && field.getType() != LegacySQLTypeName.RECORD) {
+            return value;
+        }
+        if (value == null || value.isEmpty() || !UtilsFunction.isValidJson(value)) {
+            return null;
+        }
+        if (repeated) {
+            Class<?> itemClass = field.getType() == LegacySQLTypeName.RECORD ? Map.class : Object.class;
+            return new ArrayList<>(Instance.jsonFactory.createJsonParser(value).parseArray(ArrayList.class, itemClass));
+        }
+        return Instance.jsonFactory.createJsonParser(value).parse(Map.class);
+    }
+
+    private static void writeField(OutputStream out, Field field, Object value) throws IOException {
+        if (field.getMode() == Field.Mode.REPEATED) {
+            List<?> items = value instanceof List ? (List<?>) value : Collections.emptyList();
+            if (!items.isEmpty()) {
+                writeLong(out, items.size());
+                for (Object item : items) {
+                    Object typed = typedValue(field, item);
+                    if (typed == null) {
+                        throw new IOException("NULL element in REPEATED field " + field.getName());
+                    }
+                    writeValue(out, field, typed);
+                }
+            }
+            writeLong(out, 0);
+            return;
+        }
+        Object typed = typedValue(field, value);
+        if (field.getMode() == Field.Mode.REQUIRED) {
+            if (typed == null) {
+                throw new IOException("Missing value of REQUIRED field " + field.getName());
+            }
+        } else {
+            // Branch of the ["null", type] union
+            writeLong(out, typed == null ? 0 : 1);
+            if (typed == null) {
+                return;
+            }
+        }
+        writeValue(out, field, typed);
+    }
+
+    /**
+     * @return the value as String, Long, Double, Boolean or Map (RECORD), null for NULL
+     */
+    private static Object typedValue(Field field, Object value) throws IOException {
+        if (value == null) {
+            return null;
+        }
+        if (field.getType() == LegacySQLTypeName.RECORD) {
+            return value instanceof Map ? value : null;
+        }
+        String text = value.toString();
+        if (field.getType() == LegacySQLTypeName.STRING) {
+            return text;
+        }
+        if (text.isEmpty()) {
+            return null;
+        }
+        try {
+            switch (field.getType().getStandardType()) {
+                case TIMESTAMP:
+                    Instant instant = UtilsFunction.parseTimestamp(text);
+                    if (instant == null) {
+                        break;
+                    }
+                    return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000L),
+                            instant.getNano() / 1_000);
+                case INT64:
+                    return new BigDecimal(text).longValueExact();
+                case FLOAT64:
+                    return Double.parseDouble(text);
+                case BOOL:
+                    return Boolean.parseBoolean(text);
+                default:
+                    break;
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Reported below
+        }
+        throw new IOException(String.format("Could not parse '%s' as %s for field %s",
+                text, field.getType().getStandardType(), field.getName()));
+    }
+
+    private static void writeValue(OutputStream out, Field field, Object value) throws IOException {
+        if (value instanceof Map) {
+            Map<?, ?> record = (Map<?, ?>) value;
+            for (Field subField : field.getSubFields()) {
+                writeField(out, subField, record.get(subField.getName()));
+            }
+        } else if (value instanceof String) {
+            writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Long) {
+            writeLong(out, (Long) value);
+        } else if (value instanceof Double) {
+            long bits = Double.doubleToLongBits((Double) value);
+            for (int i = 0; i < 8; i++) {
+                out.write((int) (bits >>> (8 * i)));
+            }
+        } else {
+            out.write((Boolean) value ? 1 : 0);
+        }
+    }
+
+    private static void writeHeader(OutputStream out, FieldList fields, byte[] sync) throws IOException {
+        out.write(MAGIC);
+        writeLong(out, 2);
+        writeBytes(out, "avro.schema".getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, Instance.jsonFactory.toString(recordSchema("Row", fields))
+                .getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, "avro.codec".getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, "deflate".getBytes(StandardCharsets.UTF_8));
+        writeLong(out, 0);
+        out.write(sync);
+    }
+
+    private static void writeBlock(OutputStream out,
+                                   ByteArrayOutputStream block,
+                                   long rows,
+                                   byte[] sync) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.size() / 2 + 64);
+        // The deflate codec is raw deflate data, without the zlib header and checksum
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(compressed, deflater)) {
+            block.writeTo(stream);
+        } finally {
+            deflater.end();
+        }
+        writeLong(out, rows);
+        writeLong(out, compressed.size());
+        compressed.writeTo(out);
+        out.write(sync);
+        block.reset();
+    }
+
+    /**
+     * Avro schema of the fields, nested records are named after their path so every name is unique.
+     */
+    private static Map<String, Object> recordSchema(String name, FieldList fields) throws IOException {
+        List<Map<String, Object>> avroFields = new ArrayList<>();
+        for (Field field : fields) {
+            Object type;
+            if (field.getType() == LegacySQLTypeName.RECORD) {
+                type = recordSchema(name + "_" + field.getName(), field.getSubFields());
+            } else {
+                type = primitiveSchema(field);
+            }
+            if (field.getMode() == Field.Mode.REPEATED) {
+                Map<String, Object> array = new LinkedHashMap<>();
+                array.put("type", "array");
+                array.put("items", type);
+                type = array;
+            } else if (field.getMode() != Field.Mode.REQUIRED) {
+                type = List.of("null", type);
+            }
+            Map<String, Object> avroField = new LinkedHashMap<>();
+            avroField.put("name", field.getName());
+            avroField.put("type", type);
+            avroFields.add(avroField);
+        }
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("type", "record");
+        record.put("name", name);
+        record.put("fields", avroFields);
+        return record;
+    }
+
+    private static Object primitiveSchema(Field field) throws IOException {
+        switch (field.getType().getStandardType()) {
+            case STRING:
+                return "string";
+            case INT64:
+                return "long";
+            case FLOAT64:
+                return "double";
+            case BOOL:
+                return "boolean";
+            case TIMESTAMP:
+                Map<String, Object> timestamp = new LinkedHashMap<>();
+                timestamp.put("type", "long");
+                timestamp.put("logicalType", "timestamp-micros");
+                return timestamp;
+            default:
+                throw new IOException(String.format("Avro load does not support %s field %s",
+                        field.getType().getStandardType(), field.getName()));
+        }
+    }
+
+    private static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+        writeLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Zig-zag variable length encoding of Avro int and long.
+     */
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        long encoded = (value << 1) ^ (value >> 63);
+        while ((encoded & ~0x7FL) != 0) {
+            out.write((int) ((encoded & 0x7F) | 0x80));
+            encoded >>>= 7;
+        }
+        out.write((int) encoded);
+    }
+
+    private static byte[] syncMarker() {
+        UUID uuid = UUID.randomUUID();
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+}
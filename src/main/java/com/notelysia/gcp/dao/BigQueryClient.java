@@ -16,7 +16,6 @@
 
 package com.notelysia.gcp.dao;
 
-import com.google.api.gax.paging.Page;
 import com.google.api.services.bigquery.model.DatasetList;
 import com.google.cloud.bigquery.*;
 import com.opencsv.bean.CsvToBean;
@@ -26,18 +25,24 @@ import lombok.Getter;
 import lombok.Setter;
 import com.notelysia.gcp.model.CalendarEvent;
 import com.notelysia.gcp.model.DriveActivity;
+import com.notelysia.gcp.util.CsvWriter;
+import com.notelysia.gcp.util.Metrics;
 import com.notelysia.gcp.util.UtilsFunction;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -47,97 +52,77 @@ public class BigQueryClient {
     private static final Logger logger = Logger.getLogger(BigQueryClient.class.getName());
     private final SqlExecute sqlExecute = new SqlExecute();
     private BigQuery bigquery;
+    private TableStore tableStore;
+    // Shared load jobs of all users, null loads every file with its own job
+    private IngestionBuffer ingestionBuffer;
+    // Catalog of the datasets and tables, the shared explorer of ServiceCredential.getDatasetExplorer()
+    private DatasetExplorer datasetExplorer;
     private HttpServletResponse response;
     private List<DatasetList.Datasets> datasets;
 
+    /**
+     * Set the BigQuery service, the ingestion methods use it through a {@link BigQueryTableStore}.
+     * Use {@link #setTableStore(TableStore)} to run the ingestion methods on another store.
+     *
+     * @param bigquery BigQuery Service
+     */
+    public void setBigquery(BigQuery bigquery) {
+        this.bigquery = bigquery;
+        this.tableStore = new BigQueryTableStore(bigquery);
+    }
+
     /**
      * Method to list of datasets available in BigQuery.
+     * Write every dataset (Friendly Name, Description, Location) and its tables
+     * (Friendly Name, Description, Total Rows) to the response, read from the catalog of the {@link DatasetExplorer}
+     * set with {@link #setDatasetExplorer(DatasetExplorer)}.
      */
     public void getDatasetList() {
+        if (this.datasetExplorer == null) {
+            logger.warning("Dataset list not retrieved, no dataset explorer is set");
+            return;
+        }
         try {
-            Page<Dataset> datasets = this.bigquery.listDatasets(
-                    this.bigquery.getOptions().getProjectId(),
-                    BigQuery.DatasetListOption.pageSize(100));
-            if (datasets == null) {
+            DatasetExplorer.Catalog catalog = this.datasetExplorer.getCatalog(false);
+            if (catalog.getDatasets().isEmpty()) {
                 logger.info("Dataset does not contain any models");
                 return;
             }
-            for (Dataset dataset : datasets
-                    .iterateAll()) {
-                logger.warning(String.format("Dataset ID: %s", dataset.getDatasetId().getDataset()));
-                this.getDatasetInfo(dataset.getDatasetId().getDataset());
+            StringBuilder text = new StringBuilder();
+            for (DatasetExplorer.DatasetEntry dataset : catalog.getDatasets()) {
+                text.append("Dataset ID: ").append(dataset.getName()).append('\n');
+                if (dataset.getError() != null) {
+                    text.append("Error: ").append(dataset.getError()).append('\n');
+                    continue;
+                }
+                text.append("Friendly Name: ").append(orDefault(dataset.getFriendlyName(), "No friendly name")).append('\n')
+                        .append("Description: ").append(orDefault(dataset.getDescription(), "No description")).append('\n')
+                        .append("Location: ").append(dataset.getLocation()).append('\n');
+                for (DatasetExplorer.TableEntry table : dataset.getTables()) {
+                    text.append("Table: ").append(table.getName()).append('\n');
+                    if (table.getError() != null) {
+                        text.append("Error: ").append(table.getError()).append('\n');
+                        continue;
+                    }
+                    text.append("Friendly Name: ").append(orDefault(table.getFriendlyName(), "No friendly name")).append('\n')
+                            .append("Description: ").append(orDefault(table.getDescription(), "No description")).append('\n')
+                            .append("Total Rows: ").append(table.getNumRows()).append('\n');
+                }
             }
+            this.response.getWriter().write(text.toString());
         } catch (BigQueryException e) {
 
             logger.warning(String.format("Project does not contain any datasets \n%s", e));
-        }
-    }
-
-    /**
-     * Method get Dataset information: Friendly Name, Description, Location, Tables.
-     *
-     * @param datasetName BigQuery Dataset Name
-     */
-    private void getDatasetInfo(String datasetName) {
-        try {
-            DatasetId datasetId = DatasetId.of(
-                    this.bigquery.getOptions().getProjectId(), datasetName);
-            Dataset dataset = this.bigquery.getDataset(datasetId);
-
-            // View dataset properties
-            String friendlyName = dataset.getFriendlyName() != null ? dataset.getFriendlyName() : "No friendly name";
-            String description = dataset.getDescription() != null ? dataset.getDescription() : "No description";
-            String location = dataset.getLocation();
-            this.response.getWriter().println("Friendly Name: " + friendlyName);
-            this.response.getWriter().println("Description: " + description);
-            this.response.getWriter().println("Location: " + location);
-            Page<Table> tables = this.bigquery.listTables(datasetName, BigQuery.TableListOption.pageSize(100));
-            for (Table table : tables.iterateAll()) {
-                logger.info(String.format("Table: %s", table.getTableId().getTable()));
-                this.getTableInfo(datasetName, table.getTableId().getTable());
-            }
-        } catch (BigQueryException e) {
-
-            logger.warning(String.format("Dataset info not retrieved. \n%s", e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning(String.format("Dataset list not retrieved. \n%s", e));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    /**
-     * Method get Table information: Friendly Name, Description, Total Rows, Fields.
-     * Each field get Name, Type, Mode (NULL or NOTNULL), Description.
-     *
-     * @param dataSetName BigQuery Dataset Name
-     * @param tableName   BigQuery Table Name
-     */
-    private void getTableInfo(String dataSetName, String tableName) {
-        try {
-            TableId tableId = TableId.of(dataSetName, tableName);
-            Table table = this.bigquery.getTable(tableId);
-            // View table properties
-            String friendlyName = table.getFriendlyName() != null ? table.getFriendlyName() : "No friendly name";
-            String description = table.getDescription() != null ? table.getDescription() : "No description";
-            String totalRows = table.getNumRows().toString();
-            this.response.getWriter().println("Friendly Name: " + friendlyName);
-            this.response.getWriter().println("Description: " + description);
-            this.response.getWriter().println("Total Rows: " + totalRows);
-            //List table fields
-            if (table.getDefinition().getSchema() != null) {
-                for (Field field : table.getDefinition().getSchema().getFields()) {
-                    String descriptionField = field.getDescription() != null ?
-                            field.getDescription() : "No description";
-                    logger.info(String.format("Field: %s - %s - %s - %s",
-                            field.getName(),
-                            field.getType(),
-                            field.getMode(),
-                            descriptionField));
-                }
-            }
-        } catch (BigQueryException | IOException e) {
-
-            logger.warning(String.format("Table info not retrieved. \n%s", e));
-        }
+    private static String orDefault(String value, String defaultValue) {
+        return value != null ? value : defaultValue;
     }
 
     /**
@@ -148,10 +133,8 @@ public class BigQueryClient {
     public void createDataSet(String dataSetName) {
         try {
             if (!this.checkDatasetExists(dataSetName)) {
-                DatasetInfo datasetInfo = DatasetInfo.newBuilder(dataSetName).build();
-                Dataset newDataset = this.bigquery.create(datasetInfo);
-                String newDatasetName = newDataset.getDatasetId().getDataset();
-                logger.info(String.format("%s created successfully", newDatasetName));
+                this.tableStore.createDataset(dataSetName);
+                logger.info(String.format("%s created successfully", dataSetName));
             } else {
                 logger.warning(String.format("Error: Dataset %s already exists!", dataSetName));
             }
@@ -167,8 +150,7 @@ public class BigQueryClient {
      * @param dataSetName BigQuery Dataset Name
      */
     private boolean checkDatasetExists(String dataSetName) {
-        Dataset dataset = this.bigquery.getDataset(DatasetId.of(dataSetName));
-        return dataset != null;
+        return this.tableStore.datasetExists(dataSetName);
     }
 
     /**
@@ -179,14 +161,21 @@ public class BigQueryClient {
      * @param schema      BigQuery Schema
      */
     public void createTable(String dataSetName, String tableName, Schema schema) {
+        this.createTable(dataSetName, tableName, schema, null);
+    }
+
+    /**
+     * Create new empty table with time partitioning and clustering.
+     *
+     * @param dataSetName BigQuery Dataset Name
+     * @param tableName   BigQuery Table Name
+     * @param schema      BigQuery Schema
+     * @param layout      Partitioning, retention and clustering, null for an unpartitioned table
+     */
+    public void createTable(String dataSetName, String tableName, Schema schema, TableLayout layout) {
         try {
             if (!this.checkTableExists(dataSetName, tableName)) {
-                TableId tableId = TableId.of(dataSetName, tableName);
-                TableDefinition tableDefinition;
-                tableDefinition = StandardTableDefinition.of(Objects.requireNonNullElseGet(schema, Schema::of));
-                TableInfo tableInfo = TableInfo.newBuilder(tableId, tableDefinition).build();
-
-                this.bigquery.create(tableInfo);
+                this.tableStore.createTable(dataSetName, tableName, schema, layout);
                 logger.info(String.format("Table %s created successfully", tableName));
             } else {
                 logger.warning(String.format("Error: Table %s already exists! Skipping...", tableName));
@@ -203,9 +192,18 @@ public class BigQueryClient {
      * @param tableName   BigQuery Table Name
      */
     private boolean checkTableExists(String dataSetName, String tableName) {
-        TableId tableId = TableId.of(dataSetName, tableName);
-        Table table = this.bigquery.getTable(tableId);
-        return table != null;
+        return this.tableStore.tableExists(dataSetName, tableName);
+    }
+
+    /**
+     * Get the last modified time of the table.
+     *
+     * @param dataSetName BigQuery Dataset Name
+     * @param tableName   BigQuery Table Name
+     * @return last modified time in milliseconds, 0 if table does not exist
+     */
+    public long getTableLastModified(String dataSetName, String tableName) {
+        return this.tableStore.getTableLastModified(dataSetName, tableName);
     }
 
     /**
@@ -230,61 +228,53 @@ public class BigQueryClient {
         this.createDataSet(datasetName);
         if (this.checkTableExists(datasetName, tableName)) {
             logger.warning(String.format("Table %s already exists. Update the table record", tableName));
-            boolean pendingUpdate = this.updateTableRecords(datasetName, tableName, csvFile, clazz);
+            // Each source file has its own pending file, so concurrent requests do not overwrite each other
+            String pendingFile = sourceUri.resolveSibling("pending_" + sourceUri.getFileName()).toString();
+            boolean pendingUpdate;
+            try (Metrics.Timer ignored = Metrics.time("bigquery.dedup_scan")) {
+                pendingUpdate = this.updateTableRecords(datasetName, tableName, csvFile, pendingFile, clazz);
+            }
             if (pendingUpdate) {
-                Path path = Paths.get("temp.csv");
+                Path path = Paths.get(pendingFile);
                 if (path.toFile().exists()) {
-                    this.uploadToBigQuery(datasetName, tableName, path, false);
+                    this.uploadToBigQuery(datasetName, tableName, path, null);
                     Files.delete(path);
                 }
             }
         } else {
-            this.uploadToBigQuery(datasetName, tableName, sourceUri, true);
+            // Created before the load, a table created by the load job would not be partitioned
+            this.createTable(datasetName, tableName, ModelSchema.of(clazz), TableLayout.of(clazz));
+            this.uploadToBigQuery(datasetName, tableName, sourceUri, ModelSchema.of(clazz));
         }
         Files.delete(sourceUri);
     }
 
     /**
      * Upload the CSV file to BigQuery.
+     * With an ingestion buffer the rows share a load job with the rows of other users,
+     * the method returns when that job is done.
      *
      * @param datasetName BigQuery Dataset Name
      * @param tableName   BigQuery Table Name
      * @param path        Path of the CSV file
-     * @param autoDetect  Auto detect schema or not
+     * @param schema      Schema to create the table with, null for an existing table
      */
     private void uploadToBigQuery(String datasetName,
                                   String tableName,
                                   Path path,
-                                  boolean autoDetect) {
-        try {
-            TableId tableId = TableId.of(datasetName, tableName);
-            FormatOptions formatOptions = CsvOptions.newBuilder().setSkipLeadingRows(1).build();
-            WriteChannelConfiguration writeChannelConfiguration = WriteChannelConfiguration.newBuilder(tableId)
-                    .setFormatOptions(formatOptions)
-                    .setAutodetect(autoDetect)
-                    .build();
-            JobId jobId = JobId.newBuilder()
-                    .setJob(UUID.randomUUID().toString())
-                    .setProject(this.bigquery.getOptions().getProjectId())
-                    .setLocation(this.bigquery.getDataset(datasetName).getLocation()).build();
-            TableDataWriteChannel writer = this.bigquery.writer(jobId, writeChannelConfiguration);
-            // Write data to writer
-            try (OutputStream stream = Channels.newOutputStream(writer)) {
-                Files.copy(path, stream);
-            }
-            // Close the writer to finalize the job
-            writer.close();
-            Job loadJob = writer.getJob();
-            if (loadJob == null) {
-                logger.warning("Job no longer exists");
-            } else {
-                loadJob = loadJob.waitFor();
-                if (loadJob.getStatus().getError() != null) {
-                    logger.info(loadJob.getStatus().getError().toString());
-                } else {
-                    logger.info("CSV data loaded successfully");
-                }
+                                  Schema schema) {
+        if (this.ingestionBuffer != null) {
+            try (Metrics.Timer ignored = Metrics.time("bigquery.ingest_wait")) {
+                this.ingestionBuffer.submit(this.tableStore, datasetName, tableName, path, schema).get();
+            } catch (ExecutionException e) {
+                logger.warning("Error: CSV data was not loaded. \n" + e.getCause());
+            } catch (RejectedExecutionException | InterruptedException | IOException e) {
+                logger.warning("Error: CSV data was not loaded. \n" + e);
             }
+            return;
+        }
+        try (Metrics.Timer ignored = Metrics.time("bigquery.load_job")) {
+            this.tableStore.loadCsv(datasetName, tableName, path, schema);
         } catch (BigQueryException | InterruptedException | IOException e) {
 
             logger.warning("Error: CSV data was not loaded. \n" + e);
@@ -298,12 +288,14 @@ public class BigQueryClient {
      * @param datasetName BigQuery Dataset Name
      * @param tableName   BigQuery Table Name
      * @param csvFile     Csv file name
+     * @param pendingFile Csv file name to write new records
      * @param clazz       Class Model of CSV file
      * @return status pending update (if true, the record will be updated)
      */
     private <T> boolean updateTableRecords(String datasetName,
                                            String tableName,
                                            String csvFile,
+                                           String pendingFile,
                                            Class<T> clazz)
             throws IOException, InterruptedException {
 
@@ -325,10 +317,10 @@ public class BigQueryClient {
         String header = bufferedReader.readLine();
         headers = Arrays.asList(header.split(","));
         bufferedReader.close();
-        // Run select query to get all record from table to filter the record
-        TableResult result = this.sqlExecute.executeSelectQuery(this.bigquery,
-                datasetName, tableName, null, null);
-        return this.pendingUpdateRecords(datasetName, tableName, headers, csvRecords, result);
+        // Run select query to get the records from the partitions the new records can be in
+        Iterable<FieldValueList> rows = this.tableStore.select(datasetName, tableName, null,
+                TableLayout.of(clazz).scanFilter(csvRecords));
+        return this.pendingUpdateRecords(datasetName, tableName, headers, csvRecords, rows, pendingFile);
     }
 
     /**
@@ -338,164 +330,133 @@ public class BigQueryClient {
      * @param tableName   BigQuery Table Name
      * @param headers     List of headers in the CSV file
      * @param csvRecords  List of records in the CSV file
-     * @param result      TableResult from the SQL query
+     * @param rows        Rows of the SELECT query result
+     * @param pendingFile Csv file name to write new records
      * @return true if the number count of record updated is more than 0, otherwise false
      */
-    private <T> boolean pendingUpdateRecords(String datasetName,
-                                             String tableName,
-                                             List<String> headers,
-                                             List<T> csvRecords,
-                                             TableResult result) throws InterruptedException {
+    <T> boolean pendingUpdateRecords(String datasetName,
+                                     String tableName,
+                                     List<String> headers,
+                                     List<T> csvRecords,
+                                     Iterable<FieldValueList> rows,
+                                     String pendingFile) throws InterruptedException, IOException {
         int record_updated = 0;
-        List<String> csvRecordsWrite = new ArrayList<>();
         // Write headers to the CSV file if they exist
         if (headers.isEmpty()) {
             logger.info("No headers found in the CSV file\nCheck your CSV file and try again");
             return false;
         }
-
-        ListRecords listRecords = new ListRecords();
-        List<DriveActivity> driveActivitiesQuery = listRecords.collectDriveActivityRecord(result);
-        if (!driveActivitiesQuery.isEmpty()) {
+        // The pending file is only created if at least one new record is written
+        try (CsvWriter csvWriter = new CsvWriter(pendingFile, headers.toArray(new String[0]))) {
+            ListRecords listRecords = new ListRecords();
             // Cast List<T> to List<DriveActivity>
             List<DriveActivity> driveActivityCsvRecords = csvRecords.stream()
                     .filter(record -> record instanceof DriveActivity)
                     .map(record -> (DriveActivity) record)
                     .collect(Collectors.toList());
-            List<DriveActivity> duplicateActivities = new ArrayList<>();
-            for (DriveActivity driveActivity : driveActivitiesQuery) {
-                for (DriveActivity csvRecord : driveActivityCsvRecords) {
-                    String csvRecordSubActionResult =
-                            this.formattedJsonValue(csvRecord.getSubActionResult());
-                    String driveActivitySubActionResult =
-                            this.formattedJsonValue(driveActivity.getSubActionResult());
-                    if (csvRecord.getTimeActivity().equals(driveActivity.getTimeActivity()) &&
-                            csvRecord.getUserAction().equals(driveActivity.getUserAction()) &&
-                            csvRecord.getPrimaryAction().equals(driveActivity.getPrimaryAction()) &&
-                            csvRecord.getSubAction().equals(driveActivity.getSubAction()) &&
-                            csvRecordSubActionResult.equals(driveActivitySubActionResult) &&
-                            csvRecord.getSubActionResult().equals(driveActivity.getSubActionResult()) &&
-                            csvRecord.getItem().equals(driveActivity.getItem())) {
-                        //Collect all duplicate records
-                        duplicateActivities.add(csvRecord);
-                    }
-                }
-            }
-
-            //Remove all duplicate records and write to the CSV file
-            driveActivityCsvRecords.removeAll(duplicateActivities);
             if (!driveActivityCsvRecords.isEmpty()) {
+                /*
+                 Row IDs are derived from the activity content and the action index, so a stored row has the same ID.
+                 Rows stored before that have random or shared IDs and are matched on their content instead.
+                */
+                Set<String> storedKeys = new HashSet<>();
+                for (DriveActivity driveActivity : listRecords.collectDriveActivityRecord(rows)) {
+                    storedKeys.add(driveActivity.getActivityId());
+                    storedKeys.add(contentKey(driveActivity));
+                }
+                //Write the records that are not stored yet to the CSV file
                 for (DriveActivity csvRecord : driveActivityCsvRecords) {
-                    String subActionResult = this.formattedJsonValue(csvRecord.getSubActionResult());
-                    csvRecordsWrite.add(
-                            "\"" + csvRecord.getActivityId() + "\"," +
-                                    "\"" + csvRecord.getTimeActivity() + "\"," +
-                                    "\"" + csvRecord.getUserAction() + "\"," +
-                                    "\"" + csvRecord.getPrimaryAction() + "\"," +
-                                    "\"" + csvRecord.getSubAction() + "\"," +
-                                    "\"" + csvRecord.getSubActionType() + "\"," +
-                                    "\"" + subActionResult + "\"," +
-                                    "\"" + csvRecord.getItem() + "\""
-                    );
-                    record_updated++;
+                    if (!storedKeys.contains(csvRecord.getActivityId())
+                            && !storedKeys.contains(contentKey(csvRecord))) {
+                        csvWriter.writeRow(csvRecord);
+                        record_updated++;
+                    }
                 }
             }
-        }
 
-        List<CalendarEvent> calendarEventsQuery = listRecords.collectCalendarEventRecord(result);
-        if (!calendarEventsQuery.isEmpty()) {
             // Cast List<T> to List<CalendarEvent>
             List<CalendarEvent> calendarEventsCsvRecords = csvRecords.stream()
                     .filter(record -> record instanceof CalendarEvent)
                     .map(record -> (CalendarEvent) record)
                     .collect(Collectors.toList());
-            // duplicateEvents: List of duplicate event calendar record
-            List<CalendarEvent> duplicateEvents = new ArrayList<>();
-            /*
-             calendarEventsUpdated: List of event calendar record that need
-             update value using SQL statement
-            */
-            List<CalendarEvent> calendarEventsUpdated = new ArrayList<>();
-            for (CalendarEvent calendarEvent : calendarEventsQuery) {
-                for (CalendarEvent csvRecord : calendarEventsCsvRecords) {
-                    if (csvRecord.getEventId().equals(calendarEvent.getEventId()) &&
-                            csvRecord.getCreatedTime().equals(calendarEvent.getCreatedTime()) &&
-                            csvRecord.getUpdatedTime().equals(calendarEvent.getUpdatedTime())) {
-                        //Collect all duplicate records
-                        duplicateEvents.add(csvRecord);
-                    }
-                    if (csvRecord.getEventId().equals(calendarEvent.getEventId()) &&
-                            csvRecord.getCreatedTime().equals(calendarEvent.getCreatedTime()) &&
-                            !csvRecord.getUpdatedTime().equals(calendarEvent.getUpdatedTime())) {
-                        //Collect all updated records
-                        calendarEventsUpdated.add(csvRecord);
+            if (!calendarEventsCsvRecords.isEmpty()) {
+                List<CalendarEvent> calendarEventsQuery = listRecords.collectCalendarEventRecord(rows);
+                // duplicateEvents: List of duplicate event calendar record
+                List<CalendarEvent> duplicateEvents = new ArrayList<>();
+                /*
+                 calendarEventsUpdated: List of event calendar record that need
+                 update value using SQL statement
+                */
+                List<CalendarEvent> calendarEventsUpdated = new ArrayList<>();
+                for (CalendarEvent calendarEvent : calendarEventsQuery) {
+                    for (CalendarEvent csvRecord : calendarEventsCsvRecords) {
+                        // Rows loaded before the owner and attendee columns existed are updated to fill them
+                        boolean typedColumnsMissing = calendarEvent.getOwnerAccountId() == null
+                                && csvRecord.getOwnerAccountId() != null;
+                        if (csvRecord.getEventId().equals(calendarEvent.getEventId()) &&
+                                csvRecord.getCreatedTime().equals(calendarEvent.getCreatedTime()) &&
+                                csvRecord.getUpdatedTime().equals(calendarEvent.getUpdatedTime()) &&
+                                !typedColumnsMissing) {
+                            //Collect all duplicate records
+                            duplicateEvents.add(csvRecord);
+                        }
+                        if (csvRecord.getEventId().equals(calendarEvent.getEventId()) &&
+                                csvRecord.getCreatedTime().equals(calendarEvent.getCreatedTime()) &&
+                                (!csvRecord.getUpdatedTime().equals(calendarEvent.getUpdatedTime()) ||
+                                        typedColumnsMissing)) {
+                            //Collect all updated records
+                            calendarEventsUpdated.add(csvRecord);
+                        }
                     }
                 }
-            }
-            calendarEventsCsvRecords.removeAll(duplicateEvents);
-            calendarEventsCsvRecords.removeAll(calendarEventsUpdated);
-            // Add new records to the CSV file and add it in BigQuery Table as new record
-            if (!calendarEventsCsvRecords.isEmpty()) {
-                for (CalendarEvent csvRecord : calendarEventsCsvRecords) {
-                    String attendees = this.formattedJsonValue(csvRecord.getAttendees());
-                    String startTime = UtilsFunction.formatTimeStamp(csvRecord.getStartTime());
-                    String endTime = UtilsFunction.formatTimeStamp(csvRecord.getEndTime());
-                    csvRecordsWrite.add(
-                            "\"" + csvRecord.getEventId() + "\"," +
-                                    "\"" + csvRecord.getEventTitle() + "\"," +
-                                    "\"" + csvRecord.getEventType() + "\"," +
-                                    "\"" + csvRecord.getStatus() + "\"," +
-                                    "\"" + csvRecord.getCreatedTime() + "\"," +
-                                    "\"" + csvRecord.getUpdatedTime() + "\"," +
-                                    "\"" + csvRecord.getCreator() + "\"," +
-                                    "\"" + csvRecord.getOrganizer() + "\"," +
-                                    "\"" + csvRecord.getEventLink() + "\"," +
-                                    "\"" + attendees + "\"," +
-                                    "\"" + startTime + "\"," +
-                                    "\"" + endTime + "\"," +
-                                    "\"" + csvRecord.getTotalTime() + "\""
-                    );
-                    record_updated++;
+                calendarEventsCsvRecords.removeAll(duplicateEvents);
+                calendarEventsCsvRecords.removeAll(calendarEventsUpdated);
+                // Add new records to the CSV file and add it in BigQuery Table as new record
+                if (!calendarEventsCsvRecords.isEmpty()) {
+                    for (CalendarEvent csvRecord : calendarEventsCsvRecords) {
+                        csvRecord.setStartTime(UtilsFunction.formatTimeStamp(csvRecord.getStartTime()));
+                        csvRecord.setEndTime(UtilsFunction.formatTimeStamp(csvRecord.getEndTime()));
+                        csvWriter.writeRow(csvRecord);
+                        record_updated++;
+                    }
                 }
-            }
-            // Update the record in BigQuery Table using SQL statement
-            if (!calendarEventsUpdated.isEmpty()) {
-                for (CalendarEvent updateRecord : calendarEventsUpdated) {
-                    String startTime = UtilsFunction.formatTimeStamp(updateRecord.getStartTime());
-                    String endTime = UtilsFunction.formatTimeStamp(updateRecord.getEndTime());
-                    updateRecord.setStartTime(startTime);
-                    updateRecord.setEndTime(endTime);
-                    this.sqlExecute.updateTableRecord(this.bigquery, datasetName, tableName, updateRecord);
-                    record_updated++;
+                // Update the record in BigQuery Table using SQL statement
+                if (!calendarEventsUpdated.isEmpty()) {
+                    for (CalendarEvent updateRecord : calendarEventsUpdated) {
+                        String startTime = UtilsFunction.formatTimeStamp(updateRecord.getStartTime());
+                        String endTime = UtilsFunction.formatTimeStamp(updateRecord.getEndTime());
+                        updateRecord.setStartTime(startTime);
+                        updateRecord.setEndTime(endTime);
+                        try (Metrics.Timer ignored = Metrics.time("bigquery.update")) {
+                            this.tableStore.updateRecord(datasetName, tableName, updateRecord);
+                        }
+                        record_updated++;
+                    }
                 }
             }
         }
-        /*
-         Create a temporary CSV file for writing if list of record
-         to write in CSV file is not empty
-        */
-        if (!csvRecordsWrite.isEmpty()) {
-            String headerLine = String.join(",", headers);
-            UtilsFunction.writeToCSV(csvRecordsWrite, headerLine, "temp.csv");
-        }
         // Print a message if no records were updated
         if (record_updated == 0) {
             logger.info("No record updated. Stop update method");
             return false;
         } else {
             logger.info(String.format("Total record updated: %s", record_updated));
+            Metrics.increment("records_updated", record_updated);
             return true;
         }
     }
 
     /**
-     * Format the JSON value to be written in CSV file.
-     *
-     * @param value JSON value
-     * @return formatted JSON value
+     * Key of a Drive Activity row made of the fields compared before activity IDs were stable.
      */
-    private String formattedJsonValue(String value) {
-        return UtilsFunction.isValidJson(value) ? value.replace("\"", "\"\"") : value;
+    private static String contentKey(DriveActivity activity) {
+        return String.join("\u0001",
+                activity.getTimeActivity(),
+                activity.getUserAction(),
+                activity.getPrimaryAction(),
+                activity.getSubAction(),
+                activity.getSubActionResult(),
+                activity.getItem());
     }
 
     /**
@@ -508,6 +469,7 @@ public class BigQueryClient {
                 this.bigquery.getOptions().getProjectId(), dataSetName);
         BigQuery.DatasetDeleteOption option = BigQuery.DatasetDeleteOption.deleteContents();
         boolean deletedSuccess = this.bigquery.delete(datasetId, option);
+        MetadataCache.global().invalidateDataset(this.bigquery, dataSetName);
         if (deletedSuccess) {
             logger.info("Dataset " + dataSetName + " deleted successfully");
         } else {
@@ -525,6 +487,7 @@ public class BigQueryClient {
     public void deleteTable(String dataSetName, String tableName) {
         TableId tableId = TableId.of(dataSetName, tableName);
         boolean deletedSuccess = this.bigquery.delete(tableId);
+        MetadataCache.global().invalidateTable(this.bigquery, dataSetName, tableName);
         if (deletedSuccess) {
             logger.info(String.format("Table %s in DataSet %s deleted successfully", tableName, dataSetName));
         } else {
@@ -532,6 +495,76 @@ public class BigQueryClient {
         }
     }
 
+    /**
+     * Rewrite a table into the partitioned and clustered layout. The rows are copied to a new table
+     * created with the layout, then the old table is renamed to "table_unpartitioned_yyyyMMddHHmmss"
+     * and the new table gets the name of the table. The old table is kept until it is deleted by hand.
+     * Rows of partitions older than the retention are dropped by the copy, they are only kept in the old table.
+     * Loads and updates of this process wait in the {@link IngestionGate} until the new table has the name,
+     * so none of them is written to the old table after the copy. Other instances are not held.
+     *
+     * @param dataSetName BigQuery Dataset Name
+     * @param tableName   BigQuery Table Name
+     * @param layout      Layout the table must have
+     * @return true if the table was rewritten, false if it already has the layout or does not exist
+     */
+    public boolean migrateToLayout(String dataSetName, String tableName, TableLayout layout)
+            throws InterruptedException {
+        Table table = this.bigquery.getTable(dataSetName, tableName);
+        if (table == null || layout.matches(table.getDefinition())) {
+            return false;
+        }
+        String partitionedTable = tableName + "_partitioned";
+        String backupTable = tableName + "_unpartitioned_" +
+                LocalDateTime.now(ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+        if (layout.getRetentionDays() > 0) {
+            logger.warning(String.format("Rows of %s older than %d days are not copied to the partitioned table",
+                    tableName, layout.getRetentionDays()));
+        }
+        try (IngestionGate.Permit ignored = IngestionGate.global().enterRewrite(dataSetName, tableName);
+             Metrics.Timer timer = Metrics.time("bigquery.migrate_layout")) {
+            this.sqlExecute.createTableAsSelect(this.bigquery, dataSetName, tableName, partitionedTable, layout);
+            this.sqlExecute.renameTable(this.bigquery, dataSetName, tableName, backupTable);
+            this.sqlExecute.renameTable(this.bigquery, dataSetName, partitionedTable, tableName);
+        } finally {
+            MetadataCache.global().invalidateDataset(this.bigquery, dataSetName);
+        }
+        logger.info(String.format("Table %s rewritten partitioned by %s, the old rows are kept in %s",
+                tableName, layout.getPartitionField(), backupTable));
+        return true;
+    }
+
+    /**
+     * Set the partition expiration of an existing table partitioned on the column of the layout
+     * to the retention of the layout, e.g. when a table keeps its partitions forever.
+     *
+     * @param dataSetName BigQuery Dataset Name
+     * @param tableName   BigQuery Table Name
+     * @param layout      Layout the table must have
+     * @return true if the expiration was changed
+     */
+    public boolean applyRetention(String dataSetName, String tableName, TableLayout layout)
+            throws InterruptedException {
+        Table table = this.bigquery.getTable(dataSetName, tableName);
+        if (table == null || !layout.isPartitioned() || !(table.getDefinition() instanceof StandardTableDefinition)) {
+            return false;
+        }
+        TimePartitioning partitioning = ((StandardTableDefinition) table.getDefinition()).getTimePartitioning();
+        if (partitioning == null || !layout.getPartitionField().equals(partitioning.getField())) {
+            return false;
+        }
+        long expirationMs = partitioning.getExpirationMs() != null ? partitioning.getExpirationMs() : 0;
+        if (expirationMs == Duration.ofDays(layout.getRetentionDays()).toMillis()) {
+            return false;
+        }
+        try {
+            this.sqlExecute.setPartitionExpiration(this.bigquery, dataSetName, tableName, layout.getRetentionDays());
+        } finally {
+            MetadataCache.global().invalidateTable(this.bigquery, dataSetName, tableName);
+        }
+        return true;
+    }
+
     /**
      * Method to add empty column to table.
      *
@@ -577,7 +610,7 @@ public class BigQueryClient {
                 // Update the table with the new schema
                 Table updatedTable =
                         table.toBuilder().setDefinition(StandardTableDefinition.of(newSchema)).build();
-                updatedTable.update();
+                MetadataCache.global().putTable(updatedTable.update());
                 logger.info(String.format("Column %s successfully added to table: %s", columnName, tableName));
             }
         } catch (BigQueryException e) {
@@ -586,12 +619,55 @@ public class BigQueryClient {
         }
     }
 
+    /**
+     * Add the fields of the schema the table does not have yet, e.g. after a column was added to the
+     * schema of the application. Existing fields are not changed, new fields must be NULLABLE or REPEATED.
+     *
+     * @param dataSetName BigQuery Dataset Name
+     * @param tableName   BigQuery Table Name
+     * @param schema      Schema the table must have
+     */
+    public void addMissingFields(String dataSetName, String tableName, Schema schema) {
+        try {
+            Table table = this.bigquery.getTable(dataSetName, tableName);
+            if (table == null) {
+                logger.info("Error: Table " + tableName + " does not exist!");
+                return;
+            }
+            Schema tableSchema = table.getDefinition().getSchema();
+            List<Field> fieldList = new ArrayList<>();
+            if (tableSchema != null) {
+                fieldList.addAll(tableSchema.getFields());
+            }
+            List<String> added = new ArrayList<>();
+            for (Field field : schema.getFields()) {
+                boolean exists = fieldList.stream().anyMatch(existing -> existing.getName().equals(field.getName()));
+                if (!exists) {
+                    fieldList.add(field);
+                    added.add(field.getName());
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            Table updatedTable = table.toBuilder()
+                    .setDefinition(table.<StandardTableDefinition>getDefinition().toBuilder()
+                            .setSchema(Schema.of(fieldList)).build())
+                    .build();
+            MetadataCache.global().putTable(updatedTable.update());
+            logger.info(String.format("Columns %s added to table: %s", added, tableName));
+        } catch (BigQueryException e) {
+            logger.warning(String.format("Columns were not added to table %s. \n%s", tableName, e));
+        }
+    }
+
     /**
      * Using to change column properties in table.
      * Change column name, type is not working with Google BigQuery API, Google Cloud Console, Google Cloud SDK.
      * Using DDL (Data Definition Language) to change column name, type.
      * Change column mode only support from REQUIRED to NULLABLE and use DDL is better choice than
      * Java Client because it required create new schema to update the table.
+     * All the changes are checked against the cached schema and run in one script job.
      *
      * @param dataSetName   BigQuery Dataset Name
      * @param tableName     BigQuery Table Name
@@ -610,69 +686,59 @@ public class BigQueryClient {
                                        boolean nullable,
                                        String defaultValue,
                                        String description) {
+        if (!this.checkTableExists(dataSetName, tableName)) {
+            logger.info("Error: Table " + tableName + " does not exist!");
+            return;
+        }
+        SchemaMigration.Builder migration = SchemaMigration.newBuilder(this.bigquery)
+                .table(dataSetName, tableName);
+        String columnQuery = columnName;
+        //Change column name only
+        if (newColumnName != null && !newColumnName.isEmpty()) {
+            migration.renameColumn(columnName, newColumnName);
+            columnQuery = newColumnName;
+        }
+        //Change description only
+        if (description != null && !description.isEmpty()) {
+            migration.setDescription(columnQuery, description);
+        }
+        /*
+        Change column data type only
+        Recommend change column data type in Google Cloud Console
+        */
+        if (type != null) {
+            migration.setDataType(columnQuery, type);
+        }
+        //Change column mode only (Only support change from REQUIRED to NULLABLE)
+        if (nullable) {
+            migration.dropNotNull(columnQuery);
+        }
+        if (defaultValue != null && !defaultValue.isEmpty()) {
+            migration.setDefault(columnQuery, defaultValue);
+        }
         try {
-            if (!this.checkTableExists(dataSetName, tableName)) {
-                logger.info("Error: Table " + tableName + " does not exist!");
-            } else {
-                String columnQuery = newColumnName != null && !newColumnName.isEmpty()
-                        ? newColumnName : columnName;
-                //Change column name only
-                if (newColumnName != null && !newColumnName.isEmpty()) {
-                    this.sqlExecute.changeColumnName(this.bigquery, dataSetName, tableName, columnName, newColumnName);
-                }
-                //Change description only
-                if (description != null && !description.isEmpty()) {
-
-                    this.sqlExecute.changeColumnDescription(this.bigquery, dataSetName, tableName, columnQuery, description);
-                }
-                /*
-                Change column data type only
-                Recommend change column data type in Google Cloud Console
-                */
-                if (type != null) {
-                    this.sqlExecute.changeColumnDataType(this.bigquery, dataSetName, tableName, columnQuery, type);
-                }
-                //Change column mode only (Only support change from REQUIRED to NULLABLE)
-                Field.Mode mode = this.getColumnMode(dataSetName, tableName, columnQuery);
-                if (nullable) {
-                    if (mode == Field.Mode.NULLABLE) {
-                        logger.info(String.format("Error: Column %s is already NULLABLE. Skip....", columnQuery));
-                    } else if (mode == Field.Mode.REPEATED) {
-                        logger.info(String.format("Error: Column %s is REPEATED. Skip....", columnQuery));
-                    } else {
-                        this.sqlExecute.changeColumnNullable(this.bigquery, dataSetName, tableName, columnQuery);
-                    }
-                }
-
-                if (defaultValue != null && !defaultValue.isEmpty()) {
-                    this.sqlExecute.changeColumnDefaultValue(this.bigquery, dataSetName, tableName,
-                            columnQuery, mode, defaultValue);
-                }
-            }
-        } catch (InterruptedException e) {
-
-            logger.warning(String.format("Column %s was not updated. \n%s", columnName, e));
+            this.migrateSchema(migration.build());
+        } catch (IllegalArgumentException e) {
+            logger.warning(String.format("Column %s was not updated. \n%s", columnName, e.getMessage()));
         }
     }
 
     /**
-     * Get column mode information.
+     * Run the column changes of one or more tables as one script job.
+     * The schemas of the tables are read again on the next use, even when one of the statements failed.
      *
-     * @param dataSetName BigQuery Dataset Name
-     * @param tableName   BigQuery Table Name
-     * @param columnName  Column Name
+     * @param migration Column changes built with {@link SchemaMigration#newBuilder(BigQuery)}
      */
-    private Field.Mode getColumnMode(String dataSetName, String tableName, String columnName) {
-        Table table = this.bigquery.getTable(dataSetName, tableName);
-        Schema schema = table.getDefinition().getSchema();
-        if (schema != null) {
-            FieldList fields = schema.getFields();
-            for (Field field : fields) {
-                if (field.getName().equals(columnName)) {
-                    return field.getMode();
-                }
+    public void migrateSchema(SchemaMigration migration) {
+        try {
+            this.sqlExecute.executeSchemaMigration(this.bigquery, migration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning(String.format("Schema migration was not completed. \n%s", e));
+        } finally {
+            for (TableId table : migration.getTables()) {
+                MetadataCache.global().invalidateTable(this.bigquery, table.getDataset(), table.getTable());
             }
         }
-        return null;
     }
 }
@@ -0,0 +1,249 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.*;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.Instance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Table store backed by BigQuery.
+ */
+public class BigQueryTableStore implements TableStore {
+    private static final Logger logger = Logger.getLogger(BigQueryTableStore.class.getName());
+    private final SqlExecute sqlExecute = new SqlExecute();
+    private final MetadataCache metadataCache = MetadataCache.global();
+    private final LoadFormat loadFormat = LoadFormat.create(Instance.bigqueryLoadFormat, Instance.bigqueryLoadGzip);
+    private final BigQuery bigquery;
+
+    public BigQueryTableStore(BigQuery bigquery) {
+        this.bigquery = bigquery;
+    }
+
+    @Override
+    public boolean datasetExists(String dataSetName) {
+        return this.metadataCache.getDataset(this.bigquery, dataSetName) != null;
+    }
+
+    @Override
+    public void createDataset(String dataSetName) {
+        DatasetInfo datasetInfo = DatasetInfo.newBuilder(dataSetName).build();
+        this.metadataCache.putDataset(this.bigquery.create(datasetInfo));
+    }
+
+    @Override
+    public boolean tableExists(String dataSetName, String tableName) {
+        return this.metadataCache.getTable(this.bigquery, dataSetName, tableName) != null;
+    }
+
+    @Override
+    public void createTable(String dataSetName, String tableName, Schema schema, TableLayout layout) {
+        TableId tableId = TableId.of(dataSetName, tableName);
+        Schema tableSchema = Objects.requireNonNullElseGet(schema, Schema::of);
+        TableDefinition tableDefinition = layout != null
+                ? layout.definition(tableSchema) : StandardTableDefinition.of(tableSchema);
+        this.metadataCache.putTable(this.bigquery.create(TableInfo.newBuilder(tableId, tableDefinition).build()));
+    }
+
+    @Override
+    public long getTableLastModified(String dataSetName, String tableName) {
+        // Every load changes the time, so it is always read from BigQuery
+        Table table = this.bigquery.getTable(TableId.of(dataSetName, tableName));
+        if (table == null) {
+            this.metadataCache.invalidateTable(this.bigquery, dataSetName, tableName);
+        }
+        this.metadataCache.putTable(table);
+        if (table == null || table.getLastModifiedTime() == null) {
+            return 0L;
+        }
+        return table.getLastModifiedTime();
+    }
+
+    @Override
+    public void loadCsv(String dataSetName,
+                        String tableName,
+                        Path path,
+                        Schema schema) throws IOException, InterruptedException {
+        try (IngestionGate.Permit ignored = IngestionGate.global().enterWrite(dataSetName, tableName)) {
+            this.loadCsvThroughGate(dataSetName, tableName, path, schema);
+        }
+    }
+
+    private void loadCsvThroughGate(String dataSetName,
+                                    String tableName,
+                                    Path path,
+                                    Schema schema) throws IOException, InterruptedException {
+        // A load with the schema of the model may create the table
+        boolean createsTable = schema != null;
+        if (schema == null) {
+            Table table = this.metadataCache.getTable(this.bigquery, dataSetName, tableName);
+            schema = table != null ? table.getDefinition().getSchema() : null;
+        }
+        TableId tableId = TableId.of(dataSetName, tableName);
+        if (schema == null) {
+            // Nothing is known about the table, let BigQuery detect the columns from the CSV file
+            this.load(dataSetName, tableName, path, WriteChannelConfiguration.newBuilder(tableId)
+                    .setFormatOptions(CsvOptions.newBuilder().setSkipLeadingRows(1).build())
+                    .setAutodetect(true)
+                    .build(), true);
+            return;
+        }
+        LoadFormat format = this.loadFormat.forSchema(schema);
+        Path loadFile = format.prepare(path, schema);
+        try {
+            this.load(dataSetName, tableName, loadFile, WriteChannelConfiguration.newBuilder(tableId)
+                    .setFormatOptions(format.formatOptions())
+                    // An Avro file carries its own schema
+                    .setSchema(format.formatOptions() instanceof AvroOptions ? null : schema)
+                    .build(), createsTable);
+        } finally {
+            if (!loadFile.equals(path)) {
+                Files.deleteIfExists(loadFile);
+            }
+        }
+    }
+
+    private void load(String dataSetName,
+                      String tableName,
+                      Path path,
+                      WriteChannelConfiguration writeChannelConfiguration,
+                      boolean createsTable) throws IOException, InterruptedException {
+        JobId jobId = JobId.newBuilder()
+                .setJob(UUID.randomUUID().toString())
+                .setProject(this.bigquery.getOptions().getProjectId())
+                .setLocation(this.datasetLocation(dataSetName)).build();
+        Job loadJob;
+        try (Span span = Tracing.startSpan("bigquery.load.upload")) {
+            span.setAttribute("bigquery.job_id", jobId.getJob());
+            span.setAttribute("file.bytes", Files.size(path));
+            TableDataWriteChannel writer = this.bigquery.writer(jobId, writeChannelConfiguration);
+            // Write data to writer
+            try (OutputStream stream = Channels.newOutputStream(writer)) {
+                Files.copy(path, stream);
+            }
+            // Close the writer to finalize the job
+            writer.close();
+            loadJob = writer.getJob();
+        }
+        if (loadJob == null) {
+            logger.warning("Job no longer exists");
+        } else {
+            try (Span span = Tracing.startSpan("bigquery.job.wait")) {
+                span.setAttribute("bigquery.job_id", jobId.getJob());
+                loadJob = loadJob.waitFor();
+                if (loadJob == null) {
+                    span.recordError("Job no longer exists");
+                    logger.warning("Job no longer exists");
+                    return;
+                }
+                JobStatistics.LoadStatistics statistics = loadJob.getStatistics();
+                if (statistics != null && statistics.getOutputRows() != null) {
+                    span.setAttribute("bigquery.output_rows", statistics.getOutputRows());
+                }
+                if (loadJob.getStatus().getError() != null) {
+                    span.recordError(loadJob.getStatus().getError().getMessage());
+                    logger.info(loadJob.getStatus().getError().toString());
+                    if ("notFound".equals(loadJob.getStatus().getError().getReason())) {
+                        this.metadataCache.invalidateDataset(this.bigquery, dataSetName);
+                    }
+                } else {
+                    if (createsTable) {
+                        // The load may have created the table or changed its schema
+                        this.metadataCache.invalidateTable(this.bigquery, dataSetName, tableName);
+                    }
+                    logger.info("Data loaded successfully");
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterable<FieldValueList> select(String dataSetName,
+                                           String tableName,
+                                           List<String> columnOrder,
+                                           RecordFilter filter) throws InterruptedException {
+        try {
+            return this.runSelect(dataSetName, tableName, columnOrder, filter);
+        } catch (BigQueryException e) {
+            this.forgetIfNotFound(dataSetName, e);
+            throw e;
+        }
+    }
+
+    private Iterable<FieldValueList> runSelect(String dataSetName,
+                                               String tableName,
+                                               List<String> columnOrder,
+                                               RecordFilter filter) throws InterruptedException {
+        String whereCondition = filter != null ? filter.toSql() : null;
+        if (filter == null || filter.matchesAllRows()) {
+            // The de-duplication scan must always see the current table, never a kept result
+            return this.sqlExecute.executeSelectQuery(this.bigquery, dataSetName, tableName,
+                    columnOrder, whereCondition).iterateAll();
+        }
+        QueryCostLedger ledger = QueryCostLedger.global();
+        String read = String.format("%s.%s %s %s", dataSetName, tableName, columnOrder, whereCondition);
+        if (ledger.isCurrentUserOverBudget()) {
+            List<FieldValueList> cached = ledger.cachedResult(read);
+            if (cached != null) {
+                return cached;
+            }
+            logger.warning("BigQuery budget exceeded but no cached result, run the query");
+        }
+        TableResult result = this.sqlExecute.executeSelectQuery(this.bigquery, dataSetName, tableName,
+                columnOrder, whereCondition);
+        return ledger.rememberResult(read, result.iterateAll());
+    }
+
+    @Override
+    public <T> void updateRecord(String dataSetName, String tableName, T record) throws InterruptedException {
+        try (IngestionGate.Permit ignored = IngestionGate.global().enterWrite(dataSetName, tableName)) {
+            this.sqlExecute.updateTableRecord(this.bigquery, dataSetName, tableName, record);
+        } catch (BigQueryException e) {
+            this.forgetIfNotFound(dataSetName, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return location of the dataset for the job ID, null lets BigQuery find it
+     */
+    private String datasetLocation(String dataSetName) {
+        Dataset dataset = this.metadataCache.getDataset(this.bigquery, dataSetName);
+        return dataset != null ? dataset.getLocation() : null;
+    }
+
+    /**
+     * A dataset or table deleted outside this process is still kept, forget it when BigQuery says so.
+     */
+    private void forgetIfNotFound(String dataSetName, BigQueryException e) {
+        if (e.getCode() == 404) {
+            this.metadataCache.invalidateDataset(this.bigquery, dataSetName);
+        }
+    }
+}
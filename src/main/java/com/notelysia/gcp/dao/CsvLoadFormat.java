@@ -0,0 +1,64 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.CsvOptions;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.Schema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Upload the CSV file as it is, or gzip compressed. Tables with RECORD or REPEATED columns
+ * are loaded as JSON lines, CSV cannot fill them.
+ */
+public class CsvLoadFormat implements LoadFormat {
+    private final boolean gzip;
+
+    public CsvLoadFormat(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    @Override
+    public FormatOptions formatOptions() {
+        return CsvOptions.newBuilder().setSkipLeadingRows(1).build();
+    }
+
+    @Override
+    public Path prepare(Path csvFile, Schema schema) throws IOException {
+        if (!this.gzip) {
+            return csvFile;
+        }
+        Path gzipFile = Files.createTempFile("load-", ".csv.gz");
+        try (OutputStream stream = new GZIPOutputStream(Files.newOutputStream(gzipFile), 64 * 1024)) {
+            Files.copy(csvFile, stream);
+        } catch (IOException e) {
+            Files.deleteIfExists(gzipFile);
+            throw e;
+        }
+        return gzipFile;
+    }
+
+    @Override
+    public LoadFormat forSchema(Schema schema) {
+        return schema != null && ModelSchema.hasNestedFields(schema) ? new JsonLoadFormat(this.gzip) : this;
+    }
+}
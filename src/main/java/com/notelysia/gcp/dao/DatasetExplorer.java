@@ -0,0 +1,389 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.notelysia.gcp.cache.TwoTierCache;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Catalog of the datasets and tables of the project, with the columns of every table.
+ * The datasets and tables are read concurrently on a bounded pool, the catalog is kept
+ * in a {@link TwoTierCache} so the admin page does not walk the project on every request, on any instance.
+ * <p>
+ * Concurrent requests for an expired catalog share one read. The tables read are also put in the
+ * {@link MetadataCache}, a table that cannot be read is listed with its error.
+ */
+public class DatasetExplorer implements Closeable {
+    private static final Logger logger = Logger.getLogger(DatasetExplorer.class.getName());
+
+    private final BigQuery bigquery;
+    private final TwoTierCache catalogs;
+    private final ExecutorService executor;
+    // Read in progress, guarded by this
+    private CompletableFuture<Catalog> loading;
+
+    /**
+     * @param bigquery  BigQuery Service
+     * @param threads   Datasets and tables read at the same time
+     * @param catalogs  Cache of the catalog by project
+     */
+    public DatasetExplorer(BigQuery bigquery, int threads, TwoTierCache catalogs) {
+        this.bigquery = bigquery;
+        this.catalogs = catalogs;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "dataset-explorer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return explorer with the pool size and time to live of application.properties
+     */
+    public static DatasetExplorer fromConfig(BigQuery bigquery) {
+        return new DatasetExplorer(bigquery, Instance.bigqueryCatalogThreads,
+                TwoTierCache.named("dataset-catalog", Instance.bigqueryCatalogCacheTtlSeconds * 1000L));
+    }
+
+    /**
+     * @param refresh True to read the catalog again even if it has not expired
+     * @return the catalog of the project
+     * @throws BigQueryException if the datasets cannot be listed
+     */
+    public Catalog getCatalog(boolean refresh) throws InterruptedException {
+        CompletableFuture<Catalog> future;
+        synchronized (this) {
+            Catalog catalog = refresh ? null : this.catalogs.get(this.projectId());
+            if (catalog != null) {
+                Metrics.increment("bigquery_catalog_hits", 1);
+                return catalog;
+            }
+            if (this.loading == null || this.loading.isDone()) {
+                this.loading = this.load();
+            }
+            future = this.loading;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Forget the catalog, the next request reads it again.
+     */
+    public void invalidate() {
+        this.catalogs.remove(this.projectId());
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Read the catalog, every dataset and then every table is read as its own task.
+     * The tasks do not wait for each other, so the pool cannot be filled by waiting tasks.
+     */
+    private CompletableFuture<Catalog> load() {
+        Metrics.increment("bigquery_catalog_lookups", 1);
+        Metrics.Timer timer = Metrics.time("bigquery.catalog_load");
+        CompletableFuture<Catalog> future = CompletableFuture
+                .supplyAsync(this::listDatasets, this.executor)
+                .thenCompose(datasetNames -> {
+                    List<CompletableFuture<DatasetEntry>> datasets = datasetNames.stream()
+                            .map(this::loadDataset)
+                            .collect(Collectors.toList());
+                    return CompletableFuture.allOf(datasets.toArray(new CompletableFuture[0]))
+                            .thenApply(ignored -> new Catalog(Instant.now(),
+                                    datasets.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+                });
+        return future.whenComplete((catalog, error) -> {
+            timer.close();
+            synchronized (this) {
+                if (catalog != null) {
+                    this.catalogs.put(this.projectId(), catalog);
+                } else {
+                    logger.warning(String.format("Catalog not retrieved. \n%s", error));
+                }
+                this.loading = null;
+            }
+        });
+    }
+
+    private String projectId() {
+        return this.bigquery.getOptions().getProjectId();
+    }
+
+    private List<String> listDatasets() {
+        List<String> names = new ArrayList<>();
+        for (Dataset dataset : this.bigquery.listDatasets(this.projectId(),
+                BigQuery.DatasetListOption.pageSize(100)).iterateAll()) {
+            names.add(dataset.getDatasetId().getDataset());
+        }
+        return names;
+    }
+
+    private CompletableFuture<DatasetEntry> loadDataset(String datasetName) {
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    Dataset dataset = this.bigquery.getDataset(datasetName);
+                    MetadataCache.global().putDataset(dataset);
+                    List<String> tableNames = new ArrayList<>();
+                    for (Table table : this.bigquery.listTables(datasetName,
+                            BigQuery.TableListOption.pageSize(100)).iterateAll()) {
+                        tableNames.add(table.getTableId().getTable());
+                    }
+                    return new DatasetEntry(datasetName, dataset, tableNames);
+                }, this.executor)
+                .thenCompose(entry -> {
+                    List<CompletableFuture<TableEntry>> tables = entry.tableNames.stream()
+                            .map(tableName -> CompletableFuture.supplyAsync(
+                                    () -> this.loadTable(datasetName, tableName), this.executor))
+                            .collect(Collectors.toList());
+                    return CompletableFuture.allOf(tables.toArray(new CompletableFuture[0]))
+                            .thenApply(ignored -> {
+                                tables.forEach(table -> entry.tables.add(table.join()));
+                                return entry;
+                            });
+                })
+                .exceptionally(error -> {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    logger.warning(String.format("Dataset info not retrieved. \n%s", cause));
+                    return new DatasetEntry(datasetName, cause);
+                });
+    }
+
+    private TableEntry loadTable(String datasetName, String tableName) {
+        try {
+            Table table = this.bigquery.getTable(TableId.of(datasetName, tableName));
+            MetadataCache.global().putTable(table);
+            return new TableEntry(tableName, table, null);
+        } catch (BigQueryException e) {
+            logger.warning(String.format("Table info not retrieved. \n%s", e));
+            return new TableEntry(tableName, null, e);
+        }
+    }
+
+    /**
+     * Datasets of the project at the time they were read.
+     */
+    public static class Catalog implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Instant readAt;
+        private final List<DatasetEntry> datasets;
+
+        private Catalog(Instant readAt, List<DatasetEntry> datasets) {
+            this.readAt = readAt;
+            this.datasets = List.copyOf(datasets);
+        }
+
+        public Instant getReadAt() {
+            return this.readAt;
+        }
+
+        public List<DatasetEntry> getDatasets() {
+            return this.datasets;
+        }
+
+        /**
+         * @return the catalog as a JSON document
+         */
+        public String toJson() throws IOException {
+            Map<String, Object> document = new LinkedHashMap<>();
+            document.put("readAt", this.readAt.toString());
+            List<Map<String, Object>> datasets = new ArrayList<>();
+            for (DatasetEntry dataset : this.datasets) {
+                datasets.add(dataset.toMap());
+            }
+            document.put("datasets", datasets);
+            return Instance.jsonFactory.toPrettyString(document);
+        }
+    }
+
+    public static class DatasetEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        private final String friendlyName;
+        private final String description;
+        private final String location;
+        private final String error;
+        private final List<String> tableNames;
+        private final List<TableEntry> tables = new ArrayList<>();
+
+        private DatasetEntry(String name, Dataset dataset, List<String> tableNames) {
+            this.name = name;
+            this.friendlyName = dataset != null ? dataset.getFriendlyName() : null;
+            this.description = dataset != null ? dataset.getDescription() : null;
+            this.location = dataset != null ? dataset.getLocation() : null;
+            this.error = null;
+            this.tableNames = tableNames;
+        }
+
+        private DatasetEntry(String name, Throwable error) {
+            this.name = name;
+            this.friendlyName = null;
+            this.description = null;
+            this.location = null;
+            this.error = String.valueOf(error.getMessage());
+            this.tableNames = List.of();
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getFriendlyName() {
+            return this.friendlyName;
+        }
+
+        public String getDescription() {
+            return this.description;
+        }
+
+        public String getLocation() {
+            return this.location;
+        }
+
+        /**
+         * @return why the dataset could not be read, null if it was read
+         */
+        public String getError() {
+            return this.error;
+        }
+
+        public List<TableEntry> getTables() {
+            return this.tables;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", this.name);
+            map.put("friendlyName", this.friendlyName);
+            map.put("description", this.description);
+            map.put("location", this.location);
+            map.put("error", this.error);
+            List<Map<String, Object>> tables = new ArrayList<>();
+            for (TableEntry table : this.tables) {
+                tables.add(table.toMap());
+            }
+            map.put("tables", tables);
+            return map;
+        }
+    }
+
+    public static class TableEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        private final String friendlyName;
+        private final String description;
+        private final Long numRows;
+        private final List<Field> fields;
+        private final String error;
+
+        private TableEntry(String name, Table table, BigQueryException error) {
+            this.name = name;
+            this.friendlyName = table != null ? table.getFriendlyName() : null;
+            this.description = table != null ? table.getDescription() : null;
+            this.numRows = table != null && table.getNumRows() != null ? table.getNumRows().longValue() : null;
+            Schema schema = table != null ? table.getDefinition().getSchema() : null;
+            this.fields = schema != null ? List.copyOf(schema.getFields()) : List.of();
+            this.error = table == null
+                    ? (error != null ? error.getMessage() : "Table does not exist") : null;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getFriendlyName() {
+            return this.friendlyName;
+        }
+
+        public String getDescription() {
+            return this.description;
+        }
+
+        /**
+         * @return rows of the table, null if not known
+         */
+        public Long getNumRows() {
+            return this.numRows;
+        }
+
+        public List<Field> getFields() {
+            return this.fields;
+        }
+
+        /**
+         * @return why the table could not be read, null if it was read
+         */
+        public String getError() {
+            return this.error;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", this.name);
+            map.put("friendlyName", this.friendlyName);
+            map.put("description", this.description);
+            map.put("numRows", this.numRows);
+            map.put("error", this.error);
+            List<Map<String, Object>> columns = new ArrayList<>();
+            for (Field field : this.fields) {
+                Map<String, Object> column = new LinkedHashMap<>();
+                column.put("name", field.getName());
+                column.put("type", field.getType().name());
+                column.put("mode", field.getMode() != null ? field.getMode().name() : Field.Mode.NULLABLE.name());
+                column.put("description", field.getDescription());
+                columns.add(column);
+            }
+            map.put("columns", columns);
+            return map;
+        }
+    }
+}
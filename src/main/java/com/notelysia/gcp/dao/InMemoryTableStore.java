@@ -0,0 +1,357 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.*;
+import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.util.CsvWriter;
+import com.notelysia.gcp.util.UtilsFunction;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Table store that keeps the tables in memory, used for offline load and latency testing.
+ * Every load, SELECT and UPDATE job sleeps for the job latency and every dataset or table lookup
+ * sleeps for the metadata latency, to simulate the round trips to BigQuery.
+ * <p>
+ * Values are kept the way BigQuery returns them: TIMESTAMP as seconds since epoch with a fraction,
+ * an empty unquoted CSV field and an empty non-STRING field are NULL.
+ * Errors are thrown as {@link BigQueryException} with the HTTP status BigQuery would return.
+ * The partitioning of a {@link TableLayout} is not kept, a time bound of a filter is checked on every row.
+ */
+public class InMemoryTableStore implements TableStore {
+    private static final Logger logger = Logger.getLogger(InMemoryTableStore.class.getName());
+    private final Set<String> datasets = ConcurrentHashMap.newKeySet();
+    private final Map<String, MemoryTable> tables = new ConcurrentHashMap<>();
+    private final AtomicLong jobCount = new AtomicLong();
+    private final long jobLatencyMillis;
+    private final long metadataLatencyMillis;
+
+    public InMemoryTableStore() {
+        this(0L, 0L);
+    }
+
+    /**
+     * @param jobLatencyMillis      Time of every load, SELECT and UPDATE job
+     * @param metadataLatencyMillis Time of every dataset and table lookup
+     */
+    public InMemoryTableStore(long jobLatencyMillis, long metadataLatencyMillis) {
+        this.jobLatencyMillis = jobLatencyMillis;
+        this.metadataLatencyMillis = metadataLatencyMillis;
+    }
+
+    /**
+     * @return number of load, SELECT and UPDATE jobs executed
+     */
+    public long getJobCount() {
+        return this.jobCount.get();
+    }
+
+    @Override
+    public boolean datasetExists(String dataSetName) {
+        this.pauseMetadata();
+        return this.datasets.contains(dataSetName);
+    }
+
+    @Override
+    public void createDataset(String dataSetName) {
+        this.pauseMetadata();
+        if (!this.datasets.add(dataSetName)) {
+            throw new BigQueryException(409, "Already Exists: Dataset " + dataSetName);
+        }
+    }
+
+    @Override
+    public boolean tableExists(String dataSetName, String tableName) {
+        this.pauseMetadata();
+        return this.tables.containsKey(tableKey(dataSetName, tableName));
+    }
+
+    @Override
+    public void createTable(String dataSetName, String tableName, Schema schema, TableLayout layout) {
+        this.pauseMetadata();
+        this.requireDataset(dataSetName);
+        MemoryTable table = new MemoryTable(schema != null ? schema.getFields() : FieldList.of());
+        if (this.tables.putIfAbsent(tableKey(dataSetName, tableName), table) != null) {
+            throw new BigQueryException(409, "Already Exists: Table " + tableKey(dataSetName, tableName));
+        }
+    }
+
+    @Override
+    public long getTableLastModified(String dataSetName, String tableName) {
+        this.pauseMetadata();
+        MemoryTable table = this.tables.get(tableKey(dataSetName, tableName));
+        return table != null ? table.lastModified : 0L;
+    }
+
+    @Override
+    public void loadCsv(String dataSetName,
+                        String tableName,
+                        Path path,
+                        Schema schema) throws IOException, InterruptedException {
+        this.startJob();
+        this.requireDataset(dataSetName);
+        String[] header;
+        List<String[]> csvRows = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+             CSVReader csvReader = new CSVReaderBuilder(reader)
+                     .withCSVParser(new RFC4180ParserBuilder()
+                             .withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
+                             .build())
+                     .build()) {
+            header = csvReader.readNext();
+            String[] row;
+            while ((row = csvReader.readNext()) != null) {
+                csvRows.add(row);
+            }
+        } catch (CsvValidationException e) {
+            throw new BigQueryException(400, "Error while reading data: " + e.getMessage());
+        }
+        if (header == null) {
+            return;
+        }
+        String key = tableKey(dataSetName, tableName);
+        MemoryTable table = schema != null
+                ? this.tables.computeIfAbsent(key, k -> new MemoryTable(schema.getFields()))
+                : this.requireTable(dataSetName, tableName);
+        // CSV column of every field, -1 when the file does not have it
+        int[] columns = new int[table.fields.size()];
+        Arrays.fill(columns, -1);
+        for (int i = 0; i < header.length; i++) {
+            try {
+                columns[table.fields.getIndex(header[i])] = i;
+            } catch (IllegalArgumentException e) {
+                throw new BigQueryException(400, "Error while reading data: no such field: " + header[i]);
+            }
+        }
+        // Convert every row before appending, a bad value fails the whole job like BigQuery does
+        List<String[]> rows = new ArrayList<>(csvRows.size());
+        for (String[] csvRow : csvRows) {
+            if (csvRow.length != header.length) {
+                throw new BigQueryException(400, String.format(
+                        "Error while reading data: expected %s columns but got %s", header.length, csvRow.length));
+            }
+            String[] row = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = columns[i] >= 0 ? toStoredValue(table.fields.get(i), csvRow[columns[i]]) : null;
+            }
+            rows.add(row);
+        }
+        table.append(rows);
+        logger.info(String.format("CSV data loaded successfully (%s rows)", rows.size()));
+    }
+
+    @Override
+    public Iterable<FieldValueList> select(String dataSetName,
+                                           String tableName,
+                                           List<String> columnOrder,
+                                           RecordFilter filter) throws InterruptedException {
+        this.startJob();
+        MemoryTable table = this.requireTable(dataSetName, tableName);
+        List<FieldValueList> result = new ArrayList<>();
+        for (String[] values : table.snapshot()) {
+            List<FieldValue> fieldValues = new ArrayList<>(values.length);
+            for (String value : values) {
+                fieldValues.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, value));
+            }
+            FieldValueList row = FieldValueList.of(fieldValues, table.fields);
+            if (filter == null || filter.matches(row)) {
+                result.add(row);
+            }
+        }
+        if (columnOrder != null && !columnOrder.isEmpty()) {
+            result.sort(orderBy(table.fields, columnOrder));
+        }
+        return result;
+    }
+
+    @Override
+    public <T> void updateRecord(String dataSetName, String tableName, T record) throws InterruptedException {
+        this.startJob();
+        MemoryTable table = this.requireTable(dataSetName, tableName);
+        if (!(record instanceof CalendarEvent)) {
+            logger.warning(String.format("Update is not supported for %s", record.getClass().getSimpleName()));
+            return;
+        }
+        CalendarEvent event = (CalendarEvent) record;
+        String[] values = {
+                event.getEventId(),
+                event.getEventTitle(),
+                event.getEventType(),
+                event.getStatus(),
+                event.getCreatedTime(),
+                event.getUpdatedTime(),
+                event.getCreator(),
+                event.getOrganizer(),
+                event.getEventLink(),
+                event.getAttendees(),
+                event.getStartTime(),
+                event.getEndTime(),
+                event.getTotalTime(),
+                event.getOwnerAccountId(),
+                event.getAttendee()
+        };
+        Map<String, String> columns = new HashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            columns.put(CsvWriter.CALENDAR_EVENT_HEADER[i], values[i]);
+        }
+        table.update("eventId", event.getEventId(), columns);
+    }
+
+    private MemoryTable requireTable(String dataSetName, String tableName) {
+        MemoryTable table = this.tables.get(tableKey(dataSetName, tableName));
+        if (table == null) {
+            throw new BigQueryException(404, "Not found: Table " + tableKey(dataSetName, tableName));
+        }
+        return table;
+    }
+
+    private void requireDataset(String dataSetName) {
+        if (!this.datasets.contains(dataSetName)) {
+            throw new BigQueryException(404, "Not found: Dataset " + dataSetName);
+        }
+    }
+
+    private void startJob() throws InterruptedException {
+        this.jobCount.incrementAndGet();
+        if (this.jobLatencyMillis > 0) {
+            Thread.sleep(this.jobLatencyMillis);
+        }
+    }
+
+    private void pauseMetadata() {
+        if (this.metadataLatencyMillis > 0) {
+            try {
+                Thread.sleep(this.metadataLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String tableKey(String dataSetName, String tableName) {
+        return dataSetName + "." + tableName;
+    }
+
+    private static String toStoredValue(Field field, String value) {
+        if (value == null) {
+            return null;
+        }
+        if (field.getType().getStandardType() == StandardSQLTypeName.STRING) {
+            return value;
+        }
+        if (value.isEmpty()) {
+            return null;
+        }
+        if (field.getType().getStandardType() == StandardSQLTypeName.TIMESTAMP) {
+            Instant instant = UtilsFunction.parseTimestamp(value);
+            if (instant == null) {
+                throw new BigQueryException(400, String.format(
+                        "Could not parse '%s' as a timestamp for field %s", value, field.getName()));
+            }
+            return String.format("%d.%06d", instant.getEpochSecond(), instant.getNano() / 1_000);
+        }
+        return value;
+    }
+
+    /**
+     * ORDER BY the columns, the last column is sorted descending. NULL is the smallest value.
+     */
+    private static Comparator<FieldValueList> orderBy(FieldList fields, List<String> columnOrder) {
+        Comparator<FieldValueList> comparator = null;
+        for (int i = 0; i < columnOrder.size(); i++) {
+            String column = columnOrder.get(i);
+            boolean timestamp = fields.get(column).getType().getStandardType() == StandardSQLTypeName.TIMESTAMP;
+            Comparator<FieldValueList> columnComparator = (left, right) -> {
+                FieldValue leftValue = left.get(column);
+                FieldValue rightValue = right.get(column);
+                if (leftValue.isNull() || rightValue.isNull()) {
+                    return Boolean.compare(!leftValue.isNull(), !rightValue.isNull());
+                }
+                return timestamp
+                        ? Long.compare(leftValue.getTimestampValue(), rightValue.getTimestampValue())
+                        : leftValue.getStringValue().compareTo(rightValue.getStringValue());
+            };
+            if (i == columnOrder.size() - 1) {
+                columnComparator = columnComparator.reversed();
+            }
+            comparator = comparator == null ? columnComparator : comparator.thenComparing(columnComparator);
+        }
+        return comparator;
+    }
+
+    /**
+     * Rows of one table. Rows are never changed in place, an update replaces the row array,
+     * so a snapshot can be read without holding the lock.
+     */
+    private static class MemoryTable {
+        private final FieldList fields;
+        private final List<String[]> rows = new ArrayList<>();
+        private volatile long lastModified = System.currentTimeMillis();
+
+        MemoryTable(FieldList fields) {
+            this.fields = fields;
+        }
+
+        synchronized void append(List<String[]> newRows) {
+            this.rows.addAll(newRows);
+            this.lastModified = System.currentTimeMillis();
+        }
+
+        synchronized List<String[]> snapshot() {
+            return new ArrayList<>(this.rows);
+        }
+
+        synchronized void update(String keyColumn, String keyValue, Map<String, String> columns) {
+            int keyIndex = this.fields.getIndex(keyColumn);
+            int updated = 0;
+            for (int i = 0; i < this.rows.size(); i++) {
+                String[] row = this.rows.get(i);
+                if (!Objects.equals(row[keyIndex], keyValue)) {
+                    continue;
+                }
+                String[] newRow = row.clone();
+                for (int j = 0; j < this.fields.size(); j++) {
+                    Field field = this.fields.get(j);
+                    if (columns.containsKey(field.getName())) {
+                        newRow[j] = toStoredValue(field, columns.get(field.getName()));
+                    }
+                }
+                this.rows.set(i, newRow);
+                updated++;
+            }
+            if (updated > 0) {
+                this.lastModified = System.currentTimeMillis();
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.Schema;
+import com.notelysia.gcp.util.CsvWriter;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Collect the rows of the CSV files of concurrent collections and load them to each table with one load job,
+ * instead of one job per request. A table's batch is loaded when it has the batch size in rows, or when
+ * its first rows have waited the batch delay. Every caller gets a future completed when its rows are loaded.
+ * <p>
+ * Rows waiting for their load are kept in memory. When the backlog is full, callers wait until a load
+ * finishes before their rows are accepted. A file of at least the batch size is loaded on its own.
+ * Rows that are exactly the same in one batch (the same activity collected for two users) are loaded once.
+ */
+public class IngestionBuffer implements Closeable {
+    private static final Logger logger = Logger.getLogger(IngestionBuffer.class.getName());
+    private static final int LOAD_THREADS = 4;
+
+    private final int batchRows;
+    private final long batchDelayMillis;
+    private final int backlogRows;
+    private final ScheduledThreadPoolExecutor executor;
+    // Batches still accepting rows, by dataset and table, guarded by this
+    private final Map<String, Batch> openBatches = new HashMap<>();
+    // Rows accepted and not loaded yet, guarded by this
+    private int pendingRows;
+    private boolean closed;
+
+    /**
+     * @param batchRows        Rows of a table that start its load job
+     * @param batchDelayMillis Longest time rows wait for other rows of the table
+     * @param backlogRows      Rows kept in memory before callers wait
+     */
+    public IngestionBuffer(int batchRows, long batchDelayMillis, int backlogRows) {
+        this.batchRows = batchRows;
+        this.batchDelayMillis = batchDelayMillis;
+        this.backlogRows = Math.max(backlogRows, batchRows);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(LOAD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "ingestion-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return buffer with the batch size, delay and backlog of the configuration
+     */
+    public static IngestionBuffer fromConfig() {
+        return new IngestionBuffer(Instance.bigqueryIngestionBatchRows,
+                Instance.bigqueryIngestionBatchDelayMillis,
+                Instance.bigqueryIngestionBacklogRows);
+    }
+
+    /**
+     * Add the rows of the CSV file to the batch of the table. The file is read before this method returns,
+     * the caller may delete it at once.
+     *
+     * @param tableStore  Store to load the batch with, the first caller's store loads the whole batch
+     * @param dataSetName Dataset Name
+     * @param tableName   Table Name
+     * @param csvFile     CSV file with a header row
+     * @param schema      Schema to create the table with if it does not exist, null to load to an existing table
+     * @return future completed when the rows are loaded
+     * @throws InterruptedException if interrupted while waiting for room in the backlog
+     */
+    public CompletableFuture<Void> submit(TableStore tableStore,
+                                          String dataSetName,
+                                          String tableName,
+                                          Path csvFile,
+                                          Schema schema) throws IOException, InterruptedException {
+        List<String[]> rows = new ArrayList<>();
+        String[] header = readCsv(csvFile, rows);
+        if (header == null || rows.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (rows.size() >= this.batchRows) {
+            // Already a batch, nothing to wait for
+            Batch batch = new Batch(tableStore, dataSetName, tableName, header);
+            batch.add(rows, schema);
+            synchronized (this) {
+                this.awaitRoom(rows.size());
+                this.pendingRows += rows.size();
+            }
+            this.startLoad(batch);
+            return batch.loaded.thenApply(ignored -> null);
+        }
+        String key = dataSetName + "." + tableName;
+        Batch batch;
+        synchronized (this) {
+            this.awaitRoom(rows.size());
+            batch = this.openBatches.get(key);
+            if (batch != null && !Arrays.equals(batch.header, header)) {
+                // A file with other columns, e.g. written before a column was added, gets its own job
+                this.openBatches.remove(key);
+                this.startLoad(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(tableStore, dataSetName, tableName, header);
+                this.openBatches.put(key, batch);
+                Batch delayed = batch;
+                this.executor.schedule(() -> this.flush(key, delayed), this.batchDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.add(rows, schema);
+            this.pendingRows += rows.size();
+            if (batch.submittedRows >= this.batchRows) {
+                this.openBatches.remove(key);
+                this.startLoad(batch);
+            }
+        }
+        // A caller that gives up does not cancel the load of the other callers
+        return batch.loaded.thenApply(ignored -> null);
+    }
+
+    /**
+     * Load the open batches now and stop the load threads once they are done.
+     */
+    @Override
+    public void close() {
+        List<Batch> batches;
+        synchronized (this) {
+            this.closed = true;
+            batches = new ArrayList<>(this.openBatches.values());
+            this.openBatches.clear();
+            this.notifyAll();
+        }
+        for (Batch batch : batches) {
+            this.startLoad(batch);
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Wait until the backlog has room for the rows, called with the lock held.
+     */
+    private void awaitRoom(int rows) throws InterruptedException {
+        boolean waited = false;
+        // A file larger than the backlog waits until the backlog is empty
+        while (!this.closed && this.pendingRows > 0 && this.pendingRows + rows > this.backlogRows) {
+            waited = true;
+            this.wait();
+        }
+        if (this.closed) {
+            throw new RejectedExecutionException("Ingestion buffer is closed");
+        }
+        if (waited) {
+            Metrics.increment("bigquery_ingest_backpressure_waits", 1);
+        }
+    }
+
+    private void flush(String key, Batch batch) {
+        synchronized (this) {
+            if (this.openBatches.get(key) != batch) {
+                // Loaded when it reached the batch size
+                return;
+            }
+            this.openBatches.remove(key);
+        }
+        this.load(batch);
+    }
+
+    private void startLoad(Batch batch) {
+        try {
+            this.executor.execute(() -> this.load(batch));
+        } catch (RejectedExecutionException e) {
+            // Closed while the batch was open, load it on the caller's thread
+            this.load(batch);
+        }
+    }
+
+    private void load(Batch batch) {
+        Path batchFile = null;
+        try (Metrics.Timer ignored = Metrics.time("bigquery.load_job")) {
+            batchFile = Files.createTempFile("ingest-", ".csv");
+            try (CsvWriter csvWriter = new CsvWriter(batchFile.toString(), batch.header)) {
+                for (List<String> row : batch.rows) {
+                    csvWriter.writeRow(row.toArray(new String[0]));
+                }
+            }
+            batch.tableStore.loadCsv(batch.dataSetName, batch.tableName, batchFile, batch.schema);
+            Metrics.increment("bigquery_ingest_batches", 1);
+            Metrics.increment("bigquery_ingest_rows", batch.rows.size());
+            logger.info(String.format("Loaded %s rows of %s callers to %s.%s in one job",
+                    batch.rows.size(), batch.callers, batch.dataSetName, batch.tableName));
+            batch.loaded.complete(null);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            batch.loaded.completeExceptionally(e);
+        } finally {
+            if (batchFile != null) {
+                try {
+                    Files.deleteIfExists(batchFile);
+                } catch (IOException e) {
+                    logger.warning(String.format("Batch file %s not deleted. \n%s", batchFile, e));
+                }
+            }
+            synchronized (this) {
+                this.pendingRows -= batch.submittedRows;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Read the rows of the CSV file. Empty fields without quotes are read as null,
+     * so they are written back as NULL and not as empty strings.
+     *
+     * @return the header row, null for an empty file
+     */
+    private static String[] readCsv(Path csvFile, List<String[]> rows) throws IOException {
+        try (Reader reader = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8);
+             CSVReader csvReader = new CSVReaderBuilder(reader)
+                     .withCSVParser(new RFC4180ParserBuilder()
+                             .withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
+                             .build())
+                     .build()) {
+            String[] header = csvReader.readNext();
+            String[] row;
+            while ((row = csvReader.readNext()) != null) {
+                rows.add(row);
+            }
+            return header;
+        } catch (CsvValidationException e) {
+            throw new IOException("CSV file not readable: " + csvFile, e);
+        }
+    }
+
+    /**
+     * Rows of one load job.
+     */
+    private static class Batch {
+        private final TableStore tableStore;
+        private final String dataSetName;
+        private final String tableName;
+        private final String[] header;
+        private final Set<List<String>> rows = new LinkedHashSet<>();
+        private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        private Schema schema;
+        private int submittedRows;
+        private int callers;
+
+        Batch(TableStore tableStore, String dataSetName, String tableName, String[] header) {
+            this.tableStore = tableStore;
+            this.dataSetName = dataSetName;
+            this.tableName = tableName;
+            this.header = header;
+        }
+
+        void add(List<String[]> newRows, Schema newSchema) {
+            for (String[] row : newRows) {
+                this.rows.add(Arrays.asList(row));
+            }
+            if (this.schema == null) {
+                this.schema = newSchema;
+            }
+            this.submittedRows += newRows.size();
+            this.callers++;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Holds the loads and updates of a table while the table is rewritten into a new layout.
+ * Loads and updates of a table run at the same time, a rewrite waits for them and runs alone,
+ * so no row is written to the old table between the copy and the rename.
+ * <p>
+ * The gate is local to the process, other instances still write during a rewrite.
+ */
+public class IngestionGate {
+    private static final IngestionGate GLOBAL = new IngestionGate();
+
+    private final Map<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * @return gate of the process
+     */
+    public static IngestionGate global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Enter to load or update rows, waits while the table is rewritten.
+     *
+     * @return permit, close it when the rows are written
+     */
+    public Permit enterWrite(String dataSetName, String tableName) throws InterruptedException {
+        return enter(this.lock(dataSetName, tableName).readLock());
+    }
+
+    /**
+     * Enter to rewrite the table, waits for the running loads and updates and holds the next ones.
+     *
+     * @return permit, close it when the table has its new name
+     */
+    public Permit enterRewrite(String dataSetName, String tableName) throws InterruptedException {
+        return enter(this.lock(dataSetName, tableName).writeLock());
+    }
+
+    private ReentrantReadWriteLock lock(String dataSetName, String tableName) {
+        return this.locks.computeIfAbsent(dataSetName + "." + tableName, key -> new ReentrantReadWriteLock());
+    }
+
+    private static Permit enter(Lock lock) throws InterruptedException {
+        lock.lockInterruptibly();
+        return lock::unlock;
+    }
+
+    /**
+     * Held permit of the gate.
+     */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
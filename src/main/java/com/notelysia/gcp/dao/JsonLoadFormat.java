@@ -0,0 +1,120 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.UtilsFunction;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Upload the rows as newline delimited JSON objects, optionally gzip compressed.
+ * RECORD and REPEATED values are JSON in the CSV file and are written as they are,
+ * empty values of other types than STRING are left out (NULL).
+ */
+public class JsonLoadFormat implements LoadFormat {
+    private final boolean gzip;
+
+    public JsonLoadFormat(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    @Override
+    public FormatOptions formatOptions() {
+        return FormatOptions.json();
+    }
+
+    @Override
+    public Path prepare(Path csvFile, Schema schema) throws IOException {
+        Path jsonFile = Files.createTempFile("load-", this.gzip ? ".jsonl.gz" : ".jsonl");
+        try (Writer writer = this.gzip
+                ? new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(jsonFile), 64 * 1024), StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(jsonFile, StandardCharsets.UTF_8)) {
+            writeJsonLines(csvFile, writer, schema);
+        } catch (IOException e) {
+            Files.deleteIfExists(jsonFile);
+            throw e;
+        }
+        return jsonFile;
+    }
+
+    private static void writeJsonLines(Path csvFile, Writer writer, Schema schema) throws IOException {
+        try (Reader reader = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8);
+             CSVReader csvReader = new CSVReaderBuilder(reader)
+                     .withCSVParser(new RFC4180ParserBuilder()
+                             .withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
+                             .build())
+                     .build()) {
+            String[] header = csvReader.readNext();
+            if (header == null) {
+                return;
+            }
+            Field[] columns = new Field[header.length];
+            for (int i = 0; i < header.length; i++) {
+                for (Field field : schema.getFields()) {
+                    if (field.getName().equals(header[i])) {
+                        columns[i] = field;
+                    }
+                }
+            }
+            String[] row;
+            while ((row = csvReader.readNext()) != null) {
+                StringBuilder line = new StringBuilder("{");
+                for (int i = 0; i < row.length && i < columns.length; i++) {
+                    Field field = columns[i];
+                    String value = row[i];
+                    if (field == null || value == null) {
+                        continue;
+                    }
+                    String json;
+                    if (field.getMode() == Field.Mode.REPEATED || field.getType() == LegacySQLTypeName.RECORD) {
+                        json = UtilsFunction.isValidJson(value) ? value : null;
+                    } else if (field.getType() == LegacySQLTypeName.STRING || !value.isEmpty()) {
+                        json = Instance.jsonFactory.toString(value);
+                    } else {
+                        json = null;
+                    }
+                    if (json != null) {
+                        line.append(line.length() > 1 ? "," : "")
+                                .append('"').append(field.getName()).append("\":").append(json);
+                    }
+                }
+                writer.write(line.append("}\n").toString());
+            }
+        } catch (CsvValidationException e) {
+            throw new IOException("CSV file not readable: " + csvFile, e);
+        }
+    }
+}
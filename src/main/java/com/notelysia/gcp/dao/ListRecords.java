@@ -21,6 +21,7 @@ import com.google.cloud.bigquery.FieldValueList;
 import com.google.cloud.bigquery.TableResult;
 import com.notelysia.gcp.model.CalendarEvent;
 import com.notelysia.gcp.model.DriveActivity;
+import com.notelysia.gcp.util.Metrics;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
@@ -29,6 +30,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class ListRecords {
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX").withZone(ZoneOffset.UTC);
 
     /**
      * This class is used to collect and print all result records from the "select" query
@@ -42,61 +45,94 @@ public class ListRecords {
      * @param result TableResult object
      */
     public List<DriveActivity> collectDriveActivityRecord(TableResult result) {
+        return this.collectDriveActivityRecord(result.iterateAll());
+    }
+
+    /**
+     * Collect all Drive Activity records from the result rows
+     *
+     * @param rows Rows of the SELECT query result
+     */
+    public List<DriveActivity> collectDriveActivityRecord(Iterable<FieldValueList> rows) {
         List<DriveActivity> driveActivities = new ArrayList<>();
-        for (FieldValueList row : result.iterateAll()) {
-            DriveActivity activity = new DriveActivity();
-            try {
-                activity.setActivityId(row.get("activityId").getStringValue());
-                activity.setTimeActivity(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX")
-                        .withZone(ZoneOffset.UTC).format(this.convertMicrosecondsToInstant(
-                                row.get("timeActivity").getTimestampValue())));
-                activity.setUserAction(row.get("userAction").getStringValue());
-                activity.setPrimaryAction(row.get("primaryAction").getStringValue());
-                activity.setSubAction(row.get("subAction").getStringValue());
-                activity.setSubActionType(row.get("subActionType").getStringValue());
-                FieldValue subActionResult = row.get("subActionResult");
-                activity.setSubActionResult(subActionResult.getValue() != null ? subActionResult.getStringValue() : "");
-                activity.setItem(row.get("item").getStringValue());
-                driveActivities.add(activity);
-            } catch (IllegalArgumentException ignored) {
+        try (Metrics.Timer timer = Metrics.time("records.drive_activity_mapping")) {
+            for (FieldValueList row : rows) {
+                DriveActivity activity = new DriveActivity();
+                try {
+                    activity.setActivityId(row.get("activityId").getStringValue());
+                    activity.setTimeActivity(TIMESTAMP_FORMATTER.format(this.convertMicrosecondsToInstant(
+                            row.get("timeActivity").getTimestampValue())));
+                    activity.setUserAction(row.get("userAction").getStringValue());
+                    activity.setPrimaryAction(row.get("primaryAction").getStringValue());
+                    activity.setSubAction(row.get("subAction").getStringValue());
+                    activity.setSubActionType(row.get("subActionType").getStringValue());
+                    FieldValue subActionResult = row.get("subActionResult");
+                    activity.setSubActionResult(subActionResult.getValue() != null ? subActionResult.getStringValue() : "");
+                    activity.setItem(row.get("item").getStringValue());
+                    driveActivities.add(activity);
+                } catch (IllegalArgumentException ignored) {
+                }
             }
+            Metrics.increment("records_mapped", driveActivities.size());
         }
         return driveActivities;
     }
 
     public List<CalendarEvent> collectCalendarEventRecord(TableResult result) {
+        return this.collectCalendarEventRecord(result.iterateAll());
+    }
+
+    /**
+     * Collect all Calendar Event records from the result rows
+     *
+     * @param rows Rows of the SELECT query result
+     */
+    public List<CalendarEvent> collectCalendarEventRecord(Iterable<FieldValueList> rows) {
         List<CalendarEvent> calendarEvents = new ArrayList<>();
-        for (FieldValueList row : result.iterateAll()) {
-            CalendarEvent event = new CalendarEvent();
-            try {
-                event.setEventId(row.get("eventId").getStringValue());
-                event.setEventTitle(row.get("eventTitle").getStringValue());
-                event.setEventType(row.get("eventType").getStringValue());
-                event.setStatus(row.get("status").getStringValue());
-                event.setCreatedTime(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX")
-                        .withZone(ZoneOffset.UTC).format(this.convertMicrosecondsToInstant(
-                                row.get("createdTime").getTimestampValue())));
-                event.setUpdatedTime(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX")
-                        .withZone(ZoneOffset.UTC).format(this.convertMicrosecondsToInstant(
-                                row.get("updatedTime").getTimestampValue())));
-                event.setCreator(row.get("creator").getStringValue());
-                event.setOrganizer(row.get("organizer").getStringValue());
-                event.setEventLink(row.get("eventLink").getStringValue());
-                event.setAttendees(row.get("attendees").getStringValue());
-                event.setStartTime(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX")
-                        .withZone(ZoneOffset.UTC).format(this.convertMicrosecondsToInstant(
-                                row.get("startTime").getTimestampValue())));
-                event.setEndTime(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX")
-                        .withZone(ZoneOffset.UTC).format(this.convertMicrosecondsToInstant(
-                                row.get("endTime").getTimestampValue())));
-                event.setTotalTime(row.get("totalTime").getStringValue());
-                calendarEvents.add(event);
-            } catch (IllegalArgumentException ignored) {
+        try (Metrics.Timer timer = Metrics.time("records.calendar_event_mapping")) {
+            for (FieldValueList row : rows) {
+                CalendarEvent event = new CalendarEvent();
+                try {
+                    event.setEventId(row.get("eventId").getStringValue());
+                    event.setEventTitle(row.get("eventTitle").getStringValue());
+                    event.setEventType(row.get("eventType").getStringValue());
+                    event.setStatus(row.get("status").getStringValue());
+                    event.setCreatedTime(TIMESTAMP_FORMATTER.format(this.convertMicrosecondsToInstant(
+                            row.get("createdTime").getTimestampValue())));
+                    event.setUpdatedTime(TIMESTAMP_FORMATTER.format(this.convertMicrosecondsToInstant(
+                            row.get("updatedTime").getTimestampValue())));
+                    event.setCreator(row.get("creator").getStringValue());
+                    event.setOrganizer(row.get("organizer").getStringValue());
+                    event.setEventLink(row.get("eventLink").getStringValue());
+                    event.setAttendees(row.get("attendees").getStringValue());
+                    event.setStartTime(TIMESTAMP_FORMATTER.format(this.convertMicrosecondsToInstant(
+                            row.get("startTime").getTimestampValue())));
+                    event.setEndTime(TIMESTAMP_FORMATTER.format(this.convertMicrosecondsToInstant(
+                            row.get("endTime").getTimestampValue())));
+                    event.setTotalTime(row.get("totalTime").getStringValue());
+                    // Null for rows loaded before the column existed
+                    event.setOwnerAccountId(optionalString(row, "ownerAccountId"));
+                    calendarEvents.add(event);
+                } catch (IllegalArgumentException ignored) {
+                }
             }
+            Metrics.increment("records_mapped", calendarEvents.size());
         }
         return calendarEvents;
     }
 
+    /**
+     * @return the STRING value of the column, null for NULL or a column the result does not have
+     */
+    private static String optionalString(FieldValueList row, String column) {
+        try {
+            FieldValue value = row.get(column);
+            return value.isNull() ? null : value.getStringValue();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     /**
      * Convert microseconds to Instant
      *
@@ -0,0 +1,73 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.Schema;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * File format the CSV files are uploaded to BigQuery in.
+ * The table schema is always sent with the load, BigQuery does not sample the file to detect it.
+ */
+public interface LoadFormat {
+
+    /**
+     * @return format options of the load job
+     */
+    FormatOptions formatOptions();
+
+    /**
+     * Convert the CSV file with a header row to the upload file, columns are matched to the fields by header name.
+     *
+     * @param csvFile CSV file written by {@code CsvWriter}
+     * @param schema  Schema of the table
+     * @return file to upload, the CSV file itself or a temporary file the caller deletes
+     */
+    Path prepare(Path csvFile, Schema schema) throws IOException;
+
+    /**
+     * @param schema Schema of the table
+     * @return this format, or the format to use when it cannot load the schema
+     */
+    default LoadFormat forSchema(Schema schema) {
+        return this;
+    }
+
+    /**
+     * Create the load format.
+     *
+     * @param type csv, json (JSON lines) or avro
+     * @param gzip Compress the csv and json files, avro blocks are always compressed
+     * @return the load format
+     */
+    static LoadFormat create(String type, boolean gzip) {
+        switch (type == null ? "csv" : type.trim().toLowerCase()) {
+            case "csv":
+            case "":
+                return new CsvLoadFormat(gzip);
+            case "json":
+                return new JsonLoadFormat(gzip);
+            case "avro":
+                return new AvroLoadFormat(gzip);
+            default:
+                throw new IllegalArgumentException("Unknown BigQuery load format: " + type);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Dataset;
+import com.google.cloud.bigquery.DatasetId;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dataset and table metadata (existence, location, schema) kept for a time to live,
+ * so the ingestion path does not read it from BigQuery on every request.
+ * <p>
+ * Only metadata that was found is kept: a missing dataset or table is read again on the next call.
+ * Our own DDL updates or removes the entries right away, changes made outside this process
+ * are seen when the entry expires or when a job on the table answers "not found".
+ */
+public class MetadataCache {
+    private static final MetadataCache GLOBAL =
+            new MetadataCache(Instance.bigqueryMetadataCacheTtlSeconds * 1000L, Clock.systemUTC());
+
+    private final long ttlMillis;
+    private final Clock clock;
+    private final Map<String, Entry<Dataset>> datasets = new ConcurrentHashMap<>();
+    private final Map<String, Entry<Table>> tables = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis Time to live of an entry, 0 disables the cache
+     * @param clock     Clock of the expiry time
+     */
+    public MetadataCache(long ttlMillis, Clock clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @return cache of the process
+     */
+    public static MetadataCache global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return the dataset, read from BigQuery if it is not kept, null if it does not exist
+     */
+    public Dataset getDataset(BigQuery bigquery, String dataSetName) {
+        String key = datasetKey(bigquery.getOptions().getProjectId(), dataSetName);
+        Dataset dataset = this.lookup(this.datasets, key);
+        if (dataset == null) {
+            dataset = bigquery.getDataset(DatasetId.of(dataSetName));
+            this.putDataset(dataset);
+        }
+        return dataset;
+    }
+
+    /**
+     * @return the table, read from BigQuery if it is not kept, null if it does not exist
+     */
+    public Table getTable(BigQuery bigquery, String dataSetName, String tableName) {
+        String key = tableKey(bigquery.getOptions().getProjectId(), dataSetName, tableName);
+        Table table = this.lookup(this.tables, key);
+        if (table == null) {
+            table = bigquery.getTable(TableId.of(dataSetName, tableName));
+            this.putTable(table);
+        }
+        return table;
+    }
+
+    /**
+     * Keep a dataset read or created by the caller, null is ignored.
+     */
+    public void putDataset(Dataset dataset) {
+        if (dataset != null && this.ttlMillis > 0) {
+            DatasetId id = dataset.getDatasetId();
+            this.datasets.put(datasetKey(id.getProject(), id.getDataset()), new Entry<>(dataset, this.expiry()));
+        }
+    }
+
+    /**
+     * Keep a table read, created or updated by the caller, null is ignored.
+     */
+    public void putTable(Table table) {
+        if (table != null && this.ttlMillis > 0) {
+            TableId id = table.getTableId();
+            this.tables.put(tableKey(id.getProject(), id.getDataset(), id.getTable()), new Entry<>(table, this.expiry()));
+        }
+    }
+
+    /**
+     * Forget the dataset and all its tables.
+     */
+    public void invalidateDataset(BigQuery bigquery, String dataSetName) {
+        String key = datasetKey(bigquery.getOptions().getProjectId(), dataSetName);
+        this.datasets.remove(key);
+        this.tables.keySet().removeIf(tableKey -> tableKey.startsWith(key + "."));
+    }
+
+    /**
+     * Forget the table, e.g. after its schema changed.
+     */
+    public void invalidateTable(BigQuery bigquery, String dataSetName, String tableName) {
+        this.tables.remove(tableKey(bigquery.getOptions().getProjectId(), dataSetName, tableName));
+    }
+
+    private <T> T lookup(Map<String, Entry<T>> entries, String key) {
+        Entry<T> entry = entries.get(key);
+        if (entry != null && entry.expiresAt > this.clock.millis()) {
+            Metrics.increment("bigquery_metadata_hits", 1);
+            return entry.value;
+        }
+        if (entry != null) {
+            entries.remove(key, entry);
+        }
+        Metrics.increment("bigquery_metadata_lookups", 1);
+        return null;
+    }
+
+    private long expiry() {
+        return this.clock.millis() + this.ttlMillis;
+    }
+
+    private static String datasetKey(String project, String dataSetName) {
+        return project + ":" + dataSetName;
+    }
+
+    private static String tableKey(String project, String dataSetName, String tableName) {
+        return datasetKey(project, dataSetName) + "." + tableName;
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long expiresAt;
+
+        private Entry(T value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
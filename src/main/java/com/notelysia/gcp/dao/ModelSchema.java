@@ -0,0 +1,86 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.notelysia.gcp.model.BigQueryColumn;
+import com.opencsv.bean.CsvBindByName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table schema generated from the {@link CsvBindByName} fields of a model class, in declaration order,
+ * which is also the column order of the CSV files. {@link BigQueryColumn} sets the type of a column.
+ */
+public final class ModelSchema {
+    private static final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    private ModelSchema() {
+    }
+
+    /**
+     * @param clazz Model class of the CSV file
+     * @return schema of the table of the model
+     */
+    public static Schema of(Class<?> clazz) {
+        return schemas.computeIfAbsent(clazz, ModelSchema::generate);
+    }
+
+    /**
+     * @return true if the schema has a RECORD or REPEATED column, which CSV files cannot load
+     */
+    public static boolean hasNestedFields(Schema schema) {
+        for (Field field : schema.getFields()) {
+            if (field.getMode() == Field.Mode.REPEATED || field.getType() == LegacySQLTypeName.RECORD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Schema generate(Class<?> clazz) {
+        List<Field> fields = new ArrayList<>();
+        for (java.lang.reflect.Field modelField : clazz.getDeclaredFields()) {
+            CsvBindByName binding = modelField.getAnnotation(CsvBindByName.class);
+            if (binding == null) {
+                continue;
+            }
+            String name = binding.column().isEmpty() ? modelField.getName() : binding.column();
+            BigQueryColumn column = modelField.getAnnotation(BigQueryColumn.class);
+            if (column == null) {
+                fields.add(Field.newBuilder(name, StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build());
+            } else if (column.type() == StandardSQLTypeName.STRUCT) {
+                List<Field> subFields = new ArrayList<>();
+                for (String subField : column.fields()) {
+                    subFields.add(Field.of(subField, StandardSQLTypeName.STRING));
+                }
+                fields.add(Field.newBuilder(name, StandardSQLTypeName.STRUCT, FieldList.of(subFields))
+                        .setMode(column.mode()).build());
+            } else {
+                fields.add(Field.newBuilder(name, column.type()).setMode(column.mode()).build());
+            }
+        }
+        return Schema.of(fields);
+    }
+}
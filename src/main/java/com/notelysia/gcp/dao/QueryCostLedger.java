@@ -0,0 +1,307 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.JobStatistics;
+import com.notelysia.gcp.cache.TwoTierCache;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Bytes processed, bytes billed, slot time and cache hits of the BigQuery query jobs,
+ * aggregated per user, per table and per query template.
+ * <p>
+ * The user is the one set on the thread running the request, jobs started outside a request
+ * (e.g. table preparation at startup) are counted for the user "system".
+ * With a daily bytes budget per user, reads of a user over the budget are served from the last
+ * result of the same query instead of starting a new job. A read without a kept result still runs.
+ * The results are kept in a {@link TwoTierCache}, so the fallback also works on the other instances.
+ */
+public class QueryCostLedger {
+    private static final Logger logger = Logger.getLogger(QueryCostLedger.class.getName());
+    private static final String SYSTEM_USER = "system";
+    private static final QueryCostLedger GLOBAL = new QueryCostLedger(Clock.systemUTC());
+    private static final ThreadLocal<String> currentUser = new ThreadLocal<>();
+
+    private final Clock clock;
+    private final Map<String, CostTotals> users = new ConcurrentHashMap<>();
+    private final Map<String, CostTotals> tables = new ConcurrentHashMap<>();
+    private final Map<String, CostTotals> templates = new ConcurrentHashMap<>();
+    private final Map<String, DailyUsage> dailyUsage = new ConcurrentHashMap<>();
+    // Results kept for the budget fallback by user and query, shared by the instances
+    private final TwoTierCache cachedResults =
+            TwoTierCache.named("query-results", Instance.cacheQueryResultTtlSeconds * 1000L);
+    private volatile long userBytesBudget;
+
+    public QueryCostLedger(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return ledger of the process
+     */
+    public static QueryCostLedger global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Set the user of the BigQuery jobs started by this thread, null clears it.
+     *
+     * @param user Google Account ID of the user
+     */
+    public static void setCurrentUser(String user) {
+        if (user == null) {
+            currentUser.remove();
+        } else {
+            currentUser.set(user);
+        }
+    }
+
+    /**
+     * @return user of the BigQuery jobs started by this thread
+     */
+    public static String getCurrentUser() {
+        String user = currentUser.get();
+        return user != null ? user : SYSTEM_USER;
+    }
+
+    /**
+     * Replace the literals of the query with "?", so queries that only differ
+     * by their values (e.g. the user of the filter) have the same template.
+     *
+     * @param sql Standard SQL query
+     * @return query template
+     */
+    public static String templateOf(String sql) {
+        StringBuilder template = new StringBuilder(sql.length());
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '`') {
+                // Quoted identifiers (project, dataset, table) are part of the template
+                int end = sql.indexOf('`', i + 1);
+                end = end < 0 ? sql.length() : end + 1;
+                template.append(sql, i, end);
+                i = end;
+            } else if (c == '\'' || c == '"') {
+                // Skip the literal, a backslash escapes the next character
+                int end = i + 1;
+                while (end < sql.length() && sql.charAt(end) != c) {
+                    end += sql.charAt(end) == '\\' ? 2 : 1;
+                }
+                template.append('?');
+                i = Math.min(end + 1, sql.length());
+            } else if (Character.isDigit(c)
+                    && (i == 0 || !Character.isLetterOrDigit(sql.charAt(i - 1)) && sql.charAt(i - 1) != '_')) {
+                while (i < sql.length() && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                template.append('?');
+            } else {
+                template.append(c);
+                i++;
+            }
+        }
+        return template.toString();
+    }
+
+    /**
+     * @param userBytesBudget Bytes billed per user and UTC day, 0 for no budget
+     */
+    public void setUserBytesBudget(long userBytesBudget) {
+        this.userBytesBudget = userBytesBudget;
+        if (userBytesBudget <= 0) {
+            this.cachedResults.clearNear();
+        }
+    }
+
+    public long getUserBytesBudget() {
+        return this.userBytesBudget;
+    }
+
+    /**
+     * Record the statistics of a completed query job for the current user.
+     *
+     * @param table      Table of the query, "dataset.table"
+     * @param sql        Query of the job
+     * @param statistics Statistics of the job, null if BigQuery did not return them
+     */
+    public void record(String table, String sql, JobStatistics.QueryStatistics statistics) {
+        if (statistics == null) {
+            return;
+        }
+        long bytesProcessed = valueOf(statistics.getTotalBytesProcessed());
+        long bytesBilled = valueOf(statistics.getTotalBytesBilled());
+        long slotMillis = valueOf(statistics.getTotalSlotMs());
+        boolean cacheHit = Boolean.TRUE.equals(statistics.getCacheHit());
+        String user = getCurrentUser();
+        for (CostTotals totals : new CostTotals[]{
+                this.users.computeIfAbsent(user, key -> new CostTotals()),
+                this.tables.computeIfAbsent(table, key -> new CostTotals()),
+                this.templates.computeIfAbsent(templateOf(sql), key -> new CostTotals())}) {
+            totals.add(bytesProcessed, bytesBilled, slotMillis, cacheHit);
+        }
+        this.dailyUsage.compute(user, (key, usage) -> {
+            long today = LocalDate.now(this.clock.withZone(ZoneOffset.UTC)).toEpochDay();
+            DailyUsage current = usage != null && usage.epochDay == today ? usage : new DailyUsage(today);
+            current.bytesBilled += bytesBilled;
+            return current;
+        });
+        Metrics.increment("bigquery_bytes_processed", bytesProcessed);
+        Metrics.increment("bigquery_bytes_billed", bytesBilled);
+        Metrics.increment("bigquery_slot_millis", slotMillis);
+        if (cacheHit) {
+            Metrics.increment("bigquery_cache_hits", 1);
+        }
+    }
+
+    /**
+     * @return true if the current user has billed more bytes today than the budget
+     */
+    public boolean isCurrentUserOverBudget() {
+        long budget = this.userBytesBudget;
+        if (budget <= 0) {
+            return false;
+        }
+        DailyUsage usage = this.dailyUsage.get(getCurrentUser());
+        long today = LocalDate.now(this.clock.withZone(ZoneOffset.UTC)).toEpochDay();
+        return usage != null && usage.epochDay == today && usage.bytesBilled >= budget;
+    }
+
+    /**
+     * Keep the result of a read of the current user for the budget fallback.
+     * Nothing is kept without a budget.
+     *
+     * @param sql  Query of the read
+     * @param rows Rows of the result
+     * @return the rows, materialized if they are kept
+     */
+    public Iterable<FieldValueList> rememberResult(String sql, Iterable<FieldValueList> rows) {
+        if (this.userBytesBudget <= 0) {
+            return rows;
+        }
+        ArrayList<FieldValueList> materialized = new ArrayList<>();
+        rows.forEach(materialized::add);
+        this.cachedResults.put(resultKey(sql), materialized);
+        return materialized;
+    }
+
+    /**
+     * @param sql Query of the read
+     * @return the last result of the query for the current user, or null
+     */
+    public List<FieldValueList> cachedResult(String sql) {
+        ArrayList<FieldValueList> rows = this.cachedResults.get(resultKey(sql));
+        if (rows != null) {
+            Metrics.increment("bigquery_budget_fallbacks", 1);
+            logger.info(String.format("User %s is over the BigQuery budget, serve the cached result", getCurrentUser()));
+        }
+        return rows != null ? Collections.unmodifiableList(rows) : null;
+    }
+
+    private static String resultKey(String sql) {
+        return getCurrentUser() + "\n" + sql;
+    }
+
+    public Map<String, CostTotals> getUserTotals() {
+        return new TreeMap<>(this.users);
+    }
+
+    public Map<String, CostTotals> getTableTotals() {
+        return new TreeMap<>(this.tables);
+    }
+
+    public Map<String, CostTotals> getTemplateTotals() {
+        return new TreeMap<>(this.templates);
+    }
+
+    /**
+     * @return bytes billed today by the user
+     */
+    public long getBytesBilledToday(String user) {
+        DailyUsage usage = this.dailyUsage.get(user);
+        long today = LocalDate.now(this.clock.withZone(ZoneOffset.UTC)).toEpochDay();
+        return usage != null && usage.epochDay == today ? usage.bytesBilled : 0L;
+    }
+
+    private static long valueOf(Long value) {
+        return value != null ? value : 0L;
+    }
+
+    /**
+     * Totals of the jobs of one user, table or query template.
+     */
+    public static class CostTotals {
+        private final LongAdder jobs = new LongAdder();
+        private final LongAdder bytesProcessed = new LongAdder();
+        private final LongAdder bytesBilled = new LongAdder();
+        private final LongAdder slotMillis = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+
+        void add(long bytesProcessed, long bytesBilled, long slotMillis, boolean cacheHit) {
+            this.jobs.increment();
+            this.bytesProcessed.add(bytesProcessed);
+            this.bytesBilled.add(bytesBilled);
+            this.slotMillis.add(slotMillis);
+            if (cacheHit) {
+                this.cacheHits.increment();
+            }
+        }
+
+        public long getJobs() {
+            return this.jobs.sum();
+        }
+
+        public long getBytesProcessed() {
+            return this.bytesProcessed.sum();
+        }
+
+        public long getBytesBilled() {
+            return this.bytesBilled.sum();
+        }
+
+        public long getSlotMillis() {
+            return this.slotMillis.sum();
+        }
+
+        public long getCacheHits() {
+            return this.cacheHits.sum();
+        }
+    }
+
+    private static class DailyUsage {
+        private final long epochDay;
+        private long bytesBilled;
+
+        DailyUsage(long epochDay) {
+            this.epochDay = epochDay;
+        }
+    }
+}
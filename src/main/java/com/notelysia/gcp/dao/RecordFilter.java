@@ -0,0 +1,343 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.UtilsFunction;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * WHERE condition of a SELECT query.
+ * The same filter is rendered to Standard SQL for BigQuery and evaluated on rows by the in-memory store,
+ * so both backends return the same records. A filter is one or more conditions joined with OR,
+ * optionally AND a lower bound of a TIMESTAMP column, which lets BigQuery skip older partitions.
+ */
+public class RecordFilter {
+    private static final DateTimeFormatter TIMESTAMP_LITERAL =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS").withZone(ZoneOffset.UTC);
+    private final List<Condition> conditions;
+    // Every row matches the conditions
+    private final boolean allRows;
+    private final String sinceColumn;
+    private final Instant since;
+
+    private RecordFilter(List<Condition> conditions) {
+        this(conditions, false, null, null);
+    }
+
+    private RecordFilter(List<Condition> conditions, boolean allRows, String sinceColumn, Instant since) {
+        this.conditions = conditions;
+        this.allRows = allRows;
+        this.sinceColumn = sinceColumn;
+        this.since = since;
+    }
+
+    /**
+     * Match every row, used with {@link #since(String, Instant)} to scan the recent partitions of a table.
+     */
+    public static RecordFilter all() {
+        return new RecordFilter(Collections.emptyList(), true, null, null);
+    }
+
+    /**
+     * Match rows where the column contains any of the values, ignoring case.
+     * Null values are skipped.
+     *
+     * @param column Column name
+     * @param values Values to search in the column
+     */
+    public static RecordFilter containsAnyIgnoreCase(String column, String... values) {
+        List<Condition> conditions = new ArrayList<>();
+        for (String value : lowerCase(values)) {
+            conditions.add(new Contains(column, value));
+        }
+        return new RecordFilter(conditions);
+    }
+
+    /**
+     * Match rows where the column is equal to one of the values. Null values are skipped.
+     *
+     * @param column Column name
+     * @param values Values of the column
+     */
+    public static RecordFilter equalsAny(String column, String... values) {
+        List<String> notNull = new ArrayList<>();
+        for (String value : values) {
+            if (value != null) {
+                notNull.add(value);
+            }
+        }
+        return new RecordFilter(notNull.isEmpty()
+                ? Collections.emptyList()
+                : Collections.singletonList(new EqualsAny(column, notNull)));
+    }
+
+    /**
+     * Match rows where a field of a REPEATED RECORD column is equal to one of the values, ignoring case.
+     * Null values are skipped.
+     *
+     * @param column Column name of the REPEATED RECORD
+     * @param field  Field of the record
+     * @param values Values of the field
+     */
+    public static RecordFilter repeatedEqualsAnyIgnoreCase(String column, String field, String... values) {
+        List<String> lowerValues = lowerCase(values);
+        return new RecordFilter(lowerValues.isEmpty()
+                ? Collections.emptyList()
+                : Collections.singletonList(new RepeatedEqualsAny(column, field, lowerValues)));
+    }
+
+    /**
+     * @return filter matching the rows of this filter or of the other one, the lower bound of this filter is kept
+     */
+    public RecordFilter or(RecordFilter other) {
+        List<Condition> conditions = new ArrayList<>(this.conditions);
+        conditions.addAll(other.conditions);
+        return new RecordFilter(Collections.unmodifiableList(conditions), this.allRows || other.allRows,
+                this.sinceColumn, this.since);
+    }
+
+    /**
+     * Only match rows where the TIMESTAMP column is at or after the time.
+     *
+     * @param column TIMESTAMP column, the partitioning column to skip older partitions
+     * @param from   Lower bound of the column, null for no bound
+     * @return filter with the lower bound
+     */
+    public RecordFilter since(String column, Instant from) {
+        if (from == null) {
+            return this;
+        }
+        return new RecordFilter(this.conditions, this.allRows, column, from);
+    }
+
+    /**
+     * @return true if the filter only bounds the time range, e.g. the de-duplication scan
+     */
+    public boolean matchesAllRows() {
+        return this.allRows;
+    }
+
+    /**
+     * @return condition for the WHERE clause, for example "lower(attendees) like lower('%a@b.com%')"
+     */
+    public String toSql() {
+        StringBuilder sql = new StringBuilder();
+        if (!this.allRows) {
+            for (Condition condition : this.conditions) {
+                if (sql.length() > 0) {
+                    sql.append(" OR ");
+                }
+                condition.appendSql(sql);
+            }
+            if (sql.length() == 0) {
+                sql.append("FALSE");
+            }
+        }
+        if (this.since != null) {
+            if (sql.length() > 0) {
+                sql.insert(0, '(').append(") AND ");
+            }
+            sql.append(this.sinceColumn).append(" >= TIMESTAMP '")
+                    .append(TIMESTAMP_LITERAL.format(this.since)).append("+00'");
+        }
+        return sql.length() > 0 ? sql.toString() : "TRUE";
+    }
+
+    /**
+     * Evaluate the filter on a row.
+     *
+     * @param row Row of the table
+     * @return true if the row is selected
+     */
+    public boolean matches(FieldValueList row) {
+        if (this.since != null) {
+            FieldValue fieldValue = row.get(this.sinceColumn);
+            long sinceMicros = this.since.getEpochSecond() * 1_000_000L + this.since.getNano() / 1_000;
+            if (fieldValue.isNull() || fieldValue.getTimestampValue() < sinceMicros) {
+                return false;
+            }
+        }
+        if (this.allRows) {
+            return true;
+        }
+        for (Condition condition : this.conditions) {
+            FieldValue fieldValue = row.get(condition.column());
+            if (!fieldValue.isNull() && condition.matches(fieldValue.getStringValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return this.toSql();
+    }
+
+    private static List<String> lowerCase(String... values) {
+        List<String> lowerValues = new ArrayList<>();
+        for (String value : values) {
+            if (value != null) {
+                lowerValues.add(value.toLowerCase(Locale.ROOT));
+            }
+        }
+        return lowerValues;
+    }
+
+    private static String quote(String value) {
+        return "'" + UtilsFunction.escapeSqlString(value, '\'') + "'";
+    }
+
+    private static void appendList(StringBuilder sql, List<String> values) {
+        for (int i = 0; i < values.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append(quote(values.get(i)));
+        }
+    }
+
+    /**
+     * Escape the LIKE wildcards, so the value is matched as it is like {@link #matches(FieldValueList)} does.
+     */
+    private static String escapeLikePattern(String value) {
+        return value.replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_");
+    }
+
+    private interface Condition {
+        String column();
+
+        void appendSql(StringBuilder sql);
+
+        /**
+         * @param value Stored value of the column, not null
+         */
+        boolean matches(String value);
+    }
+
+    private static class Contains implements Condition {
+        private final String column;
+        private final String lowerValue;
+
+        Contains(String column, String lowerValue) {
+            this.column = column;
+            this.lowerValue = lowerValue;
+        }
+
+        @Override
+        public String column() {
+            return this.column;
+        }
+
+        @Override
+        public void appendSql(StringBuilder sql) {
+            sql.append("lower(").append(this.column).append(") like lower('%")
+                    .append(UtilsFunction.escapeSqlString(escapeLikePattern(this.lowerValue), '\''))
+                    .append("%')");
+        }
+
+        @Override
+        public boolean matches(String value) {
+            return value.toLowerCase(Locale.ROOT).contains(this.lowerValue);
+        }
+    }
+
+    private static class EqualsAny implements Condition {
+        private final String column;
+        private final List<String> values;
+
+        EqualsAny(String column, List<String> values) {
+            this.column = column;
+            this.values = values;
+        }
+
+        @Override
+        public String column() {
+            return this.column;
+        }
+
+        @Override
+        public void appendSql(StringBuilder sql) {
+            sql.append(this.column).append(" IN (");
+            appendList(sql, this.values);
+            sql.append(")");
+        }
+
+        @Override
+        public boolean matches(String value) {
+            return this.values.contains(value);
+        }
+    }
+
+    private static class RepeatedEqualsAny implements Condition {
+        private final String column;
+        private final String field;
+        private final List<String> lowerValues;
+
+        RepeatedEqualsAny(String column, String field, List<String> lowerValues) {
+            this.column = column;
+            this.field = field;
+            this.lowerValues = lowerValues;
+        }
+
+        @Override
+        public String column() {
+            return this.column;
+        }
+
+        @Override
+        public void appendSql(StringBuilder sql) {
+            sql.append("EXISTS(SELECT 1 FROM UNNEST(").append(this.column).append(") AS item WHERE lower(item.")
+                    .append(this.field).append(") IN (");
+            appendList(sql, this.lowerValues);
+            sql.append("))");
+        }
+
+        /**
+         * The in-memory store keeps a REPEATED RECORD as its JSON array text.
+         */
+        @Override
+        public boolean matches(String value) {
+            if (value.isEmpty()) {
+                return false;
+            }
+            try {
+                for (Object item : Instance.jsonFactory.createJsonParser(value).parseArray(ArrayList.class, Map.class)) {
+                    Object fieldValue = ((Map<?, ?>) item).get(this.field);
+                    if (fieldValue != null && this.lowerValues.contains(fieldValue.toString().toLowerCase(Locale.ROOT))) {
+                        return true;
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                return false;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.notelysia.gcp.util.UtilsFunction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Column changes of one or more tables, run as one BigQuery multi-statement script job
+ * instead of one DDL job per change. The builder checks every change against the schema of the table,
+ * read once from the {@link MetadataCache}, and follows the earlier changes of the same migration,
+ * e.g. a column renamed first is then changed by its new name.
+ * <p>
+ * The script stops at the first failing statement, the statements before it stay applied
+ * (BigQuery does not run DDL in transactions).
+ */
+public final class SchemaMigration {
+    private final List<TableId> tables;
+    private final List<String> statements;
+
+    private SchemaMigration(List<TableId> tables, List<String> statements) {
+        this.tables = List.copyOf(tables);
+        this.statements = List.copyOf(statements);
+    }
+
+    /**
+     * @param bigquery BigQuery Service, used to read the schemas of the tables
+     * @return builder of a migration
+     */
+    public static Builder newBuilder(BigQuery bigquery) {
+        return new Builder(bigquery);
+    }
+
+    /**
+     * @return tables changed by the migration
+     */
+    public List<TableId> getTables() {
+        return this.tables;
+    }
+
+    /**
+     * @return DDL statements of the migration, in order
+     */
+    public List<String> getStatements() {
+        return this.statements;
+    }
+
+    /**
+     * @return true if the migration has no statement to run
+     */
+    public boolean isEmpty() {
+        return this.statements.isEmpty();
+    }
+
+    /**
+     * @return the statements as one script
+     */
+    public String toScript() {
+        return String.join(";\n", this.statements) + ";";
+    }
+
+    public static final class Builder {
+        private static final Logger logger = Logger.getLogger(SchemaMigration.class.getName());
+        private final BigQuery bigquery;
+        private final List<TableId> tables = new ArrayList<>();
+        private final List<String> statements = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+        // Columns of every table as the statements so far leave them, by column name
+        private final Map<TableId, Map<String, Field>> columns = new HashMap<>();
+        private TableId table;
+
+        private Builder(BigQuery bigquery) {
+            this.bigquery = bigquery;
+        }
+
+        /**
+         * Apply the next changes to the table.
+         *
+         * @param dataSetName BigQuery Dataset Name
+         * @param tableName   BigQuery Table Name
+         */
+        public Builder table(String dataSetName, String tableName) {
+            this.table = TableId.of(dataSetName, tableName);
+            if (this.columns.containsKey(this.table)) {
+                return this;
+            }
+            Map<String, Field> tableColumns = new LinkedHashMap<>();
+            Table bigqueryTable = MetadataCache.global().getTable(this.bigquery, dataSetName, tableName);
+            if (bigqueryTable == null) {
+                this.errors.add(String.format("Table %s does not exist", this.name()));
+            } else {
+                Schema schema = bigqueryTable.getDefinition().getSchema();
+                if (schema != null) {
+                    for (Field field : schema.getFields()) {
+                        tableColumns.put(field.getName(), field);
+                    }
+                }
+            }
+            this.columns.put(this.table, tableColumns);
+            this.tables.add(this.table);
+            return this;
+        }
+
+        /**
+         * Rename a column of the table.
+         */
+        public Builder renameColumn(String columnName, String newColumnName) {
+            Field field = this.column(columnName);
+            if (field == null) {
+                return this;
+            }
+            if (this.columns.get(this.table).containsKey(newColumnName)) {
+                this.errors.add(String.format("Column %s already exists in %s", newColumnName, this.name()));
+                return this;
+            }
+            this.alter(String.format("RENAME COLUMN `%s` TO `%s`", columnName, newColumnName));
+            this.columns.get(this.table).remove(columnName);
+            this.columns.get(this.table).put(newColumnName, field.toBuilder().setName(newColumnName).build());
+            return this;
+        }
+
+        /**
+         * Change the description of a column of the table.
+         */
+        public Builder setDescription(String columnName, String description) {
+            if (this.column(columnName) != null) {
+                this.alter(String.format("ALTER COLUMN `%s` SET OPTIONS(description='%s')",
+                        columnName, UtilsFunction.escapeSqlString(description, '\'')));
+            }
+            return this;
+        }
+
+        /**
+         * Change the data type of a column of the table, BigQuery only allows widening conversions.
+         */
+        public Builder setDataType(String columnName, StandardSQLTypeName type) {
+            Field field = this.column(columnName);
+            if (field == null) {
+                return this;
+            }
+            if (field.getType().getStandardType() == StandardSQLTypeName.STRUCT) {
+                this.errors.add(String.format("Column %s of %s is a RECORD, its type cannot be changed",
+                        columnName, this.name()));
+                return this;
+            }
+            this.alter(String.format("ALTER COLUMN `%s` SET DATA TYPE %s", columnName, type));
+            this.columns.get(this.table).put(columnName, field.toBuilder().setType(type).build());
+            return this;
+        }
+
+        /**
+         * Change a REQUIRED column of the table to NULLABLE. A column that is already NULLABLE, or is REPEATED,
+         * is left as it is.
+         */
+        public Builder dropNotNull(String columnName) {
+            Field field = this.column(columnName);
+            if (field == null) {
+                return this;
+            }
+            if (field.getMode() != Field.Mode.REQUIRED) {
+                logger.info(String.format("Error: Column %s is already %s. Skip....", columnName,
+                        field.getMode() == null ? Field.Mode.NULLABLE : field.getMode()));
+                return this;
+            }
+            this.alter(String.format("ALTER COLUMN `%s` DROP NOT NULL", columnName));
+            this.columns.get(this.table).put(columnName, field.toBuilder().setMode(Field.Mode.NULLABLE).build());
+            return this;
+        }
+
+        /**
+         * Change the default value of a column of the table.
+         *
+         * @param defaultValue A string, or for a REPEATED column an array of quoted elements like ["a", "b"]
+         */
+        public Builder setDefault(String columnName, String defaultValue) {
+            Field field = this.column(columnName);
+            if (field == null) {
+                return this;
+            }
+            String literal;
+            if (field.getMode() == Field.Mode.REPEATED) {
+                if (!defaultValue.startsWith("[") || !defaultValue.endsWith("]")) {
+                    this.errors.add(String.format(
+                            "Default value of REPEATED column %s must be arrayed and each element is quoted with \",\"",
+                            columnName));
+                    return this;
+                }
+                literal = defaultValue;
+            } else {
+                literal = "'" + UtilsFunction.escapeSqlString(defaultValue, '\'') + "'";
+            }
+            this.alter(String.format("ALTER COLUMN `%s` SET DEFAULT %s", columnName, literal));
+            return this;
+        }
+
+        /**
+         * @return the migration
+         * @throws IllegalArgumentException if a change does not fit the schema, nothing is run then
+         */
+        public SchemaMigration build() {
+            if (!this.errors.isEmpty()) {
+                throw new IllegalArgumentException("Schema migration not valid: " + String.join("; ", this.errors));
+            }
+            return new SchemaMigration(this.tables, this.statements);
+        }
+
+        private Field column(String columnName) {
+            if (this.table == null) {
+                throw new IllegalStateException("Call table() before the column changes");
+            }
+            Field field = this.columns.get(this.table).get(columnName);
+            if (field == null && !this.columns.get(this.table).isEmpty()) {
+                this.errors.add(String.format("Column %s does not exist in %s", columnName, this.name()));
+            }
+            return field;
+        }
+
+        private void alter(String action) {
+            this.statements.add(String.format("ALTER TABLE `%s.%s.%s` %s",
+                    this.bigquery.getOptions().getProjectId(), this.table.getDataset(), this.table.getTable(), action));
+        }
+
+        private String name() {
+            return this.table.getDataset() + "." + this.table.getTable();
+        }
+    }
+}
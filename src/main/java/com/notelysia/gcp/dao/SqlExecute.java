@@ -19,11 +19,15 @@ package com.notelysia.gcp.dao;
 
 import com.google.cloud.bigquery.*;
 import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.Metrics;
 import com.notelysia.gcp.util.UtilsFunction;
 
 import java.util.List;
 import java.util.UUID;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class SqlExecute {
 
@@ -75,12 +79,7 @@ public class SqlExecute {
                         .setUseLegacySql(false)
                         .build();
 
-        // Create a job ID so that we can safely retry.
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
-
-        // Wait for the query to complete.
-        queryJob = queryJob.waitFor();
+        Job queryJob = this.runQueryJob(bigquery, queryConfig, "bigquery.select_job", dataSetName + "." + tableName);
 
         // Check for errors
         if (queryJob == null) {
@@ -90,209 +89,143 @@ public class SqlExecute {
         }
 
         // Get the results.
-        return queryJob.getQueryResults();
+        try (Span span = Tracing.startSpan("bigquery.job.getQueryResults")) {
+            span.setAttribute("bigquery.job_id", queryJob.getJobId().getJob());
+            TableResult result = queryJob.getQueryResults();
+            span.setAttribute("bigquery.total_rows", result.getTotalRows());
+            return result;
+        }
 
     }
 
     /**
-     * Change the column name in the table using DDL statement
-     * because BigQuery Console, BigQuery API does not support this feature.
+     * Copy all rows of the table to a new table partitioned and clustered with the layout, using DDL statement.
      *
      * @param bigquery    BigQuery Service
      * @param dataSetName Name of the dataset
-     * @param tableName   Name of the table
-     * @param oldName     Old name of the column
-     * @param newName     New name of the column
+     * @param tableName   Name of the table to copy
+     * @param newName     Name of the new table
+     * @param layout      Partitioning, retention and clustering of the new table
      */
-    public void changeColumnName(BigQuery bigquery,
-                                 String dataSetName,
-                                 String tableName,
-                                 String oldName,
-                                 String newName) throws InterruptedException {
-        String ddlStatement = String.format("ALTER TABLE `%s.%s.%s` RENAME COLUMN `%s` TO `%s`",
-                bigquery.getOptions().getProjectId(),
-                dataSetName, tableName, oldName, newName);
+    public void createTableAsSelect(BigQuery bigquery,
+                                    String dataSetName,
+                                    String tableName,
+                                    String newName,
+                                    TableLayout layout) throws InterruptedException {
+        String projectId = bigquery.getOptions().getProjectId();
+        StringBuilder ddlStatement = new StringBuilder(String.format("CREATE TABLE `%s.%s.%s`",
+                projectId, dataSetName, newName));
+        if (layout.isPartitioned()) {
+            ddlStatement.append(String.format(" PARTITION BY TIMESTAMP_TRUNC(`%s`, DAY)", layout.getPartitionField()));
+        }
+        if (!layout.getClusteringFields().isEmpty()) {
+            ddlStatement.append(" CLUSTER BY `").append(String.join("`, `", layout.getClusteringFields())).append('`');
+        }
+        if (layout.isPartitioned()) {
+            ddlStatement.append(" OPTIONS(require_partition_filter=").append(layout.isRequirePartitionFilter());
+            if (layout.getRetentionDays() > 0) {
+                ddlStatement.append(", partition_expiration_days=").append(layout.getRetentionDays());
+            }
+            ddlStatement.append(')');
+        }
+        ddlStatement.append(String.format(" AS SELECT * FROM `%s.%s.%s`", projectId, dataSetName, tableName));
 
-        QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(ddlStatement)
+        QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(ddlStatement.toString())
                 .setUseLegacySql(false)
                 .build();
-
-        // Create a job ID so that we can safely retry.
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
-
-        // Wait for the query to complete.
-        queryJob = queryJob.waitFor();
+        Job queryJob = this.runQueryJob(bigquery, queryConfig, "bigquery.ddl_job", dataSetName + "." + tableName);
         // Check for errors
         if (queryJob == null) {
             throw new RuntimeException("Job no longer exists");
         } else if (queryJob.getStatus().getError() != null) {
             throw new RuntimeException(queryJob.getStatus().getExecutionErrors().toString());
         }
-        logger.info(String.format("Column: %s renamed to %s successfully", oldName, newName));
-    }
-
-    /**
-     * Change the column description in the table using DDL statement
-     *
-     * @param bigquery    BigQuery Service
-     * @param dataSetName Name of the dataset
-     * @param tableName   Name of the table
-     * @param columnName  Name of the column
-     * @param description Description of the column
-     */
-    public void changeColumnDescription(BigQuery bigquery,
-                                        String dataSetName,
-                                        String tableName,
-                                        String columnName,
-                                        String description) throws InterruptedException {
-        String ddlStatement = String.format("ALTER TABLE `%s.%s.%s` ALTER COLUMN `%s` SET OPTIONS(description='%s')",
-                bigquery.getOptions().getProjectId(),
-                dataSetName, tableName, columnName, description);
-
-        QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(ddlStatement)
-                .setUseLegacySql(false)
-                .build();
-
-        // Create a job ID so that we can safely retry.
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
-
-        // Wait for the query to complete.
-        queryJob = queryJob.waitFor();
-        // Check for errors
-        if (queryJob == null) {
-            logger.info("Job no longer exists");
-        } else if (queryJob.getStatus().getError() != null) {
-            logger.warning(queryJob.getStatus().getExecutionErrors().toString());
-        }
-        logger.info(String.format("Column: %s description updated successfully", columnName));
+        logger.info(String.format("Table: %s copied to %s successfully", tableName, newName));
     }
 
     /**
-     * Change the column data type in the table using DDL statement.
-     * Not recommend to use this method, please use Google Cloud Console for better result
+     * Rename the table using DDL statement.
      *
      * @param bigquery    BigQuery Service
      * @param dataSetName Name of the dataset
      * @param tableName   Name of the table
-     * @param columnName  Name of the column
-     * @param newType     New data type of the column
+     * @param newName     New name of the table
      */
-    public void changeColumnDataType(BigQuery bigquery,
-                                     String dataSetName,
-                                     String tableName,
-                                     String columnName,
-                                     StandardSQLTypeName newType) throws InterruptedException {
-        String ddlStatement = String.format("ALTER TABLE `%s.%s.%s` ALTER COLUMN `%s` SET DATA TYPE %s",
-                bigquery.getOptions().getProjectId(),
-                dataSetName, tableName, columnName, newType.toString());
+    public void renameTable(BigQuery bigquery,
+                            String dataSetName,
+                            String tableName,
+                            String newName) throws InterruptedException {
+        String ddlStatement = String.format("ALTER TABLE `%s.%s.%s` RENAME TO `%s`",
+                bigquery.getOptions().getProjectId(), dataSetName, tableName, newName);
 
         QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(ddlStatement)
                 .setUseLegacySql(false)
                 .build();
-
-        // Create a job ID so that we can safely retry.
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
-
-        // Wait for the query to complete.
-        queryJob = queryJob.waitFor();
+        Job queryJob = this.runQueryJob(bigquery, queryConfig, "bigquery.ddl_job", dataSetName + "." + tableName);
         // Check for errors
         if (queryJob == null) {
-            logger.info("Job no longer exists");
+            throw new RuntimeException("Job no longer exists");
         } else if (queryJob.getStatus().getError() != null) {
-            logger.warning(queryJob.getStatus().getExecutionErrors().toString());
+            throw new RuntimeException(queryJob.getStatus().getExecutionErrors().toString());
         }
-
-        logger.info(String.format("Column: %s data type updated successfully", columnName));
+        logger.info(String.format("Table: %s renamed to %s successfully", tableName, newName));
     }
 
     /**
-     * Change the column nullable in the table using DDL statement.
-     * This method only work if column mode is REQUIRED and only support from REQUIRED to NULLABLE
+     * Method to set the expiration of the partitions of a partitioned table.
      *
-     * @param bigquery    BigQuery Service
-     * @param dataSetName Name of the dataset
-     * @param tableName   Name of the table
-     * @param columnName  Name of the column
+     * @param bigquery      BigQuery client
+     * @param dataSetName   BigQuery Dataset Name
+     * @param tableName     BigQuery Table Name
+     * @param retentionDays Days a partition is kept, 0 to keep it forever
      */
-    public void changeColumnNullable(BigQuery bigquery,
-                                     String dataSetName,
-                                     String tableName,
-                                     String columnName) throws InterruptedException {
-        String ddlStatement = String.format("ALTER TABLE `%s.%s.%s` ALTER COLUMN `%s` DROP NOT NULL",
-                bigquery.getOptions().getProjectId(),
-                dataSetName, tableName, columnName);
+    public void setPartitionExpiration(BigQuery bigquery,
+                                       String dataSetName,
+                                       String tableName,
+                                       long retentionDays) throws InterruptedException {
+        String ddlStatement = String.format("ALTER TABLE `%s.%s.%s` SET OPTIONS(partition_expiration_days=%s)",
+                bigquery.getOptions().getProjectId(), dataSetName, tableName,
+                retentionDays > 0 ? String.valueOf(retentionDays) : "NULL");
 
         QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(ddlStatement)
                 .setUseLegacySql(false)
                 .build();
-
-        // Create a job ID so that we can safely retry.
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
-
-        // Wait for the query to complete.
-        queryJob = queryJob.waitFor();
+        Job queryJob = this.runQueryJob(bigquery, queryConfig, "bigquery.ddl_job", dataSetName + "." + tableName);
         // Check for errors
         if (queryJob == null) {
-            logger.info("Job no longer exists");
+            throw new RuntimeException("Job no longer exists");
         } else if (queryJob.getStatus().getError() != null) {
-            logger.warning(queryJob.getStatus().getExecutionErrors().toString());
+            throw new RuntimeException(queryJob.getStatus().getExecutionErrors().toString());
         }
-        logger.info(String.format("Column: %s update to nullable successfully", columnName));
+        logger.info(String.format("Table: %s partition expiration set to %d days successfully", tableName, retentionDays));
     }
 
     /**
-     * Change the column default value in the table using DDL statement.
+     * Run the statements of the migration as one multi-statement script job.
      *
-     * @param bigquery     BigQuery Service
-     * @param dataSetName  Name of the dataset
-     * @param tableName    Name of the table
-     * @param columnName   Name of the column
-     * @param mode         If field mode is REPEATED, default value must be arrayed
-     * @param defaultValue Default value of the column.
-     *                     If field mode is REPEATED, default value must be arrayed
-     *                     and each element is quoted with ","
+     * @param bigquery  BigQuery Service
+     * @param migration Column changes of one or more tables
      */
-    public void changeColumnDefaultValue(BigQuery bigquery,
-                                         String dataSetName,
-                                         String tableName,
-                                         String columnName,
-                                         Field.Mode mode,
-                                         String defaultValue) throws InterruptedException {
-        if (mode == Field.Mode.REPEATED) {
-            //Check default value is arrayed and each element is quoted with ","
-            if (!defaultValue.startsWith("[") || !defaultValue.endsWith("]")) {
-                logger.warning("Error: Default value must be arrayed and each element is quoted with \",\"");
-                return;
-            }
-        } else {
-            defaultValue = "'" + defaultValue + "'";
+    public void executeSchemaMigration(BigQuery bigquery,
+                                       SchemaMigration migration) throws InterruptedException {
+        if (migration.isEmpty()) {
+            return;
         }
-
-        String ddlStatement = String.format("ALTER TABLE `%s.%s.%s` ALTER COLUMN `%s` SET DEFAULT %s",
-                bigquery.getOptions().getProjectId(),
-                dataSetName, tableName, columnName, defaultValue);
-
-        QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(ddlStatement)
+        String tables = migration.getTables().stream()
+                .map(table -> table.getDataset() + "." + table.getTable())
+                .collect(Collectors.joining(","));
+        QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(migration.toScript())
                 .setUseLegacySql(false)
                 .build();
-
-        // Create a job ID so that we can safely retry.
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
-
-        // Wait for the query to complete.
-        queryJob = queryJob.waitFor();
-        // Check for errors
+        Job queryJob = this.runQueryJob(bigquery, queryConfig, "bigquery.script_job", tables);
+        // Check for errors, the statements before the failing one are applied
         if (queryJob == null) {
-            logger.info("Job no longer exists");
+            throw new RuntimeException("Job no longer exists");
         } else if (queryJob.getStatus().getError() != null) {
-            logger.warning(queryJob.getStatus().getExecutionErrors().toString());
+            throw new RuntimeException(queryJob.getStatus().getExecutionErrors().toString());
         }
-        logger.info(String.format("Column: %s default value updated successfully", columnName));
+        logger.info(String.format("Schema migration of %s: %d statements applied successfully",
+                tables, migration.getStatements().size()));
     }
 
     /**
@@ -318,11 +251,7 @@ public class SqlExecute {
         QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(sqlQuery.toString())
                 .setUseLegacySql(false)
                 .build();
-        // Create a job ID so that we can safely retry.
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
-        // Wait for the query to complete.
-        queryJob = queryJob.waitFor();
+        Job queryJob = this.runQueryJob(bigquery, queryConfig, "bigquery.update_job", dataSetName + "." + tableName);
         // Check for errors
         if (queryJob == null) {
             logger.info("Job no longer exists");
@@ -332,45 +261,113 @@ public class SqlExecute {
     }
 
     /**
-     * Get the WHERE and SET statement for CalendarEvent record
+     * Create the query job and wait for it to complete.
+     * The job insert and the wait are traced as separate spans with the job ID and the bytes processed,
+     * the statistics of the job are recorded in the {@link QueryCostLedger}.
+     *
+     * @param queryConfig Query job configuration
+     * @param stage       Metrics stage of the job
+     * @param table       Table of the query, "dataset.table"
+     * @return the completed job, or null if the job no longer exists
+     */
+    private Job runQueryJob(BigQuery bigquery,
+                            QueryJobConfiguration queryConfig,
+                            String stage,
+                            String table) throws InterruptedException {
+        // Create a job ID so that we can safely retry.
+        JobId jobId = JobId.of(UUID.randomUUID().toString());
+        Metrics.increment("bigquery_jobs", 1);
+        try (Metrics.Timer ignored = Metrics.time(stage)) {
+            Job queryJob;
+            try (Span span = Tracing.startSpan("bigquery.jobs.insert")) {
+                span.setAttribute("bigquery.job_id", jobId.getJob());
+                queryJob = bigquery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
+            }
+            try (Span span = Tracing.startSpan("bigquery.job.wait")) {
+                span.setAttribute("bigquery.job_id", jobId.getJob());
+                // Wait for the query to complete.
+                queryJob = queryJob.waitFor();
+                if (queryJob == null) {
+                    span.recordError("Job no longer exists");
+                } else {
+                    JobStatistics.QueryStatistics statistics = queryJob.getStatistics();
+                    if (statistics != null) {
+                        if (statistics.getTotalBytesProcessed() != null) {
+                            span.setAttribute("bigquery.bytes_processed", statistics.getTotalBytesProcessed());
+                        }
+                        if (statistics.getTotalBytesBilled() != null) {
+                            span.setAttribute("bigquery.bytes_billed", statistics.getTotalBytesBilled());
+                        }
+                        if (statistics.getTotalSlotMs() != null) {
+                            span.setAttribute("bigquery.slot_ms", statistics.getTotalSlotMs());
+                        }
+                        if (statistics.getCacheHit() != null) {
+                            span.setAttribute("bigquery.cache_hit", statistics.getCacheHit());
+                        }
+                    }
+                    QueryCostLedger.global().record(table, queryConfig.getQuery(), statistics);
+                    if (queryJob.getStatus().getError() != null) {
+                        span.recordError(queryJob.getStatus().getError().getMessage());
+                    }
+                }
+            }
+            return queryJob;
+        }
+    }
+
+    /**
+     * Get the WHERE and SET statement for CalendarEvent record.
+     * The columns are the camelCase columns of the model schema, see {@code ModelSchema}.
      *
      * @param record CalendarEvent record
      * @return WHERE and SET statement for UPDATE query
      */
     private String getWhereAndSetForCalendarEvent(CalendarEvent record) {
-        String formatAttendees;
-        if (UtilsFunction.isValidJson(record.getAttendees())) {
-            formatAttendees = "'%s'";
-        } else {
-            formatAttendees = "\"%s\"";
+        return "SET `eventTitle` = " + stringLiteral(record.getEventTitle()) + ", " +
+                "`eventType` = " + stringLiteral(record.getEventType()) + ", " +
+                "`status` = " + stringLiteral(record.getStatus()) + ", " +
+                "`updatedTime` = " + timestampLiteral(record.getUpdatedTime()) + ", " +
+                "`creator` = " + stringLiteral(record.getCreator()) + ", " +
+                "`organizer` = " + stringLiteral(record.getOrganizer()) + ", " +
+                "`eventLink` = " + stringLiteral(record.getEventLink()) + ", " +
+                "`attendees` = " + stringLiteral(record.getAttendees()) + ", " +
+                "`startTime` = " + timestampLiteral(record.getStartTime()) + ", " +
+                "`endTime` = " + timestampLiteral(record.getEndTime()) + ", " +
+                "`totalTime` = " + stringLiteral(record.getTotalTime()) + ", " +
+                "`ownerAccountId` = " + (record.getOwnerAccountId() != null
+                ? stringLiteral(record.getOwnerAccountId()) : "`ownerAccountId`") + ", " +
+                "`attendee` = " + attendeeArray(record.getAttendee()) + " " +
+                // The event stays in the partition of its creation time, which is also the required partition filter
+                "WHERE `eventId` = " + stringLiteral(record.getEventId()) +
+                " AND `createdTime` = " + timestampLiteral(record.getCreatedTime());
+    }
+
+    /**
+     * The JSON array of {"email", "responseStatus"} objects as the REPEATED RECORD value of the attendee column.
+     *
+     * @param attendee JSON array of the CSV attendee column
+     * @return ARRAY of STRUCT expression, an empty array for a value that is not a JSON array
+     */
+    private static String attendeeArray(String attendee) {
+        if (!UtilsFunction.isValidJson(attendee) || !attendee.trim().startsWith("[")) {
+            return "[]";
         }
-        return String.format(
-                "SET event_title = \"%s\", " +
-                        "event_type = \"%s\", " +
-                        "status = \"%s\", " +
-                        "created_time = \"%s\", " +
-                        "updated_time = \"%s\", " +
-                        "creator = \"%s\", " +
-                        "organizer = \"%s\", " +
-                        "event_link = \"%s\", " +
-                        "attendees = " + formatAttendees + ", " +
-                        "start_time = \"%s\", " +
-                        "end_time = \"%s\", " +
-                        "total_time = \"%s\" " +
-                        "WHERE event_id = \"%s\"",
-                record.getEventTitle(),
-                record.getEventType(),
-                record.getStatus(),
-                record.getCreatedTime(),
-                record.getUpdatedTime(),
-                record.getCreator(),
-                record.getOrganizer(),
-                record.getEventLink(),
-                record.getAttendees(),
-                record.getStartTime(),
-                record.getEndTime(),
-                record.getTotalTime(),
-                record.getEventId()
-        );
+        return "ARRAY(SELECT AS STRUCT JSON_VALUE(item, '$.email') AS email, " +
+                "JSON_VALUE(item, '$.responseStatus') AS responseStatus " +
+                "FROM UNNEST(JSON_QUERY_ARRAY(" + stringLiteral(attendee) + ")) AS item)";
+    }
+
+    /**
+     * @return the value as a double-quoted Standard SQL string literal, NULL for null
+     */
+    private static String stringLiteral(String value) {
+        return value != null ? "\"" + UtilsFunction.escapeSqlString(value, '"') + "\"" : "NULL";
+    }
+
+    /**
+     * @return the value as a TIMESTAMP expression, NULL for null or an empty value
+     */
+    private static String timestampLiteral(String value) {
+        return value != null && !value.isEmpty() ? "TIMESTAMP(" + stringLiteral(value) + ")" : "NULL";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.Clustering;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardTableDefinition;
+import com.google.cloud.bigquery.TableDefinition;
+import com.google.cloud.bigquery.TimePartitioning;
+import com.notelysia.gcp.model.BigQueryColumn;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.UtilsFunction;
+import com.opencsv.bean.CsvBindByName;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Partitioning and clustering of a table. The table is partitioned by day on a TIMESTAMP column,
+ * BigQuery drops the partitions older than the retention, and with the partition filter required
+ * every query must bound the partitioning column, so no request scans the whole table.
+ * The layout of a model table is read from its {@link BigQueryColumn} annotations.
+ */
+public final class TableLayout {
+    private static final Map<Class<?>, TableLayout> layouts = new ConcurrentHashMap<>();
+
+    private final String partitionField;
+    private final long retentionDays;
+    private final boolean requirePartitionFilter;
+    private final List<String> clusteringFields;
+    // Field of the model with the partitioning column, null for a layout not made from a model
+    private final java.lang.reflect.Field modelField;
+
+    /**
+     * @param partitionField         TIMESTAMP column of the daily partitions, null for an unpartitioned table
+     * @param retentionDays          Days a partition is kept, 0 to keep it forever
+     * @param requirePartitionFilter Reject queries without a filter on the partitioning column
+     * @param clusteringFields       Columns the rows of a partition are sorted by, can be empty
+     */
+    public TableLayout(String partitionField,
+                       long retentionDays,
+                       boolean requirePartitionFilter,
+                       List<String> clusteringFields) {
+        this(partitionField, retentionDays, requirePartitionFilter, clusteringFields, null);
+    }
+
+    private TableLayout(String partitionField,
+                        long retentionDays,
+                        boolean requirePartitionFilter,
+                        List<String> clusteringFields,
+                        java.lang.reflect.Field modelField) {
+        this.partitionField = partitionField;
+        this.retentionDays = retentionDays;
+        this.requirePartitionFilter = requirePartitionFilter;
+        this.clusteringFields = List.copyOf(clusteringFields);
+        this.modelField = modelField;
+    }
+
+    /**
+     * @param clazz Model class of the CSV file
+     * @return layout of the table of the model, with the retention of the configuration unless the
+     * partitioning column is not expiring
+     */
+    public static TableLayout of(Class<?> clazz) {
+        return layouts.computeIfAbsent(clazz, TableLayout::generate);
+    }
+
+    public String getPartitionField() {
+        return this.partitionField;
+    }
+
+    public long getRetentionDays() {
+        return this.retentionDays;
+    }
+
+    public boolean isRequirePartitionFilter() {
+        return this.requirePartitionFilter;
+    }
+
+    public List<String> getClusteringFields() {
+        return this.clusteringFields;
+    }
+
+    public boolean isPartitioned() {
+        return this.partitionField != null;
+    }
+
+    /**
+     * @param schema Schema of the table
+     * @return definition of a new table with this layout
+     */
+    public StandardTableDefinition definition(Schema schema) {
+        StandardTableDefinition.Builder builder = StandardTableDefinition.newBuilder().setSchema(schema);
+        if (this.isPartitioned()) {
+            TimePartitioning.Builder partitioning = TimePartitioning.newBuilder(TimePartitioning.Type.DAY)
+                    .setField(this.partitionField)
+                    .setRequirePartitionFilter(this.requirePartitionFilter);
+            if (this.retentionDays > 0) {
+                partitioning.setExpirationMs(Duration.ofDays(this.retentionDays).toMillis());
+            }
+            builder.setTimePartitioning(partitioning.build());
+        }
+        if (!this.clusteringFields.isEmpty()) {
+            builder.setClustering(Clustering.newBuilder().setFields(this.clusteringFields).build());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param definition Definition of an existing table
+     * @return true if the table is partitioned and clustered on the columns of this layout
+     */
+    public boolean matches(TableDefinition definition) {
+        if (!(definition instanceof StandardTableDefinition)) {
+            return false;
+        }
+        StandardTableDefinition table = (StandardTableDefinition) definition;
+        TimePartitioning partitioning = table.getTimePartitioning();
+        String tablePartitionField = partitioning != null ? partitioning.getField() : null;
+        List<String> tableClustering = table.getClustering() != null && table.getClustering().getFields() != null
+                ? table.getClustering().getFields() : Collections.emptyList();
+        return Objects.equals(this.partitionField, tablePartitionField)
+                && this.clusteringFields.equals(tableClustering);
+    }
+
+    /**
+     * Bound the filter to the partitions the user pages show.
+     *
+     * @param filter Filter of the user's records
+     * @return the filter limited to the last days of the configuration,
+     * or to every partition for a table whose partitions never expire
+     */
+    public RecordFilter withinReadWindow(RecordFilter filter) {
+        if (!this.isPartitioned()) {
+            return filter;
+        }
+        if (this.retentionDays <= 0) {
+            // The partition filter is still required
+            return filter.since(this.partitionField, Instant.EPOCH);
+        }
+        return filter.since(this.partitionField, Instant.now().minus(Duration.ofDays(Instance.bigqueryReadLookbackDays)));
+    }
+
+    /**
+     * Filter of the de-duplication scan: only the partitions the new records fall in or after can hold them.
+     *
+     * @param records Records of the model about to be loaded
+     * @return filter from the earliest partitioning value of the records, null to scan the whole table
+     */
+    public RecordFilter scanFilter(List<?> records) {
+        if (!this.isPartitioned() || this.modelField == null) {
+            return null;
+        }
+        Instant earliest = null;
+        for (Object record : records) {
+            Object value;
+            try {
+                value = this.modelField.get(record);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            Instant time = value != null ? UtilsFunction.parseTimestamp(value.toString()) : null;
+            if (time != null && (earliest == null || time.isBefore(earliest))) {
+                earliest = time;
+            }
+        }
+        // Every partition still has to be bounded when no record has a time
+        return RecordFilter.all().since(this.partitionField, earliest != null ? earliest : Instant.EPOCH);
+    }
+
+    private static TableLayout generate(Class<?> clazz) {
+        String partitionField = null;
+        java.lang.reflect.Field partitionModelField = null;
+        long retentionDays = Instance.bigqueryPartitionRetentionDays;
+        Map<Integer, String> clustering = new TreeMap<>();
+        for (java.lang.reflect.Field modelField : clazz.getDeclaredFields()) {
+            CsvBindByName binding = modelField.getAnnotation(CsvBindByName.class);
+            BigQueryColumn column = modelField.getAnnotation(BigQueryColumn.class);
+            if (binding == null || column == null) {
+                continue;
+            }
+            String name = binding.column().isEmpty() ? modelField.getName() : binding.column();
+            if (column.partitioning()) {
+                partitionField = name;
+                partitionModelField = modelField;
+                partitionModelField.setAccessible(true);
+                if (!column.expiring()) {
+                    retentionDays = 0;
+                }
+            }
+            if (column.clustering() > 0) {
+                clustering.put(column.clustering(), name);
+            }
+        }
+        return new TableLayout(partitionField, retentionDays,
+                Instance.bigqueryPartitionRequireFilter, new ArrayList<>(clustering.values()), partitionModelField);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.Schema;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Storage operations used by the ingestion path: dataset and table creation, CSV load, SELECT and UPDATE.
+ * {@link BigQueryTableStore} sends them to BigQuery, {@link InMemoryTableStore} keeps the tables in memory
+ * for offline load and latency testing.
+ */
+public interface TableStore {
+
+    /**
+     * Check if dataset available or not.
+     *
+     * @param dataSetName Dataset Name
+     */
+    boolean datasetExists(String dataSetName);
+
+    /**
+     * Create new dataset.
+     *
+     * @param dataSetName Dataset Name
+     */
+    void createDataset(String dataSetName);
+
+    /**
+     * Check table is available or not.
+     *
+     * @param dataSetName Dataset Name
+     * @param tableName   Table Name
+     */
+    boolean tableExists(String dataSetName, String tableName);
+
+    /**
+     * Create new empty table.
+     *
+     * @param dataSetName Dataset Name
+     * @param tableName   Table Name
+     * @param schema      Table Schema, null for a table without fields
+     * @param layout      Partitioning and clustering, null for an unpartitioned table
+     */
+    void createTable(String dataSetName, String tableName, Schema schema, TableLayout layout);
+
+    /**
+     * Get the last modified time of the table.
+     *
+     * @param dataSetName Dataset Name
+     * @param tableName   Table Name
+     * @return last modified time in milliseconds, 0 if table does not exist
+     */
+    long getTableLastModified(String dataSetName, String tableName);
+
+    /**
+     * Load a CSV file with a header row to the table. Columns are matched by header name.
+     *
+     * @param dataSetName Dataset Name
+     * @param tableName   Table Name
+     * @param path        Path of the CSV file
+     * @param schema      Schema to create the table with if it does not exist, null to load to an existing table
+     */
+    void loadCsv(String dataSetName,
+                 String tableName,
+                 Path path,
+                 Schema schema) throws IOException, InterruptedException;
+
+    /**
+     * Select all columns of the table.
+     *
+     * @param dataSetName Dataset Name
+     * @param tableName   Table Name
+     * @param columnOrder Columns of the ORDER BY clause, the last one is sorted descending (can be null)
+     * @param filter      WHERE condition (can be null)
+     * @return rows of the result
+     */
+    Iterable<FieldValueList> select(String dataSetName,
+                                    String tableName,
+                                    List<String> columnOrder,
+                                    RecordFilter filter) throws InterruptedException;
+
+    /**
+     * Update a record in the table.
+     *
+     * @param dataSetName Dataset Name
+     * @param tableName   Table Name
+     * @param record      Record to update
+     */
+    <T> void updateRecord(String dataSetName, String tableName, T record) throws InterruptedException;
+}
@@ -21,11 +21,23 @@ import com.google.api.services.calendar.Calendar;
 import com.google.api.services.calendar.model.*;
 import lombok.Getter;
 import lombok.Setter;
+import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.CsvWriter;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
+import com.notelysia.gcp.util.TimeWindow;
 import com.notelysia.gcp.util.UtilsFunction;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -34,6 +46,12 @@ import java.util.stream.Collectors;
 public class CalendarLogic {
     private static final Logger logger = Logger.getLogger(CalendarLogic.class.getName());
     private Calendar calendarService;
+    private TimeWindow timeWindow = TimeWindow.systemUTC();
+    private RequestGovernor requestGovernor = RequestGovernor.unthrottled();
+    // User the requests are made for, used for the per-user rate limit
+    private String userId;
+    // Saved pages of an unfinished crawl, resumed by the next run of the same user
+    private CrawlCheckpointStore checkpointStore = CrawlCheckpointStore.fromConfig();
 
     public CalendarLogic() {
     }
@@ -41,47 +59,140 @@ public class CalendarLogic {
     /**
      * Download the calendar event list from the primary calendar.
      * If service account not enable Domain-wide Delegation, the service account must be an attendee in the event.
+     * Events are saved in the checkpoint of the user page by page and written to the CSV file at the end,
+     * a crawl that stops midway continues from its last saved page on the next call in the same month.
      *
      * @throws IOException for request return error message
      */
     public void downloadCalendarList(String csvFile) throws IOException {
-        //Create an empty list to store the activities and write to the new file
-        List<String> calendarList = new ArrayList<>();
-        String csvHeader = "eventId," +
-                "eventTitle," +
-                "eventType," +
-                "status," +
-                "createdTime," +
-                "updatedTime," +
-                "creator," +
-                "organizer," +
-                "eventLink," +
-                "attendees," +
-                "startTime," +
-                "endTime," +
-                "totalTime";
         logger.info("Download calendar list");
+        try (CrawlCheckpointStore.Checkpoint checkpoint =
+                     this.checkpointStore.open("calendar-" + this.userId)) {
+            DateTime timeMin = this.timeWindow.firstDayOfMonth();
+            DateTime timeMax = this.timeWindow.lastDayOfMonth();
+            String window = timeMin + "/" + timeMax;
+            if (checkpoint.isResumed() && !window.equals(checkpoint.get("window"))) {
+                // The month changed, page tokens of the old time range are not valid anymore
+                checkpoint.reset();
+            }
+            checkpoint.put("window", window);
+            Set<String> completedCalendars = new LinkedHashSet<>();
+            String completed = checkpoint.get("completedCalendars");
+            if (completed != null && !completed.isEmpty()) {
+                completedCalendars.addAll(Arrays.asList(completed.split("\n")));
+            }
+            String nextPageToken = checkpoint.get("calendarListPageToken");
+            do {
+                CalendarList calendarIdList;
+                try (Span span = Tracing.startSpan("calendar.calendarList.list")) {
+                    Calendar.CalendarList.List request = this.calendarService.calendarList()
+                            .list()
+                            .setPageToken(nextPageToken);
+                    calendarIdList = this.requestGovernor.execute("calendar", this.userId, request::execute);
+                    span.setAttribute("page.calendars",
+                            calendarIdList.getItems() != null ? calendarIdList.getItems().size() : 0);
+                    span.setAttribute("page.has_next", calendarIdList.getNextPageToken() != null);
+                }
+                List<String> calendarIds = new ArrayList<>();
+                List<CalendarListEntry> items = calendarIdList.getItems();
+                if (items != null && !items.isEmpty()) {
+                    for (CalendarListEntry entry : items) {
+                        calendarIds.add(entry.getId());
+                    }
+                } else {
+                    calendarIds.add("primary");
+                }
+                for (String calendarId : calendarIds) {
+                    if (completedCalendars.add(calendarId)) {
+                        this.collectAllEventList(checkpoint, calendarId, timeMin, timeMax);
+                        checkpoint.put("completedCalendars", String.join("\n", completedCalendars));
+                        checkpoint.put("currentCalendar", null);
+                        checkpoint.put("eventsPageToken", null);
+                        checkpoint.commit();
+                    }
+                }
+                nextPageToken = calendarIdList.getNextPageToken();
+                checkpoint.put("calendarListPageToken", nextPageToken);
+                checkpoint.commit();
+            } while (nextPageToken != null);
+
+            this.writeEvents(checkpoint, csvFile);
+            checkpoint.complete();
+        }
+    }
+
+    /**
+     * List the calendars of the user, used to collect every calendar in its own background task.
+     *
+     * @return calendar IDs, "primary" if the calendar list is empty
+     * @throws IOException for request return error message
+     */
+    public List<String> listCalendarIds() throws IOException {
+        List<String> calendarIds = new ArrayList<>();
         String nextPageToken = null;
         do {
-            CalendarList calendarIdList = this.calendarService.calendarList()
-                    .list()
-                    .setPageToken(nextPageToken)
-                    .execute();
-            List<CalendarListEntry> items = calendarIdList.getItems();
-            if (items != null && !items.isEmpty()) {
-                for (CalendarListEntry entry : items) {
-                    this.collectAllEventList(calendarList, entry.getId());
+            CalendarList calendarIdList;
+            try (Span span = Tracing.startSpan("calendar.calendarList.list")) {
+                Calendar.CalendarList.List request = this.calendarService.calendarList()
+                        .list()
+                        .setPageToken(nextPageToken);
+                calendarIdList = this.requestGovernor.execute("calendar", this.userId, request::execute);
+                span.setAttribute("page.calendars",
+                        calendarIdList.getItems() != null ? calendarIdList.getItems().size() : 0);
+                span.setAttribute("page.has_next", calendarIdList.getNextPageToken() != null);
+            }
+            if (calendarIdList.getItems() != null) {
+                for (CalendarListEntry entry : calendarIdList.getItems()) {
+                    calendarIds.add(entry.getId());
                 }
-            } else {
-                this.collectAllEventList(calendarList, "primary");
             }
             nextPageToken = calendarIdList.getNextPageToken();
         } while (nextPageToken != null);
+        if (calendarIds.isEmpty()) {
+            calendarIds.add("primary");
+        }
+        return calendarIds;
+    }
 
-        if (!calendarList.isEmpty()) {
-            UtilsFunction.writeToCSV(calendarList, csvHeader, csvFile);
-        } else {
-            logger.info("No upcoming events found.");
+    /**
+     * Download the events of one calendar of the user in the current month.
+     * The calendar has its own checkpoint, so the calendars of a user can be crawled at the same time.
+     *
+     * @param calendarId Calendar ID use to get the event list
+     * @param csvFile    CSV file the events are written to
+     * @throws IOException for request return error message
+     */
+    public void downloadCalendar(String calendarId, String csvFile) throws IOException {
+        logger.info("Download calendar " + calendarId);
+        try (CrawlCheckpointStore.Checkpoint checkpoint =
+                     this.checkpointStore.open("calendar-" + this.userId + "-" + calendarId)) {
+            DateTime timeMin = this.timeWindow.firstDayOfMonth();
+            DateTime timeMax = this.timeWindow.lastDayOfMonth();
+            String window = timeMin + "/" + timeMax;
+            if (checkpoint.isResumed() && !window.equals(checkpoint.get("window"))) {
+                checkpoint.reset();
+            }
+            checkpoint.put("window", window);
+            // A run that stopped while writing the CSV file does not crawl the saved events again
+            if (!"true".equals(checkpoint.get("eventsCompleted"))) {
+                this.collectAllEventList(checkpoint, calendarId, timeMin, timeMax);
+                checkpoint.put("eventsCompleted", "true");
+                checkpoint.commit();
+            }
+            this.writeEvents(checkpoint, csvFile);
+            checkpoint.complete();
+        }
+    }
+
+    /**
+     * Write the events saved in the checkpoint to the CSV file.
+     */
+    private void writeEvents(CrawlCheckpointStore.Checkpoint checkpoint, String csvFile) throws IOException {
+        try (CsvWriter csvWriter = new CsvWriter(csvFile, CsvWriter.CALENDAR_EVENT_HEADER)) {
+            checkpoint.forEachItem(Event.class, event -> csvWriter.writeRow(this.toCalendarEvent(event)));
+            if (csvWriter.getRowCount() == 0) {
+                logger.info("No upcoming events found.");
+            }
         }
     }
 
@@ -89,71 +200,89 @@ public class CalendarLogic {
      * Collect all events from the calendar
      * To collect all events in one week, one month, use the timeMin and timeMax parameter
      *
-     * @param calendarList List to store all events
-     * @param calendarId   Calendar ID use to get the event list
+     * @param checkpoint Checkpoint to save every page of events
+     * @param calendarId Calendar ID use to get the event list
+     * @param timeMin    Start of the time range
+     * @param timeMax    End of the time range
      * @throws IOException for request return error message
      */
-    private void collectAllEventList(List<String> calendarList,
-                                     String calendarId) throws IOException {
-        String nextPageToken = null;
+    private void collectAllEventList(CrawlCheckpointStore.Checkpoint checkpoint,
+                                     String calendarId,
+                                     DateTime timeMin,
+                                     DateTime timeMax) throws IOException {
+        // Continue the calendar the last run stopped in
+        String nextPageToken = calendarId.equals(checkpoint.get("currentCalendar"))
+                ? checkpoint.get("eventsPageToken") : null;
+        checkpoint.put("currentCalendar", calendarId);
+        int pageIndex = 0;
         do {
             // Use setTimeMax and setTimeMin to get the event list in a specific time range
-            Events events = this.calendarService.events().list(calendarId)
-                    .setMaxResults(10)
-                    .setSingleEvents(false)
-                    .setShowDeleted(true)
-                    .setShowHiddenInvitations(true)
-                    .setOrderBy("updated")
-                    .setTimeMin(UtilsFunction.getFirstDayOfMonth())
-                    .setTimeMax(UtilsFunction.getLastDayOfMonth())
-                    .setPageToken(nextPageToken)
-                    .execute();
-            List<Event> eventItems = this.removeUnknownEvent(events.getItems());
-            if (eventItems != null && !eventItems.isEmpty()) {
-                for (Event event : eventItems) {
-                    String eventId = event.getId();
-                    String eventTitle = event.getSummary();
-                    String evenType = event.getEventType();
-                    String eventStatus = event.getStatus();
-                    DateTime createdTime = event.getCreated();
-                    DateTime updatedTime = event.getUpdated() != null ? event.getUpdated() : createdTime;
-                    String creator = event.getCreator() != null ? event.getCreator().getEmail() : "";
-                    String organizerEmail = event.getOrganizer() != null ? event.getOrganizer().getEmail() : "";
-                    String eventLink = event.getHtmlLink();
-                    List<String> attendees = event.getAttendees() != null ?
-                            event.getAttendees().stream()
-                                    .map(this::getEventAttendee)
-                                    .collect(Collectors.toList()) : new ArrayList<>();
-                    DateTime startTime = event.getStart().getDateTime();
-                    DateTime endTime = event.getEnd().getDateTime();
-                    if (startTime == null) {
-                        startTime = event.getStart().getDate();
-                    }
-                    if (endTime == null) {
-                        endTime = event.getEnd().getDate();
-                    }
-                    String totalTime = (endTime.getValue() - startTime.getValue()) / 1000.0 / 60.0 + " minutes";
-                    calendarList.add(
-                            "\"" + eventId + "\"," +
-                                    "\"" + eventTitle + "\"," +
-                                    "\"" + evenType + "\"," +
-                                    "\"" + eventStatus + "\"," +
-                                    "\"" + createdTime + "\"," +
-                                    "\"" + updatedTime + "\"," +
-                                    "\"" + creator + "\"," +
-                                    "\"" + organizerEmail + "\"," +
-                                    "\"" + eventLink + "\"," +
-                                    "\"" + UtilsFunction.truncated(attendees, 5) + "\"," +
-                                    "\"" + startTime + "\"," +
-                                    "\"" + endTime + "\"," +
-                                    "\"" + totalTime + "\""
-                    );
-                }
+            Events events;
+            try (Span span = Tracing.startSpan("calendar.events.list");
+                 Metrics.Timer ignored = Metrics.time("calendar.api_page")) {
+                span.setAttribute("page.index", pageIndex++);
+                Calendar.Events.List request = this.calendarService.events().list(calendarId)
+                        .setMaxResults(10)
+                        .setSingleEvents(false)
+                        .setShowDeleted(true)
+                        .setShowHiddenInvitations(true)
+                        .setOrderBy("updated")
+                        .setTimeMin(timeMin)
+                        .setTimeMax(timeMax)
+                        .setPageToken(nextPageToken);
+                // A failed page is retried with the same page token, the crawl does not restart
+                events = this.requestGovernor.execute("calendar", this.userId, request::execute);
+                span.setAttribute("page.events", events.getItems() != null ? events.getItems().size() : 0);
+                span.setAttribute("page.has_next", events.getNextPageToken() != null);
             }
+            Metrics.increment("calendar_event_pages", 1);
             nextPageToken = events.getNextPageToken();
+            checkpoint.appendItems(this.removeUnknownEvent(events.getItems()));
+            checkpoint.put("eventsPageToken", nextPageToken);
+            checkpoint.commitPage();
         } while (nextPageToken != null);
     }
 
+    /**
+     * Convert the Calendar API event to the record written in the CSV file
+     *
+     * @param event Calendar API event
+     * @return CalendarEvent record
+     */
+    CalendarEvent toCalendarEvent(Event event) {
+        DateTime createdTime = event.getCreated();
+        DateTime updatedTime = event.getUpdated() != null ? event.getUpdated() : createdTime;
+        List<String> attendees = event.getAttendees() != null ?
+                event.getAttendees().stream()
+                        .map(this::getEventAttendee)
+                        .collect(Collectors.toList()) : new ArrayList<>();
+        DateTime startTime = event.getStart().getDateTime();
+        DateTime endTime = event.getEnd().getDateTime();
+        if (startTime == null) {
+            startTime = event.getStart().getDate();
+        }
+        if (endTime == null) {
+            endTime = event.getEnd().getDate();
+        }
+        CalendarEvent record = new CalendarEvent();
+        record.setEventId(event.getId());
+        record.setEventTitle(event.getSummary());
+        record.setEventType(event.getEventType());
+        record.setStatus(event.getStatus());
+        record.setCreatedTime(String.valueOf(createdTime));
+        record.setUpdatedTime(String.valueOf(updatedTime));
+        record.setCreator(event.getCreator() != null ? event.getCreator().getEmail() : "");
+        record.setOrganizer(event.getOrganizer() != null ? event.getOrganizer().getEmail() : "");
+        record.setEventLink(event.getHtmlLink());
+        record.setAttendees(UtilsFunction.truncated(attendees, 5));
+        record.setStartTime(String.valueOf(startTime));
+        record.setEndTime(String.valueOf(endTime));
+        record.setTotalTime((endTime.getValue() - startTime.getValue()) / 1000.0 / 60.0 + " minutes");
+        record.setOwnerAccountId(this.userId);
+        record.setAttendee(this.getAttendeeRecords(event.getAttendees()));
+        return record;
+    }
+
     /**
      * Remove the event with unknown information
      *
@@ -171,6 +300,29 @@ public class CalendarLogic {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Get every attendee as a record of the "attendee" column
+     *
+     * @param attendees Attendees of the event, can be null
+     * @return JSON array of {"email", "responseStatus"}
+     */
+    private String getAttendeeRecords(List<EventAttendee> attendees) {
+        List<Map<String, String>> records = new ArrayList<>();
+        if (attendees != null) {
+            for (EventAttendee attendee : attendees) {
+                Map<String, String> record = new LinkedHashMap<>();
+                record.put("email", attendee.getEmail());
+                record.put("responseStatus", attendee.getResponseStatus());
+                records.add(record);
+            }
+        }
+        try {
+            return Instance.jsonFactory.toString(records);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Get the event attendee information
      *
@@ -180,7 +332,7 @@ public class CalendarLogic {
     private String getEventAttendee(EventAttendee attendee) {
         String email = attendee.getEmail();
         String responseStatus = attendee.getResponseStatus();
-        return String.format("{\"\"Email\"\": \"\"%s\"\", \"\"Response Status\"\": \"\"%s\"\"}",
+        return String.format("{\"Email\": \"%s\", \"Response Status\": \"%s\"}",
                 email, responseStatus);
     }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * One collection run in the background: the Drive Activity of a user, the calendar list of a user
+ * (which dispatches one task per calendar) or one calendar of a user.
+ */
+public final class CollectionTask {
+    public enum Type {
+        DRIVE_ACTIVITY,
+        CALENDAR_LIST,
+        CALENDAR
+    }
+
+    private final Type type;
+    private final String userId;
+    private final String googleAccountId;
+    private final String calendarId;
+
+    private CollectionTask(Type type, String userId, String googleAccountId, String calendarId) {
+        this.type = type;
+        this.userId = userId;
+        this.googleAccountId = googleAccountId;
+        this.calendarId = calendarId;
+    }
+
+    /**
+     * @param userId          User of the stored OAuth2 credential
+     * @param googleAccountId Google Account ID of the user
+     */
+    public static CollectionTask driveActivity(String userId, String googleAccountId) {
+        return new CollectionTask(Type.DRIVE_ACTIVITY, userId, googleAccountId, null);
+    }
+
+    /**
+     * @param userId          User of the stored OAuth2 credential
+     * @param googleAccountId Google Account ID of the user
+     */
+    public static CollectionTask calendarList(String userId, String googleAccountId) {
+        return new CollectionTask(Type.CALENDAR_LIST, userId, googleAccountId, null);
+    }
+
+    /**
+     * @return the task collecting one calendar of the same user
+     */
+    public CollectionTask forCalendar(String calendarId) {
+        return new CollectionTask(Type.CALENDAR, this.userId, this.googleAccountId, calendarId);
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public String getUserId() {
+        return this.userId;
+    }
+
+    public String getGoogleAccountId() {
+        return this.googleAccountId;
+    }
+
+    /**
+     * @return calendar of a CALENDAR task, null for the other types
+     */
+    public String getCalendarId() {
+        return this.calendarId;
+    }
+
+    /**
+     * @return identity of the task, the same collection dispatched twice has the same key
+     */
+    public String getKey() {
+        return this.type + ":" + this.googleAccountId + (this.calendarId != null ? ":" + this.calendarId : "");
+    }
+
+    /**
+     * @return the task as the parameters of a push queue request
+     */
+    public Map<String, String> toParams() {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("type", this.type.name());
+        params.put("userId", this.userId);
+        params.put("googleAccountId", this.googleAccountId);
+        if (this.calendarId != null) {
+            params.put("calendarId", this.calendarId);
+        }
+        return params;
+    }
+
+    /**
+     * @param params Parameter values by name, e.g. {@code request::getParameter}
+     * @return the task of the parameters
+     * @throws IllegalArgumentException if a parameter is missing or not valid
+     */
+    public static CollectionTask fromParams(Function<String, String> params) {
+        String type = params.apply("type");
+        String userId = params.apply("userId");
+        String googleAccountId = params.apply("googleAccountId");
+        String calendarId = params.apply("calendarId");
+        if (type == null || userId == null || googleAccountId == null) {
+            throw new IllegalArgumentException("Collection task without type, userId or googleAccountId");
+        }
+        CollectionTask task = new CollectionTask(Type.valueOf(type), userId, googleAccountId, calendarId);
+        if (task.type == Type.CALENDAR && calendarId == null) {
+            throw new IllegalArgumentException("Calendar collection task without calendarId");
+        }
+        return task;
+    }
+
+    @Override
+    public String toString() {
+        return this.getKey();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import com.notelysia.gcp.util.Instance;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Local file store of crawl checkpoints, so a crawl that fails or is cancelled midway resumes
+ * from its last completed page on the next run instead of page one.
+ * <p>
+ * A checkpoint is two files in the directory: "crawlId.properties" with the crawl state
+ * (page tokens, query, ...) and "crawlId.jsonl" with the items of the completed pages, one JSON
+ * object per line. A page is appended to the item file first, then the state is replaced
+ * atomically with the new page token and the length of the item file. On resume, anything
+ * written after the last saved state is cut off, so a page is never kept twice.
+ * <p>
+ * The files are local to the instance: a crawl resumes on the instance that started it.
+ */
+public class CrawlCheckpointStore {
+    private static final Logger logger = Logger.getLogger(CrawlCheckpointStore.class.getName());
+    private static final String SPOOL_BYTES = "checkpoint.spoolBytes";
+    private static final String UPDATED = "checkpoint.updated";
+    private static final String PAGES = "checkpoint.pages";
+    // One open checkpoint per file, shared by every store of the process
+    private static final Map<Path, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final Duration maxAge;
+
+    /**
+     * @param directory Directory of the checkpoint files, created on first use
+     * @param maxAge    Older checkpoints are discarded, their page tokens may have expired
+     */
+    public CrawlCheckpointStore(Path directory, Duration maxAge) {
+        this.directory = directory;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return store in the directory of the configuration
+     */
+    public static CrawlCheckpointStore fromConfig() {
+        return new CrawlCheckpointStore(Path.of(Instance.crawlCheckpointDir),
+                Duration.ofHours(Instance.crawlCheckpointMaxAgeHours));
+    }
+
+    /**
+     * Open the checkpoint of a crawl, resuming the saved one if there is one.
+     * A crawl that is already open in this process is waited for, so two requests of the same
+     * user never write the same checkpoint.
+     *
+     * @param crawlId Crawl name, for example "drive-activity-" + user ID
+     * @return the checkpoint, close it to release it
+     */
+    public Checkpoint open(String crawlId) throws IOException {
+        String fileName = crawlId.replaceAll("[^A-Za-z0-9_.-]", "_");
+        Path state = this.directory.resolve(fileName + ".properties").toAbsolutePath();
+        ReentrantLock lock = locks.computeIfAbsent(state, key -> new ReentrantLock());
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for crawl " + crawlId);
+        }
+        try {
+            Files.createDirectories(this.directory);
+            return new Checkpoint(crawlId, state, this.directory.resolve(fileName + ".jsonl").toAbsolutePath(), lock);
+        } catch (IOException | RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Saved state and items of one crawl.
+     */
+    public class Checkpoint implements Closeable {
+        private final String crawlId;
+        private final Path stateFile;
+        private final Path spoolFile;
+        private final ReentrantLock lock;
+        private final Properties state = new Properties();
+        private boolean resumed;
+
+        private Checkpoint(String crawlId, Path stateFile, Path spoolFile, ReentrantLock lock) throws IOException {
+            this.crawlId = crawlId;
+            this.stateFile = stateFile;
+            this.spoolFile = spoolFile;
+            this.lock = lock;
+            if (Files.exists(stateFile)) {
+                try (InputStream in = Files.newInputStream(stateFile)) {
+                    this.state.load(in);
+                }
+                long updated = Long.parseLong(this.state.getProperty(UPDATED, "0"));
+                if (System.currentTimeMillis() - updated > CrawlCheckpointStore.this.maxAge.toMillis()) {
+                    logger.info(String.format("Checkpoint of %s expired, start again", crawlId));
+                    this.reset();
+                } else {
+                    this.resumed = true;
+                    this.truncateSpool(Long.parseLong(this.state.getProperty(SPOOL_BYTES, "0")));
+                    logger.info(String.format("Resume %s after %s pages", crawlId, this.getPages()));
+                }
+            } else {
+                Files.deleteIfExists(spoolFile);
+            }
+        }
+
+        /**
+         * @return true if the crawl continues a saved checkpoint
+         */
+        public boolean isResumed() {
+            return this.resumed;
+        }
+
+        /**
+         * @return number of pages saved so far
+         */
+        public int getPages() {
+            return Integer.parseInt(this.state.getProperty(PAGES, "0"));
+        }
+
+        public String get(String key) {
+            return this.state.getProperty(key);
+        }
+
+        /**
+         * Set a state value, saved by the next {@link #commit()}. Null removes the key.
+         */
+        public void put(String key, String value) {
+            if (value == null) {
+                this.state.remove(key);
+            } else {
+                this.state.setProperty(key, value);
+            }
+        }
+
+        /**
+         * Append the items of a page to the item file and flush them to the disk.
+         *
+         * @param items Google API model objects of the page, null for none
+         */
+        public void appendItems(Iterable<?> items) throws IOException {
+            if (items == null) {
+                return;
+            }
+            StringBuilder lines = new StringBuilder();
+            for (Object item : items) {
+                lines.append(Instance.jsonFactory.toString(item)).append('\n');
+            }
+            if (lines.length() == 0) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(this.spoolFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+        }
+
+        /**
+         * Save the state after a completed page, with the items appended so far.
+         */
+        public void commitPage() throws IOException {
+            this.state.setProperty(PAGES, String.valueOf(this.getPages() + 1));
+            this.commit();
+        }
+
+        /**
+         * Save the state, for progress that is not a page (a finished calendar, ...).
+         * The state file is replaced in one move, a crash leaves the old or the new state.
+         */
+        public void commit() throws IOException {
+            this.state.setProperty(SPOOL_BYTES, String.valueOf(Files.exists(this.spoolFile) ? Files.size(this.spoolFile) : 0));
+            this.state.setProperty(UPDATED, String.valueOf(System.currentTimeMillis()));
+            Path temporary = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                this.state.store(out, "Crawl checkpoint of " + this.crawlId);
+            }
+            Files.move(temporary, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Read the items of all saved pages in order.
+         *
+         * @param type   Google API model class of the items
+         * @param action Called for each item
+         */
+        public <T> void forEachItem(Class<T> type, ItemAction<T> action) throws IOException {
+            if (!Files.exists(this.spoolFile)) {
+                return;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(this.spoolFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        action.accept(Instance.jsonFactory.fromString(line, type));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Drop the saved state and items and start the crawl again.
+         */
+        public void reset() throws IOException {
+            this.state.clear();
+            this.resumed = false;
+            Files.deleteIfExists(this.stateFile);
+            Files.deleteIfExists(this.spoolFile);
+        }
+
+        /**
+         * The crawl finished and its items were written, remove the checkpoint.
+         */
+        public void complete() throws IOException {
+            this.reset();
+            logger.info(String.format("Crawl %s completed", this.crawlId));
+        }
+
+        /**
+         * Release the checkpoint, a crawl that did not complete keeps its saved state.
+         */
+        @Override
+        public void close() {
+            if (this.lock.isHeldByCurrentThread()) {
+                this.lock.unlock();
+            }
+        }
+
+        private void truncateSpool(long length) throws IOException {
+            if (!Files.exists(this.spoolFile)) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(this.spoolFile, StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            }
+        }
+    }
+
+    /**
+     * Action on a saved item, it may write the item to a file.
+     */
+    public interface ItemAction<T> {
+        void accept(T item) throws IOException;
+    }
+}
@@ -16,15 +16,25 @@
 
 package com.notelysia.gcp.logic;
 
+import com.google.api.client.util.DateTime;
 import com.google.api.services.driveactivity.v2.model.*;
 import com.google.api.services.people.v1.PeopleService;
 import com.google.api.services.people.v1.model.EmailAddress;
 import com.google.api.services.people.v1.model.Person;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import lombok.Getter;
 import lombok.Setter;
+import com.notelysia.gcp.cache.TwoTierCache;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.CsvWriter;
+import com.notelysia.gcp.util.Instance;
+import com.notelysia.gcp.util.Metrics;
 import com.notelysia.gcp.util.UtilsFunction;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -35,7 +45,17 @@ public class DriveActivityLogic {
     private static final Logger logger = Logger.getLogger(DriveActivityLogic.class.getName());
     private com.google.api.services.driveactivity.v2.DriveActivity driveActivityService;
     private PeopleService peopleService;
-    private Map<String, String> userEmailMap = new HashMap<>();
+    // Emails of the "people/USER_ID" names, shared by the instances
+    private TwoTierCache personEmailCache =
+            TwoTierCache.named("person-email", Instance.cachePersonEmailTtlSeconds * 1000L);
+    private RequestGovernor requestGovernor = RequestGovernor.unthrottled();
+    // User the requests are made for, used for the per-user rate limit
+    private String userId;
+    // Saved pages of an unfinished crawl, resumed by the next run of the same user
+    private CrawlCheckpointStore checkpointStore = CrawlCheckpointStore.fromConfig();
+    // Write the activities ordered by time, the sort keeps at most sortRunSize activities in memory
+    private boolean sortByTime = Instance.driveActivitySortByTime;
+    private int sortRunSize = Instance.driveActivitySortRunSize;
 
     public DriveActivityLogic() {
     }
@@ -44,6 +64,8 @@ public class DriveActivityLogic {
     /**
      * Download the Google Drive activity log.
      * Credentials login from user using Oauth2 flow so no need to use Domain-wide Delegation.
+     * Every page is saved in the checkpoint of the user, a crawl that stops midway continues
+     * from its last saved page on the next call with the same folder and filter.
      *
      * @param folderId The folder ID to filter the activities (can be empty String and NULL)
      * @param filter   Filter to apply to the query (can be empty String and NULL)
@@ -52,72 +74,146 @@ public class DriveActivityLogic {
     public void DownloadActivity(String folderId,
                                  String filter,
                                  String csvFile) throws IOException {
-        //Create an empty list to store the activities and write to the new file
-        List<String> activitiesList = new ArrayList<>();
-        String csvHeader = "activityId," +
-                "timeActivity," +
-                "userAction," +
-                "primaryAction," +
-                "subAction," +
-                "subActionType," +
-                "subActionResult," +
-                "item";
+        try (CrawlCheckpointStore.Checkpoint checkpoint =
+                     this.checkpointStore.open("drive-activity-" + this.userId)) {
+            String folder = folderId != null ? folderId : "";
+            String query = filter != null ? filter : "";
+            if (checkpoint.isResumed()
+                    && !(folder.equals(checkpoint.get("folderId")) && query.equals(checkpoint.get("filter")))) {
+                // Page tokens only work with the query that made them
+                logger.info("The query changed, the saved crawl is dropped");
+                checkpoint.reset();
+            }
+            checkpoint.put("folderId", folder);
+            checkpoint.put("filter", query);
+            // A run that stopped while writing the CSV file does not crawl the saved pages again
+            if (!"true".equals(checkpoint.get("pagesCompleted"))) {
+                this.collectAllActivityPages(checkpoint, folder, query);
+                checkpoint.put("pagesCompleted", "true");
+                checkpoint.commit();
+            }
+            try (Metrics.Timer ignored = Metrics.time("drive_activity.csv_write");
+                 CsvWriter csvWriter = new CsvWriter(csvFile, CsvWriter.DRIVE_ACTIVITY_HEADER)) {
+                // The saved pages are read one activity at a time, only a sort run is kept in memory
+                if (this.sortByTime) {
+                    try (ExternalMergeSort<DriveActivity> sort = new ExternalMergeSort<>(DriveActivity.class,
+                            this::getTimeMillis, this.sortRunSize)) {
+                        checkpoint.forEachItem(DriveActivity.class, sort::add);
+                        sort.forEachSorted(activity -> this.writeRecords(csvWriter, activity));
+                        Metrics.increment("drive_activity_sort_runs", sort.getRunCount());
+                    }
+                } else {
+                    checkpoint.forEachItem(DriveActivity.class, activity -> this.writeRecords(csvWriter, activity));
+                }
+                if (csvWriter.getRowCount() == 0) {
+                    logger.info("No activity collected from Google Drive!");
+                }
+            }
+            checkpoint.complete();
+        }
+    }
 
-        String nextPageToken = null;
-        List<DriveActivity> activities = new ArrayList<>();
+    /**
+     * Query the activity pages from the saved page token and save every page in the checkpoint.
+     *
+     * @param checkpoint Checkpoint to save every page of activities
+     * @param folderId   The folder ID to filter the activities, empty for all
+     * @param filter     Filter to apply to the query, empty for none
+     */
+    private void collectAllActivityPages(CrawlCheckpointStore.Checkpoint checkpoint,
+                                         String folderId,
+                                         String filter) throws IOException {
+        String nextPageToken = checkpoint.get("pageToken");
         QueryDriveActivityRequest queryRequest = new QueryDriveActivityRequest();
-        if (folderId != null && !folderId.isEmpty()) {
+        if (!folderId.isEmpty()) {
             queryRequest.setAncestorName("items/" + folderId);
         }
         queryRequest.setPageSize(10);
-        queryRequest.setFilter(filter);
+        queryRequest.setFilter(filter.isEmpty() ? null : filter);
         logger.info("Collect Activity:");
+        int pageIndex = checkpoint.getPages();
         do {
             queryRequest.setPageToken(nextPageToken);
-            QueryDriveActivityResponse result = this.driveActivityService.activity().query(queryRequest).execute();
-            if (result.getActivities() != null) {
-                activities.addAll(result.getActivities());
+            QueryDriveActivityResponse result;
+            try (Span span = Tracing.startSpan("driveactivity.activity.query");
+                 Metrics.Timer ignored = Metrics.time("drive_activity.api_page")) {
+                span.setAttribute("page.index", pageIndex++);
+                result = this.requestGovernor.execute("driveactivity", this.userId,
+                        () -> this.driveActivityService.activity().query(queryRequest).execute());
+                span.setAttribute("page.activities", result.getActivities() != null ? result.getActivities().size() : 0);
+                span.setAttribute("page.has_next", result.getNextPageToken() != null);
             }
+            Metrics.increment("drive_activity_pages", 1);
             nextPageToken = result.getNextPageToken();
+            checkpoint.appendItems(result.getActivities());
+            checkpoint.put("pageToken", nextPageToken);
+            checkpoint.commitPage();
         } while (nextPageToken != null);
-        if (!activities.isEmpty()) {
-            activities.sort(Comparator.comparing(this::getTimeInfo));
-            for (DriveActivity activity : activities) {
-                String activityId = UUID.randomUUID().toString();
-                String time = this.getTimeInfo(activity);
-                String primaryAction = this.getActionInfo(activity.getPrimaryActionDetail());
-                List<String> actors =
-                        activity.getActors().stream()
-                                .map(this::getActorInfo)
-                                .collect(Collectors.toList());
-                List<String> targets =
-                        activity.getTargets().stream()
-                                .map(this::getTargetInfo)
-                                .collect(Collectors.toList());
-                for (Action action : activity.getActions()) {
-                    ActionDetail actionDetail = action.getDetail();
-                    String subAction = this.getActionInfo(actionDetail);
-                    String subActionType = this.getActivityType(actionDetail);
-                    String subActionResult = this.getActionResult(actionDetail);
-                    activitiesList.add(
-                            "\"" + activityId + "\"" + "," +
-                                    "\"" + time + "\"" + "," +
-                                    "\"" + UtilsFunction.truncated(actors, 2) + "\"" + "," +
-                                    "\"" + primaryAction + "\"" + "," +
-                                    "\"" + subAction + "\"" + "," +
-                                    "\"" + subActionType + "\"" + "," +
-                                    "\"" + subActionResult + "\"" + "," +
-                                    "\"" + UtilsFunction.truncated(targets, 2) + "\""
-                    );
-                }
-            }
+    }
+
+    private void writeRecords(CsvWriter csvWriter, DriveActivity activity) throws IOException {
+        for (com.notelysia.gcp.model.DriveActivity record : this.toDriveActivityRecords(activity)) {
+            csvWriter.writeRow(record);
         }
+    }
 
-        if (!activitiesList.isEmpty()) {
-            UtilsFunction.writeToCSV(activitiesList, csvHeader, csvFile);
-        } else {
-            logger.info("No activity collected from Google Drive!");
+    /**
+     * Convert the Drive Activity API activity to the records written in the CSV file,
+     * one record for each action of the activity. The ID of a record is the ID of the activity
+     * and the index of the action, so every row has its own key.
+     *
+     * @param activity Drive Activity API activity
+     * @return list of DriveActivity records
+     */
+    List<com.notelysia.gcp.model.DriveActivity> toDriveActivityRecords(DriveActivity activity) throws IOException {
+        List<com.notelysia.gcp.model.DriveActivity> records = new ArrayList<>();
+        String activityId = this.getActivityId(activity);
+        String time = this.getTimeInfo(activity);
+        String primaryAction = this.getActionInfo(activity.getPrimaryActionDetail());
+        List<String> actors =
+                activity.getActors().stream()
+                        .map(this::getActorInfo)
+                        .collect(Collectors.toList());
+        List<String> targets =
+                activity.getTargets().stream()
+                        .map(this::getTargetInfo)
+                        .collect(Collectors.toList());
+        String userAction = UtilsFunction.truncated(actors, 2);
+        String item = UtilsFunction.truncated(targets, 2);
+        List<Action> actions = activity.getActions();
+        for (int index = 0; index < actions.size(); index++) {
+            ActionDetail actionDetail = actions.get(index).getDetail();
+            com.notelysia.gcp.model.DriveActivity record = new com.notelysia.gcp.model.DriveActivity();
+            record.setActivityId(activityId + "-" + index);
+            record.setTimeActivity(time);
+            record.setUserAction(userAction);
+            record.setPrimaryAction(primaryAction);
+            record.setSubAction(this.getActionInfo(actionDetail));
+            record.setSubActionType(this.getActivityType(actionDetail));
+            record.setSubActionResult(this.getActionResult(actionDetail));
+            record.setItem(item);
+            records.add(record);
         }
+        return records;
+    }
+
+    /**
+     * Returns an ID derived from the content of the activity: 128 bit murmur3 hash of the time,
+     * actors, targets and actions. The same activity gets the same ID on every crawl,
+     * so the ID is the key to find activities already stored.
+     */
+    String getActivityId(DriveActivity activity) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putString(this.getTimeInfo(activity), StandardCharsets.UTF_8);
+        // The API objects are hashed as they are, before People API lookups change the names
+        for (Object part : Arrays.asList(activity.getActors(), activity.getTargets(),
+                activity.getPrimaryActionDetail(), activity.getActions())) {
+            hasher.putChar('\u0001');
+            if (part != null) {
+                hasher.putString(Instance.jsonFactory.toString(part), StandardCharsets.UTF_8);
+            }
+        }
+        return hasher.hash().toString();
     }
 
     /**
@@ -129,16 +225,30 @@ public class DriveActivityLogic {
     }
 
     /**
-     * Returns a time associated with an activity.
+     * Returns a time associated with an activity,
+     * or an empty value (NULL in the TIMESTAMP column) when the activity has none.
      */
     private String getTimeInfo(DriveActivity activity) {
         if (activity.getTimestamp() != null) {
             return activity.getTimestamp();
         }
-        if (activity.getTimeRange() != null) {
+        if (activity.getTimeRange() != null && activity.getTimeRange().getEndTime() != null) {
             return activity.getTimeRange().getEndTime();
         }
-        return "unknown";
+        return "";
+    }
+
+    /**
+     * Returns the time of an activity in epoch milliseconds,
+     * an activity without a readable time is sorted last.
+     */
+    private long getTimeMillis(DriveActivity activity) {
+        String time = this.getTimeInfo(activity);
+        try {
+            return time.isEmpty() ? Long.MAX_VALUE : DateTime.parseRfc3339(time).getValue();
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
     }
 
     /**
@@ -284,44 +394,44 @@ public class DriveActivityLogic {
         if (comment != null) {
             StringBuilder commentResult = new StringBuilder("{");
             if (comment.getMentionedUsers() != null && !comment.getMentionedUsers().isEmpty()) {
-                commentResult.append("\"\"mentionedUsers\"\": [");
+                commentResult.append("\"mentionedUsers\": [");
                 for (User mentionedUser : comment.getMentionedUsers()) {
-                    commentResult.append("\"\"").append(this.getUserInfo(mentionedUser)).append("\"\",");
+                    commentResult.append("\"").append(this.getUserInfo(mentionedUser)).append("\",");
                 }
                 commentResult = new StringBuilder(commentResult.substring(0, commentResult.length() - 1) + "]");
             }
             if (comment.getAssignment() != null) {
                 if (String.valueOf(commentResult).equals("{")) {
-                    commentResult.append("\"\"assignment\"\": {");
+                    commentResult.append("\"assignment\": {");
                 } else {
-                    commentResult.append(",\"\"assignment\"\": {");
+                    commentResult.append(",\"assignment\": {");
                 }
-                commentResult.append("\"\"assignedUser\"\": \"\"")
+                commentResult.append("\"assignedUser\": \"")
                         .append(this.getUserInfo(comment.getAssignment().getAssignedUser()))
-                        .append("\"\",");
-                commentResult.append("\"\"subtype\"\": \"\"")
+                        .append("\",");
+                commentResult.append("\"subtype\": \"")
                         .append(comment.getAssignment().getSubtype())
-                        .append("\"\"}");
+                        .append("\"}");
             }
             if (comment.getPost() != null) {
                 if (String.valueOf(commentResult).equals("{")) {
-                    commentResult.append("\"\"post\"\": {");
+                    commentResult.append("\"post\": {");
                 } else {
-                    commentResult.append(",\"\"post\"\": {");
+                    commentResult.append(",\"post\": {");
                 }
-                commentResult.append("\"\"subtype\"\": \"\"")
+                commentResult.append("\"subtype\": \"")
                         .append(comment.getPost().getSubtype())
-                        .append("\"\"}");
+                        .append("\"}");
             }
             if (comment.getSuggestion() != null) {
                 if (String.valueOf(commentResult).equals("{")) {
-                    commentResult.append("\"\"suggestion\"\": {");
+                    commentResult.append("\"suggestion\": {");
                 } else {
-                    commentResult.append(",\"\"suggestion\"\": {");
+                    commentResult.append(",\"suggestion\": {");
                 }
-                commentResult.append("\"\"subtype\"\": \"\"")
+                commentResult.append("\"subtype\": \"")
                         .append(comment.getSuggestion().getSubtype())
-                        .append("\"\"}");
+                        .append("\"}");
             }
             return commentResult + "}";
         }
@@ -418,23 +528,29 @@ public class DriveActivityLogic {
      */
     private String readUserEmail(String personalName) {
         /*
-        Personal ID format: "people/USER_ID" always never change so use a map to
-        store the email address get from People API.
-        When call this method, the map will check first before call People API to get email address.
+        Personal ID format: "people/USER_ID" always never change so use a cache shared by the instances
+        to store the email address get from People API.
+        When call this method, the cache will check first before call People API to get email address.
         */
         if (!personalName.matches("^people/[^/]+$")) {
             return personalName;
         }
-        if (this.userEmailMap.containsKey(personalName)) {
-            return this.userEmailMap.get(personalName);
+        String cachedEmail = this.personEmailCache.get(personalName);
+        if (cachedEmail != null) {
+            return cachedEmail;
         } else {
             Person profile;
-            try {
-                profile = this.peopleService.people().get(personalName)
-                        .setPersonFields("names,emailAddresses")
-                        .execute();
+            Metrics.increment("people_lookups", 1);
+            try (Span ignoredSpan = Tracing.startSpan("people.get");
+                 Metrics.Timer ignored = Metrics.time("people.lookup")) {
+                profile = this.requestGovernor.execute("people", this.userId,
+                        () -> this.peopleService.people().get(personalName)
+                                .setPersonFields("names,emailAddresses")
+                                .execute());
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                // Keep the crawl going, the name is not cached so the next crawl asks again
+                logger.warning(String.format("Email of %s not read, keep the person name: %s", personalName, e));
+                return personalName;
             }
             List<EmailAddress> emailAddresses = profile.getEmailAddresses();
             if (emailAddresses != null && !emailAddresses.isEmpty()) {
@@ -442,14 +558,14 @@ public class DriveActivityLogic {
             Dummy account or Service Account without Domain-wide Delegation enabled
              still can return own email
             */
-                this.userEmailMap.put(personalName, emailAddresses.get(0).getValue());
+                this.personEmailCache.put(personalName, emailAddresses.get(0).getValue());
                 return emailAddresses.get(0).getValue();
             } else {
             /*
              Return back to "people/USER_ID"
              if credential is Service Account without Domain-wide Delegation enabled
             */
-                this.userEmailMap.put(personalName, personalName);
+                this.personEmailCache.put(personalName, personalName);
                 return personalName;
             }
         }
@@ -0,0 +1,170 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import com.notelysia.gcp.util.Instance;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * Sort of more items than fit in memory, by a long key computed once per item.
+ * Items are collected in runs of at most runSize items, a full run is sorted and written to a
+ * temporary file with one key and JSON item per line, and {@link #forEachSorted} merges the runs
+ * by reading one line of each run at a time. A sort that fits in one run never touches the disk.
+ * The sort is stable: items with equal keys come out in the order they were added.
+ *
+ * @param <T> Google API model class of the items, serialized with the JSON factory
+ */
+public class ExternalMergeSort<T> implements Closeable {
+    private final Class<T> type;
+    private final ToLongFunction<T> sortKey;
+    private final int runSize;
+    private final List<Keyed<T>> run = new ArrayList<>();
+    private final List<Path> runFiles = new ArrayList<>();
+
+    /**
+     * @param type    Class of the items
+     * @param sortKey Key of an item, items are sorted by ascending key
+     * @param runSize Items kept in memory before a run is written
+     */
+    public ExternalMergeSort(Class<T> type, ToLongFunction<T> sortKey, int runSize) {
+        this.type = type;
+        this.sortKey = sortKey;
+        this.runSize = Math.max(1, runSize);
+    }
+
+    public void add(T item) throws IOException {
+        this.run.add(new Keyed<>(this.sortKey.applyAsLong(item), item));
+        if (this.run.size() >= this.runSize) {
+            this.spill();
+        }
+    }
+
+    /**
+     * @return number of runs written to the disk
+     */
+    public int getRunCount() {
+        return this.runFiles.size();
+    }
+
+    /**
+     * Call the action for every item in order.
+     */
+    public void forEachSorted(CrawlCheckpointStore.ItemAction<T> action) throws IOException {
+        this.run.sort(Keyed.ORDER);
+        if (this.runFiles.isEmpty()) {
+            for (Keyed<T> keyed : this.run) {
+                action.accept(keyed.item);
+            }
+            return;
+        }
+        if (!this.run.isEmpty()) {
+            this.spill();
+        }
+        List<BufferedReader> readers = new ArrayList<>(this.runFiles.size());
+        try {
+            // Ties go to the earlier run, which keeps the sort stable
+            PriorityQueue<Head<T>> heads = new PriorityQueue<>(
+                    Comparator.<Head<T>>comparingLong(head -> head.key).thenComparingInt(head -> head.run));
+            for (int i = 0; i < this.runFiles.size(); i++) {
+                BufferedReader reader = Files.newBufferedReader(this.runFiles.get(i), StandardCharsets.UTF_8);
+                readers.add(reader);
+                this.advance(heads, reader, i);
+            }
+            while (!heads.isEmpty()) {
+                Head<T> head = heads.poll();
+                action.accept(head.item);
+                this.advance(heads, readers.get(head.run), head.run);
+            }
+        } finally {
+            for (BufferedReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Remove the run files.
+     */
+    @Override
+    public void close() throws IOException {
+        this.run.clear();
+        for (Path runFile : this.runFiles) {
+            Files.deleteIfExists(runFile);
+        }
+        this.runFiles.clear();
+    }
+
+    private void spill() throws IOException {
+        this.run.sort(Keyed.ORDER);
+        Path runFile = Files.createTempFile("merge-run-", ".txt");
+        this.runFiles.add(runFile);
+        try (BufferedWriter writer = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)) {
+            // The key goes before the item, so the merge compares keys without computing them again
+            for (Keyed<T> keyed : this.run) {
+                writer.write(Long.toString(keyed.key));
+                writer.write(' ');
+                writer.write(Instance.jsonFactory.toString(keyed.item));
+                writer.write('\n');
+            }
+        }
+        this.run.clear();
+    }
+
+    private void advance(PriorityQueue<Head<T>> heads, BufferedReader reader, int run) throws IOException {
+        String line = reader.readLine();
+        if (line != null) {
+            int separator = line.indexOf(' ');
+            heads.add(new Head<>(Long.parseLong(line.substring(0, separator)),
+                    Instance.jsonFactory.fromString(line.substring(separator + 1), this.type), run));
+        }
+    }
+
+    private static class Keyed<T> {
+        private static final Comparator<Keyed<?>> ORDER = Comparator.comparingLong(keyed -> keyed.key);
+        private final long key;
+        private final T item;
+
+        private Keyed(long key, T item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+
+    private static class Head<T> {
+        private final long key;
+        private final T item;
+        private final int run;
+
+        private Head(long key, T item, int run) {
+            this.key = key;
+            this.item = item;
+            this.run = run;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import com.notelysia.gcp.util.Instance;
+
+import java.io.Closeable;
+
+/**
+ * Runs collection tasks outside the request of the user: on App Engine push queues,
+ * so the tasks of large tenants are spread over the instances and throttled by the queue,
+ * or on a local pool for development and tests.
+ */
+public interface IngestionDispatcher extends Closeable {
+
+    /**
+     * Work of a collection task. An exception fails the attempt, the task is retried by the retry policy.
+     */
+    @FunctionalInterface
+    interface Handler {
+        void run(CollectionTask task) throws Exception;
+    }
+
+    /**
+     * Queue the task.
+     *
+     * @return true if the task was queued, false if the same task is already waiting
+     */
+    boolean dispatch(CollectionTask task);
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * @param type    taskqueue (App Engine push queue) or local (thread pool of this instance)
+     * @param handler Work of the tasks, the push queue runs it in the task servlet instead
+     * @return the dispatcher with the rate, bucket size and retries of application.properties
+     */
+    static IngestionDispatcher create(String type, Handler handler) {
+        RetryPolicy retryPolicy = new RetryPolicy(Instance.ingestionTaskRetryLimit,
+                Instance.ingestionTaskMinBackoffSeconds, Instance.ingestionTaskMaxBackoffSeconds,
+                Instance.ingestionTaskMaxDoublings);
+        switch (type == null ? "local" : type.trim().toLowerCase()) {
+            case "local":
+            case "":
+                return new LocalIngestionDispatcher(handler, Instance.ingestionQueueRate,
+                        Instance.ingestionQueueBucketSize, Instance.ingestionQueueMaxConcurrent, retryPolicy);
+            case "taskqueue":
+                return new TaskQueueIngestionDispatcher(Instance.ingestionQueueName, retryPolicy);
+            default:
+                throw new IllegalArgumentException("Unknown ingestion dispatcher: " + type);
+        }
+    }
+
+    /**
+     * Retries of a failed task, the same parameters as the retry-parameters of a push queue.
+     */
+    final class RetryPolicy {
+        private final int retryLimit;
+        private final long minBackoffSeconds;
+        private final long maxBackoffSeconds;
+        private final int maxDoublings;
+
+        /**
+         * @param retryLimit        Retries after the first attempt
+         * @param minBackoffSeconds Wait before the first retry
+         * @param maxBackoffSeconds Longest wait between two attempts
+         * @param maxDoublings      Times the wait doubles, it then grows by the last doubled wait
+         */
+        public RetryPolicy(int retryLimit, long minBackoffSeconds, long maxBackoffSeconds, int maxDoublings) {
+            this.retryLimit = retryLimit;
+            this.minBackoffSeconds = minBackoffSeconds;
+            this.maxBackoffSeconds = maxBackoffSeconds;
+            this.maxDoublings = maxDoublings;
+        }
+
+        public int getRetryLimit() {
+            return this.retryLimit;
+        }
+
+        public long getMinBackoffSeconds() {
+            return this.minBackoffSeconds;
+        }
+
+        public long getMaxBackoffSeconds() {
+            return this.maxBackoffSeconds;
+        }
+
+        public int getMaxDoublings() {
+            return this.maxDoublings;
+        }
+
+        /**
+         * @param retry Retry of the task, 1 for the first retry
+         * @return wait before the retry in milliseconds
+         */
+        public long backoffMillis(int retry) {
+            int doublings = Math.min(retry - 1, this.maxDoublings);
+            long seconds = this.minBackoffSeconds << Math.min(doublings, 30);
+            if (retry - 1 > this.maxDoublings) {
+                seconds += (long) (retry - 1 - this.maxDoublings) * (this.minBackoffSeconds << Math.min(doublings, 30));
+            }
+            return Math.min(seconds, this.maxBackoffSeconds) * 1000L;
+        }
+    }
+}
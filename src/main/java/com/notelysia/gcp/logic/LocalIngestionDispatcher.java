@@ -0,0 +1,112 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import com.notelysia.gcp.util.Metrics;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs the collection tasks on a pool of this instance, the stand-in of the push queue for development
+ * and tests. Like the queue, tasks start at the queue rate with bursts up to the bucket size,
+ * at most max concurrent tasks run at the same time and a failed task is retried with backoff.
+ * A task already waiting or running is not queued again.
+ */
+public class LocalIngestionDispatcher implements IngestionDispatcher {
+    private static final Logger logger = Logger.getLogger(LocalIngestionDispatcher.class.getName());
+
+    private final Handler handler;
+    private final RetryPolicy retryPolicy;
+    private final ScheduledThreadPoolExecutor executor;
+    // Keys of the tasks waiting or running
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    // Task starts at the queue rate
+    private final TokenBucket startBucket;
+
+    /**
+     * @param handler       Work of the tasks
+     * @param ratePerSecond Tasks started per second, 0 for no limit
+     * @param bucketSize    Tasks started at once after the queue was idle
+     * @param maxConcurrent Tasks running at the same time
+     * @param retryPolicy   Retries of a failed task
+     */
+    public LocalIngestionDispatcher(Handler handler,
+                                    double ratePerSecond,
+                                    int bucketSize,
+                                    int maxConcurrent,
+                                    RetryPolicy retryPolicy) {
+        this.handler = handler;
+        this.startBucket = new TokenBucket(ratePerSecond, bucketSize);
+        this.retryPolicy = retryPolicy;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, maxConcurrent), runnable -> {
+            Thread thread = new Thread(runnable, "collection-task-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public boolean dispatch(CollectionTask task) {
+        if (!this.queued.add(task.getKey())) {
+            return false;
+        }
+        Metrics.increment("ingestion_tasks_dispatched", 1);
+        return this.schedule(task, 0, 0);
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    private boolean schedule(CollectionTask task, int retry, long backoffMillis) {
+        try {
+            this.executor.schedule(() -> this.run(task, retry),
+                    TimeUnit.MILLISECONDS.toNanos(backoffMillis) + this.startBucket.reserve(), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            this.queued.remove(task.getKey());
+            logger.warning(String.format("Collection task %s not queued, the dispatcher is closed", task));
+            return false;
+        }
+    }
+
+    private void run(CollectionTask task, int retry) {
+        try {
+            this.handler.run(task);
+            this.queued.remove(task.getKey());
+            Metrics.increment("ingestion_tasks_completed", 1);
+        } catch (Exception e) {
+            if (retry >= this.retryPolicy.getRetryLimit()) {
+                this.queued.remove(task.getKey());
+                Metrics.increment("ingestion_tasks_failed", 1);
+                logger.warning(String.format("Collection task %s failed after %d retries. \n%s", task, retry, e));
+                return;
+            }
+            Metrics.increment("ingestion_task_retries", 1);
+            logger.info(String.format("Collection task %s failed, retry %d. \n%s", task, retry + 1, e));
+            this.schedule(task, retry + 1, this.retryPolicy.backoffMillis(retry + 1));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
+import com.notelysia.gcp.util.Metrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Rate limits and retries the Google API requests of all collectors.
+ * <p>
+ * Every request takes a token from the bucket of its API and from the bucket of its API and user,
+ * so the collectors stay under the project and per-user quotas. Retryable errors (429, 5xx,
+ * rate limit 403 and I/O errors without a response) are retried with exponential backoff and
+ * full jitter. A quota error also pauses the API bucket, so the other requests of the API wait
+ * instead of failing too. Only the failed request is retried, a crawl continues from its current page token.
+ */
+public class RequestGovernor {
+    private static final Logger logger = Logger.getLogger(RequestGovernor.class.getName());
+    private static final RequestGovernor UNTHROTTLED = new RequestGovernor(0, 0, 5, 500, 32_000);
+
+    private final double apiPermitsPerSecond;
+    private final double userPermitsPerSecond;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param apiPermitsPerSecond  Requests per second of each API, 0 for no limit
+     * @param userPermitsPerSecond Requests per second of each API and user, 0 for no limit
+     * @param maxAttempts          Attempts of a request, including the first one
+     * @param initialBackoffMillis Upper bound of the first backoff
+     * @param maxBackoffMillis     Upper bound of every backoff
+     */
+    public RequestGovernor(double apiPermitsPerSecond,
+                           double userPermitsPerSecond,
+                           int maxAttempts,
+                           long initialBackoffMillis,
+                           long maxBackoffMillis) {
+        this.apiPermitsPerSecond = apiPermitsPerSecond;
+        this.userPermitsPerSecond = userPermitsPerSecond;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * @return governor that retries but does not rate limit, used when none is set
+     */
+    public static RequestGovernor unthrottled() {
+        return UNTHROTTLED;
+    }
+
+    /**
+     * Request of a Google API client, usually {@code () -> request.execute()}.
+     */
+    @FunctionalInterface
+    public interface ApiCall<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * Run the request within the rate limits and retry it on retryable errors.
+     *
+     * @param api  API name, for example "people"
+     * @param user User of the request, null if the request is not made for a user
+     * @param call Request to run
+     * @return the response of the request
+     * @throws IOException the error of the last attempt, or a non-retryable error
+     */
+    public <T> T execute(String api, String user, ApiCall<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            this.acquire(api, user);
+            try {
+                return call.execute();
+            } catch (IOException e) {
+                if (attempt >= this.maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                long backoffMillis = this.backoffMillis(attempt, e);
+                if (isQuotaError(e)) {
+                    // Every request of the API waits, not only this one
+                    this.bucket(api, this.apiPermitsPerSecond).pause(backoffMillis);
+                }
+                Metrics.increment("api_retries", 1);
+                Span span = Tracing.currentSpan();
+                if (span != null) {
+                    span.addToAttribute("retry.count", 1);
+                    span.addToAttribute("retry.backoff_ms", backoffMillis);
+                }
+                logger.info(String.format("%s request failed (attempt %s of %s), retry in %s ms: %s",
+                        api, attempt, this.maxAttempts, backoffMillis, e.getMessage()));
+                sleep(backoffMillis);
+            }
+        }
+    }
+
+    private void acquire(String api, String user) throws InterruptedIOException {
+        long waitNanos = this.bucket(api, this.apiPermitsPerSecond).reserve();
+        if (user != null) {
+            waitNanos = Math.max(waitNanos, this.bucket(api + "/" + user, this.userPermitsPerSecond).reserve());
+        }
+        if (waitNanos > 0) {
+            Metrics.increment("api_throttled_millis", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        }
+    }
+
+    private TokenBucket bucket(String key, double permitsPerSecond) {
+        // The bucket holds up to one second of permits
+        return this.buckets.computeIfAbsent(key, ignored -> new TokenBucket(permitsPerSecond, permitsPerSecond));
+    }
+
+    /**
+     * Full jitter: a random time up to the exponential bound, but never less than Retry-After.
+     */
+    private long backoffMillis(int attempt, IOException error) {
+        long bound = Math.min(this.maxBackoffMillis, this.initialBackoffMillis << Math.min(attempt - 1, 20));
+        long backoff = ThreadLocalRandom.current().nextLong(bound + 1);
+        if (error instanceof HttpResponseException) {
+            String retryAfter = ((HttpResponseException) error).getHeaders().getFirstHeaderStringValue("Retry-After");
+            if (retryAfter != null && retryAfter.chars().allMatch(Character::isDigit) && !retryAfter.isEmpty()) {
+                backoff = Math.max(backoff, Math.min(this.maxBackoffMillis, Long.parseLong(retryAfter) * 1000L));
+            }
+        }
+        return backoff;
+    }
+
+    static boolean isRetryable(IOException error) {
+        if (!(error instanceof HttpResponseException)) {
+            // Timeout or connection reset, no response was received
+            return !(error instanceof InterruptedIOException) || error instanceof SocketTimeoutException;
+        }
+        int status = ((HttpResponseException) error).getStatusCode();
+        return status == 429 || status >= 500 || isQuotaError(error);
+    }
+
+    /**
+     * @return true for 429 and for 403 with a rate limit reason
+     */
+    static boolean isQuotaError(IOException error) {
+        if (!(error instanceof HttpResponseException)) {
+            return false;
+        }
+        int status = ((HttpResponseException) error).getStatusCode();
+        if (status == 429) {
+            return true;
+        }
+        if (status != 403 || !(error instanceof GoogleJsonResponseException)) {
+            return false;
+        }
+        GoogleJsonError details = ((GoogleJsonResponseException) error).getDetails();
+        if (details == null || details.getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo errorInfo : details.getErrors()) {
+            String reason = errorInfo.getReason();
+            if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)
+                    || "quotaExceeded".equals(reason)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting to retry");
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+    }
+}
@@ -20,6 +20,8 @@ import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.util.store.DataStore;
 import com.google.api.client.util.store.DataStoreFactory;
@@ -31,6 +33,13 @@ import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.cloud.bigquery.*;
 import com.notelysia.gcp.dao.BigQueryClient;
+import com.notelysia.gcp.dao.DatasetExplorer;
+import com.notelysia.gcp.dao.IngestionBuffer;
+import com.notelysia.gcp.dao.ModelSchema;
+import com.notelysia.gcp.dao.TableLayout;
+import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.trace.Span;
+import com.notelysia.gcp.trace.Tracing;
 import com.notelysia.gcp.util.Instance;
 
 import java.io.*;
@@ -39,14 +48,119 @@ import java.security.KeyFactory;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
 
 public class ServiceCredential {
+    private static final Logger logger = Logger.getLogger(ServiceCredential.class.getName());
+    private static final Schema DRIVE_ACTIVITY_SCHEMA = ModelSchema.of(com.notelysia.gcp.model.DriveActivity.class);
+    /**
+     * Calendar table, per-user reads filter on ownerAccountId and the emails of the attendee records
+     * instead of searching the attendees text.
+     */
+    public static final Schema CALENDAR_SCHEMA = ModelSchema.of(CalendarEvent.class);
+    private static final TableLayout DRIVE_ACTIVITY_LAYOUT = TableLayout.of(com.notelysia.gcp.model.DriveActivity.class);
+    /**
+     * Calendar table partitioned by the creation time of the events and clustered on ownerAccountId.
+     */
+    public static final TableLayout CALENDAR_LAYOUT = TableLayout.of(CalendarEvent.class);
 
     private final DataStoreFactory dataStoreFactory = new MemoryDataStoreFactory();
+    private HttpTransport httpTransport;
+    private GoogleAuthorizationCodeFlow authorizationCodeFlow;
+    private BigQuery bigQuery;
+    private RequestGovernor requestGovernor = new RequestGovernor(
+            Instance.apiPermitsPerSecond,
+            Instance.apiUserPermitsPerSecond,
+            Instance.apiMaxAttempts,
+            Instance.apiInitialBackoffMillis,
+            Instance.apiMaxBackoffMillis);
+    private CrawlCheckpointStore crawlCheckpointStore = CrawlCheckpointStore.fromConfig();
+    private IngestionBuffer ingestionBuffer = IngestionBuffer.fromConfig();
+    private DatasetExplorer datasetExplorer;
 
     public ServiceCredential() {
     }
 
+    /**
+     * @return rate limits and retries shared by the Google API requests of all users
+     */
+    public RequestGovernor getRequestGovernor() {
+        return this.requestGovernor;
+    }
+
+    public void setRequestGovernor(RequestGovernor requestGovernor) {
+        this.requestGovernor = requestGovernor;
+    }
+
+    /**
+     * @return checkpoints of the unfinished Drive Activity and Calendar crawls
+     */
+    public CrawlCheckpointStore getCrawlCheckpointStore() {
+        return this.crawlCheckpointStore;
+    }
+
+    public void setCrawlCheckpointStore(CrawlCheckpointStore crawlCheckpointStore) {
+        this.crawlCheckpointStore = crawlCheckpointStore;
+    }
+
+    /**
+     * @return buffer that loads the rows of all users to each table in shared load jobs
+     */
+    public IngestionBuffer getIngestionBuffer() {
+        return this.ingestionBuffer;
+    }
+
+    public void setIngestionBuffer(IngestionBuffer ingestionBuffer) {
+        this.ingestionBuffer = ingestionBuffer;
+    }
+
+    /**
+     * @return catalog of the datasets and tables of the project, created with the BigQuery client on first use
+     */
+    public synchronized DatasetExplorer getDatasetExplorer() throws IOException, GeneralSecurityException {
+        if (this.datasetExplorer == null) {
+            this.datasetExplorer = DatasetExplorer.fromConfig(this.initializeBigQuery());
+        }
+        return this.datasetExplorer;
+    }
+
+    /**
+     * Stop the catalog reads, if the catalog was used.
+     */
+    public synchronized void closeDatasetExplorer() {
+        if (this.datasetExplorer != null) {
+            this.datasetExplorer.close();
+            this.datasetExplorer = null;
+        }
+    }
+
+    /**
+     * Use the transport for every Google API client and the OAuth2 flow,
+     * for example the fixture transport of the benchmarks (src/jmh) to run the collectors offline.
+     * Must be set before the first client is created.
+     *
+     * @param httpTransport HTTP transport of the Google API clients
+     */
+    public synchronized void setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    /**
+     * The trusted transport is thread-safe, so one instance is created on first use
+     * and shared by all clients instead of loading the trust store for every client.
+     *
+     * @return HTTP transport of the Google API clients
+     */
+    public synchronized HttpTransport getHttpTransport() throws GeneralSecurityException, IOException {
+        if (this.httpTransport == null) {
+            this.httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        }
+        return this.httpTransport;
+    }
+
     /**
      * Creates a Service Account credential object.
      *
@@ -89,13 +203,21 @@ public class ServiceCredential {
 
 
     /**
-     * Creates an authorized Credential object.
+     * Creates the OAuth2 authorization flow on first use, every request reuses it
+     * instead of reading the client secrets again.
      *
-     * @return an authorized Credential object.
+     * @return the OAuth2 authorization flow.
      * @throws IOException If the credentials.json file cannot be found.
      */
-    public GoogleAuthorizationCodeFlow googleAccountAuthorize() throws IOException, GeneralSecurityException {
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    public synchronized GoogleAuthorizationCodeFlow googleAccountAuthorize() throws IOException, GeneralSecurityException {
+        if (this.authorizationCodeFlow == null) {
+            this.authorizationCodeFlow = this.createAuthorizationCodeFlow();
+        }
+        return this.authorizationCodeFlow;
+    }
+
+    private GoogleAuthorizationCodeFlow createAuthorizationCodeFlow() throws IOException, GeneralSecurityException {
+        HttpTransport httpTransport = this.getHttpTransport();
         // Load client secrets.
         InputStream in = GoogleCredentials.class.getResourceAsStream("/" + Instance.credentialsFilePath);
         if (in == null) {
@@ -116,18 +238,21 @@ public class ServiceCredential {
 
     /**
      * Initialize BigQuery client that will be used to send requests. This client only needs to be created
-     * once, and can be reused for multiple requests.
+     * once, and can be reused for multiple requests, so it is created on first use and shared.
      *
      * @return BigQuery
      * @throws IOException If ADC from Google Cloud CLI cannot be found.
      */
-    public BigQuery initializeBigQuery() throws IOException, GeneralSecurityException {
-        GoogleCredentials credentials = this.serviceAccountAuthorize();
-        return BigQueryOptions.newBuilder()
-                .setCredentials(credentials)
-                .setProjectId(credentials.getQuotaProjectId())
-                .build()
-                .getService();
+    public synchronized BigQuery initializeBigQuery() throws IOException, GeneralSecurityException {
+        if (this.bigQuery == null) {
+            GoogleCredentials credentials = this.serviceAccountAuthorize();
+            this.bigQuery = BigQueryOptions.newBuilder()
+                    .setCredentials(credentials)
+                    .setProjectId(credentials.getQuotaProjectId())
+                    .build()
+                    .getService();
+        }
+        return this.bigQuery;
     }
 
     /**
@@ -137,11 +262,11 @@ public class ServiceCredential {
      * @return PeopleService to get user email from UserId
      */
     public PeopleService createPeopleService(Credential credential) throws GeneralSecurityException, IOException {
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        HttpTransport httpTransport = this.getHttpTransport();
         return new PeopleService.Builder(
                 httpTransport,
                 Instance.jsonFactory,
-                credential)
+                this.traced(credential))
                 .setApplicationName(Instance.applicationName)
                 .build();
     }
@@ -152,10 +277,10 @@ public class ServiceCredential {
      * @return an authorized Calendar client service
      */
     public Calendar createCalendarService(Credential credential) throws GeneralSecurityException, IOException {
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        HttpTransport httpTransport = this.getHttpTransport();
         return new Calendar.Builder(
                 httpTransport,
-                Instance.jsonFactory, credential)
+                Instance.jsonFactory, this.traced(credential))
                 .setApplicationName(Instance.applicationName)
                 .build();
     }
@@ -166,15 +291,41 @@ public class ServiceCredential {
      * @return an authorized DriveActivity client service
      */
     public DriveActivity createDriveActivityService(Credential credential) throws GeneralSecurityException, IOException {
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        HttpTransport httpTransport = this.getHttpTransport();
         return new DriveActivity.Builder(
                 httpTransport,
                 Instance.jsonFactory,
-                credential)
+                this.traced(credential))
                 .setApplicationName(Instance.applicationName)
                 .build();
     }
 
+    /**
+     * Authorize the requests with the credential and record the HTTP status and sizes
+     * of every response on the current trace span.
+     */
+    private HttpRequestInitializer traced(Credential credential) {
+        return request -> {
+            credential.initialize(request);
+            request.setResponseInterceptor(response -> {
+                Span span = Tracing.currentSpan();
+                if (span == null) {
+                    return;
+                }
+                span.setAttribute("http.status_code", response.getStatusCode());
+                span.addToAttribute("http.attempts", 1);
+                HttpContent content = response.getRequest().getContent();
+                if (content != null && content.getLength() >= 0) {
+                    span.addToAttribute("http.request_content_length", content.getLength());
+                }
+                Long contentLength = response.getHeaders().getContentLength();
+                if (contentLength != null) {
+                    span.addToAttribute("http.response_content_length", contentLength);
+                }
+            });
+        };
+    }
+
     /**
      * Clears the data store.
      */
@@ -185,44 +336,66 @@ public class ServiceCredential {
 
     /**
      * Prepare a BigQuery dataset and table for storing Drive Activity and Calendar data.
+     * The dataset is checked first, then both tables are checked and created at the same time.
+     * Tables are created partitioned and clustered, existing tables without the layout are rewritten
+     * into it when bigquery.partition.migrate is set.
      *
      * @param dataset           The name of the dataset to create.
      * @param driveActivityTale The name of the table to create for Drive Activity data.
      * @param calendarTable     The name of the table to create for Calendar data.
+     * @param executor          Executor running the BigQuery calls
+     * @return future completed when the dataset and both tables exist
      */
-    public void preparedBigQueryTable(String dataset,
-                                      String driveActivityTale,
-                                      String calendarTable) throws GeneralSecurityException, IOException {
-        BigQuery bigQuery = this.initializeBigQuery();
-        BigQueryClient bigQueryClient = new BigQueryClient();
-        bigQueryClient.setBigquery(bigQuery);
-        bigQueryClient.createDataSet(dataset);
-        Schema driveActivitySchema = Schema.of(
-                Field.newBuilder("activityId", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("timeActivity", StandardSQLTypeName.TIMESTAMP).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("userAction", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("primaryAction", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("subAction", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("subActionType", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("subActionResult", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("item", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build()
-        );
-        Schema calendarSchema = Schema.of(
-                Field.newBuilder("eventId", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("eventTitle", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("eventType", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("status", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("createdTime", StandardSQLTypeName.TIMESTAMP).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("updatedTime", StandardSQLTypeName.TIMESTAMP).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("creator", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("organizer", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("eventLink", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("attendees", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("startTime", StandardSQLTypeName.TIMESTAMP).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("endTime", StandardSQLTypeName.TIMESTAMP).setMode(Field.Mode.NULLABLE).build(),
-                Field.newBuilder("totalTime", StandardSQLTypeName.STRING).setMode(Field.Mode.NULLABLE).build());
-
-        bigQueryClient.createTable(dataset, driveActivityTale, driveActivitySchema);
-        bigQueryClient.createTable(dataset, calendarTable, calendarSchema);
+    public CompletableFuture<Void> preparedBigQueryTable(String dataset,
+                                                         String driveActivityTale,
+                                                         String calendarTable,
+                                                         Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            BigQueryClient bigQueryClient = new BigQueryClient();
+            try {
+                bigQueryClient.setBigquery(this.initializeBigQuery());
+            } catch (IOException | GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+            bigQueryClient.createDataSet(dataset);
+            return bigQueryClient;
+        }, executor).thenCompose(bigQueryClient -> CompletableFuture.allOf(
+                CompletableFuture.runAsync(() -> {
+                    bigQueryClient.createTable(dataset, driveActivityTale, DRIVE_ACTIVITY_SCHEMA, DRIVE_ACTIVITY_LAYOUT);
+                    this.migrateLayout(bigQueryClient, dataset, driveActivityTale, DRIVE_ACTIVITY_LAYOUT);
+                    this.applyRetention(bigQueryClient, dataset, driveActivityTale, DRIVE_ACTIVITY_LAYOUT);
+                }, executor),
+                CompletableFuture.runAsync(() -> {
+                    bigQueryClient.createTable(dataset, calendarTable, CALENDAR_SCHEMA, CALENDAR_LAYOUT);
+                    // Tables created before a column was added to the schema get it here
+                    bigQueryClient.addMissingFields(dataset, calendarTable, CALENDAR_SCHEMA);
+                    this.migrateLayout(bigQueryClient, dataset, calendarTable, CALENDAR_LAYOUT);
+                    this.applyRetention(bigQueryClient, dataset, calendarTable, CALENDAR_LAYOUT);
+                }, executor)));
+    }
+
+    private void applyRetention(BigQueryClient bigQueryClient, String dataset, String table, TableLayout layout) {
+        try {
+            bigQueryClient.applyRetention(dataset, table, layout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (RuntimeException e) {
+            logger.warning(String.format("Partition expiration of table %s was not updated. \n%s", table, e));
+        }
+    }
+
+    private void migrateLayout(BigQueryClient bigQueryClient, String dataset, String table, TableLayout layout) {
+        if (!Instance.bigqueryPartitionMigrate) {
+            return;
+        }
+        try {
+            bigQueryClient.migrateToLayout(dataset, table, layout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (RuntimeException e) {
+            logger.warning(String.format("Table %s was not migrated to the partitioned layout. \n%s", table, e));
+        }
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import com.notelysia.gcp.util.Metrics;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Prepare the application in the background so servlet startup is not blocked on a cold start:
+ * the shared HTTP transport, the OAuth2 flow and the BigQuery client are created, and the dataset
+ * and tables are checked, all at the same time. The checks are idempotent, so a failed preparation
+ * is started again by the next readiness check after a delay that doubles with every failure,
+ * and the collection still creates what is missing on first use.
+ */
+public class StartupOrchestrator {
+    private static final Logger logger = Logger.getLogger(StartupOrchestrator.class.getName());
+    private static final int STARTUP_THREADS = 4;
+    private static final long FIRST_RETRY_DELAY_MILLIS = 5_000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60_000;
+
+    private final ServiceCredential serviceCredential;
+    private volatile CompletableFuture<Void> ready;
+    // Guarded by this
+    private String dataset;
+    private String driveActivityTable;
+    private String calendarTable;
+    private ExecutorService executor;
+    private int attempts;
+    private long retryAtMillis;
+    private boolean stopped;
+
+    public StartupOrchestrator(ServiceCredential serviceCredential) {
+        this.serviceCredential = serviceCredential;
+    }
+
+    /**
+     * Start the preparation and return immediately.
+     *
+     * @param dataset            Dataset of the collection tables
+     * @param driveActivityTable Drive Activity table
+     * @param calendarTable      Calendar table
+     */
+    public synchronized void start(String dataset, String driveActivityTable, String calendarTable) {
+        if (this.ready != null || this.stopped) {
+            return;
+        }
+        this.dataset = dataset;
+        this.driveActivityTable = driveActivityTable;
+        this.calendarTable = calendarTable;
+        this.attempt();
+    }
+
+    /**
+     * @return true when the clients are created and the tables exist
+     */
+    public boolean isReady() {
+        this.retryIfFailed();
+        CompletableFuture<Void> current = this.ready;
+        return current != null && current.isDone() && !current.isCompletedExceptionally();
+    }
+
+    /**
+     * @return the error of the last preparation, or null if it is running or succeeded
+     */
+    public Throwable getFailure() {
+        CompletableFuture<Void> current = this.ready;
+        if (current == null || !current.isCompletedExceptionally()) {
+            return null;
+        }
+        try {
+            current.join();
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause() != null ? e.getCause() : e;
+        }
+    }
+
+    /**
+     * Wait until the preparation is finished.
+     *
+     * @param timeoutMillis Maximum time to wait in milliseconds
+     * @return true if the application is ready
+     */
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        this.retryIfFailed();
+        CompletableFuture<Void> current = this.ready;
+        if (current == null) {
+            return false;
+        }
+        try {
+            current.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop the preparation that is still running, it is not started again.
+     */
+    public synchronized void shutdown() {
+        this.stopped = true;
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Start the preparation again when the last one failed and its retry delay is over.
+     */
+    private synchronized void retryIfFailed() {
+        CompletableFuture<Void> current = this.ready;
+        if (this.stopped || current == null || !current.isCompletedExceptionally()
+                || System.currentTimeMillis() < this.retryAtMillis) {
+            return;
+        }
+        logger.info("Retry the startup preparation, attempt " + (this.attempts + 1));
+        this.attempt();
+    }
+
+    /**
+     * Run one preparation on its own executor, which is shut down when the preparation is finished.
+     */
+    private void attempt() {
+        this.attempts++;
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService attemptExecutor = Executors.newFixedThreadPool(STARTUP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "startup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor = attemptExecutor;
+        Metrics.Timer startupTimer = Metrics.time("startup.ready");
+        CompletableFuture<Void> warmOAuth = CompletableFuture.runAsync(() -> {
+            try (Metrics.Timer ignored = Metrics.time("startup.warm_oauth")) {
+                this.serviceCredential.getHttpTransport();
+                this.serviceCredential.googleAccountAuthorize();
+            } catch (IOException | GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+        }, attemptExecutor);
+        Metrics.Timer tablesTimer = Metrics.time("startup.prepare_tables");
+        CompletableFuture<Void> prepareTables = this.serviceCredential
+                .preparedBigQueryTable(this.dataset, this.driveActivityTable, this.calendarTable, attemptExecutor)
+                .whenComplete((result, error) -> tablesTimer.close());
+        this.ready = CompletableFuture.allOf(warmOAuth, prepareTables)
+                .whenComplete((result, error) -> {
+                    startupTimer.close();
+                    if (error != null) {
+                        this.failed(error);
+                    } else {
+                        logger.info("Startup preparation finished");
+                    }
+                    attemptExecutor.shutdown();
+                });
+    }
+
+    private synchronized void failed(Throwable error) {
+        long delay = Math.min(MAX_RETRY_DELAY_MILLIS, FIRST_RETRY_DELAY_MILLIS << Math.min(this.attempts - 1, 10));
+        this.retryAtMillis = System.currentTimeMillis() + delay;
+        Metrics.increment("startup_failures", 1);
+        logger.warning(String.format("Startup preparation failed (attempt %s), retried in %s ms: %s",
+                this.attempts, delay, error));
+    }
+}
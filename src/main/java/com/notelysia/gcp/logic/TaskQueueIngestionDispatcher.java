@@ -0,0 +1,81 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.hash.Hashing;
+import com.notelysia.gcp.util.HttpCache;
+import com.notelysia.gcp.util.Metrics;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Queues the collection tasks on an App Engine push queue (bundled services), the queue posts every task
+ * to {@link #TASK_URL} on any instance. The rate, bucket size and max concurrent requests of the queue
+ * are set in queue.xml, the retries are set on every task.
+ * <p>
+ * Tasks are named by the collection and the ingestion interval, so a collection dispatched again
+ * before the interval ends is not queued twice.
+ */
+public class TaskQueueIngestionDispatcher implements IngestionDispatcher {
+    public static final String TASK_URL = "/tasks/collect";
+
+    private final String queueName;
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * @param queueName   Push queue of queue.xml
+     * @param retryPolicy Retries of a failed task
+     */
+    public TaskQueueIngestionDispatcher(String queueName, RetryPolicy retryPolicy) {
+        this.queueName = queueName;
+        this.retryPolicy = retryPolicy;
+    }
+
+    @Override
+    public boolean dispatch(CollectionTask task) {
+        TaskOptions options = TaskOptions.Builder.withUrl(TASK_URL)
+                .method(TaskOptions.Method.POST)
+                .taskName(taskName(task))
+                .retryOptions(RetryOptions.Builder
+                        .withTaskRetryLimit(this.retryPolicy.getRetryLimit())
+                        .minBackoffSeconds(this.retryPolicy.getMinBackoffSeconds())
+                        .maxBackoffSeconds(this.retryPolicy.getMaxBackoffSeconds())
+                        .maxDoublings(this.retryPolicy.getMaxDoublings()));
+        task.toParams().forEach(options::param);
+        try {
+            QueueFactory.getQueue(this.queueName).add(options);
+            Metrics.increment("ingestion_tasks_dispatched", 1);
+            return true;
+        } catch (TaskAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Task names allow [a-zA-Z0-9_-] only and cannot be used again for days, so the name is
+     * the type, a hash of the user and calendar, and the ingestion interval of the dispatch.
+     */
+    private static String taskName(CollectionTask task) {
+        String hash = Hashing.sha256().hashString(task.getKey(), StandardCharsets.UTF_8).toString().substring(0, 32);
+        long interval = System.currentTimeMillis() / HttpCache.INGESTION_INTERVAL_MILLIS;
+        return task.getType().name().toLowerCase().replace('_', '-') + "-" + hash + "-" + interval;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.logic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket of permits refilled at a fixed rate, shared by the request limits of the Google APIs
+ * and the task starts of the local dispatcher.
+ * Callers reserve the next permit and wait outside the lock until it is available.
+ */
+final class TokenBucket {
+    private final double permitsPerSecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private long pausedUntilNanos;
+
+    /**
+     * @param permitsPerSecond Permits added per second, 0 or less for no limit
+     * @param capacity         Permits the bucket holds, taken at once after it was idle
+     */
+    TokenBucket(double permitsPerSecond, double capacity) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+    }
+
+    /**
+     * Take one permit.
+     *
+     * @return nanoseconds to wait before the permit can be used
+     */
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        long pauseNanos = Math.max(0, this.pausedUntilNanos - now);
+        if (this.permitsPerSecond <= 0) {
+            return pauseNanos;
+        }
+        this.tokens = Math.min(this.capacity,
+                this.tokens + (now - this.lastRefillNanos) * this.permitsPerSecond / 1e9);
+        this.lastRefillNanos = now;
+        // A negative balance is the queue of callers already waiting for a permit
+        this.tokens -= 1;
+        long tokenNanos = this.tokens >= 0 ? 0 : (long) (-this.tokens * 1e9 / this.permitsPerSecond);
+        return Math.max(tokenNanos, pauseNanos);
+    }
+
+    /**
+     * No permit can be used before the pause ends, e.g. after a quota error.
+     */
+    synchronized void pause(long millis) {
+        this.pausedUntilNanos = Math.max(this.pausedUntilNanos,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.model;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * BigQuery type of a CSV column of a model class, columns without it are NULLABLE STRING.
+ * The table schema is generated from the model, see {@code ModelSchema}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface BigQueryColumn {
+    StandardSQLTypeName type() default StandardSQLTypeName.STRING;
+
+    Field.Mode mode() default Field.Mode.NULLABLE;
+
+    /**
+     * STRING fields of a STRUCT column, the CSV value is then a JSON object (or array when REPEATED).
+     */
+    String[] fields() default {};
+
+    /**
+     * The table is partitioned by day on this TIMESTAMP column, see {@code TableLayout}.
+     */
+    boolean partitioning() default false;
+
+    /**
+     * The partitions expire after the retention and the user pages read only the lookback window.
+     * False for a partitioning column that does not tell whether a record is still collected,
+     * the table then keeps and reads every partition.
+     */
+    boolean expiring() default true;
+
+    /**
+     * Position of the column in the clustering columns (1 to 4), 0 if the table is not clustered on it.
+     */
+    int clustering() default 0;
+}
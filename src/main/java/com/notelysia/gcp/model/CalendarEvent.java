@@ -16,6 +16,8 @@
 
 package com.notelysia.gcp.model;
 
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.opencsv.bean.CsvBindByName;
 import lombok.Getter;
 import lombok.Setter;
@@ -35,10 +37,14 @@ public class CalendarEvent {
     @CsvBindByName(column = "status")
     private String status;
 
+    // Never changes for an event, so the row of an event stays in its partition.
+    // A recurring event created long ago is still collected every month, so its partition must not expire.
     @CsvBindByName(column = "createdTime")
+    @BigQueryColumn(type = StandardSQLTypeName.TIMESTAMP, partitioning = true, expiring = false)
     private String createdTime;
 
     @CsvBindByName(column = "updatedTime")
+    @BigQueryColumn(type = StandardSQLTypeName.TIMESTAMP)
     private String updatedTime;
 
     @CsvBindByName(column = "creator")
@@ -54,11 +60,23 @@ public class CalendarEvent {
     private String attendees;
 
     @CsvBindByName(column = "startTime")
+    @BigQueryColumn(type = StandardSQLTypeName.TIMESTAMP)
     private String startTime;
 
     @CsvBindByName(column = "endTime")
+    @BigQueryColumn(type = StandardSQLTypeName.TIMESTAMP)
     private String endTime;
 
     @CsvBindByName(column = "totalTime")
     private String totalTime;
+
+    // Google Account ID of the user whose calendars the event was collected from
+    @CsvBindByName(column = "ownerAccountId")
+    @BigQueryColumn(clustering = 1)
+    private String ownerAccountId;
+
+    // All attendees as a JSON array of {"email", "responseStatus"}, loaded to the REPEATED RECORD column
+    @CsvBindByName(column = "attendee")
+    @BigQueryColumn(type = StandardSQLTypeName.STRUCT, mode = Field.Mode.REPEATED, fields = {"email", "responseStatus"})
+    private String attendee;
 }
@@ -16,6 +16,7 @@
 
 package com.notelysia.gcp.model;
 
+import com.google.cloud.bigquery.StandardSQLTypeName;
 import com.opencsv.bean.CsvBindByName;
 import lombok.Getter;
 import lombok.Setter;
@@ -27,6 +28,7 @@ public class DriveActivity {
     private String activityId;
 
     @CsvBindByName(column = "timeActivity")
+    @BigQueryColumn(type = StandardSQLTypeName.TIMESTAMP, partitioning = true)
     private String timeActivity;
 
     @CsvBindByName(column = "userAction")
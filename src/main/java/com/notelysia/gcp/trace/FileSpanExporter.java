@@ -0,0 +1,69 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.trace;
+
+import com.notelysia.gcp.util.Instance;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append every span as one JSON line to a local file, to inspect traces offline
+ * (e.g. with jq) after a load harness run.
+ */
+public class FileSpanExporter implements SpanExporter {
+    private final Path path;
+
+    public FileSpanExporter(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public synchronized void export(List<Span> spans) throws IOException {
+        if (this.path.getParent() != null) {
+            Files.createDirectories(this.path.getParent());
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(this.path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Span span : spans) {
+                writer.write(Instance.jsonFactory.toString(toJson(span)));
+                writer.newLine();
+            }
+        }
+    }
+
+    private static Map<String, Object> toJson(Span span) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("traceId", span.getTraceId());
+        json.put("spanId", span.getSpanId());
+        json.put("parentSpanId", span.getParentSpanId());
+        json.put("name", span.getName());
+        json.put("start", Instant.ofEpochSecond(0, span.getStartEpochNanos()).toString());
+        json.put("durationMicros", span.getDurationNanos() / 1_000);
+        json.put("attributes", span.getAttributes());
+        json.put("error", span.getErrorMessage());
+        return json;
+    }
+}
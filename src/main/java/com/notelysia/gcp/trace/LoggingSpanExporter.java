@@ -0,0 +1,55 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.trace;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Log every trace as an indented tree of spans, for local runs without a collector.
+ */
+public class LoggingSpanExporter implements SpanExporter {
+    private static final Logger logger = Logger.getLogger(LoggingSpanExporter.class.getName());
+
+    @Override
+    public void export(List<Span> spans) {
+        if (spans.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> depths = new HashMap<>();
+        StringBuilder tree = new StringBuilder("trace ").append(spans.get(0).getTraceId());
+        spans.stream()
+                .sorted(Comparator.comparingLong(Span::getStartEpochNanos))
+                .forEach(span -> {
+                    int depth = span.getParentSpanId() == null ? 0 : depths.getOrDefault(span.getParentSpanId(), 0) + 1;
+                    depths.put(span.getSpanId(), depth);
+                    tree.append('\n').append("  ".repeat(depth + 1))
+                            .append(span.getName())
+                            .append(' ').append(span.getDurationNanos() / 1_000_000).append("ms");
+                    if (!span.getAttributes().isEmpty()) {
+                        tree.append(' ').append(span.getAttributes());
+                    }
+                    if (span.getErrorMessage() != null) {
+                        tree.append(" error=").append(span.getErrorMessage());
+                    }
+                });
+        logger.info(tree.toString());
+    }
+}
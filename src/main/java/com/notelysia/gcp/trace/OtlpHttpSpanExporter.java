@@ -0,0 +1,132 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.trace;
+
+import com.notelysia.gcp.util.Instance;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Send traces to an OpenTelemetry collector with OTLP/HTTP in the JSON encoding,
+ * e.g. http://localhost:4318/v1/traces.
+ */
+public class OtlpHttpSpanExporter implements SpanExporter {
+    private static final int SPAN_KIND_INTERNAL = 1;
+    private static final int STATUS_CODE_ERROR = 2;
+    private final URI endpoint;
+    private final String serviceName;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    public OtlpHttpSpanExporter(String endpoint, String serviceName) {
+        this.endpoint = URI.create(endpoint);
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public void export(List<Span> spans) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(this.endpoint)
+                .timeout(Duration.ofSeconds(10))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(Instance.jsonFactory.toString(this.toRequest(spans))))
+                .build();
+        HttpResponse<String> response;
+        try {
+            response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting the trace", e);
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(String.format("OTLP endpoint returned %s: %s",
+                    response.statusCode(), response.body()));
+        }
+    }
+
+    /**
+     * Build the ExportTraceServiceRequest of the spans.
+     */
+    private Map<String, Object> toRequest(List<Span> spans) {
+        List<Object> otlpSpans = new ArrayList<>();
+        for (Span span : spans) {
+            Map<String, Object> otlpSpan = new LinkedHashMap<>();
+            otlpSpan.put("traceId", span.getTraceId());
+            otlpSpan.put("spanId", span.getSpanId());
+            if (span.getParentSpanId() != null) {
+                otlpSpan.put("parentSpanId", span.getParentSpanId());
+            }
+            otlpSpan.put("name", span.getName());
+            otlpSpan.put("kind", SPAN_KIND_INTERNAL);
+            // 64-bit integers are strings in the OTLP JSON encoding
+            otlpSpan.put("startTimeUnixNano", String.valueOf(span.getStartEpochNanos()));
+            otlpSpan.put("endTimeUnixNano", String.valueOf(span.getEndEpochNanos()));
+            List<Object> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+                attributes.add(toAttribute(attribute.getKey(), attribute.getValue()));
+            }
+            otlpSpan.put("attributes", attributes);
+            if (span.getErrorMessage() != null) {
+                Map<String, Object> status = new LinkedHashMap<>();
+                status.put("code", STATUS_CODE_ERROR);
+                status.put("message", span.getErrorMessage());
+                otlpSpan.put("status", status);
+            }
+            otlpSpans.add(otlpSpan);
+        }
+        Map<String, Object> scope = new LinkedHashMap<>();
+        scope.put("name", "com.notelysia.gcp");
+        Map<String, Object> scopeSpans = new LinkedHashMap<>();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", otlpSpans);
+
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("attributes", Collections.singletonList(toAttribute("service.name", this.serviceName)));
+        Map<String, Object> resourceSpans = new LinkedHashMap<>();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", Collections.singletonList(scopeSpans));
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("resourceSpans", Collections.singletonList(resourceSpans));
+        return request;
+    }
+
+    private static Map<String, Object> toAttribute(String key, Object value) {
+        Map<String, Object> anyValue = new LinkedHashMap<>();
+        if (value instanceof Long) {
+            anyValue.put("intValue", String.valueOf(value));
+        } else if (value instanceof Boolean) {
+            anyValue.put("boolValue", value);
+        } else {
+            anyValue.put("stringValue", String.valueOf(value));
+        }
+        Map<String, Object> attribute = new LinkedHashMap<>();
+        attribute.put("key", key);
+        attribute.put("value", anyValue);
+        return attribute;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.trace;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One timed operation of a trace. Spans are started with {@link Tracing#startSpan(String)}
+ * and ended by closing them, the spans of a trace are exported when its root span ends.
+ * A span is used by the thread that started it, attributes are not synchronized.
+ */
+public final class Span implements AutoCloseable {
+    private final String traceId;
+    private final String spanId;
+    private final Span parent;
+    private final String name;
+    private final long startEpochNanos;
+    private final long startNanoTime;
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    // Ended spans of the trace, shared by all spans of the trace and exported by the root span
+    private final List<Span> finishedSpans;
+    private long durationNanos = -1;
+    private String errorMessage;
+
+    Span(String traceId, String spanId, Span parent, String name) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parent = parent;
+        this.name = name;
+        Instant now = Instant.now();
+        this.startEpochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        this.startNanoTime = System.nanoTime();
+        this.finishedSpans = parent != null ? parent.finishedSpans : Collections.synchronizedList(new ArrayList<>());
+    }
+
+    public Span setAttribute(String key, String value) {
+        if (value != null) {
+            this.attributes.put(key, value);
+        }
+        return this;
+    }
+
+    public Span setAttribute(String key, long value) {
+        this.attributes.put(key, value);
+        return this;
+    }
+
+    public Span setAttribute(String key, boolean value) {
+        this.attributes.put(key, value);
+        return this;
+    }
+
+    /**
+     * Add to a numeric attribute, for example the bytes of every HTTP attempt of the span.
+     */
+    public Span addToAttribute(String key, long amount) {
+        Object current = this.attributes.get(key);
+        long value = current instanceof Long ? (Long) current : 0L;
+        this.attributes.put(key, value + amount);
+        return this;
+    }
+
+    /**
+     * Mark the span as failed.
+     *
+     * @param error Error of the operation
+     */
+    public Span recordError(Throwable error) {
+        this.errorMessage = error.getClass().getSimpleName()
+                + (error.getMessage() != null ? ": " + error.getMessage() : "");
+        return this;
+    }
+
+    /**
+     * Mark the span as failed.
+     *
+     * @param message Error message of the operation
+     */
+    public Span recordError(String message) {
+        this.errorMessage = message;
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (this.durationNanos >= 0) {
+            return;
+        }
+        this.durationNanos = System.nanoTime() - this.startNanoTime;
+        this.finishedSpans.add(this);
+        Tracing.end(this);
+    }
+
+    public String getTraceId() {
+        return this.traceId;
+    }
+
+    public String getSpanId() {
+        return this.spanId;
+    }
+
+    /**
+     * @return span id of the parent, or null for the root span
+     */
+    public String getParentSpanId() {
+        return this.parent != null ? this.parent.spanId : null;
+    }
+
+    Span getParent() {
+        return this.parent;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getStartEpochNanos() {
+        return this.startEpochNanos;
+    }
+
+    public long getEndEpochNanos() {
+        return this.startEpochNanos + Math.max(this.durationNanos, 0);
+    }
+
+    public long getDurationNanos() {
+        return this.durationNanos;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(this.attributes);
+    }
+
+    /**
+     * @return error message, or null if the span succeeded
+     */
+    public String getErrorMessage() {
+        return this.errorMessage;
+    }
+
+    List<Span> getFinishedSpans() {
+        return this.finishedSpans;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.trace;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of finished traces.
+ */
+public interface SpanExporter {
+
+    /**
+     * Export the spans of one trace, called from the export thread.
+     *
+     * @param spans Spans of the trace, children before their parent
+     */
+    void export(List<Span> spans) throws IOException;
+
+    /**
+     * Release the resources of the exporter.
+     */
+    default void shutdown() throws IOException {
+    }
+}
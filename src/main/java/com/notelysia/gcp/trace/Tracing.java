@@ -0,0 +1,202 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.trace;
+
+import com.notelysia.gcp.util.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Per-request traces of the collection pipeline.
+ * The current span is kept per thread, a span started while another span is open on the same
+ * thread becomes its child, otherwise it starts a new trace:
+ * <pre>
+ * try (Span span = Tracing.startSpan("driveactivity.activity.query")) {
+ *     span.setAttribute("page.index", pageIndex);
+ *     ...
+ * }
+ * </pre>
+ * When the root span ends, the whole trace is handed to the exporter on a background thread,
+ * so a slow exporter never delays the request. Without an exporter, traces are discarded.
+ */
+public final class Tracing {
+    private static final Logger logger = Logger.getLogger(Tracing.class.getName());
+    /**
+     * Traces waiting for the exporter, newer traces are dropped when the queue is full.
+     */
+    private static final int EXPORT_QUEUE_SIZE = 1000;
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+    private static volatile SpanExporter exporter;
+    private static ThreadPoolExecutor exportExecutor;
+
+    private Tracing() {
+    }
+
+    /**
+     * Create the exporter from the configuration.
+     *
+     * @param type         "none", "console", "file" or "otlp"
+     * @param filePath     JSON lines file of the "file" exporter
+     * @param otlpEndpoint OTLP/HTTP traces endpoint of the "otlp" exporter
+     * @param serviceName  Service name reported by the "otlp" exporter
+     * @return the exporter, or null for "none"
+     */
+    public static SpanExporter createExporter(String type,
+                                              String filePath,
+                                              String otlpEndpoint,
+                                              String serviceName) {
+        switch (type == null ? "none" : type.trim().toLowerCase()) {
+            case "none":
+            case "":
+                return null;
+            case "console":
+                return new LoggingSpanExporter();
+            case "file":
+                return new FileSpanExporter(Paths.get(filePath));
+            case "otlp":
+                return new OtlpHttpSpanExporter(otlpEndpoint, serviceName);
+            default:
+                throw new IllegalArgumentException("Unknown trace exporter: " + type);
+        }
+    }
+
+    /**
+     * Export the traces finished from now on, null discards them.
+     *
+     * @param spanExporter Destination of the traces
+     */
+    public static synchronized void setExporter(SpanExporter spanExporter) {
+        if (spanExporter != null && exportExecutor == null) {
+            exportExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(EXPORT_QUEUE_SIZE),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "trace-export");
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (runnable, executor) -> Metrics.increment("traces_dropped", 1));
+        }
+        exporter = spanExporter;
+    }
+
+    /**
+     * Export the queued traces and shut down the exporter.
+     */
+    public static synchronized void shutdown() {
+        SpanExporter spanExporter = exporter;
+        exporter = null;
+        if (exportExecutor != null) {
+            exportExecutor.shutdown();
+            try {
+                if (!exportExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    exportExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                exportExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            exportExecutor = null;
+        }
+        if (spanExporter != null) {
+            try {
+                spanExporter.shutdown();
+            } catch (IOException e) {
+                logger.warning("Failed to shut down the trace exporter: " + e);
+            }
+        }
+    }
+
+    /**
+     * Start a span, as a child of the current span of the thread if there is one.
+     *
+     * @param name Operation name, for example "bigquery.job.wait"
+     * @return the started span, close it to end the span
+     */
+    public static Span startSpan(String name) {
+        Span parent = currentSpan.get();
+        String traceId = parent != null ? parent.getTraceId() : randomId(16);
+        Span span = new Span(traceId, randomId(8), parent, name);
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * @return the open span of the thread, or null outside a trace
+     */
+    public static Span currentSpan() {
+        return currentSpan.get();
+    }
+
+    static void end(Span span) {
+        if (currentSpan.get() == span) {
+            if (span.getParent() != null) {
+                currentSpan.set(span.getParent());
+            } else {
+                currentSpan.remove();
+            }
+        }
+        if (span.getParent() == null) {
+            export(span.getFinishedSpans());
+        }
+    }
+
+    private static void export(List<Span> finishedSpans) {
+        SpanExporter spanExporter = exporter;
+        ThreadPoolExecutor executor = exportExecutor;
+        if (spanExporter == null || executor == null) {
+            return;
+        }
+        List<Span> spans;
+        synchronized (finishedSpans) {
+            spans = new ArrayList<>(finishedSpans);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    spanExporter.export(spans);
+                } catch (IOException | RuntimeException e) {
+                    logger.warning("Failed to export trace: " + e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Executor shut down while the request was running
+            Metrics.increment("traces_dropped", 1);
+        }
+    }
+
+    private static String randomId(int bytes) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder id = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++) {
+            int value = random.nextInt(256);
+            // The all-zero id is invalid, the first byte is never zero
+            if (i == 0 && value == 0) {
+                value = 1;
+            }
+            id.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 0xf, 16));
+        }
+        return id.toString();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.util;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public class AsyncDispatcher {
+    private static final Logger logger = Logger.getLogger(AsyncDispatcher.class.getName());
+    /**
+     * Upper bound of concurrent collections when virtual threads are not available.
+     */
+    private static final int PLATFORM_POOL_SIZE = 64;
+
+    private AsyncDispatcher() {
+    }
+
+    /**
+     * Work that runs outside the container thread.
+     * The task must not touch the request, the response or the session: it reads what it needs
+     * before the dispatch and returns the response as a {@link Reply}, which is only written
+     * if the request did not time out.
+     */
+    @FunctionalInterface
+    public interface Task {
+        Reply call() throws Exception;
+    }
+
+    /**
+     * Status, cache validators, session attributes and body of the response of a task.
+     */
+    public static final class Reply {
+        private final int status;
+        private final String body;
+        private String eTag;
+        private long lastModified;
+        private final Map<String, Object> sessionAttributes = new LinkedHashMap<>();
+
+        private Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /**
+         * @return 200 reply with the page body
+         */
+        public static Reply page(String body) {
+            return new Reply(HttpServletResponse.SC_OK, body);
+        }
+
+        /**
+         * @return 304 reply without body, the client already has the current page
+         */
+        public static Reply notModified() {
+            return new Reply(HttpServletResponse.SC_NOT_MODIFIED, null);
+        }
+
+        /**
+         * Send the validators and caching headers of {@link HttpCache#applyCacheHeaders}.
+         */
+        public Reply withCacheHeaders(String eTag, long lastModified) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            return this;
+        }
+
+        /**
+         * Set the attribute on the session of the request with the response.
+         */
+        public Reply withSessionAttribute(String name, Object value) {
+            this.sessionAttributes.put(name, value);
+            return this;
+        }
+
+        private void writeTo(AsyncContext asyncContext) throws IOException {
+            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            if (!this.sessionAttributes.isEmpty()) {
+                HttpSession session = ((HttpServletRequest) asyncContext.getRequest()).getSession();
+                this.sessionAttributes.forEach(session::setAttribute);
+            }
+            if (this.eTag != null) {
+                HttpCache.applyCacheHeaders(response, this.eTag, this.lastModified);
+            }
+            response.setStatus(this.status);
+            if (this.body != null) {
+                response.getWriter().write(this.body);
+            }
+        }
+    }
+
+    /**
+     * Create the executor for blocking Google API and BigQuery calls.
+     * Use virtual threads when the runtime supports them (Java 21+),
+     * otherwise fall back to a bounded pool of daemon platform threads.
+     *
+     * @return executor for collection tasks
+     */
+    public static ExecutorService newCollectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            logger.info("Collection executor uses virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.info("Virtual threads not available, collection executor uses platform threads");
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                PLATFORM_POOL_SIZE, PLATFORM_POOL_SIZE,
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "collection-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Release the container thread and run the task on the executor.
+     * If the task does not finish before the timeout, it is cancelled and the client receives 504.
+     *
+     * @param request       HTTP request
+     * @param executor      Executor for collection tasks
+     * @param timeoutMillis Maximum time for the task in milliseconds
+     * @param errorMessage  Message sent to the client if the task fails
+     * @param task          Work to run
+     */
+    public static void dispatch(HttpServletRequest request,
+                                ExecutorService executor,
+                                long timeoutMillis,
+                                String errorMessage,
+                                Task task) {
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeoutMillis);
+        // Only one of the task and the timeout may write the response
+        AtomicBoolean finished = new AtomicBoolean(false);
+        CompletableFuture<Future<?>> submitted = new CompletableFuture<>();
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (finished.compareAndSet(false, true)) {
+                    submitted.thenAccept(future -> future.cancel(true));
+                    logger.warning(String.format("Request timed out after %s ms", timeoutMillis));
+                    sendError(asyncContext, HttpServletResponse.SC_GATEWAY_TIMEOUT, errorMessage);
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                finished.set(true);
+                submitted.thenAccept(future -> future.cancel(true));
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        try {
+            submitted.complete(executor.submit(() -> {
+                try {
+                    Reply reply = task.call();
+                    // The response is only touched once the timeout can no longer complete it
+                    if (finished.compareAndSet(false, true)) {
+                        try {
+                            reply.writeTo(asyncContext);
+                        } finally {
+                            asyncContext.complete();
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.warning(String.format("%s \n%s", errorMessage, e));
+                    if (finished.compareAndSet(false, true)) {
+                        sendError(asyncContext, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, errorMessage);
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            if (finished.compareAndSet(false, true)) {
+                sendError(asyncContext, HttpServletResponse.SC_SERVICE_UNAVAILABLE, errorMessage);
+            }
+        }
+    }
+
+    private static void sendError(AsyncContext asyncContext, int status, String message) {
+        try {
+            ((HttpServletResponse) asyncContext.getResponse()).sendError(status, message);
+        } catch (IOException | IllegalStateException e) {
+            logger.warning(String.format("Error response was not sent. \n%s", e));
+        } finally {
+            asyncContext.complete();
+        }
+    }
+}
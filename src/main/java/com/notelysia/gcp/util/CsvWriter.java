@@ -0,0 +1,189 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.util;
+
+import com.notelysia.gcp.model.CalendarEvent;
+import com.notelysia.gcp.model.DriveActivity;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Buffered UTF-8 CSV writer with RFC 4180 escaping.
+ * Rows are written one by one, and the file is only created when the first row arrives.
+ * The opencsv readers of these files read a line break inside a field as LF, whether it was written as CR, LF or CRLF.
+ */
+public class CsvWriter implements Closeable {
+    public static final String[] DRIVE_ACTIVITY_HEADER = {
+            "activityId",
+            "timeActivity",
+            "userAction",
+            "primaryAction",
+            "subAction",
+            "subActionType",
+            "subActionResult",
+            "item"
+    };
+    public static final String[] CALENDAR_EVENT_HEADER = {
+            "eventId",
+            "eventTitle",
+            "eventType",
+            "status",
+            "createdTime",
+            "updatedTime",
+            "creator",
+            "organizer",
+            "eventLink",
+            "attendees",
+            "startTime",
+            "endTime",
+            "totalTime",
+            "ownerAccountId",
+            "attendee"
+    };
+    private static final Logger logger = Logger.getLogger(CsvWriter.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String LINE_SEPARATOR = "\r\n";
+
+    private final Path path;
+    private final String[] header;
+    private Writer writer;
+    private long rowCount;
+
+    /**
+     * Create a writer for the file. Any previous file with the same name is removed.
+     *
+     * @param fileName Name of the file to write
+     * @param header   Column names of the header row
+     */
+    public CsvWriter(String fileName, String... header) throws IOException {
+        this.path = Paths.get(fileName);
+        this.header = header;
+        Files.deleteIfExists(this.path);
+    }
+
+    /**
+     * Write one Drive Activity record.
+     */
+    public void writeRow(DriveActivity record) throws IOException {
+        this.writeRow(
+                record.getActivityId(),
+                record.getTimeActivity(),
+                record.getUserAction(),
+                record.getPrimaryAction(),
+                record.getSubAction(),
+                record.getSubActionType(),
+                record.getSubActionResult(),
+                record.getItem());
+    }
+
+    /**
+     * Write one Calendar Event record.
+     */
+    public void writeRow(CalendarEvent record) throws IOException {
+        this.writeRow(
+                record.getEventId(),
+                record.getEventTitle(),
+                record.getEventType(),
+                record.getStatus(),
+                record.getCreatedTime(),
+                record.getUpdatedTime(),
+                record.getCreator(),
+                record.getOrganizer(),
+                record.getEventLink(),
+                record.getAttendees(),
+                record.getStartTime(),
+                record.getEndTime(),
+                record.getTotalTime(),
+                record.getOwnerAccountId(),
+                record.getAttendee());
+    }
+
+    /**
+     * Write one row, every field is quoted and embedded quotes are doubled.
+     * A null value is written as an empty field without quotes, which BigQuery loads as NULL.
+     *
+     * @param values Field values of the row
+     */
+    public void writeRow(String... values) throws IOException {
+        if (this.writer == null) {
+            this.open();
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                this.writer.write(',');
+            }
+            if (values[i] != null) {
+                this.writeField(values[i]);
+            }
+        }
+        this.writer.write(LINE_SEPARATOR);
+        this.rowCount++;
+    }
+
+    /**
+     * @return number of rows written, without the header row
+     */
+    public long getRowCount() {
+        return this.rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.writer != null) {
+            this.writer.close();
+            this.writer = null;
+            logger.info(String.format("Write to file: %s (%s rows)", this.path, this.rowCount));
+        }
+    }
+
+    private void open() throws IOException {
+        FileChannel channel = FileChannel.open(this.path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        this.writer = new BufferedWriter(
+                Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE),
+                BUFFER_SIZE);
+        this.writer.write(String.join(",", this.header));
+        this.writer.write(LINE_SEPARATOR);
+    }
+
+    private void writeField(String value) throws IOException {
+        this.writer.write('"');
+        int start = 0;
+        int quote = value.indexOf('"');
+        while (quote >= 0) {
+            this.writer.write(value, start, quote - start + 1);
+            this.writer.write('"');
+            start = quote + 1;
+            quote = value.indexOf('"', start);
+        }
+        this.writer.write(value, start, value.length() - start);
+        this.writer.write('"');
+    }
+}
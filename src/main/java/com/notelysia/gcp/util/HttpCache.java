@@ -0,0 +1,127 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.util;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class HttpCache {
+
+    /**
+     * How long the browser may reuse a collection page without asking again.
+     */
+    public static final int MAX_AGE_SECONDS = 60;
+    /**
+     * How long an ingestion stays valid before the next request crawls Google APIs again.
+     */
+    public static final long INGESTION_INTERVAL_MILLIS = 5 * 60 * 1000L;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private HttpCache() {
+    }
+
+    /**
+     * Build a strong ETag from the user, the table last modified time and the ingestion watermark.
+     *
+     * @param userId       Google Account ID of the user
+     * @param lastModified Last modified time of the BigQuery table in milliseconds
+     * @param watermark    Time of the last successful ingestion for the user in milliseconds
+     * @return quoted ETag value
+     */
+    public static String buildETag(String userId, long lastModified, long watermark) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((userId + ":" + lastModified + ":" + watermark)
+                    .getBytes(StandardCharsets.UTF_8));
+            StringBuilder eTag = new StringBuilder(34).append('"');
+            // 16 bytes is enough to identify one version of a page
+            for (int i = 0; i < 16; i++) {
+                eTag.append(HEX[(hash[i] >> 4) & 0x0F]).append(HEX[hash[i] & 0x0F]);
+            }
+            return eTag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Get the ingestion watermark stored in the session if it is still inside the ingestion interval.
+     *
+     * @param session   Current HTTP session
+     * @param attribute Session attribute name of the watermark
+     * @return watermark in milliseconds, or null if missing or expired
+     */
+    public static Long freshWatermark(HttpSession session, String attribute) {
+        Long watermark = (Long) session.getAttribute(attribute);
+        if (watermark == null || System.currentTimeMillis() - watermark > INGESTION_INTERVAL_MILLIS) {
+            return null;
+        }
+        return watermark;
+    }
+
+    /**
+     * Check the If-None-Match header of the request against the current ETag.
+     *
+     * @param request HTTP request
+     * @param eTag    Current ETag of the page
+     * @return true if the client already has the current page
+     */
+    public static boolean isNotModified(HttpServletRequest request, String eTag) {
+        return isNotModified(request.getHeader("If-None-Match"), eTag);
+    }
+
+    /**
+     * Check the If-None-Match header value against the current ETag.
+     *
+     * @param ifNoneMatch If-None-Match header of the request, can be null
+     * @param eTag        Current ETag of the page
+     * @return true if the client already has the current page
+     */
+    public static boolean isNotModified(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*") || value.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the validators and short private caching headers on the response.
+     *
+     * @param response     HTTP response
+     * @param eTag         Current ETag of the page
+     * @param lastModified Last modified time of the BigQuery table in milliseconds
+     */
+    public static void applyCacheHeaders(HttpServletResponse response, String eTag, long lastModified) {
+        response.setHeader("ETag", eTag);
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+        response.setHeader("Cache-Control", "private, max-age=" + MAX_AGE_SECONDS);
+        response.setHeader("Vary", "Cookie");
+    }
+}
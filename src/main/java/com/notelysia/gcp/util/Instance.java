@@ -23,6 +23,7 @@ import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.driveactivity.v2.DriveActivityScopes;
 import com.google.api.services.people.v1.PeopleServiceScopes;
 
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
@@ -45,6 +46,83 @@ public class Instance {
     public static String gcpProjectId = properties.getProperty("gcp.projectId");
     public static String p12FilePath = properties.getProperty("p12.file.path");
     public static String p12Secret = properties.getProperty("p12.secret.password");
+    public static long collectionTimeoutMillis =
+            Long.parseLong(properties.getProperty("collection.timeout.seconds", "120")) * 1000L;
+    public static double apiPermitsPerSecond =
+            Double.parseDouble(properties.getProperty("google.api.permits.per.second", "10"));
+    public static double apiUserPermitsPerSecond =
+            Double.parseDouble(properties.getProperty("google.api.user.permits.per.second", "5"));
+    public static int apiMaxAttempts = Integer.parseInt(properties.getProperty("google.api.max.attempts", "5"));
+    public static long apiInitialBackoffMillis =
+            Long.parseLong(properties.getProperty("google.api.initial.backoff.millis", "500"));
+    public static long apiMaxBackoffMillis =
+            Long.parseLong(properties.getProperty("google.api.max.backoff.millis", "32000"));
+    public static String crawlCheckpointDir = properties.getProperty("crawl.checkpoint.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "crawl-checkpoints").toString());
+    public static long crawlCheckpointMaxAgeHours =
+            Long.parseLong(properties.getProperty("crawl.checkpoint.max.age.hours", "24"));
+    public static boolean driveActivitySortByTime =
+            Boolean.parseBoolean(properties.getProperty("drive.activity.sort.by.time", "true"));
+    public static int driveActivitySortRunSize =
+            Integer.parseInt(properties.getProperty("drive.activity.sort.run.size", "10000"));
+    public static boolean calendarLegacyAttendeeFilter =
+            Boolean.parseBoolean(properties.getProperty("calendar.legacy.attendee.filter", "true"));
+    public static long bigqueryMetadataCacheTtlSeconds =
+            Long.parseLong(properties.getProperty("bigquery.metadata.cache.ttl.seconds", "300"));
+    public static String bigqueryLoadFormat = properties.getProperty("bigquery.load.format", "csv");
+    public static boolean bigqueryLoadGzip =
+            Boolean.parseBoolean(properties.getProperty("bigquery.load.gzip", "true"));
+    public static long bigqueryPartitionRetentionDays =
+            Long.parseLong(properties.getProperty("bigquery.partition.retention.days", "400"));
+    public static boolean bigqueryPartitionRequireFilter =
+            Boolean.parseBoolean(properties.getProperty("bigquery.partition.require.filter", "true"));
+    public static boolean bigqueryPartitionMigrate =
+            Boolean.parseBoolean(properties.getProperty("bigquery.partition.migrate", "false"));
+    public static long bigqueryReadLookbackDays =
+            Long.parseLong(properties.getProperty("bigquery.read.lookback.days", "365"));
+    public static int bigqueryIngestionBatchRows =
+            Integer.parseInt(properties.getProperty("bigquery.ingestion.batch.rows", "5000"));
+    public static long bigqueryIngestionBatchDelayMillis =
+            Long.parseLong(properties.getProperty("bigquery.ingestion.batch.delay.millis", "2000"));
+    public static int bigqueryIngestionBacklogRows =
+            Integer.parseInt(properties.getProperty("bigquery.ingestion.backlog.rows", "50000"));
+    public static int bigqueryCatalogThreads =
+            Integer.parseInt(properties.getProperty("bigquery.catalog.threads", "8"));
+    public static long bigqueryCatalogCacheTtlSeconds =
+            Long.parseLong(properties.getProperty("bigquery.catalog.cache.ttl.seconds", "300"));
+    public static String cacheSharedTier = properties.getProperty("cache.shared.tier", "auto");
+    public static long cacheNearTtlSeconds =
+            Long.parseLong(properties.getProperty("cache.near.ttl.seconds", "60"));
+    public static int cacheNearMaxEntries =
+            Integer.parseInt(properties.getProperty("cache.near.max.entries", "10000"));
+    public static long cachePersonEmailTtlSeconds =
+            Long.parseLong(properties.getProperty("cache.person.email.ttl.seconds", "86400"));
+    public static long cacheQueryResultTtlSeconds =
+            Long.parseLong(properties.getProperty("cache.query.result.ttl.seconds", "86400"));
+    public static boolean ingestionBackground =
+            Boolean.parseBoolean(properties.getProperty("ingestion.background", "false"));
+    public static String ingestionDispatcher = properties.getProperty("ingestion.dispatcher", "local");
+    public static String ingestionQueueName = properties.getProperty("ingestion.queue.name", "collection");
+    public static double ingestionQueueRate =
+            Double.parseDouble(properties.getProperty("ingestion.queue.rate", "5"));
+    public static int ingestionQueueBucketSize =
+            Integer.parseInt(properties.getProperty("ingestion.queue.bucket.size", "10"));
+    public static int ingestionQueueMaxConcurrent =
+            Integer.parseInt(properties.getProperty("ingestion.queue.max.concurrent", "8"));
+    public static int ingestionTaskRetryLimit =
+            Integer.parseInt(properties.getProperty("ingestion.task.retry.limit", "5"));
+    public static long ingestionTaskMinBackoffSeconds =
+            Long.parseLong(properties.getProperty("ingestion.task.min.backoff.seconds", "10"));
+    public static long ingestionTaskMaxBackoffSeconds =
+            Long.parseLong(properties.getProperty("ingestion.task.max.backoff.seconds", "600"));
+    public static int ingestionTaskMaxDoublings =
+            Integer.parseInt(properties.getProperty("ingestion.task.max.doublings", "4"));
+    public static long bigqueryUserBytesBudget =
+            Long.parseLong(properties.getProperty("bigquery.user.bytes.budget", "0"));
+    public static String traceExporter = properties.getProperty("trace.exporter", "none");
+    public static String traceFilePath = properties.getProperty("trace.file.path", "traces.jsonl");
+    public static String traceOtlpEndpoint =
+            properties.getProperty("trace.otlp.endpoint", "http://localhost:4318/v1/traces");
 
     public static final JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
     /**
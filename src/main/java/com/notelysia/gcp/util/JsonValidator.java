@@ -0,0 +1,244 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.util;
+
+/**
+ * Strict (RFC 8259) structural JSON check.
+ * The string is scanned once by index, nothing is allocated and no tree is built.
+ * Every scan method returns the index after the scanned value, or -1 if the value is not valid.
+ */
+class JsonValidator {
+    private static final int MAX_DEPTH = 64;
+
+    private JsonValidator() {
+    }
+
+    /**
+     * Check the value is a JSON object or array.
+     * Anything that does not start with '{' or '[' is rejected before scanning.
+     */
+    static boolean isStructuralJson(String json) {
+        if (json == null) {
+            return false;
+        }
+        int start = skipWhitespace(json, 0);
+        if (start == json.length()) {
+            return false;
+        }
+        char first = json.charAt(start);
+        if (first != '{' && first != '[') {
+            return false;
+        }
+        int end = scanValue(json, start, 0);
+        return end >= 0 && skipWhitespace(json, end) == json.length();
+    }
+
+    private static int scanValue(String json, int index, int depth) {
+        if (index >= json.length()) {
+            return -1;
+        }
+        switch (json.charAt(index)) {
+            case '{':
+                return scanObject(json, index + 1, depth + 1);
+            case '[':
+                return scanArray(json, index + 1, depth + 1);
+            case '"':
+                return scanString(json, index + 1);
+            case 't':
+                return scanLiteral(json, index, "true");
+            case 'f':
+                return scanLiteral(json, index, "false");
+            case 'n':
+                return scanLiteral(json, index, "null");
+            default:
+                return scanNumber(json, index);
+        }
+    }
+
+    private static int scanObject(String json, int index, int depth) {
+        if (depth > MAX_DEPTH) {
+            return -1;
+        }
+        index = skipWhitespace(json, index);
+        if (index < json.length() && json.charAt(index) == '}') {
+            return index + 1;
+        }
+        while (true) {
+            if (index >= json.length() || json.charAt(index) != '"') {
+                return -1;
+            }
+            index = scanString(json, index + 1);
+            if (index < 0) {
+                return -1;
+            }
+            index = skipWhitespace(json, index);
+            if (index >= json.length() || json.charAt(index) != ':') {
+                return -1;
+            }
+            index = scanValue(json, skipWhitespace(json, index + 1), depth);
+            if (index < 0) {
+                return -1;
+            }
+            index = skipWhitespace(json, index);
+            if (index >= json.length()) {
+                return -1;
+            }
+            char next = json.charAt(index);
+            if (next == '}') {
+                return index + 1;
+            }
+            if (next != ',') {
+                return -1;
+            }
+            index = skipWhitespace(json, index + 1);
+        }
+    }
+
+    private static int scanArray(String json, int index, int depth) {
+        if (depth > MAX_DEPTH) {
+            return -1;
+        }
+        index = skipWhitespace(json, index);
+        if (index < json.length() && json.charAt(index) == ']') {
+            return index + 1;
+        }
+        while (true) {
+            index = scanValue(json, index, depth);
+            if (index < 0) {
+                return -1;
+            }
+            index = skipWhitespace(json, index);
+            if (index >= json.length()) {
+                return -1;
+            }
+            char next = json.charAt(index);
+            if (next == ']') {
+                return index + 1;
+            }
+            if (next != ',') {
+                return -1;
+            }
+            index = skipWhitespace(json, index + 1);
+        }
+    }
+
+    /**
+     * Scan a string, the index points after the opening quote.
+     */
+    private static int scanString(String json, int index) {
+        int length = json.length();
+        while (index < length) {
+            char c = json.charAt(index);
+            if (c == '"') {
+                return index + 1;
+            }
+            if (c < 0x20) {
+                return -1;
+            }
+            if (c != '\\') {
+                index++;
+                continue;
+            }
+            if (index + 1 >= length) {
+                return -1;
+            }
+            char escaped = json.charAt(index + 1);
+            if (escaped == 'u') {
+                if (index + 6 > length) {
+                    return -1;
+                }
+                for (int i = index + 2; i < index + 6; i++) {
+                    if (!isHexDigit(json.charAt(i))) {
+                        return -1;
+                    }
+                }
+                index += 6;
+            } else if ("\"\\/bfnrt".indexOf(escaped) >= 0) {
+                index += 2;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int scanLiteral(String json, int index, String literal) {
+        return json.startsWith(literal, index) ? index + literal.length() : -1;
+    }
+
+    private static int scanNumber(String json, int index) {
+        int length = json.length();
+        if (index < length && json.charAt(index) == '-') {
+            index++;
+        }
+        if (index >= length) {
+            return -1;
+        }
+        if (json.charAt(index) == '0') {
+            index++;
+        } else if (isDigit(json.charAt(index))) {
+            index = skipDigits(json, index);
+        } else {
+            return -1;
+        }
+        if (index < length && json.charAt(index) == '.') {
+            int digits = index + 1;
+            index = skipDigits(json, digits);
+            if (index == digits) {
+                return -1;
+            }
+        }
+        if (index < length && (json.charAt(index) == 'e' || json.charAt(index) == 'E')) {
+            index++;
+            if (index < length && (json.charAt(index) == '+' || json.charAt(index) == '-')) {
+                index++;
+            }
+            int digits = index;
+            index = skipDigits(json, digits);
+            if (index == digits) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    private static int skipDigits(String json, int index) {
+        while (index < json.length() && isDigit(json.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int skipWhitespace(String json, int index) {
+        while (index < json.length()) {
+            char c = json.charAt(index);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
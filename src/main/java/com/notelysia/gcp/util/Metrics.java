@@ -0,0 +1,198 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Process wide metrics of the collection pipeline: a latency histogram per stage and named counters.
+ * Stages are timed with try-with-resources:
+ * <pre>
+ * try (Metrics.Timer ignored = Metrics.time("drive_activity.crawl")) {
+ *     ...
+ * }
+ * </pre>
+ * Stage timings of the current thread are also collected between {@link #startRequest()} and
+ * {@link #finishRequest(String)}, which logs them as the timing breakdown of one request.
+ * Stages can be nested, the time of an inner stage is also part of the outer stage.
+ */
+public final class Metrics {
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+    private static final double[] BUCKETS_SECONDS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120
+    };
+    private static final Map<String, Histogram> stages = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Map<String, long[]>> requestStages = new ThreadLocal<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Start timing a stage, the time is recorded when the timer is closed.
+     *
+     * @param stage Stage name, for example "bigquery.load_job"
+     */
+    public static Timer time(String stage) {
+        return new Timer(stage, System.nanoTime());
+    }
+
+    /**
+     * Add to a counter.
+     *
+     * @param counter Counter name, for example "people_lookups"
+     * @param amount  Amount to add
+     */
+    public static void increment(String counter, long amount) {
+        counters.computeIfAbsent(counter, key -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Start collecting the timing breakdown of the request running on this thread.
+     */
+    public static void startRequest() {
+        requestStages.set(new LinkedHashMap<>());
+    }
+
+    /**
+     * Stop collecting and log the timing breakdown of the request running on this thread.
+     *
+     * @param request Name of the request in the log
+     * @return timing breakdown, for example "drive-activity: drive_activity.crawl=812ms(1) ..."
+     */
+    public static String finishRequest(String request) {
+        Map<String, long[]> timings = requestStages.get();
+        requestStages.remove();
+        if (timings == null) {
+            return request;
+        }
+        StringBuilder breakdown = new StringBuilder(request).append(':');
+        for (Map.Entry<String, long[]> timing : timings.entrySet()) {
+            breakdown.append(' ').append(timing.getKey()).append('=')
+                    .append(TimeUnit.NANOSECONDS.toMillis(timing.getValue()[0])).append("ms(")
+                    .append(timing.getValue()[1]).append(')');
+        }
+        logger.info(breakdown.toString());
+        return breakdown.toString();
+    }
+
+    /**
+     * Render all metrics in Prometheus text exposition format (version 0.0.4).
+     */
+    public static String scrape() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP gcp_stage_duration_seconds Duration of the collection pipeline stages.\n");
+        text.append("# TYPE gcp_stage_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram> stage : new TreeMap<>(stages).entrySet()) {
+            stage.getValue().appendTo(text, stage.getKey());
+        }
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            String name = "gcp_" + metricName(counter.getKey()) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void record(String stage, long nanos) {
+        stages.computeIfAbsent(stage, key -> new Histogram()).observe(nanos / 1e9);
+        Map<String, long[]> timings = requestStages.get();
+        if (timings != null) {
+            long[] timing = timings.computeIfAbsent(stage, key -> new long[2]);
+            timing[0] += nanos;
+            timing[1]++;
+        }
+    }
+
+    private static String metricName(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    /**
+     * Times one stage, closing it records the elapsed time.
+     */
+    public static final class Timer implements AutoCloseable {
+        private final String stage;
+        private final long startNanos;
+        private boolean closed;
+
+        private Timer(String stage, long startNanos) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                record(this.stage, System.nanoTime() - this.startNanos);
+            }
+        }
+    }
+
+    /**
+     * Cumulative histogram with fixed buckets in seconds.
+     */
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS_SECONDS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double seconds) {
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                if (seconds <= BUCKETS_SECONDS[i]) {
+                    this.buckets[i].increment();
+                    break;
+                }
+            }
+            this.count.increment();
+            this.sum.add(seconds);
+        }
+
+        void appendTo(StringBuilder text, String stage) {
+            String label = "stage=\"" + stage.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                cumulative += this.buckets[i].sum();
+                text.append("gcp_stage_duration_seconds_bucket{").append(label)
+                        .append(",le=\"").append(BUCKETS_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            // Buckets and count are read one after the other, keep +Inf consistent with the last bucket
+            long total = Math.max(this.count.sum(), cumulative);
+            text.append("gcp_stage_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(total).append('\n');
+            text.append("gcp_stage_duration_seconds_sum{").append(label).append("} ")
+                    .append(this.sum.sum()).append('\n');
+            text.append("gcp_stage_duration_seconds_count{").append(label).append("} ")
+                    .append(total).append('\n');
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.util;
+
+import com.google.api.client.util.DateTime;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+
+/**
+ * Time window of the current month in UTC.
+ * The month is read from the clock on every call, so a long-running instance moves
+ * to the next month on its own. Pass a fixed clock to get a specific month.
+ */
+public class TimeWindow {
+    private static final TimeWindow SYSTEM_UTC = new TimeWindow(Clock.systemUTC());
+    private final Clock clock;
+
+    public TimeWindow(Clock clock) {
+        this.clock = clock.withZone(ZoneOffset.UTC);
+    }
+
+    /**
+     * @return time window that follows the system clock
+     */
+    public static TimeWindow systemUTC() {
+        return SYSTEM_UTC;
+    }
+
+    /**
+     * @return first day of the current month at 00:00:00 UTC
+     */
+    public DateTime firstDayOfMonth() {
+        LocalDate firstDay = LocalDate.now(this.clock).withDayOfMonth(1);
+        return toDateTime(firstDay, LocalTime.MIDNIGHT);
+    }
+
+    /**
+     * @return last day of the current month at 23:59:59 UTC
+     */
+    public DateTime lastDayOfMonth() {
+        LocalDate today = LocalDate.now(this.clock);
+        LocalDate lastDay = today.withDayOfMonth(today.lengthOfMonth());
+        return toDateTime(lastDay, LocalTime.of(23, 59, 59));
+    }
+
+    private static DateTime toDateTime(LocalDate date, LocalTime time) {
+        long epochMillis = date.atTime(time).toInstant(ZoneOffset.UTC).toEpochMilli();
+        // Time zone shift 0 keeps the "Z" suffix expected by the Calendar API
+        return new DateTime(false, epochMillis, 0);
+    }
+}
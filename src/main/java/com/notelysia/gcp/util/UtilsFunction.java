@@ -18,26 +18,23 @@ package com.notelysia.gcp.util;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.util.DateTime;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
 import com.notelysia.gcp.logic.ServiceCredential;
 
 import javax.servlet.http.HttpSession;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.security.GeneralSecurityException;
-import java.time.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class UtilsFunction {
 
-    private static final ZonedDateTime currentDateTime = ZonedDateTime.now(ZoneId.of("UTC"));
-    private static final DateTimeFormatter rfc3339Formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
     private static final DateTimeFormatter iso8601Formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
     private static final Logger logger = Logger.getLogger(UtilsFunction.class.getName());
 
@@ -58,84 +55,150 @@ public class UtilsFunction {
     }
 
     /**
-     * Write the csv file after collecting the records
+     * Check the value is a JSON object or array without parsing it into a tree.
      *
-     * @param collection Collection will be written to a file
-     * @param csvHeader  Header of the csv file
-     * @param fileName   Name of the file to write the activities
+     * @param json The value to check
+     * @return true if the value is a valid JSON object or array
      */
-    public static void writeToCSV(List<String> collection, String csvHeader, String fileName) {
-        try {
-            File file = new File(fileName);
-            FileWriter fileWriter = new FileWriter(file);
-            PrintWriter printWriter = new PrintWriter(fileWriter);
-            // Convert the csvHeader to string and write to file
-            printWriter.println(csvHeader);
-            for (String record : collection) {
-                printWriter.println(record);
-            }
-            printWriter.close();
-            fileWriter.close();
-            logger.info(String.format("Write to file: %s", fileName));
-        } catch (IOException e) {
-            logger.info("Exception happen: " + e);
-        }
+    public static boolean isValidJson(String json) {
+        return JsonValidator.isStructuralJson(json);
     }
 
-    public static boolean isValidJson(String json) {
-        try {
-            JsonParser.parseString(json);
-        } catch (JsonSyntaxException e) {
-            return false;
+    /**
+     * Escape the value to be placed inside a quoted Standard SQL string literal.
+     * Backslashes and the quote character are escaped, other characters are kept as they are.
+     *
+     * @param value The value to escape
+     * @param quote The quote character of the literal (' or ")
+     * @return the escaped value
+     */
+    public static String escapeSqlString(String value, char quote) {
+        if (value == null || (value.indexOf(quote) < 0 && value.indexOf('\\') < 0)) {
+            return value;
         }
-        return true;
+        StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == quote || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
     }
 
+    /**
+     * @return first day of the current month at 00:00:00 UTC
+     */
     public static DateTime getFirstDayOfMonth() {
-        ZonedDateTime firstDayOfMonth = currentDateTime.withDayOfMonth(1)
-                .with(LocalTime.MIN)
-                .withZoneSameInstant(ZoneOffset.UTC);
-        return DateTime.parseRfc3339(firstDayOfMonth.format(rfc3339Formatter));
+        return TimeWindow.systemUTC().firstDayOfMonth();
     }
 
+    /**
+     * @return last day of the current month at 23:59:59 UTC
+     */
     public static DateTime getLastDayOfMonth() {
-        ZonedDateTime lastDayOfMonth = currentDateTime.withDayOfMonth(
-                        currentDateTime.toLocalDate().lengthOfMonth())
-                .with(LocalTime.MAX)
-                .withZoneSameInstant(ZoneOffset.UTC);
-        return DateTime.parseRfc3339(lastDayOfMonth.format(rfc3339Formatter));
+        return TimeWindow.systemUTC().lastDayOfMonth();
     }
 
     /**
-     * Format the timestamp to ISO 8601 format
+     * Format the timestamp to ISO 8601 format (yyyy-MM-dd'T'HH:mm:ss.SSSXXX).
+     * The shapes returned by Google APIs are recognized by their characters without parsing:
+     * ISO 8601 with milliseconds is returned as it is, RFC 3339 without fraction gets ".000"
+     * and a plain date gets midnight UTC. Other values are parsed as ISO offset date time.
      *
      * @param value The timestamp value
      * @return The formatted timestamp
      */
     public static String formatTimeStamp(String value) {
-        DateTimeFormatter inputFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-        //Check the value is in ISO 8601 format or not
-        if (isValidDateTime(value, iso8601Formatter)) {
-            return value;
+        int length = value.length();
+        if (length == 10 && isDateShape(value)) {
+            // Validate the calendar date, e.g. reject 2024-02-30
+            LocalDate.of(parseDigits(value, 0, 4), parseDigits(value, 5, 7), parseDigits(value, 8, 10));
+            return value + "T00:00:00.000Z";
         }
-        if (isValidDateTime(value, rfc3339Formatter)) {
-            return ZonedDateTime.parse(value).format(iso8601Formatter);
+        if (length >= 20 && isDateShape(value) && isTimeShape(value)) {
+            if (length == 20 && value.charAt(19) == 'Z') {
+                return value.substring(0, 19) + ".000Z";
+            }
+            if (value.charAt(19) == '.' && length >= 24
+                    && isDigits(value, 20, 23) && isZoneShape(value, 23)) {
+                return value;
+            }
         }
-        // Parse the input date
-        LocalDate localDate = LocalDate.parse(value, inputFormatter);
-        ZonedDateTime zonedDateTime = localDate.atStartOfDay(ZoneOffset.UTC);
-        return zonedDateTime.format(iso8601Formatter);
+        return OffsetDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME).format(iso8601Formatter);
     }
 
-    private static boolean isValidDateTime(String value, DateTimeFormatter formatter) {
+    /**
+     * Parse a timestamp the way BigQuery reads it from a load file: a date (midnight UTC)
+     * or an ISO 8601 date time with offset, the 'T' may be a space.
+     *
+     * @param value The timestamp value
+     * @return the instant, null if the value is not a timestamp
+     */
+    public static Instant parseTimestamp(String value) {
         try {
-            ZonedDateTime.parse(value, formatter);
-        } catch (DateTimeException e) {
-            return false;
+            if (value.length() == 10) {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+            return OffsetDateTime.parse(value.replace(' ', 'T')).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check yyyy-MM-dd at the start of the value.
+     */
+    private static boolean isDateShape(String value) {
+        return isDigits(value, 0, 4) && value.charAt(4) == '-'
+                && isDigits(value, 5, 7) && value.charAt(7) == '-'
+                && isDigits(value, 8, 10);
+    }
+
+    /**
+     * Check 'T'HH:mm:ss after the date.
+     */
+    private static boolean isTimeShape(String value) {
+        return value.charAt(10) == 'T'
+                && isDigits(value, 11, 13) && value.charAt(13) == ':'
+                && isDigits(value, 14, 16) && value.charAt(16) == ':'
+                && isDigits(value, 17, 19);
+    }
+
+    /**
+     * Check the value ends with "Z" or "+HH:mm" / "-HH:mm" from the index.
+     */
+    private static boolean isZoneShape(String value, int index) {
+        int remaining = value.length() - index;
+        if (remaining == 1) {
+            return value.charAt(index) == 'Z';
+        }
+        return remaining == 6
+                && (value.charAt(index) == '+' || value.charAt(index) == '-')
+                && isDigits(value, index + 1, index + 3)
+                && value.charAt(index + 3) == ':'
+                && isDigits(value, index + 4, index + 6);
+    }
+
+    private static boolean isDigits(String value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
         }
         return true;
     }
 
+    private static int parseDigits(String value, int from, int to) {
+        int number = 0;
+        for (int i = from; i < to; i++) {
+            number = number * 10 + (value.charAt(i) - '0');
+        }
+        return number;
+    }
+
     public static boolean isCredentialValid(HttpSession session) {
         ServiceCredential serviceCredential = (ServiceCredential) session.getServletContext().getAttribute("googleService");
         String userId = (String) session.getAttribute("userId");
@@ -0,0 +1,340 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.notelysia.gcp.dao;
+
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import com.notelysia.gcp.util.CsvWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trip of the Avro container files: the files are decoded by the reader below,
+ * written from the Avro 1.x specification independently of the writer.
+ */
+class AvroLoadFormatTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void zigZagVarintsRoundTrip() throws IOException {
+        Schema schema = Schema.of(Field.newBuilder("n", StandardSQLTypeName.INT64).setMode(Field.Mode.REQUIRED).build());
+        List<Long> values = List.of(0L, -1L, 1L, 63L, -64L, 64L, -65L, 8191L, -8192L, 1L << 40,
+                Long.MAX_VALUE, Long.MIN_VALUE);
+        List<String[]> rows = new ArrayList<>();
+        for (Long value : values) {
+            rows.add(new String[]{String.valueOf(value)});
+        }
+
+        Container container = this.load(schema, new String[]{"n"}, rows);
+
+        List<Object> decoded = new ArrayList<>();
+        for (Map<String, Object> row : container.rows) {
+            decoded.add(row.get("n"));
+        }
+        assertEquals(values, decoded);
+    }
+
+    @Test
+    void nullableFieldsWriteTheUnionBranch() throws IOException {
+        Schema schema = Schema.of(
+                Field.of("s", StandardSQLTypeName.STRING),
+                Field.of("t", StandardSQLTypeName.TIMESTAMP),
+                Field.of("b", StandardSQLTypeName.BOOL),
+                Field.of("d", StandardSQLTypeName.FLOAT64));
+
+        Container container = this.load(schema, new String[]{"s", "t", "b", "d"}, List.of(
+                new String[]{"text", "2024-01-02T03:04:05.123Z", "true", "1.5"},
+                new String[]{"", "", "", ""},
+                new String[]{null, null, null, null}));
+
+        Instant time = Instant.parse("2024-01-02T03:04:05.123Z");
+        Map<String, Object> first = container.rows.get(0);
+        assertEquals("text", first.get("s"));
+        assertEquals(time.getEpochSecond() * 1_000_000L + time.getNano() / 1_000, first.get("t"));
+        assertEquals(true, first.get("b"));
+        assertEquals(1.5, first.get("d"));
+        Map<String, Object> second = container.rows.get(1);
+        // An empty STRING is a value, empty values of the other types are NULL
+        assertEquals("", second.get("s"));
+        assertNull(second.get("t"));
+        assertNull(second.get("b"));
+        assertNull(second.get("d"));
+        Map<String, Object> third = container.rows.get(2);
+        assertTrue(third.containsKey("s"));
+        assertNull(third.get("s"));
+        assertTrue(container.schema.contains("\"timestamp-micros\""));
+    }
+
+    @Test
+    void missingRequiredValueFails() throws IOException {
+        Schema schema = Schema.of(Field.newBuilder("n", StandardSQLTypeName.INT64).setMode(Field.Mode.REQUIRED).build());
+
+        Path csvFile = this.writeCsv(new String[]{"n"}, List.<String[]>of(new String[]{""}));
+
+        assertThrows(IOException.class, () -> new AvroLoadFormat(false).prepare(csvFile, schema));
+    }
+
+    @Test
+    void largeFilesAreSplitInDeflateBlocks() throws IOException {
+        Schema schema = Schema.of(Field.newBuilder("s", StandardSQLTypeName.STRING).setMode(Field.Mode.REQUIRED).build());
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 6000; i++) {
+            rows.add(new String[]{i + ":" + "x".repeat(i % 97) + "-" + Integer.toHexString(i * 31)});
+        }
+
+        Container container = this.load(schema, new String[]{"s"}, rows);
+
+        assertEquals("deflate", container.codec);
+        assertTrue(container.blocks > 1, "blocks: " + container.blocks);
+        assertEquals(rows.size(), container.rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(rows.get(i)[0], container.rows.get(i).get("s"));
+        }
+    }
+
+    @Test
+    void nestedRepeatedRecordsRoundTrip() throws IOException {
+        Field attendee = Field.newBuilder("attendee", StandardSQLTypeName.STRUCT,
+                        Field.of("email", StandardSQLTypeName.STRING),
+                        Field.of("responseStatus", StandardSQLTypeName.STRING),
+                        Field.newBuilder("tags", StandardSQLTypeName.STRING).setMode(Field.Mode.REPEATED).build(),
+                        Field.of("room", StandardSQLTypeName.STRUCT, Field.of("name", StandardSQLTypeName.STRING)))
+                .setMode(Field.Mode.REPEATED)
+                .build();
+        Schema schema = Schema.of(Field.of("eventId", StandardSQLTypeName.STRING), attendee);
+
+        Container container = this.load(schema, new String[]{"eventId", "attendee"}, List.of(
+                new String[]{"e1", "[{\"email\":\"a@example.com\",\"responseStatus\":\"accepted\","
+                        + "\"tags\":[\"t1\",\"t2\"],\"room\":{\"name\":\"R1\"}},"
+                        + "{\"email\":\"b@example.com\",\"tags\":[]}]"},
+                new String[]{"e2", ""}));
+
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("email", "a@example.com");
+        first.put("responseStatus", "accepted");
+        first.put("tags", List.of("t1", "t2"));
+        first.put("room", Map.of("name", "R1"));
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("email", "b@example.com");
+        second.put("responseStatus", null);
+        second.put("tags", List.of());
+        second.put("room", null);
+        assertEquals(List.of(first, second), container.rows.get(0).get("attendee"));
+        assertEquals(List.of(), container.rows.get(1).get("attendee"));
+    }
+
+    @Test
+    void unsupportedTypesAreLoadedAsJsonLines() {
+        AvroLoadFormat format = new AvroLoadFormat(true);
+        Schema supported = Schema.of(
+                Field.of("s", StandardSQLTypeName.STRING),
+                Field.of("r", StandardSQLTypeName.STRUCT, Field.of("t", StandardSQLTypeName.TIMESTAMP)));
+        Schema date = Schema.of(Field.of("s", StandardSQLTypeName.STRING), Field.of("d", StandardSQLTypeName.DATE));
+        Schema nestedNumeric = Schema.of(
+                Field.of("r", StandardSQLTypeName.STRUCT, Field.of("n", StandardSQLTypeName.NUMERIC)));
+
+        assertSame(format, format.forSchema(supported));
+        assertInstanceOf(JsonLoadFormat.class, format.forSchema(date));
+        assertInstanceOf(JsonLoadFormat.class, format.forSchema(nestedNumeric));
+    }
+
+    private Container load(Schema schema, String[] header, List<String[]> rows) throws IOException {
+        Path avroFile = new AvroLoadFormat(false).prepare(this.writeCsv(header, rows), schema);
+        try {
+            return Container.read(Files.readAllBytes(avroFile), schema.getFields());
+        } finally {
+            Files.deleteIfExists(avroFile);
+        }
+    }
+
+    private Path writeCsv(String[] header, List<String[]> rows) throws IOException {
+        Path csvFile = this.directory.resolve("rows.csv");
+        try (CsvWriter csvWriter = new CsvWriter(csvFile.toString(), header)) {
+            for (String[] row : rows) {
+                csvWriter.writeRow(row);
+            }
+        }
+        return csvFile;
+    }
+
+    /**
+     * Decoded object container file.
+     */
+    private static final class Container {
+        private final List<Map<String, Object>> rows = new ArrayList<>();
+        private String schema;
+        private String codec;
+        private int blocks;
+
+        static Container read(byte[] data, FieldList fields) throws IOException {
+            Container container = new Container();
+            Decoder decoder = new Decoder(data);
+            assertArrayEquals(new byte[]{'O', 'b', 'j', 1}, decoder.readFixed(4));
+            Map<String, String> metadata = new HashMap<>();
+            for (long count = decoder.readBlockCount(); count != 0; count = decoder.readBlockCount()) {
+                for (long i = 0; i < count; i++) {
+                    metadata.put(decoder.readString(), decoder.readString());
+                }
+            }
+            container.schema = metadata.get("avro.schema");
+            container.codec = metadata.get("avro.codec");
+            byte[] sync = decoder.readFixed(16);
+            while (!decoder.isAtEnd()) {
+                long rowCount = decoder.readLong();
+                byte[] compressed = decoder.readFixed((int) decoder.readLong());
+                Decoder rows = new Decoder(inflate(compressed));
+                for (long i = 0; i < rowCount; i++) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (Field field : fields) {
+                        row.put(field.getName(), rows.readField(field));
+                    }
+                    container.rows.add(row);
+                }
+                assertTrue(rows.isAtEnd(), "block has bytes after its rows");
+                assertArrayEquals(sync, decoder.readFixed(16));
+                container.blocks++;
+            }
+            return container;
+        }
+
+        private static byte[] inflate(byte[] compressed) throws IOException {
+            Inflater inflater = new Inflater(true);
+            try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater)) {
+                return in.readAllBytes();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Avro binary decoding of the types the load format writes.
+     */
+    private static final class Decoder {
+        private final byte[] data;
+        private int position;
+
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        boolean isAtEnd() {
+            return this.position >= this.data.length;
+        }
+
+        byte[] readFixed(int length) {
+            byte[] bytes = Arrays.copyOfRange(this.data, this.position, this.position + length);
+            this.position += length;
+            return bytes;
+        }
+
+        long readLong() {
+            long raw = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = this.data[this.position++] & 0xFF;
+                raw |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        /**
+         * Count of a map or array block, a negative count is followed by the block size in bytes.
+         */
+        long readBlockCount() {
+            long count = this.readLong();
+            if (count < 0) {
+                this.readLong();
+                return -count;
+            }
+            return count;
+        }
+
+        String readString() {
+            return new String(this.readFixed((int) this.readLong()), StandardCharsets.UTF_8);
+        }
+
+        Object readField(Field field) {
+            if (field.getMode() == Field.Mode.REPEATED) {
+                List<Object> items = new ArrayList<>();
+                for (long count = this.readBlockCount(); count != 0; count = this.readBlockCount()) {
+                    for (long i = 0; i < count; i++) {
+                        items.add(this.readValue(field));
+                    }
+                }
+                return items;
+            }
+            if (field.getMode() == Field.Mode.REQUIRED) {
+                return this.readValue(field);
+            }
+            long branch = this.readLong();
+            assertTrue(branch == 0 || branch == 1, "union branch " + branch);
+            return branch == 0 ? null : this.readValue(field);
+        }
+
+        private Object readValue(Field field) {
+            if (field.getType() == LegacySQLTypeName.RECORD) {
+                Map<String, Object> record = new LinkedHashMap<>();
+                for (Field subField : field.getSubFields()) {
+                    record.put(subField.getName(), this.readField(subField));
+                }
+                return record;
+            }
+            switch (field.getType().getStandardType()) {
+                case STRING:
+                    return this.readString();
+                case INT64:
+                case TIMESTAMP:
+                    return this.readLong();
+                case FLOAT64:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits |= (long) (this.data[this.position++] & 0xFF) << (8 * i);
+                    }
+                    return Double.longBitsToDouble(bits);
+                case BOOL:
+                    return this.data[this.position++] != 0;
+                default:
+                    throw new AssertionError("Unexpected type " + field.getType());
+            }
+        }
+    }
+}
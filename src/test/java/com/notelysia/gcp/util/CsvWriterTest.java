@@ -0,0 +1,174 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.util;
+
+import com.notelysia.gcp.model.DriveActivity;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.enums.CSVReaderNullFieldIndicator;
+import com.opencsv.exceptions.CsvValidationException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trip of the written files through the RFC 4180 parser the loaders read them with.
+ */
+class CsvWriterTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void specialCharactersRoundTrip() throws IOException {
+        String[][] rows = {
+                {"plain", "with,comma", "with \"quotes\"", "\"", "\"\""},
+                {"line\nfeed", "two\n\nlines", "", "trailing newline\n", ","},
+                {"\u00fcn\u00efc\u00f6d\u00e9 \u65e5\u672c\u8a9e \ud83d\ude00", " leading and trailing spaces ", "tab\there", "back\\slash", "'single'"},
+                {"{\"email\":\"a@x.com\",\"note\":\"say \\\"hi\\\"\"}", "[1, 2]", "=1+1", "a\"b,c\nd", "end"}
+        };
+        Path file = this.write(new String[]{"a", "b", "c", "d", "e"}, rows);
+
+        List<String[]> read = read(file);
+        assertArrayEquals(new String[]{"a", "b", "c", "d", "e"}, read.get(0));
+        assertEquals(rows.length + 1, read.size());
+        for (int i = 0; i < rows.length; i++) {
+            assertArrayEquals(rows[i], read.get(i + 1), "row " + i);
+        }
+    }
+
+    @Test
+    void lineBreaksInFieldsAreReadBackAsLineFeeds() throws IOException {
+        Path file = this.write(new String[]{"a", "b", "c"}, new String[][]{
+                {"carriage\rreturn", "crlf\r\nin field", "end\r\n"}});
+
+        assertArrayEquals(new String[]{"carriage\nreturn", "crlf\nin field", "end\n"}, read(file).get(1));
+    }
+
+    @Test
+    void nullIsReadBackAsNullAndEmptyAsEmpty() throws IOException {
+        String[][] rows = {
+                {null, "", "x"},
+                {"", null, null},
+                {null, null, null}
+        };
+        Path file = this.write(new String[]{"a", "b", "c"}, rows);
+
+        List<String[]> read = read(file);
+        for (int i = 0; i < rows.length; i++) {
+            assertArrayEquals(rows[i], read.get(i + 1), "row " + i);
+        }
+        String text = Files.readString(file, StandardCharsets.UTF_8);
+        assertFalse(text.contains("null"));
+        assertEquals("a,b,c\r\n,\"\",\"x\"\r\n\"\",,\r\n,,\r\n", text);
+    }
+
+    @Test
+    void recordsAreWrittenInHeaderOrder() throws IOException {
+        DriveActivity record = new DriveActivity();
+        record.setActivityId("id-0");
+        record.setTimeActivity("2024-01-02T03:04:05.123Z");
+        record.setUserAction("[Jane \"JD\" Doe, John]");
+        record.setPrimaryAction("EDIT");
+        record.setSubAction("EDIT");
+        record.setSubActionType(null);
+        record.setSubActionResult("{\"edit\":{}}");
+        record.setItem("Report, final\nv2");
+        Path file = this.directory.resolve("activity.csv");
+        try (CsvWriter csvWriter = new CsvWriter(file.toString(), CsvWriter.DRIVE_ACTIVITY_HEADER)) {
+            csvWriter.writeRow(record);
+            assertEquals(1, csvWriter.getRowCount());
+        }
+
+        List<String[]> read = read(file);
+        assertArrayEquals(CsvWriter.DRIVE_ACTIVITY_HEADER, read.get(0));
+        assertArrayEquals(new String[]{
+                "id-0",
+                "2024-01-02T03:04:05.123Z",
+                "[Jane \"JD\" Doe, John]",
+                "EDIT",
+                "EDIT",
+                null,
+                "{\"edit\":{}}",
+                "Report, final\nv2"}, read.get(1));
+    }
+
+    @Test
+    void fileIsOnlyCreatedWithTheFirstRow() throws IOException {
+        Path file = this.directory.resolve("empty.csv");
+        Files.writeString(file, "stale content");
+        try (CsvWriter csvWriter = new CsvWriter(file.toString(), "a")) {
+            assertFalse(Files.exists(file), "previous file is removed");
+            assertEquals(0, csvWriter.getRowCount());
+        }
+        assertFalse(Files.exists(file), "no rows, no file");
+    }
+
+    @Test
+    void manyRowsRoundTrip() throws IOException {
+        String[][] rows = new String[20_000][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new String[]{String.valueOf(i), "row \"" + i + "\",\n" + "x".repeat(i % 97)};
+        }
+        Path file = this.write(new String[]{"n", "text"}, rows);
+
+        List<String[]> read = read(file);
+        assertEquals(rows.length + 1, read.size());
+        for (int i = 0; i < rows.length; i++) {
+            assertArrayEquals(rows[i], read.get(i + 1), "row " + i);
+        }
+    }
+
+    private Path write(String[] header, String[][] rows) throws IOException {
+        Path file = this.directory.resolve("rows.csv");
+        try (CsvWriter csvWriter = new CsvWriter(file.toString(), header)) {
+            for (String[] row : rows) {
+                csvWriter.writeRow(row);
+            }
+            assertEquals(rows.length, csvWriter.getRowCount());
+        }
+        return file;
+    }
+
+    private static List<String[]> read(Path file) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             CSVReader csvReader = new CSVReaderBuilder(reader)
+                     .withCSVParser(new RFC4180ParserBuilder()
+                             .withFieldAsNull(CSVReaderNullFieldIndicator.EMPTY_SEPARATORS)
+                             .build())
+                     .build()) {
+            String[] row;
+            while ((row = csvReader.readNext()) != null) {
+                rows.add(row);
+            }
+        } catch (CsvValidationException e) {
+            throw new IOException(e);
+        }
+        return rows;
+    }
+}
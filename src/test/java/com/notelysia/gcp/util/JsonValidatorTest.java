@@ -0,0 +1,168 @@
+/*
+ * Copyright @2024 by 2dgirlismywaifu
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.notelysia.gcp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonValidatorTest {
+
+    @Test
+    void escapesAreAccepted() {
+        assertValid("[\"\\\" \\\\ \\/ \\b \\f \\n \\r \\t\"]");
+        assertValid("{\"name\":\"caf\\u00e9 \\u00E9\"}");
+        assertValid("[\"\\u0000\"]");
+    }
+
+    @Test
+    void invalidEscapesAreRejected() {
+        assertInvalid("[\"\\a\"]");
+        assertInvalid("[\"\\x41\"]");
+        assertInvalid("[\"\\u00g9\"]");
+        assertInvalid("[\"\\u00e\"]");
+        assertInvalid("[\"\\\"]");
+        assertInvalid("[\"\\");
+    }
+
+    @Test
+    void rawControlCharactersAreRejected() {
+        assertInvalid("[\"line\nbreak\"]");
+        assertInvalid("[\"tab\there\"]");
+        assertInvalid("[\"\u0000\"]");
+        assertValid("[\"\u007f\"]");
+    }
+
+    @Test
+    void surrogatePairsAreAccepted() {
+        assertValid("[\"\uD83D\uDE00\"]");
+        assertValid("[\"\\ud83d\\ude00\"]");
+        assertValid("{\"\uD83D\uDE00\":\"\\uD83D\\uDE00\"}");
+    }
+
+    @Test
+    void unpairedSurrogateEscapesAreAcceptedByTheGrammar() {
+        // RFC 8259 section 8.2: the grammar allows escapes of unpaired surrogates
+        assertValid("[\"\\ud83d\"]");
+        assertValid("[\"\\ude00\\ud83d\"]");
+    }
+
+    @Test
+    void numbersFollowTheGrammar() {
+        for (String number : new String[]{"0", "-0", "7", "-12", "1.5", "1.5e10", "1E+2", "2e-3", "-0.0E0", "123456789012345678901234567890"}) {
+            assertValid("[" + number + "]");
+            assertValid("{\"n\":" + number + "}");
+        }
+        for (String number : new String[]{"01", "-01", "1.", ".5", "+1", "-", "1e", "1e+", "1.e5", "0x1F", "NaN", "Infinity", "1 2"}) {
+            assertInvalid("[" + number + "]");
+        }
+    }
+
+    @Test
+    void literalsAreCaseSensitive() {
+        assertValid("[true,false,null]");
+        assertInvalid("[True]");
+        assertInvalid("[nul]");
+        assertInvalid("[truefalse]");
+    }
+
+    @Test
+    void nestingUpToTheDepthLimitIsAccepted() {
+        assertValid("[".repeat(64) + "]".repeat(64));
+        assertValid("{\"a\":".repeat(63) + "[]" + "}".repeat(63));
+        assertValid("{\"a\":[{\"b\":{}},[[1,{\"c\":[null]}]]],\"d\":{\"e\":\"f\"}}");
+    }
+
+    @Test
+    void nestingDeeperThanTheLimitIsRejected() {
+        assertInvalid("[".repeat(65) + "]".repeat(65));
+        assertInvalid("[".repeat(100_000) + "]".repeat(100_000));
+    }
+
+    @Test
+    void malformedStructuresAreRejected() {
+        assertInvalid("[1,]");
+        assertInvalid("{\"a\":1,}");
+        assertInvalid("[,1]");
+        assertInvalid("[1 2]");
+        assertInvalid("{\"a\" 1}");
+        assertInvalid("{\"a\":}");
+        assertInvalid("{a:1}");
+        assertInvalid("{'a':1}");
+        assertInvalid("{1:1}");
+        assertInvalid("[}");
+        assertInvalid("{]");
+        assertInvalid("[[1]");
+        assertInvalid("[1]]");
+    }
+
+    @Test
+    void truncatedInputIsRejected() {
+        // Attendees shortened for display: UtilsFunction.truncated appends ", ..." to the list
+        String attendees = UtilsFunction.truncated(List.of(
+                "{\"email\":\"a@x.com\",\"responseStatus\":\"accepted\"}",
+                "{\"email\":\"b@x.com\",\"responseStatus\":\"needsAction\"}",
+                "{\"email\":\"c@x.com\",\"responseStatus\":\"declined\"}"), 2);
+        assertInvalid(attendees);
+        String complete = "[{\"email\":\"a@x.com\",\"responseStatus\":\"accepted\"}]";
+        assertValid(complete);
+        for (int length = 0; length < complete.length(); length++) {
+            assertInvalid(complete.substring(0, length));
+        }
+    }
+
+    @Test
+    void whitespaceAroundTokensIsAccepted() {
+        assertValid(" \t\r\n{ \"a\" : [ 1 , 2 ] , \"b\" : { } } \n");
+        assertValid("[\r\n]");
+        assertInvalid("[\u00a0]");
+        assertInvalid("\f[]");
+    }
+
+    @Test
+    void onlyObjectsAndArraysAreAcceptedAtTheTopLevel() {
+        assertValid("{}");
+        assertValid("[]");
+        assertInvalid(null);
+        assertInvalid("");
+        assertInvalid("   ");
+        assertInvalid("\"text\"");
+        assertInvalid("1");
+        assertInvalid("true");
+        assertInvalid("null");
+    }
+
+    @Test
+    void trailingContentIsRejected() {
+        assertInvalid("{}x");
+        assertInvalid("[] []");
+        assertInvalid("{},");
+        assertInvalid("[1]\u0000");
+    }
+
+    private static void assertValid(String json) {
+        assertTrue(JsonValidator.isStructuralJson(json), () -> "expected valid: " + json);
+    }
+
+    private static void assertInvalid(String json) {
+        assertFalse(JsonValidator.isStructuralJson(json), () -> "expected invalid: " + json);
+    }
+}